@@ -0,0 +1,124 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import com.dc.piglet.rtmp.core.protocol.Command;
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Object;
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Value;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Amf0Value.encode / decode：客户端的connect命令和带keyframes索引的onMetaData，
+ * 以及服务端内容固定的回复(connect的_result)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Amf0Benchmark {
+
+    /** onMetaData中keyframes的条数，0为不带索引 */
+    @Param({"0", "1000"})
+    public int keyframes;
+
+    private Object[] connect;
+    private Object[] onMetaData;
+    private ByteBuf out;
+    private ByteBuf connectBytes;
+    private ByteBuf onMetaDataBytes;
+
+    @Setup
+    public void setup() {
+        final Amf0Object object = new Amf0Object();
+        object.put("app", "live");
+        object.put("flashVer", "LNX 11,1,102,55");
+        object.put("swfUrl", "http://localhost/player.swf");
+        object.put("tcUrl", "rtmp://localhost:1935/live");
+        object.put("fpad", false);
+        object.put("capabilities", 239.0);
+        object.put("audioCodecs", 3575.0);
+        object.put("videoCodecs", 252.0);
+        object.put("videoFunction", 1.0);
+        object.put("pageUrl", "http://localhost/index.html");
+        object.put("objectEncoding", 0.0);
+        connect = new Object[]{"connect", 1.0, object};
+
+        final Map<String, Object> meta = new LinkedHashMap<String, Object>();
+        meta.put("duration", 7200.0);
+        meta.put("width", 1280.0);
+        meta.put("height", 720.0);
+        meta.put("videodatarate", 2500.0);
+        meta.put("framerate", 29.97);
+        meta.put("videocodecid", 7.0);
+        meta.put("audiodatarate", 128.0);
+        meta.put("audiosamplerate", 44100.0);
+        meta.put("audiosamplesize", 16.0);
+        meta.put("stereo", true);
+        meta.put("audiocodecid", 10.0);
+        meta.put("encoder", "Lavf58.29.100");
+        meta.put("filesize", 2.25e9);
+        if(keyframes > 0) {
+            final Object[] times = new Object[keyframes];
+            final Object[] positions = new Object[keyframes];
+            for(int i = 0; i < keyframes; i++) {
+                times[i] = i * 2.002;
+                positions[i] = 13.0 + i * 625000.0;
+            }
+            final Amf0Object index = new Amf0Object();
+            index.put("times", times);
+            index.put("filepositions", positions);
+            meta.put("keyframes", index);
+        }
+        onMetaData = new Object[]{"onMetaData", meta};
+
+        out = Unpooled.buffer(64 * 1024);
+        connectBytes = Unpooled.buffer();
+        Amf0Value.encode(connectBytes, connect);
+        onMetaDataBytes = Unpooled.buffer();
+        Amf0Value.encode(onMetaDataBytes, onMetaData);
+    }
+
+    @Benchmark
+    public int encodeConnect() {
+        out.clear();
+        Amf0Value.encode(out, connect);
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public int encodeOnMetaData() {
+        out.clear();
+        Amf0Value.encode(out, onMetaData);
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public int encodeConnectSuccess() {
+        return Command.connectSuccess(1).encode().readableBytes();
+    }
+
+    @Benchmark
+    public Object decodeConnect() {
+        return decodeAll(connectBytes.duplicate());
+    }
+
+    @Benchmark
+    public Object decodeOnMetaData() {
+        return decodeAll(onMetaDataBytes.duplicate());
+    }
+
+    private static Object decodeAll(final ByteBuf in) {
+        Object last = null;
+        while(in.isReadable()) {
+            last = Amf0Value.decode(in);
+        }
+        return last;
+    }
+
+}
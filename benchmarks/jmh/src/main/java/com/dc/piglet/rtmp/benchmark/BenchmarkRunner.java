@@ -0,0 +1,52 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * benchmarks.jar的入口，参数与JMH命令行相同
+ *
+ * 默认加上GC profiler(gc.alloc.rate.norm为每次操作分配的字节数)，
+ * 结果写成target/jmh-result-版本号.json，便于按版本对比；命令行指定了-rf / -rff时以命令行为准。
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions cmd = new CommandLineOptions(args);
+        if(cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        if(cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats() || cmd.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        final ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        boolean gc = false;
+        for(final ProfilerConfig profiler : cmd.getProfilers()) {
+            if(profiler.getKlass().equals(GCProfiler.class.getName()) || profiler.getKlass().equals("gc")) {
+                gc = true;
+            }
+        }
+        if(!gc) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if(!cmd.getResultFormat().hasValue() && !cmd.getResult().hasValue()) {
+            String version = BenchmarkRunner.class.getPackage().getImplementationVersion();
+            if(version == null) {
+                version = "dev";
+            }
+            options.resultFormat(ResultFormatType.JSON).result("target/jmh-result-" + version + ".json");
+        }
+        new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import com.dc.piglet.rtmp.core.io.FileChannelReader;
+import com.dc.piglet.rtmp.core.io.f4v.F4vReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * F4vReader打开文件：解析moov、建立sample表和同步sample索引，每个点播请求不走缓存时都要做一次
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class F4vOpenBenchmark {
+
+    @Param({"10", "120"})
+    public int minutes;
+
+    private String path;
+
+    @Setup
+    public void setup() throws Exception {
+        final File file = MediaFiles.mp4(minutes, 60);
+        path = file.getAbsolutePath();
+    }
+
+    @Benchmark
+    public int open() {
+        final F4vReader reader = new F4vReader(new FileChannelReader(path));
+        try {
+            return reader.getWidth();
+        } finally {
+            reader.close();
+        }
+    }
+
+}
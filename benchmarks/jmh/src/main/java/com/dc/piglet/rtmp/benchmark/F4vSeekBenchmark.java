@@ -0,0 +1,74 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import com.dc.piglet.rtmp.core.io.FileChannelReader;
+import com.dc.piglet.rtmp.core.io.f4v.F4vReader;
+import com.dc.piglet.rtmp.core.io.f4v.MovieInfo;
+import com.dc.piglet.rtmp.core.io.f4v.SampleTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * F4vReader.seek：长文件上随机位置拖动，linearSeek是改为二分查找之前的逐sample扫描，作为对照
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class F4vSeekBenchmark {
+
+    @Param({"120"})
+    public int minutes;
+
+    private FileChannelReader in;
+    private F4vReader reader;
+    private SampleTable samples;
+    private long[] targets;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        final File file = MediaFiles.mp4(minutes, 60);
+        in = new FileChannelReader(file.getAbsolutePath());
+        final MovieInfo movie = new MovieInfo(in);
+        reader = new F4vReader(in, movie);
+        samples = movie.getSamples();
+        final Random random = new Random(1);
+        targets = new long[1024];
+        for(int i = 0; i < targets.length; i++) {
+            targets[i] = random.nextInt(minutes * 60 * 1000);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        reader.close();
+    }
+
+    @Benchmark
+    public long seek() {
+        return reader.seek(nextTarget());
+    }
+
+    @Benchmark
+    public long linearSeek() {
+        final long time = nextTarget();
+        int cursor = 0;
+        while(cursor < samples.size() && samples.getTime(cursor) < time) {
+            cursor++;
+        }
+        while(cursor > 0 && !samples.isSyncSample(cursor)) {
+            cursor--;
+        }
+        return samples.getTime(cursor);
+    }
+
+    private long nextTarget() {
+        return targets[next++ & (targets.length - 1)];
+    }
+
+}
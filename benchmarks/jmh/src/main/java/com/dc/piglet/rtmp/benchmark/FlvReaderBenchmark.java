@@ -0,0 +1,60 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import com.dc.piglet.rtmp.core.io.BufferReader;
+import com.dc.piglet.rtmp.core.io.FileChannelReader;
+import com.dc.piglet.rtmp.core.io.MappedFileReader;
+import com.dc.piglet.rtmp.core.io.flv.FlvReader;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlvReader.next：逐tag读取和按时长聚合，读到文件末尾后回到开头
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlvReaderBenchmark {
+
+    @Param({"channel", "mapped"})
+    public String reader;
+
+    /** 聚合时长(毫秒)，0为逐tag读取 */
+    @Param({"0", "200"})
+    public int aggregateDuration;
+
+    private FlvReader flv;
+
+    @Setup
+    public void setup() throws Exception {
+        final File file = MediaFiles.flv(10, 60, 4096);
+        final BufferReader in = "mapped".equals(reader)
+                ? new MappedFileReader(file.getAbsolutePath())
+                : new FileChannelReader(file.getAbsolutePath());
+        flv = new FlvReader(in);
+        flv.setAggregateDuration(aggregateDuration);
+    }
+
+    @TearDown
+    public void tearDown() {
+        flv.close();
+    }
+
+    @Benchmark
+    public int next() {
+        if(!flv.hasNext()) {
+            flv.seek(0);
+        }
+        final RtmpMessage message = flv.next();
+        final int time = message.getHeader().getTimestamp();
+        ReferenceCountUtil.release(message);
+        return time;
+    }
+
+}
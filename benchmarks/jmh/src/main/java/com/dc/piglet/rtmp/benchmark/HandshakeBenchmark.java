@@ -0,0 +1,78 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import com.dc.piglet.rtmp.client.ClientOptions;
+import com.dc.piglet.rtmp.core.protocol.DhKeyPairPool;
+import com.dc.piglet.rtmp.core.protocol.RtmpHandshake;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RtmpHandshake服务端：解析C0+C1，生成S0、S1、S2，解析C2
+ *
+ * simple为客户端版本全0的简单握手；digest为Flash Player 9+的digest校验；rtmpe在digest之外协商DH和RC4。
+ * 结果是单线程每秒完成的握手数，即每核的握手能力。dhPool > 0时DH密钥对在池的后台线程中生成，不计入。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    @Param({"simple", "digest", "rtmpe"})
+    public String validation;
+
+    @Param({"0", "32"})
+    public int dhPool;
+
+    private DhKeyPairPool pool;
+
+    private ByteBuf c0c1;
+    private ByteBuf c2;
+
+    @Setup
+    public void setup() {
+        final ClientOptions options = new ClientOptions(null, 1935, null, null, null, "rtmpe".equals(validation), null);
+        if("simple".equals(validation)) {
+            options.setClientVersionToUse(new byte[4]);
+        }
+        final RtmpHandshake client = new RtmpHandshake(options);
+        c0c1 = Unpooled.wrappedBuffer(client.encodeClient0(), client.encodeClient1());
+        final byte[] bytes = new byte[RtmpHandshake.HANDSHAKE_SIZE];
+        new Random(1).nextBytes(bytes);
+        c2 = Unpooled.wrappedBuffer(bytes);
+        if(dhPool > 0) {
+            pool = new DhKeyPairPool(dhPool);
+            RtmpHandshake.setKeyPairPool(pool);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(pool != null) {
+            RtmpHandshake.setKeyPairPool(null);
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int serverHandshake() {
+        final RtmpHandshake server = new RtmpHandshake();
+        server.decodeClient0And1(c0c1.duplicate());
+        final ByteBuf s0 = server.encodeServer0();
+        final ByteBuf s1 = server.encodeServer1();
+        final ByteBuf s2 = server.encodeServer2();
+        server.decodeClient2(c2.duplicate());
+        final int size = s0.readableBytes() + s1.readableBytes() + s2.readableBytes();
+        s0.release();
+        s1.release();
+        s2.release();
+        return size;
+    }
+
+}
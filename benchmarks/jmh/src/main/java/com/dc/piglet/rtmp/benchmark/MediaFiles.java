@@ -0,0 +1,287 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 生成基准测试用的合成媒体文件，写在java.io.tmpdir下，同样参数的文件只生成一次
+ *
+ * sample内容是随机字节，只保证容器结构可被piglet解析，不能被播放器解码。
+ */
+public final class MediaFiles {
+
+    private static final int VIDEO_TIMESCALE = 30000;
+    private static final int VIDEO_SAMPLE_DURATION = 1001;
+    private static final int AUDIO_TIMESCALE = 44100;
+    private static final int AUDIO_SAMPLE_DURATION = 1024;
+    private static final int VIDEO_SAMPLES_PER_CHUNK = 15;
+    private static final int AUDIO_SAMPLES_PER_CHUNK = 21;
+
+    private MediaFiles() {
+    }
+
+    /**
+     * avc1 + mp4a两个track的mp4，moov在文件末尾
+     * @param gop 关键帧间隔(帧数)
+     */
+    public static File mp4(final int minutes, final int gop) throws IOException {
+        final File file = new File(System.getProperty("java.io.tmpdir"), "piglet-bench-" + minutes + "m-gop" + gop + ".mp4");
+        if(file.isFile()) {
+            return file;
+        }
+        final int videoCount = (int) ((long) minutes * 60 * VIDEO_TIMESCALE / VIDEO_SAMPLE_DURATION);
+        final int audioCount = (int) ((long) minutes * 60 * AUDIO_TIMESCALE / AUDIO_SAMPLE_DURATION);
+        final Random random = new Random(minutes);
+        final int[] videoSizes = sizes(random, videoCount, 24, 96);
+        final int[] audioSizes = sizes(random, audioCount, 8, 24);
+        final long[] videoChunks = new long[chunkCount(videoCount, VIDEO_SAMPLES_PER_CHUNK)];
+        final long[] audioChunks = new long[chunkCount(audioCount, AUDIO_SAMPLES_PER_CHUNK)];
+        final File temp = new File(file.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+            final byte[] ftyp = box("ftyp", bytes("isom"), ints(1), bytes("isomavc1"));
+            out.write(ftyp);
+            long mdatSize = 8;
+            for(final int size : videoSizes) {
+                mdatSize += size;
+            }
+            for(final int size : audioSizes) {
+                mdatSize += size;
+            }
+            out.writeInt((int) mdatSize);
+            out.write(bytes("mdat"));
+            // 视频chunk和音频chunk交替写入
+            long position = ftyp.length + 8;
+            final byte[] data = new byte[96];
+            for(int chunk = 0; chunk < Math.max(videoChunks.length, audioChunks.length); chunk++) {
+                if(chunk < videoChunks.length) {
+                    videoChunks[chunk] = position;
+                    position += writeChunk(out, random, data, videoSizes, chunk * VIDEO_SAMPLES_PER_CHUNK, VIDEO_SAMPLES_PER_CHUNK);
+                }
+                if(chunk < audioChunks.length) {
+                    audioChunks[chunk] = position;
+                    position += writeChunk(out, random, data, audioSizes, chunk * AUDIO_SAMPLES_PER_CHUNK, AUDIO_SAMPLES_PER_CHUNK);
+                }
+            }
+            final long duration = (long) minutes * 60 * 1000;
+            out.write(box("moov",
+                    fullBox("mvhd", ints(0, 0, 1000, (int) duration, 0x10000), new byte[]{1, 0}, new byte[10], new byte[36], new byte[24], ints(3)),
+                    track(1, VIDEO_TIMESCALE, VIDEO_SAMPLE_DURATION, videoSizes, videoChunks, VIDEO_SAMPLES_PER_CHUNK, gop, videoDescription()),
+                    track(2, AUDIO_TIMESCALE, AUDIO_SAMPLE_DURATION, audioSizes, audioChunks, AUDIO_SAMPLES_PER_CHUNK, 0, audioDescription())));
+        }
+        if(!temp.renameTo(file)) {
+            throw new IOException("cannot rename " + temp + " to " + file);
+        }
+        return file;
+    }
+
+    /**
+     * 交替的视频(29.97fps)和音频(AAC 44.1kHz)tag，onMetaData中不带keyframes
+     * @param gop 关键帧间隔(帧数)
+     * @param videoSize 视频tag body的平均大小
+     */
+    public static File flv(final int minutes, final int gop, final int videoSize) throws IOException {
+        final File file = new File(System.getProperty("java.io.tmpdir"), "piglet-bench-" + minutes + "m-gop" + gop + "-" + videoSize + ".flv");
+        if(file.isFile()) {
+            return file;
+        }
+        final Random random = new Random(minutes);
+        final long duration = (long) minutes * 60 * 1000;
+        final File temp = new File(file.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+            out.write(bytes("FLV"));
+            out.writeByte(1);
+            out.writeByte(5); // audio + video
+            out.writeInt(9);
+            out.writeInt(0);
+            final ByteArrayOutputStream meta = new ByteArrayOutputStream();
+            final DataOutputStream metaOut = new DataOutputStream(meta);
+            metaOut.writeByte(2); // string
+            metaOut.writeUTF("onMetaData");
+            metaOut.writeByte(8); // ecma array
+            metaOut.writeInt(3);
+            metaOut.writeUTF("duration");
+            metaOut.writeByte(0);
+            metaOut.writeDouble(duration / 1000.0);
+            metaOut.writeUTF("videocodecid");
+            metaOut.writeByte(0);
+            metaOut.writeDouble(7);
+            metaOut.writeUTF("audiocodecid");
+            metaOut.writeByte(0);
+            metaOut.writeDouble(10);
+            metaOut.write(new byte[]{0, 0, 9});
+            writeTag(out, 18, 0, meta.toByteArray());
+            final byte[] data = new byte[videoSize * 2];
+            int frame = 0;
+            int audioFrame = 0;
+            long audioTime = 0;
+            for(long videoTime = 0; videoTime < duration; videoTime = (long) ++frame * VIDEO_SAMPLE_DURATION * 1000 / VIDEO_TIMESCALE) {
+                while(audioTime <= videoTime) {
+                    random.nextBytes(data);
+                    data[0] = (byte) 0xaf;
+                    data[1] = 1;
+                    writeTag(out, 8, (int) audioTime, Arrays.copyOf(data, 8 + random.nextInt(24)));
+                    audioTime = (long) ++audioFrame * AUDIO_SAMPLE_DURATION * 1000 / AUDIO_TIMESCALE;
+                }
+                random.nextBytes(data);
+                data[0] = (byte) (frame % gop == 0 ? 0x17 : 0x27);
+                data[1] = 1;
+                writeTag(out, 9, (int) videoTime, Arrays.copyOf(data, videoSize / 2 + random.nextInt(videoSize)));
+            }
+        }
+        if(!temp.renameTo(file)) {
+            throw new IOException("cannot rename " + temp + " to " + file);
+        }
+        return file;
+    }
+
+    private static void writeTag(final DataOutputStream out, final int type, final int time, final byte[] body) throws IOException {
+        out.writeInt(type << 24 | body.length);
+        out.writeInt(time << 8 | time >>> 24);
+        out.write(new byte[3]);
+        out.write(body);
+        out.writeInt(body.length + 11);
+    }
+
+    private static int[] sizes(final Random random, final int count, final int min, final int max) {
+        final int[] sizes = new int[count];
+        for(int i = 0; i < count; i++) {
+            sizes[i] = min + random.nextInt(max - min + 1);
+        }
+        return sizes;
+    }
+
+    private static int chunkCount(final int sampleCount, final int samplesPerChunk) {
+        return (sampleCount + samplesPerChunk - 1) / samplesPerChunk;
+    }
+
+    private static long writeChunk(final DataOutputStream out, final Random random, final byte[] data,
+                                   final int[] sizes, final int first, final int count) throws IOException {
+        long written = 0;
+        for(int i = first; i < Math.min(sizes.length, first + count); i++) {
+            random.nextBytes(data);
+            out.write(data, 0, sizes[i]);
+            written += sizes[i];
+        }
+        return written;
+    }
+
+    /**
+     * @param gop 为0时不写stss，即所有sample都不是同步sample(音频)
+     */
+    private static byte[] track(final int trackId, final int timeScale, final int sampleDuration, final int[] sizes,
+                                final long[] chunks, final int samplesPerChunk, final int gop, final byte[] description) throws IOException {
+        final int count = sizes.length;
+        final ByteArrayOutputStream stsz = new ByteArrayOutputStream(count * 4 + 8);
+        final DataOutputStream stszOut = new DataOutputStream(stsz);
+        stszOut.writeInt(0);
+        stszOut.writeInt(count);
+        for(final int size : sizes) {
+            stszOut.writeInt(size);
+        }
+        final ByteArrayOutputStream stco = new ByteArrayOutputStream(chunks.length * 4 + 4);
+        final DataOutputStream stcoOut = new DataOutputStream(stco);
+        stcoOut.writeInt(chunks.length);
+        for(final long offset : chunks) {
+            stcoOut.writeInt((int) offset);
+        }
+        byte[] stss = new byte[0];
+        if(gop > 0) {
+            final ByteArrayOutputStream sync = new ByteArrayOutputStream();
+            final DataOutputStream syncOut = new DataOutputStream(sync);
+            syncOut.writeInt(chunkCount(count, gop));
+            for(int i = 0; i < count; i += gop) {
+                syncOut.writeInt(i + 1);
+            }
+            stss = fullBox("stss", sync.toByteArray());
+        }
+        final byte[] stbl = box("stbl",
+                fullBox("stsd", ints(1), description),
+                fullBox("stts", ints(1, count, sampleDuration)),
+                fullBox("stsc", ints(1, 1, samplesPerChunk, 1)),
+                fullBox("stsz", stsz.toByteArray()),
+                fullBox("stco", stco.toByteArray()),
+                stss);
+        final long duration = (long) count * sampleDuration;
+        return box("trak",
+                fullBox("tkhd", ints(0, 0, trackId, 0, 0), new byte[8], new byte[8], new byte[36], ints(640 << 16, 360 << 16)),
+                box("mdia",
+                        fullBox("mdhd", ints(0, 0, timeScale, (int) duration, 0)),
+                        box("minf", stbl)));
+    }
+
+    private static byte[] videoDescription() throws IOException {
+        final byte[] avcC = {1, 0x64, 0, 0x1f, (byte) 0xff, (byte) 0xe1, 0, 4, 'a', 'b', 'c', 'd', 1, 0, 2, 'e', 'f'};
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[6]);
+        out.writeShort(1);
+        out.write(new byte[16]);
+        out.writeShort(640);
+        out.writeShort(360);
+        out.writeInt(0x480000);
+        out.writeInt(0x480000);
+        out.writeInt(0);
+        out.writeShort(1);
+        out.write(new byte[32]);
+        out.writeShort(24);
+        out.writeShort(-1);
+        out.write(box("avcC", avcC));
+        return box("avc1", bytes.toByteArray());
+    }
+
+    private static byte[] audioDescription() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[6]);
+        out.writeShort(1);
+        out.write(new byte[8]);
+        out.writeShort(2);
+        out.writeShort(16);
+        out.writeInt(0);
+        out.writeInt(AUDIO_TIMESCALE << 16);
+        // 空的esds，使用默认的AAC配置
+        out.write(fullBox("esds"));
+        return box("mp4a", bytes.toByteArray());
+    }
+
+    private static byte[] fullBox(final String type, final byte[]... payloads) throws IOException {
+        final byte[][] withVersion = new byte[payloads.length + 1][];
+        withVersion[0] = new byte[4];
+        System.arraycopy(payloads, 0, withVersion, 1, payloads.length);
+        return box(type, withVersion);
+    }
+
+    private static byte[] box(final String type, final byte[]... payloads) throws IOException {
+        int size = 8;
+        for(final byte[] payload : payloads) {
+            size += payload.length;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(size);
+        out.write(bytes(type));
+        for(final byte[] payload : payloads) {
+            out.write(payload);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] ints(final int... values) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length * 4);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for(final int value : values) {
+            out.writeInt(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] bytes(final String ascii) {
+        final byte[] bytes = new byte[ascii.length()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ascii.charAt(i);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.ChunkSize;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import com.dc.piglet.rtmp.handler.RtmpDecoder;
+import com.dc.piglet.rtmp.handler.RtmpEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RtmpDecoder：一批按chunkSize切好的音视频message整批送入解码器，结果按message平均
+ *
+ * 每批第一个message是完整header，重复送入同一批数据时header压缩状态不受上一批影响。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(RtmpDecoderBenchmark.MESSAGES)
+public class RtmpDecoderBenchmark {
+
+    static final int MESSAGES = 64;
+
+    @Param({"128", "4096", "65536"})
+    public int chunkSize;
+
+    /** 视频message的body大小，音频固定为几十字节 */
+    @Param({"1024", "16384"})
+    public int videoSize;
+
+    @Param({"true", "false"})
+    public boolean zeroCopy;
+
+    private EmbeddedChannel channel;
+    private ByteBuf batch;
+
+    @Setup
+    public void setup() {
+        final RtmpEncoder encoder = new RtmpEncoder();
+        channel = new EmbeddedChannel(new RtmpDecoder(zeroCopy));
+        channel.writeInbound(encoder.encode(new ChunkSize(chunkSize)));
+        drain();
+        final Random random = new Random(1);
+        batch = Unpooled.buffer();
+        for(int i = 0; i < MESSAGES; i++) {
+            final RtmpMessage message;
+            if(i % 2 == 0) {
+                message = new Video(i * 33, Unpooled.wrappedBuffer(body(random, videoSize, i % 60 == 0 ? 0x17 : 0x27)));
+            } else {
+                message = new Audio(i * 33, Unpooled.wrappedBuffer(body(random, 32, 0xaf)));
+            }
+            message.getHeader().setStreamId(1);
+            final ByteBuf chunks = encoder.encode(message);
+            batch.writeBytes(chunks);
+            chunks.release();
+        }
+    }
+
+    static byte[] body(final Random random, final int size, final int first) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        bytes[0] = (byte) first;
+        bytes[1] = 1;
+        return bytes;
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        batch.release();
+    }
+
+    @Benchmark
+    public int decode() {
+        channel.writeInbound(batch.retainedDuplicate());
+        return drain();
+    }
+
+    private int drain() {
+        int count = 0;
+        Object message;
+        while((message = channel.readInbound()) != null) {
+            ReferenceCountUtil.release(message);
+            count++;
+        }
+        return count;
+    }
+
+}
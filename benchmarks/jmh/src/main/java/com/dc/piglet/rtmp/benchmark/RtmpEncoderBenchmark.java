@@ -0,0 +1,92 @@
+package com.dc.piglet.rtmp.benchmark;
+
+import com.dc.piglet.rtmp.core.protocol.Aggregate;
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.ChunkSize;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import com.dc.piglet.rtmp.handler.RtmpEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RtmpEncoder.encode：单个音频 / 视频 / aggregate message的header压缩和分块，输出使用池化buffer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtmpEncoderBenchmark {
+
+    @Param({"audio", "video", "aggregate"})
+    public String type;
+
+    @Param({"128", "4096"})
+    public int chunkSize;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private RtmpEncoder encoder;
+    private RtmpMessage message;
+    private int time;
+
+    @Setup
+    public void setup() {
+        encoder = new RtmpEncoder();
+        encoder.encode(new ChunkSize(chunkSize)).release();
+        final Random random = new Random(1);
+        switch(type) {
+            case "audio":
+                message = new Audio(0, Unpooled.wrappedBuffer(RtmpDecoderBenchmark.body(random, 32, 0xaf)));
+                break;
+            case "video":
+                message = new Video(0, Unpooled.wrappedBuffer(RtmpDecoderBenchmark.body(random, 8192, 0x27)));
+                break;
+            case "aggregate":
+                message = new Aggregate(0, Unpooled.wrappedBuffer(aggregateBody(random)));
+                break;
+            default:
+                throw new IllegalArgumentException(type);
+        }
+        message.getHeader().setStreamId(1);
+    }
+
+    /**
+     * 约200毫秒的flv tag(含tag头和prevTagSize)，与FlvReader聚合模式读出的格式相同
+     */
+    private static byte[] aggregateBody(final Random random) {
+        final ByteBuf out = Unpooled.buffer();
+        for(int i = 0; i < 16; i++) {
+            final boolean video = i % 3 != 2;
+            final byte[] body = RtmpDecoderBenchmark.body(random, video ? 4096 : 32, video ? 0x27 : 0xaf);
+            out.writeByte(video ? 9 : 8);
+            out.writeMedium(body.length);
+            out.writeMedium(i * 13);
+            out.writeByte(0);
+            out.writeMedium(0);
+            out.writeBytes(body);
+            out.writeInt(body.length + 11);
+        }
+        final byte[] bytes = new byte[out.readableBytes()];
+        out.readBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public int encode() {
+        time += 20;
+        message.getHeader().setTimestamp(time);
+        final ByteBuf out = encoder.encode(alloc, message);
+        final int size = out.readableBytes();
+        out.release();
+        return size;
+    }
+
+}
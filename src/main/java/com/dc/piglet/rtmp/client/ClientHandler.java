@@ -0,0 +1,252 @@
+package com.dc.piglet.rtmp.client;
+
+import com.dc.piglet.rtmp.core.io.RtmpPublisher;
+import com.dc.piglet.rtmp.core.io.RtmpReader;
+import com.dc.piglet.rtmp.core.protocol.*;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * 压测客户端的一个连接：connect -> createStream -> play / publish，记录统计，不保存收到的媒体
+ *
+ * 播放结束(NetStream.Play.Stop)或发布完文件后按loop次数重来，用完后关闭连接。
+ */
+public class ClientHandler extends ChannelDuplexHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientHandler.class);
+
+    /** 压测时长到了，不再重来，结束后关闭连接 */
+    public static final Object STOP = "STOP";
+
+    private static final int CONNECT_TRANSACTION = 1;
+    private static final int CREATE_STREAM_TRANSACTION = 2;
+
+    private final ClientOptions options;
+    private final LoadStats.Client stats;
+    private final Timer timer;
+    private final Executor ioExecutor;
+    private final RtmpReader reader;
+    private int loopsRemaining;
+    private int streamId;
+    private RtmpPublisher publisher;
+
+    private int bytesReadWindow = 2500000;
+    private long bytesRead;
+    private long bytesReadLastSent;
+
+    /**
+     * @param reader 发布时读取的文件，播放时为null
+     */
+    public ClientHandler(final ClientOptions options, final LoadStats.Client stats, final RtmpReader reader,
+                         final Timer timer, final Executor ioExecutor) {
+        this.options = options;
+        this.stats = stats;
+        this.reader = reader;
+        this.timer = timer;
+        this.ioExecutor = ioExecutor;
+        this.loopsRemaining = options.getLoop();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if(evt == ClientHandshakeHandler.HANDSHAKE_COMPLETE) {
+            final Command connect = Command.connect(options);
+            connect.setTransactionId(CONNECT_TRANSACTION);
+            ctx.writeAndFlush(connect);
+            return;
+        }
+        if(evt == STOP) {
+            if(streamId > 0 && loopsRemaining > 0) {
+                loopsRemaining = 1;
+                finished(ctx);
+            } else {
+                loopsRemaining = 0;
+                ctx.close();
+            }
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        final RtmpMessage message = (RtmpMessage) msg;
+        try {
+            handleMessage(ctx, message);
+        } finally {
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if(publisher != null && ctx.channel().isWritable()) {
+            publisher.channelWritable();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if(publisher != null) {
+            publisher.close();
+        } else if(reader != null) {
+            reader.close();
+        }
+        if(loopsRemaining > 0) {
+            stats.failed("connection closed by server");
+        }
+        stats.closed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        log.warn("client {} failed: {}", stats.getId(), cause.toString());
+        stats.failed(cause.toString());
+        ctx.close();
+    }
+
+    private void handleMessage(final ChannelHandlerContext ctx, final RtmpMessage message) {
+        final RtmpHeader header = message.getHeader();
+        bytesRead += header.getMsgLength();
+        if(bytesRead - bytesReadLastSent > bytesReadWindow) {
+            ctx.write(new BytesRead(bytesRead));
+            bytesReadLastSent = bytesRead;
+        }
+        switch(header.getMsgType()) {
+            case AUDIO:
+            case VIDEO:
+                if(header.getMsgLength() > 2) { // 忽略空的音视频消息
+                    stats.media(header.getTimestamp());
+                }
+                break;
+            case AGGREGATE:
+                stats.media(((Aggregate) message).getLastTimestamp());
+                break;
+            case WINDOW_ACK_SIZE:
+                bytesReadWindow = ((WindowAckSize) message).getValue();
+                break;
+            case CONTROL:
+                final Control control = (Control) message;
+                if(control.getType() == Control.Type.PING_REQUEST) {
+                    ctx.write(Control.pingResponse(control.getTime()));
+                }
+                break;
+            case COMMAND_AMF0:
+            case COMMAND_AMF3:
+                handleCommand(ctx, (Command) message);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void handleCommand(final ChannelHandlerContext ctx, final Command command) {
+        final String name = command.getName();
+        if("_result".equals(name)) {
+            if(command.getTransactionId() == CONNECT_TRANSACTION) {
+                stats.connected();
+                final Command createStream = Command.createStream();
+                createStream.setTransactionId(CREATE_STREAM_TRANSACTION);
+                ctx.write(createStream);
+            } else if(command.getTransactionId() == CREATE_STREAM_TRANSACTION) {
+                streamId = ((Number) command.getArg(0)).intValue();
+                request(ctx);
+            }
+        } else if("_error".equals(name)) {
+            fail(ctx, "_error: " + (command.getArgCount() > 0 ? command.getArg(0) : ""));
+        } else if("onStatus".equals(name)) {
+            final String code = statusCode(command);
+            log.debug("client {} status: {}", stats.getId(), code);
+            if("NetStream.Publish.Start".equals(code)) {
+                stats.started();
+                startPublishing(ctx);
+            } else if("NetStream.Play.Stop".equals(code)) {
+                finished(ctx);
+            } else if(code != null && (code.endsWith("Failed") || code.endsWith("BadName") || code.endsWith("StreamNotFound"))) {
+                fail(ctx, code);
+            }
+        }
+    }
+
+    private static String statusCode(final Command command) {
+        if(command.getArgCount() > 0 && command.getArg(0) instanceof Map) {
+            return (String) ((Map) command.getArg(0)).get("code");
+        }
+        return null;
+    }
+
+    private void request(final ChannelHandlerContext ctx) {
+        stats.requested();
+        if(reader != null) {
+            ctx.write(Command.publish(streamId, 8, options));
+        } else {
+            ctx.write(Control.setBuffer(streamId, options.getBuffer()));
+            ctx.write(Command.play(streamId, options));
+        }
+    }
+
+    private void startPublishing(final ChannelHandlerContext ctx) {
+        if(publisher == null) {
+            // 直播按实时速度发送，不领先
+            publisher = new RtmpPublisher(reader, streamId, 0, timer, false, ioExecutor, 1000) {
+                @Override
+                protected RtmpMessage[] getStopMessages(final long timePosition) {
+                    ctx.executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            finished(ctx);
+                        }
+                    });
+                    return new RtmpMessage[0];
+                }
+            };
+            publisher.setMaxLead(0);
+        }
+        publisher.start(ctx, 0, -1);
+    }
+
+    /**
+     * 一轮播放 / 发布结束
+     */
+    private void finished(final ChannelHandlerContext ctx) {
+        loopsRemaining--;
+        if(loopsRemaining > 0) {
+            if(publisher != null) {
+                publisher.start(ctx, 0, -1);
+            } else {
+                request(ctx);
+            }
+            ctx.flush();
+            return;
+        }
+        if(publisher != null) {
+            publisher.pause();
+            ctx.write(Command.unpublish(streamId));
+        }
+        ctx.writeAndFlush(Command.closeStream(streamId)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void fail(final ChannelHandlerContext ctx, final String reason) {
+        log.warn("client {} failed: {}", stats.getId(), reason);
+        stats.failed(reason);
+        loopsRemaining = 0;
+        ctx.close();
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.dc.piglet.rtmp.client;
+
+import com.dc.piglet.rtmp.core.protocol.RtmpHandshake;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * 客户端握手：连接后发送C0+C1，收齐S0+S1+S2后发送C2，然后把自己移出pipeline
+ *
+ * 握手完成时向后面的handler发出HANDSHAKE_COMPLETE事件，之后的字节交给RtmpDecoder。
+ */
+public class ClientHandshakeHandler extends ByteToMessageDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClientHandshakeHandler.class);
+
+    public static final Object HANDSHAKE_COMPLETE = "HANDSHAKE_COMPLETE";
+
+    private final RtmpHandshake handshake;
+
+    public ClientHandshakeHandler(final ClientOptions options) {
+        handshake = new RtmpHandshake(options);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.write(handshake.encodeClient0());
+        ctx.write(handshake.encodeClient1());
+        ctx.flush();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        final int size = 1 + 2 * RtmpHandshake.HANDSHAKE_SIZE;
+        if(in.readableBytes() < size) {
+            return;
+        }
+        handshake.decodeServerAll(in);
+        ctx.writeAndFlush(handshake.encodeClient2());
+        logger.debug("handshake complete: {}", ctx.channel());
+        ctx.fireUserEventTriggered(HANDSHAKE_COMPLETE);
+        ctx.pipeline().remove(this);
+    }
+
+}
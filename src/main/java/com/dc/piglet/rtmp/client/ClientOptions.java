@@ -43,6 +43,13 @@ public class ClientOptions {
     private int load = 1;
     private int loop = 1;
     private int threads = 10;
+    /** 压测时发布者的个数，load为播放者的个数 */
+    private int publishers;
+    /** 压测时长(秒)，0为所有连接按loop次数结束为止 */
+    private int duration;
+    /** 每秒发起的连接数，0为不限 */
+    private int connectRate;
+    private String csvFile;
     private List<ClientOptions> clientOptionsList;
 
     public ClientOptions() {}
@@ -296,6 +303,57 @@ public class ClientOptions {
         this.threads = threads;
     }
 
+    public int getPublishers() {
+        return publishers;
+    }
+
+    public void setPublishers(int publishers) {
+        this.publishers = publishers;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    public int getConnectRate() {
+        return connectRate;
+    }
+
+    public void setConnectRate(int connectRate) {
+        this.connectRate = connectRate;
+    }
+
+    public String getCsvFile() {
+        return csvFile;
+    }
+
+    public void setCsvFile(String csvFile) {
+        this.csvFile = csvFile;
+    }
+
+    /**
+     * 压测时为每个连接复制一份，只有流名称不同
+     */
+    public ClientOptions copy(final String streamName) {
+        final ClientOptions copy = new ClientOptions(host, port, appName, streamName, saveAs, rtmpe, null);
+        copy.publishType = publishType;
+        copy.fileToPublish = fileToPublish;
+        copy.params = params;
+        copy.args = args;
+        copy.clientVersionToUse = clientVersionToUse;
+        copy.start = start;
+        copy.length = length;
+        copy.buffer = buffer;
+        copy.swfHash = swfHash;
+        copy.swfSize = swfSize;
+        copy.loop = loop;
+        return copy;
+    }
+
     public RtmpWriter getWriterToSave() {
         return writerToSave;
     }
@@ -333,6 +391,9 @@ public class ClientOptions {
         sb.append(" load: ").append(load);
         sb.append(" loop: ").append(loop);
         sb.append(" threads: ").append(threads);
+        sb.append(" publishers: ").append(publishers);
+        sb.append(" duration: ").append(duration);
+        sb.append(" connectRate: ").append(connectRate);
         sb.append(']');
         return sb.toString();
     }
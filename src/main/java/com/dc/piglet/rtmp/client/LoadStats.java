@@ -0,0 +1,260 @@
+package com.dc.piglet.rtmp.client;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 压测统计：每个连接一个Client，由连接自己的event loop更新，结束后汇总成百分位数或CSV
+ *
+ * 卡顿按播放器模型计算：收到第一帧后先缓冲bufferMillis，之后播放进度按墙上时间前进，
+ * 收到的媒体时间落后于播放进度时记为一次卡顿，卡顿期间播放进度暂停。
+ */
+public class LoadStats {
+
+    private final List<Client> clients = new ArrayList<Client>();
+    private final long startNanos = System.nanoTime();
+
+    public synchronized Client newClient(final boolean publisher, final int bufferMillis) {
+        final Client client = new Client(clients.size(), publisher, bufferMillis);
+        clients.add(client);
+        return client;
+    }
+
+    public synchronized List<Client> getClients() {
+        return new ArrayList<Client>(clients);
+    }
+
+    public static final class Client {
+
+        private final int id;
+        private final boolean publisher;
+        private final int bufferMillis;
+        private long connectStart;
+        private long connectMillis = -1;
+        private long requestTime;
+        private volatile long ttffMillis = -1;
+        private long firstFrameTime;
+        private long firstMediaTime = -1;
+        private long lastMediaTime;
+        private long stalledNanos;
+        private boolean stalled;
+        private int stalls;
+        private final List<Long> stallMillis = new ArrayList<Long>();
+        private long bytes;
+        private long messages;
+        private long endTime;
+        private volatile String error;
+        private volatile boolean closed;
+
+        private Client(final int id, final boolean publisher, final int bufferMillis) {
+            this.id = id;
+            this.publisher = publisher;
+            this.bufferMillis = bufferMillis;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public boolean isPublisher() {
+            return publisher;
+        }
+
+        void connecting() {
+            connectStart = System.nanoTime();
+        }
+
+        void connected() {
+            connectMillis = millisSince(connectStart);
+        }
+
+        /**
+         * 发出play / publish命令，重播时重新计算首帧和卡顿
+         */
+        void requested() {
+            requestTime = System.nanoTime();
+            firstMediaTime = -1;
+            stalled = false;
+        }
+
+        /**
+         * 播放者收到第一个媒体消息，发布者收到NetStream.Publish.Start
+         */
+        void started() {
+            if(ttffMillis < 0) {
+                ttffMillis = millisSince(requestTime);
+            }
+        }
+
+        public boolean hasStarted() {
+            return ttffMillis >= 0;
+        }
+
+        void bytes(final int count) {
+            bytes += count;
+        }
+
+        /**
+         * @param time 消息的媒体时间戳，aggregate取其中最后一个tag
+         */
+        void media(final int time) {
+            messages++;
+            final long now = System.nanoTime();
+            if(firstMediaTime < 0) {
+                started();
+                firstMediaTime = time;
+                firstFrameTime = now;
+                lastMediaTime = time;
+                stalledNanos = 0;
+                return;
+            }
+            lastMediaTime = Math.max(lastMediaTime, time);
+            final long playhead = (now - firstFrameTime - stalledNanos) / 1000000 - bufferMillis;
+            final long buffered = lastMediaTime - firstMediaTime;
+            if(playhead > buffered) {
+                // 数据到达之前播放器已经播完了缓冲，卡顿到现在，之后重新缓冲bufferMillis
+                final long stall = playhead - buffered + bufferMillis;
+                stalledNanos += stall * 1000000;
+                if(stalled) {
+                    // 连续落后算同一次卡顿
+                    final int last = stallMillis.size() - 1;
+                    stallMillis.set(last, stallMillis.get(last) + stall);
+                } else {
+                    stalls++;
+                    stallMillis.add(stall);
+                }
+                stalled = true;
+            } else {
+                stalled = false;
+            }
+        }
+
+        void failed(final String reason) {
+            if(error == null) {
+                error = reason;
+            }
+        }
+
+        void closed() {
+            if(!closed) {
+                endTime = System.nanoTime();
+                closed = true;
+            }
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        long durationNanos(final long now) {
+            return (closed ? endTime : now) - connectStart;
+        }
+
+        private static long millisSince(final long start) {
+            return (System.nanoTime() - start) / 1000000;
+        }
+    }
+
+    /**
+     * 汇总：各项指标的p50 / p90 / p99 / max
+     */
+    public synchronized String summary() {
+        final long now = System.nanoTime();
+        final List<Long> connect = new ArrayList<Long>();
+        final List<Long> ttff = new ArrayList<Long>();
+        final List<Long> kbps = new ArrayList<Long>();
+        final List<Long> stallCount = new ArrayList<Long>();
+        final List<Long> stallDuration = new ArrayList<Long>();
+        long totalBytes = 0;
+        int players = 0;
+        int publishers = 0;
+        int failed = 0;
+        for(final Client client : clients) {
+            if(client.publisher) {
+                publishers++;
+            } else {
+                players++;
+            }
+            if(client.error != null) {
+                failed++;
+            }
+            if(client.connectMillis >= 0) {
+                connect.add(client.connectMillis);
+            }
+            if(client.ttffMillis >= 0) {
+                ttff.add(client.ttffMillis);
+            }
+            totalBytes += client.bytes;
+            kbps.add(kbps(client.bytes, client.durationNanos(now)));
+            if(!client.publisher) {
+                stallCount.add((long) client.stalls);
+                stallDuration.addAll(client.stallMillis);
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "clients: %d (players: %d, publishers: %d), failed: %d, elapsed: %d s%n",
+                clients.size(), players, publishers, failed, (now - startNanos) / 1000000000L));
+        sb.append(line("connect ms", connect));
+        sb.append(line("ttff ms", ttff));
+        sb.append(line("kbps / client", kbps));
+        sb.append(String.format(Locale.ROOT, "%-16s total: %.1f Mbps%n", "throughput", totalBytes * 8.0 / ((now - startNanos) / 1000.0)));
+        sb.append(line("stalls / player", stallCount));
+        sb.append(line("stall ms", stallDuration));
+        return sb.toString();
+    }
+
+    private static String line(final String name, final List<Long> values) {
+        final long[] sorted = new long[values.size()];
+        for(int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "%-16s count: %d p50: %d p90: %d p99: %d max: %d%n", name, sorted.length,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+    }
+
+    /**
+     * nearest-rank百分位数，sorted为空时返回0
+     */
+    static long percentile(final long[] sorted, final int percent) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static long kbps(final long bytes, final long nanos) {
+        return nanos <= 0 ? 0 : bytes * 8 * 1000000 / nanos;
+    }
+
+    /**
+     * 每个连接一行
+     */
+    public synchronized void writeCsv(final String path) throws IOException {
+        final long now = System.nanoTime();
+        try(PrintWriter out = new PrintWriter(path, "UTF-8")) {
+            out.println("id,role,connect_ms,ttff_ms,bytes,messages,kbps,stalls,stall_ms,error");
+            for(final Client client : clients) {
+                long stallTotal = 0;
+                for(final Long stall : client.stallMillis) {
+                    stallTotal += stall;
+                }
+                out.println(client.id + "," + (client.publisher ? "publish" : "play") + ','
+                        + client.connectMillis + ',' + client.ttffMillis + ',' + client.bytes + ',' + client.messages + ','
+                        + kbps(client.bytes, client.durationNanos(now)) + ',' + client.stalls + ',' + stallTotal + ','
+                        + (client.error == null ? "" : '"' + client.error.replace("\"", "'") + '"'));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.dc.piglet.rtmp.client;
+
+import com.dc.piglet.rtmp.core.io.RtmpReader;
+import com.dc.piglet.rtmp.core.io.VodFileCache;
+import com.dc.piglet.rtmp.handler.RtmpDecoder;
+import com.dc.piglet.rtmp.handler.RtmpEncoder;
+import com.dc.piglet.rtmp.util.Util;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 无界面的RTMP压测客户端：所有连接共用一个event loop group、timer和读文件线程池
+ *
+ * 先连接publishers个发布者(发布同一个文件，多个时流名称加上序号)，都开始发布后再连接load个播放者，
+ * 播放者轮流订阅各个发布的流；没有发布者时播放者直接播放url中的流(点播或已有的直播)。
+ * 结束后打印连接耗时、首帧时间、吞吐量和卡顿的百分位数，可选写出每个连接一行的CSV。
+ *
+ * java -cp piglet.jar com.dc.piglet.rtmp.client.RtmpClient -load 1000 -publish test.flv -duration 60 rtmp://localhost/live/test
+ */
+public class RtmpClient {
+
+    private static final Logger log = LoggerFactory.getLogger(RtmpClient.class);
+
+    /** 等待发布者全部开始发布的最长时间 */
+    private static final long PUBLISH_START_TIMEOUT = 10000;
+    private static final long PROGRESS_INTERVAL = 5000;
+
+    private final ClientOptions options;
+    private final LoadStats stats = new LoadStats();
+    private final EventLoopGroup group;
+    private final HashedWheelTimer timer = new HashedWheelTimer(new DefaultThreadFactory("client-timer", true), 10, TimeUnit.MILLISECONDS);
+    private final ExecutorService ioExecutor = Executors.newFixedThreadPool(4, new DefaultThreadFactory("client-io", true));
+    /** 所有发布者共享文件映射 */
+    private final VodFileCache files = new VodFileCache(Long.MAX_VALUE);
+    private final ChannelGroup channels = new DefaultChannelGroup("clients", GlobalEventExecutor.INSTANCE);
+    private final Bootstrap bootstrap;
+
+    public RtmpClient(final ClientOptions options) {
+        if(options.isRtmpe()) {
+            throw new RuntimeException("rtmpe is not supported by the load client");
+        }
+        this.options = options;
+        group = new NioEventLoopGroup(options.getThreads(), new DefaultThreadFactory("client", true));
+        bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+    }
+
+    public LoadStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 运行到结束，返回汇总
+     */
+    public String run() throws Exception {
+        log.info("load test starting: {}", options);
+        final long start = System.currentTimeMillis();
+        int connections = 0;
+        final int publishers = options.getPublishers();
+        final String[] streamNames = new String[Math.max(publishers, 1)];
+        for(int i = 0; i < publishers; i++) {
+            streamNames[i] = publishers == 1 ? options.getStreamName() : options.getStreamName() + "-" + i;
+            throttle(start, connections++);
+            connect(options.copy(streamNames[i]), true);
+        }
+        if(publishers > 0) {
+            waitForPublishers(publishers);
+        } else {
+            streamNames[0] = options.getStreamName();
+        }
+        for(int i = 0; i < options.getLoad(); i++) {
+            throttle(start, connections++);
+            connect(options.copy(streamNames[i % streamNames.length]), false);
+        }
+        final long deadline = options.getDuration() > 0 ? start + options.getDuration() * 1000L : Long.MAX_VALUE;
+        long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL;
+        while(System.currentTimeMillis() < deadline && active() > 0) {
+            Thread.sleep(100);
+            if(System.currentTimeMillis() >= nextProgress) {
+                log.info("elapsed: {} s, active connections: {}", (System.currentTimeMillis() - start) / 1000, active());
+                nextProgress += PROGRESS_INTERVAL;
+            }
+        }
+        stop();
+        final String summary = stats.summary();
+        if(options.getCsvFile() != null) {
+            stats.writeCsv(options.getCsvFile());
+            log.info("wrote csv: {}", options.getCsvFile());
+        }
+        return summary;
+    }
+
+    private void throttle(final long start, final int connections) throws InterruptedException {
+        if(options.getConnectRate() <= 0) {
+            return;
+        }
+        final long due = start + connections * 1000L / options.getConnectRate();
+        final long wait = due - System.currentTimeMillis();
+        if(wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private void waitForPublishers(final int publishers) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + PUBLISH_START_TIMEOUT;
+        while(System.currentTimeMillis() < deadline) {
+            int ready = 0;
+            for(final LoadStats.Client client : stats.getClients()) {
+                if(client.isPublisher() && (client.hasStarted() || client.getError() != null)) {
+                    ready++;
+                }
+            }
+            if(ready >= publishers) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        log.warn("not all publishers started within {} ms", PUBLISH_START_TIMEOUT);
+    }
+
+    private int active() {
+        int active = 0;
+        final List<LoadStats.Client> clients = stats.getClients();
+        for(final LoadStats.Client client : clients) {
+            if(!client.isClosed()) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    private void connect(final ClientOptions clientOptions, final boolean publisher) {
+        final LoadStats.Client client = stats.newClient(publisher, clientOptions.getBuffer());
+        final RtmpReader reader = publisher ? openReader(clientOptions.getFileToPublish()) : null;
+        if(publisher && clientOptions.getPublishType() == null) {
+            clientOptions.publishLive();
+        }
+        final Bootstrap b = bootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(final SocketChannel ch) {
+                final ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addLast("traffic", new TrafficHandler(client));
+                pipeline.addLast("handshake", new ClientHandshakeHandler(clientOptions));
+                pipeline.addLast("decoder", new RtmpDecoder());
+                pipeline.addLast("encoder", new RtmpEncoder());
+                pipeline.addLast("handler", new ClientHandler(clientOptions, client, reader, timer, ioExecutor));
+            }
+        });
+        client.connecting();
+        b.connect(clientOptions.getHost(), clientOptions.getPort()).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                if(future.isSuccess()) {
+                    channels.add(future.channel());
+                } else {
+                    client.failed("connect failed: " + future.cause());
+                    client.closed();
+                    if(reader != null) {
+                        reader.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private RtmpReader openReader(final String path) {
+        final String lower = path.toLowerCase();
+        if(lower.startsWith("mp4:")) {
+            return files.openF4v(path.substring(4));
+        }
+        if(lower.endsWith(".mp4") || lower.endsWith(".f4v")) {
+            return files.openF4v(path);
+        }
+        return files.openFlv(path, null);
+    }
+
+    /**
+     * 通知所有连接结束当前的播放 / 发布并关闭，然后释放线程
+     */
+    public void stop() throws InterruptedException {
+        for(final Channel channel : channels) {
+            channel.pipeline().fireUserEventTriggered(ClientHandler.STOP);
+        }
+        final long deadline = System.currentTimeMillis() + 5000;
+        while(active() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        channels.close().awaitUninterruptibly(5000);
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+        timer.stop();
+        ioExecutor.shutdown();
+        files.clear();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final ClientOptions options = parseArgs(args);
+        if(options == null) {
+            System.err.println("usage: RtmpClient [-load players] [-publishers n] [-publish file] [-record] [-loop n] [-threads n]"
+                    + " [-start ms] [-length ms] [-buffer ms] [-duration seconds] [-rate connections/s] [-csv file] [-version hex] url");
+            System.exit(1);
+            return;
+        }
+        final String summary = new RtmpClient(options).run();
+        System.out.print(summary);
+    }
+
+    /**
+     * @return 参数不正确时返回null
+     */
+    static ClientOptions parseArgs(final String[] args) {
+        if(args.length == 0) {
+            return null;
+        }
+        final ClientOptions options = new ClientOptions(args[args.length - 1], null);
+        options.setLoad(0);
+        boolean record = false;
+        for(int i = 0; i < args.length - 1; i++) {
+            final String arg = args[i];
+            if("-record".equals(arg)) {
+                record = true;
+                continue;
+            }
+            if(i + 1 >= args.length - 1) {
+                return null;
+            }
+            final String value = args[++i];
+            switch(arg) {
+                case "-load": options.setLoad(Integer.parseInt(value)); break;
+                case "-publishers": options.setPublishers(Integer.parseInt(value)); break;
+                case "-publish": options.setFileToPublish(value); break;
+                case "-loop": options.setLoop(Integer.parseInt(value)); break;
+                case "-threads": options.setThreads(Integer.parseInt(value)); break;
+                case "-start": options.setStart(Integer.parseInt(value)); break;
+                case "-length": options.setLength(Integer.parseInt(value)); break;
+                case "-buffer": options.setBuffer(Integer.parseInt(value)); break;
+                case "-duration": options.setDuration(Integer.parseInt(value)); break;
+                case "-rate": options.setConnectRate(Integer.parseInt(value)); break;
+                case "-csv": options.setCsvFile(value); break;
+                case "-version": options.setClientVersionToUse(Util.fromHex(value)); break;
+                default: return null;
+            }
+        }
+        if(options.getFileToPublish() != null) {
+            if(options.getPublishers() == 0) {
+                options.setPublishers(1);
+            }
+            if(record) {
+                options.publishRecord();
+            } else {
+                options.publishLive();
+            }
+        } else if(options.getPublishers() > 0) {
+            return null;
+        } else if(options.getLoad() == 0) {
+            options.setLoad(1);
+        }
+        return options;
+    }
+
+}
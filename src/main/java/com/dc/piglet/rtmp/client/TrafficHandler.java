@@ -0,0 +1,40 @@
+package com.dc.piglet.rtmp.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+/**
+ * 放在pipeline最前面，按实际收发的字节数统计吞吐量：播放者统计收到的，发布者统计发出的
+ */
+public class TrafficHandler extends ChannelDuplexHandler {
+
+    private final LoadStats.Client stats;
+
+    public TrafficHandler(final LoadStats.Client stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if(!stats.isPublisher() && msg instanceof ByteBuf) {
+            stats.bytes(((ByteBuf) msg).readableBytes());
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if(stats.isPublisher()) {
+            if(msg instanceof ByteBuf) {
+                stats.bytes(((ByteBuf) msg).readableBytes());
+            } else if(msg instanceof FileRegion) {
+                stats.bytes((int) ((FileRegion) msg).count());
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+}
@@ -15,6 +15,22 @@ public class ServerConfig {
         config = loadConfig();
     }
 
+    public static String getString(final String key, final String defaultValue) {
+        return config.getProperty(key, defaultValue).trim();
+    }
+
+    public static int getInt(final String key, final int defaultValue) {
+        return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+    }
+
+    public static long getLong(final String key, final long defaultValue) {
+        return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+    }
+
+    public static boolean getBoolean(final String key, final boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+
     private static Properties loadConfig(){
         try{
             InputStream inputStream = new BufferedInputStream(new FileInputStream(new File("src/main/resources/server.properties")));
@@ -3,6 +3,8 @@ package com.dc.piglet.rtmp.core.io;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,6 +13,9 @@ import java.io.FileInputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
+/**
+ * 基于FileChannel的BufferReader，slice返回的FileSlice可用sendfile发送，文件在reader和所有FileRegion都释放后关闭
+ */
 public class FileChannelReader implements BufferReader {
 
     private static final Logger logger = LoggerFactory.getLogger(FileChannelReader.class);
@@ -18,6 +23,23 @@ public class FileChannelReader implements BufferReader {
     private final String absolutePath;
     private final FileChannel in;
     private final long fileSize;
+    private final ReferenceCounted handle = new AbstractReferenceCounted() {
+        @Override
+        protected void deallocate() {
+            try {
+                in.close();
+            } catch(Exception e) {
+                logger.warn("error closing file {}: {}", absolutePath, e.getMessage());
+            }
+            logger.info("closed file: {}", absolutePath);
+        }
+
+        @Override
+        public ReferenceCounted touch(final Object hint) {
+            return this;
+        }
+    };
+    private boolean closed;
 
     public FileChannelReader(final String path) {
         this(new File(path));
@@ -84,14 +106,20 @@ public class FileChannelReader implements BufferReader {
         return bytes;
     }
 
+    /**
+     * 文件中[position, position + size)的一段，不读取也不移动position
+     */
+    public FileSlice slice(final long position, final int size) {
+        return new FileSlice(in, handle, position, size);
+    }
+
     @Override
     public void close() {
-        try {
-            in.close();
-        } catch(Exception e) {
-            logger.warn("error closing file {}: {}", absolutePath, e.getMessage());
+        if(closed) {
+            return;
         }
-        logger.info("closed file: {}", absolutePath);
+        closed = true;
+        handle.release();
     }
 
 }
@@ -0,0 +1,92 @@
+package com.dc.piglet.rtmp.core.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 文件中的一段连续字节，不读入内存，由编码器按chunk切成多个DefaultFileRegion，与chunk header交替写出
+ *
+ * 只有DefaultFileRegion能走epoll的原生sendfile(NIO下是FileChannel.transferTo)，由内核完成唯一一次拷贝。
+ * 每个region持有文件句柄的一个引用，reader close之后已写出但未发送完的region仍可继续发送。
+ * 不做用户态预读，顺序播放时依靠内核的readahead。
+ */
+public class FileSlice {
+
+    private final FileChannel channel;
+    private final ReferenceCounted handle;
+    private final long position;
+    private final int size;
+
+    /**
+     * 释放时只释放共享句柄的引用，DefaultFileRegion默认会关闭FileChannel
+     */
+    private static final class SliceRegion extends DefaultFileRegion {
+
+        private final ReferenceCounted handle;
+
+        private SliceRegion(final FileChannel channel, final ReferenceCounted handle, final long position, final long count) {
+            super(channel, position, count);
+            this.handle = handle;
+        }
+
+        @Override
+        protected void deallocate() {
+            handle.release();
+        }
+
+    }
+
+    FileSlice(final FileChannel channel, final ReferenceCounted handle, final long position, final int size) {
+        this.channel = channel;
+        this.handle = handle;
+        this.position = position;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * slice中[offset, offset + length)的一段，调用方负责写出或release
+     */
+    public FileRegion region(final int offset, final int length) {
+        if(offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("offset: " + offset + " length: " + length + " size: " + size);
+        }
+        handle.retain();
+        return new SliceRegion(channel, handle, position + offset, length);
+    }
+
+    /**
+     * 不能使用FileRegion时(如加密连接)退回到读入内存，按位置读取，不影响reader的position
+     */
+    public ByteBuf read() {
+        final ByteBuffer bb = ByteBuffer.allocate(size);
+        try {
+            while(bb.hasRemaining()) {
+                if(channel.read(bb, position + bb.position()) < 0) {
+                    throw new IOException("unexpected end of file at " + (position + bb.position()));
+                }
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        ((Buffer) bb).flip();
+        return Unpooled.wrappedBuffer(bb);
+    }
+
+    @Override
+    public String toString() {
+        return "[position: " + position + " size: " + size + ']';
+    }
+
+}
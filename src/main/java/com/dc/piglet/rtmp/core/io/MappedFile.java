@@ -0,0 +1,123 @@
+package com.dc.piglet.rtmp.core.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 只读内存映射的文件，多个MappedFileReader可共享同一份映射，各自维护position
+ *
+ * 文件按REGION_SIZE分段映射(单个MappedByteBuffer最大2GB)，slice返回映射内存的wrappedBuffer切片，
+ * 不拷贝也不产生系统调用；跨段的读取返回两段拼成的composite buffer。
+ * 映射建立后文件句柄即关闭；引用计数记录使用者，映射内存在所有切片不可达后由GC回收。
+ */
+public class MappedFile extends AbstractReferenceCounted {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedFile.class);
+
+    private static final int REGION_SHIFT = 30;
+    private static final long REGION_SIZE = 1L << REGION_SHIFT;
+    private static final int REGION_MASK = (int) (REGION_SIZE - 1);
+
+    private final String absolutePath;
+    private final MappedByteBuffer[] regions;
+    private final long fileSize;
+
+    public MappedFile(final String path) {
+        this(new File(path));
+    }
+
+    public MappedFile(final File file) {
+        absolutePath = file.getAbsolutePath();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            final FileChannel channel = fis.getChannel();
+            fileSize = channel.size();
+            regions = new MappedByteBuffer[(int) ((fileSize + REGION_SIZE - 1) >>> REGION_SHIFT)];
+            for(int i = 0; i < regions.length; i++) {
+                final long offset = (long) i << REGION_SHIFT;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, fileSize - offset));
+            }
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("mapped file: {}, size: {}, regions: {}", new Object[]{absolutePath, fileSize, regions.length});
+    }
+
+    public String getAbsolutePath() {
+        return absolutePath;
+    }
+
+    public long size() {
+        return fileSize;
+    }
+
+    /**
+     * 零拷贝切片
+     */
+    public ByteBuf slice(final long start, final int size) {
+        if(start < 0 || start + size > fileSize) {
+            throw new IndexOutOfBoundsException("read " + size + " bytes at " + start + ", file size: " + fileSize);
+        }
+        final int index = (int) (start >>> REGION_SHIFT);
+        final int offset = (int) start & REGION_MASK;
+        final MappedByteBuffer region = regions[index];
+        if(offset + size <= region.limit()) {
+            return Unpooled.wrappedBuffer(slice(region, offset, size));
+        }
+        final int first = region.limit() - offset;
+        return Unpooled.wrappedBuffer(slice(region, offset, first), slice(regions[index + 1], 0, size - first));
+    }
+
+    public int getInt(final long start) {
+        final int offset = (int) start & REGION_MASK;
+        final MappedByteBuffer region = regions[(int) (start >>> REGION_SHIFT)];
+        if(offset + 4 > region.limit()) {
+            return slice(start, 4).readInt();
+        }
+        return region.getInt(offset);
+    }
+
+    private static ByteBuffer slice(final ByteBuffer region, final int offset, final int size) {
+        final ByteBuffer bb = region.duplicate();
+        ((Buffer) bb).position(offset);
+        ((Buffer) bb).limit(offset + size);
+        return bb.slice();
+    }
+
+    @Override
+    protected void deallocate() {
+        logger.info("released mapped file: {}", absolutePath);
+    }
+
+    @Override
+    public MappedFile retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public MappedFile retain(final int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public MappedFile touch(final Object hint) {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "[file: " + absolutePath + " size: " + fileSize + " refCnt: " + refCnt() + ']';
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.dc.piglet.rtmp.core.io;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 基于内存映射的只读BufferReader，只是MappedFile上的一个游标
+ *
+ * read(int)返回映射内存的零拷贝切片，不产生系统调用。
+ * close时release持有的MappedFile引用。
+ */
+public class MappedFileReader implements BufferReader {
+
+    private final MappedFile file;
+    private long position;
+
+    public MappedFileReader(final String path) {
+        this(new MappedFile(path));
+    }
+
+    /**
+     * @param file 接管调用方对file持有的一个引用
+     */
+    public MappedFileReader(final MappedFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public long size() {
+        return file.size();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void position(final long newPosition) {
+        position = newPosition;
+    }
+
+    @Override
+    public ByteBuf read(final int size) {
+        final ByteBuf out = file.slice(position, size);
+        position += size;
+        return out;
+    }
+
+    @Override
+    public byte[] readBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        file.slice(position, size).readBytes(bytes);
+        position += size;
+        return bytes;
+    }
+
+    @Override
+    public int readInt() {
+        final int value = file.getInt(position);
+        position += 4;
+        return value;
+    }
+
+    @Override
+    public long readUnsignedInt() {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void close() {
+        file.release();
+    }
+
+}
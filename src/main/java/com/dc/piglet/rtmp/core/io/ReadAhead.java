@@ -0,0 +1,335 @@
+package com.dc.piglet.rtmp.core.io;
+
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 点播预读：在独立的I/O线程池上读取reader，把之后aheadMillis毫秒的消息放入本播放者的队列
+ *
+ * seek、next等所有对reader的调用都在I/O线程上执行，event loop只从队列里取已经读好的消息；
+ * 队列为空时通过whenReady登记回调，读到数据后回到event loop执行。
+ * 每次seek或close都会让之前提交的预读作废(generation加1)。
+ * aheadMillis <= 0时不预读：队列中最多一条，取走后再读下一条，ioExecutor直接执行时即同步读取。
+ */
+public class ReadAhead {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadAhead.class);
+
+    /** 时间戳不前进时(如全是音频配置)的队列条数上限 */
+    private static final int MAX_QUEUED_MESSAGES = 4096;
+    private static final long REJECTED_RETRY_MILLIS = 10;
+
+    private static final AtomicLong STARVED = new AtomicLong();
+    private static final AtomicLong REJECTED = new AtomicLong();
+
+    public interface SeekListener {
+        void seekComplete(long actualTime);
+    }
+
+    private final RtmpReader reader;
+    private final Executor ioExecutor;
+    private final EventExecutor eventLoop;
+    private final int aheadMillis;
+
+    // 以下字段由this保护
+    private final ArrayDeque<RtmpMessage> queue = new ArrayDeque<RtmpMessage>();
+    private int generation;
+    private boolean filling;
+    private boolean end;
+    private boolean closed;
+    private long lastQueuedTime = -1;
+    private long lastPolledTime = -1;
+    private Runnable readyCallback;
+
+    private volatile int aggregateDuration;
+
+    public ReadAhead(final RtmpReader reader, final Executor ioExecutor, final EventExecutor eventLoop, final int aheadMillis) {
+        this.reader = reader;
+        this.ioExecutor = ioExecutor;
+        this.eventLoop = eventLoop;
+        this.aheadMillis = aheadMillis;
+    }
+
+    /**
+     * event loop上队列为空、只能等待I/O的次数
+     */
+    public static long getStarved() {
+        return STARVED.get();
+    }
+
+    /**
+     * I/O线程池队列已满被拒绝的次数
+     */
+    public static long getRejected() {
+        return REJECTED.get();
+    }
+
+    public RtmpReader getReader() {
+        return reader;
+    }
+
+    public void setAggregateDuration(final int aggregateDuration) {
+        this.aggregateDuration = aggregateDuration;
+    }
+
+    /**
+     * 丢弃已预读的消息，在I/O线程上seek后开始预读，listener在event loop上执行
+     * @param time 小于0时从头开始
+     */
+    public void seek(final long time, final SeekListener listener) {
+        final int seekGeneration;
+        synchronized(this) {
+            seekGeneration = reset();
+            filling = true;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                final long actual;
+                try {
+                    synchronized(reader) {
+                        actual = reader.seek(Math.max(time, 0));
+                    }
+                } catch(RuntimeException e) {
+                    log.warn("seek to {} failed: {}", time, e.toString());
+                    finish(seekGeneration);
+                    fire(seekGeneration, listener, 0);
+                    return;
+                }
+                fire(seekGeneration, listener, actual);
+                fill(seekGeneration);
+            }
+        }, seekGeneration);
+    }
+
+    /**
+     * 只在event loop上调用，没有已就绪的消息时返回null
+     */
+    public RtmpMessage poll() {
+        final RtmpMessage message;
+        final boolean refill;
+        final int fillGeneration;
+        synchronized(this) {
+            message = queue.pollFirst();
+            if(message != null) {
+                lastPolledTime = message.getHeader().getTimestamp();
+            } else if(!end) {
+                STARVED.incrementAndGet();
+            }
+            refill = !filling && !end && !closed && needsFill();
+            if(refill) {
+                filling = true;
+            }
+            fillGeneration = generation;
+        }
+        if(refill) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    fill(fillGeneration);
+                }
+            }, fillGeneration);
+        }
+        return message;
+    }
+
+    /**
+     * 所有消息都已读完并取走
+     */
+    public synchronized boolean isEnd() {
+        return end && queue.isEmpty();
+    }
+
+    /**
+     * 队列中有消息或已读完时，在event loop上执行一次callback；已就绪时立即执行，close之后不再执行
+     */
+    public void whenReady(final Runnable callback) {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            if(queue.isEmpty() && !end) {
+                readyCallback = callback;
+                return;
+            }
+        }
+        eventLoop.execute(callback);
+    }
+
+    /**
+     * 作废所有预读，reader在I/O线程上当前的读取结束后关闭
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            reset();
+            closed = true;
+        }
+        try {
+            ioExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeReader();
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            closeReader();
+        }
+    }
+
+    private void closeReader() {
+        synchronized(reader) {
+            reader.close();
+        }
+    }
+
+    private int reset() {
+        generation++;
+        RtmpMessage message;
+        while((message = queue.pollFirst()) != null) {
+            ReferenceCountUtil.release(message);
+        }
+        filling = false;
+        end = false;
+        lastQueuedTime = -1;
+        lastPolledTime = -1;
+        readyCallback = null;
+        return generation;
+    }
+
+    private long bufferedMillis() {
+        if(queue.isEmpty()) {
+            return 0;
+        }
+        final long from = lastPolledTime >= 0 ? lastPolledTime : queue.peekFirst().getHeader().getTimestamp();
+        return lastQueuedTime - from;
+    }
+
+    private boolean needsFill() {
+        return aheadMillis > 0 ? bufferedMillis() < aheadMillis / 2 : queue.isEmpty();
+    }
+
+    private boolean isFull() {
+        if(queue.size() >= MAX_QUEUED_MESSAGES) {
+            return true;
+        }
+        return aheadMillis > 0 ? bufferedMillis() >= aheadMillis : !queue.isEmpty();
+    }
+
+    /**
+     * I/O线程上执行，每读一条消息检查一次是否已作废或已读够
+     */
+    private void fill(final int fillGeneration) {
+        while(true) {
+            final RtmpMessage message;
+            try {
+                synchronized(reader) {
+                    synchronized(this) {
+                        if(fillGeneration != generation) {
+                            return;
+                        }
+                    }
+                    reader.setAggregateDuration(aggregateDuration);
+                    message = reader.hasNext() ? reader.next() : null;
+                }
+            } catch(RuntimeException e) {
+                log.warn("read ahead failed: {}", e.toString());
+                finish(fillGeneration);
+                return;
+            }
+            if(message == null) {
+                finish(fillGeneration);
+                return;
+            }
+            final Runnable callback;
+            final boolean full;
+            synchronized(this) {
+                if(fillGeneration != generation) {
+                    ReferenceCountUtil.release(message);
+                    return;
+                }
+                queue.addLast(message);
+                lastQueuedTime = message.getHeader().getTimestamp();
+                callback = readyCallback;
+                readyCallback = null;
+                full = isFull();
+                if(full) {
+                    filling = false;
+                }
+            }
+            if(callback != null) {
+                eventLoop.execute(callback);
+            }
+            if(full) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 读完或读取出错，队列取空后isEnd为true
+     */
+    private void finish(final int fillGeneration) {
+        final Runnable callback;
+        synchronized(this) {
+            if(fillGeneration != generation) {
+                return;
+            }
+            filling = false;
+            end = true;
+            callback = readyCallback;
+            readyCallback = null;
+        }
+        if(callback != null) {
+            eventLoop.execute(callback);
+        }
+    }
+
+    private void fire(final int seekGeneration, final SeekListener listener, final long actual) {
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(ReadAhead.this) {
+                    if(seekGeneration != generation) {
+                        return;
+                    }
+                }
+                listener.seekComplete(actual);
+            }
+        });
+    }
+
+    /**
+     * I/O线程池有界，满了以后稍后在event loop上重试
+     */
+    private void submit(final Runnable task, final int taskGeneration) {
+        try {
+            ioExecutor.execute(task);
+        } catch(RejectedExecutionException e) {
+            REJECTED.incrementAndGet();
+            eventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(ReadAhead.this) {
+                        if(taskGeneration != generation) {
+                            return;
+                        }
+                    }
+                    submit(task, taskGeneration);
+                }
+            }, REJECTED_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
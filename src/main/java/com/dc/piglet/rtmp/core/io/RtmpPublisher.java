@@ -2,24 +2,34 @@ package com.dc.piglet.rtmp.core.io;
 
 import com.dc.piglet.rtmp.core.io.f4v.F4vReader;
 import com.dc.piglet.rtmp.core.io.flv.FlvReader;
+import com.dc.piglet.rtmp.core.protocol.Aggregate;
 import com.dc.piglet.rtmp.core.protocol.RtmpHeader;
 import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
 import io.netty.channel.*;
 import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
 import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 public abstract class RtmpPublisher {
 
     private static final Logger log = LoggerFactory.getLogger(RtmpPublisher.class);
+    /** 每次tick发送的媒体时长(毫秒) */
+    private static final int BATCH_DURATION = 20;
     private final Timer timer;
     private final int timerTickSize;
     private final boolean usingSharedTimer;
     private final boolean aggregateModeEnabled;
 
     private final RtmpReader reader;
+    private final Executor ioExecutor;
+    private final int readAheadMillis;
+    private ReadAhead readAhead;
     private int streamId;
     private long startTime;
     private long seekTime;
@@ -28,35 +38,58 @@ public abstract class RtmpPublisher {
     private int playLength = -1;
     private boolean paused;
     private int bufferDuration;
+    /** 领先实时的上限(毫秒)，客户端buffer更大时也不超过 */
+    private int maxLead = 5000;
+    /** 连续不等待发送的媒体时长上限(毫秒)，超过后让出一个timer tick */
+    private int maxBurst = 1000;
+    private long burst;
+    /** 发送被channel不可写暂停，channelWritable时继续 */
+    private boolean waitingWritable;
+    private Tick tick;
 
     public Channel channel;
     public ChannelHandlerContext ctx;
     private int channelId = 8;
 
-    public static class Event {
-
-        private final int conversationId;
-        private final int streamId;
-
-        public Event(final int conversationId, final int streamId) {
-            this.conversationId = conversationId;
-            this.streamId = streamId;
+    /** 在调用线程(event loop)上直接读取，不预读 */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
         }
+    };
 
-        public int getConversationId() {
-            return conversationId;
-        }
+    private static Timer sharedTimer;
 
-        public int getStreamId() {
-            return streamId;
+    /**
+     * 旧的构造方法：在event loop上同步读取reader，不预读
+     * @param useSharedTimer 为true时使用所有这类publisher共用的timer
+     */
+    public RtmpPublisher(final RtmpReader reader, final int streamId, final int bufferDuration,
+                         boolean useSharedTimer, boolean aggregateModeEnabled) {
+        this(reader, streamId, bufferDuration, useSharedTimer ? sharedTimer() : null, aggregateModeEnabled, DIRECT, 0);
+    }
+
+    private static synchronized Timer sharedTimer() {
+        if(sharedTimer == null) {
+            sharedTimer = new HashedWheelTimer(new DefaultThreadFactory("publisher-timer", true), 10, TimeUnit.MILLISECONDS);
         }
+        return sharedTimer;
     }
 
+    /**
+     * @param sharedTimer 所有publisher共用的timer，为null时自己创建一个并在close时停止
+     * @param ioExecutor 执行reader读取的线程池，event loop只从预读队列中取消息
+     * @param readAheadMillis 预读的媒体时长，<= 0时不预读
+     */
     public RtmpPublisher(final RtmpReader reader, final int streamId, final int bufferDuration,
-                         boolean useSharedTimer, boolean aggregateModeEnabled) {
+                         final Timer sharedTimer, boolean aggregateModeEnabled,
+                         final Executor ioExecutor, final int readAheadMillis) {
+        this.ioExecutor = ioExecutor;
+        this.readAheadMillis = readAheadMillis;
         this.aggregateModeEnabled = aggregateModeEnabled;
-        this.usingSharedTimer = useSharedTimer;
-        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+        this.usingSharedTimer = sharedTimer != null;
+        timer = usingSharedTimer ? sharedTimer : new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
         timerTickSize = 10;
         this.reader = reader;
         this.streamId = streamId;
@@ -86,21 +119,22 @@ public abstract class RtmpPublisher {
         this.bufferDuration = bufferDuration;
     }
 
-    public boolean handle(final Object me,ChannelHandlerContext ctx) {
-        if(me instanceof Event) {
-            final Event pe = (Event) me;
-            if(pe.streamId != streamId) {
-                return false;
-            }
-            if(pe.conversationId != currentConversationId) {
-                log.debug("stopping obsolete conversation id: {}, current: {}",
-                        pe.getConversationId(), currentConversationId);
-                return true;
-            }
+    public void setMaxLead(int maxLead) {
+        this.maxLead = maxLead;
+    }
+
+    public void setMaxBurst(int maxBurst) {
+        this.maxBurst = maxBurst;
+    }
+
+    /**
+     * 由handler在channelWritabilityChanged时调用，恢复因不可写暂停的发送
+     */
+    public void channelWritable() {
+        if(waitingWritable && channel.isWritable()) {
+            waitingWritable = false;
             write(ctx);
-            return true;
         }
-        return false;
     }
 
     public void start(final ChannelHandlerContext ctx, final int seekTime, final int playLength, final RtmpMessage ... messages) {
@@ -112,22 +146,34 @@ public abstract class RtmpPublisher {
 
     public void start(final ChannelHandlerContext ctx, final int seekTimeRequested, final RtmpMessage ... messages) {
         paused = false;
+        waitingWritable = false;
         currentConversationId++;
-        startTime = System.currentTimeMillis();
-        if(seekTimeRequested >= 0) {
-            seekTime = reader.seek(seekTimeRequested);
-        } else {
-            seekTime = 0;
-        }
-        timePosition = seekTime;
-        log.debug("publish start, seek requested: {} actual seek: {}, play length: {}, conversation: {}", new Object[]{seekTimeRequested, seekTime, playLength, currentConversationId});
-        for(final RtmpMessage message : messages) {
-            writeToStream(ctx, message);
+        final int conversationId = currentConversationId;
+        tick = new Tick(ctx, conversationId);
+        if(readAhead == null) {
+            readAhead = new ReadAhead(reader, ioExecutor, ctx.executor(), readAheadMillis);
         }
-        for(final RtmpMessage message : reader.getStartMessages()) {
-            writeToStream(ctx, message);
-        }
-        write(ctx);
+        // seek在I/O线程上执行，完成后回到event loop开始发送
+        readAhead.seek(seekTimeRequested, new ReadAhead.SeekListener() {
+            @Override
+            public void seekComplete(final long actualTime) {
+                if(conversationId != currentConversationId) {
+                    return;
+                }
+                startTime = System.currentTimeMillis();
+                seekTime = actualTime;
+                timePosition = seekTime;
+                burst = 0;
+                log.debug("publish start, seek requested: {} actual seek: {}, play length: {}, conversation: {}", new Object[]{seekTimeRequested, seekTime, playLength, currentConversationId});
+                for(final RtmpMessage message : messages) {
+                    writeToStream(ctx, message);
+                }
+                for(final RtmpMessage message : reader.getStartMessages()) {
+                    writeToStream(ctx, message);
+                }
+                write(ctx);
+            }
+        });
     }
 
     public void writeToStream(final ChannelHandlerContext ctx, final RtmpMessage message) {
@@ -137,71 +183,104 @@ public abstract class RtmpPublisher {
         }
         ctx.write(message);
     }
+    /**
+     * 一次tick：发送之后BATCH_DURATION毫秒媒体时间内的消息，只flush一次，再按领先实时的程度决定下一次tick
+     * 消息使用void promise，不再为每条消息创建promise和listener
+     */
     private void write(final ChannelHandlerContext ctx) {
-        final long writeTime = System.currentTimeMillis();
-        final RtmpMessage message;
-        //从reader中读出下一条message
-        synchronized(reader) {
-            if(reader.hasNext()) {
-                message = reader.next();
-            } else {
-                message = null;
-            }
+        final long elapsedTimePlusSeek = System.currentTimeMillis() - startTime + seekTime;
+        final long clientBuffer = timePosition - elapsedTimePlusSeek;
+        if(aggregateModeEnabled && clientBuffer > timerTickSize) { // TODO cleanup
+            // 一个aggregate也算一次连续发送，不超过maxBurst
+            readAhead.setAggregateDuration((int) Math.min(clientBuffer, maxBurst));
+        } else {
+            readAhead.setAggregateDuration(0);
         }
-        if (message == null || playLength >= 0 && timePosition > (seekTime + playLength)) {
-            stop(ctx);
-            return;
+        final long batchEnd = timePosition + BATCH_DURATION;
+        while(timePosition < batchEnd) {
+            if(playLength >= 0 && timePosition > (seekTime + playLength)) {
+                stop(ctx);
+                return;
+            }
+            if(!channel.isWritable()) {
+                waitingWritable = true;
+                ctx.flush();
+                return;
+            }
+            //从预读队列中取出下一条message，还没读好时等预读完成再继续
+            final RtmpMessage message = readAhead.poll();
+            if(message == null) {
+                if(readAhead.isEnd()) {
+                    stop(ctx);
+                    return;
+                }
+                ctx.flush();
+                readAhead.whenReady(tick);
+                return;
+            }
+            final RtmpHeader header = message.getHeader();
+            // aggregate覆盖一段时间，按其中最后一个tag计算进度
+            final int endTime = message instanceof Aggregate ? ((Aggregate) message).getLastTimestamp() : header.getTimestamp();
+            burst += Math.max(endTime - timePosition, 0);
+            timePosition = Math.max(timePosition, endTime);
+            header.setStreamId(streamId);
+            header.setCsId(channelId);
+            ctx.write(message, ctx.voidPromise());
         }
-        final long elapsedTime = System.currentTimeMillis() - startTime;
-        final long elapsedTimePlusSeek = elapsedTime + seekTime;
-        final double clientBuffer = timePosition - elapsedTimePlusSeek;
-        if(aggregateModeEnabled && clientBuffer > timerTickSize) { // TODO cleanup
-            reader.setAggregateDuration((int) clientBuffer);
+        ctx.flush();
+        // 先领先实时发送客户端buffer的时长，之后按实时速度发送
+        final long lead = timePosition - (System.currentTimeMillis() - startTime + seekTime);
+        final long targetLead = Math.min(Math.max(bufferDuration, timerTickSize), maxLead);
+        final long delay;
+        if(lead > targetLead) {
+            delay = lead - targetLead;
+            burst = 0;
+        } else if(burst >= maxBurst) {
+            delay = timerTickSize;
+            burst = 0;
         } else {
-            reader.setAggregateDuration(0);
+            delay = 0;
         }
-        final RtmpHeader header = message.getHeader();
-        final double compensationFactor = clientBuffer / (bufferDuration + timerTickSize);
-        final long delay = (long) ((header.getTimestamp() - timePosition) * compensationFactor);
         if(log.isDebugEnabled()) {
-            log.debug("elapsed: {}, streamed: {}, buffer: {}, factor: {}, delay: {}",new Object[]{elapsedTimePlusSeek, timePosition, clientBuffer, compensationFactor, delay});
+            log.debug("elapsed: {}, streamed: {}, lead: {}, target: {}, delay: {}",new Object[]{elapsedTimePlusSeek, timePosition, lead, targetLead, delay});
         }
-        timePosition = header.getTimestamp();
-        header.setStreamId(streamId);
-        header.setCsId(channelId);
-        ChannelPromise promise = ctx.newPromise();
-        promise.addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(final ChannelFuture cf) {
-                final long completedIn = System.currentTimeMillis() - writeTime;
-                if(completedIn > 2000) {
-                    log.warn("channel busy? time taken to write last message: {}", completedIn);
-                }
-                final long delayToUse = clientBuffer > 0 ? delay - completedIn : 0;
-                fireNext(cf.channel(), delayToUse);
+        tick.schedule(delay);
+    }
+
+    /**
+     * 一次播放(conversation)共用的tick任务：短延迟直接提交到event loop，长延迟放到共享timer上
+     */
+    private final class Tick implements Runnable, TimerTask {
+
+        private final ChannelHandlerContext ctx;
+        private final int conversationId;
+
+        private Tick(final ChannelHandlerContext ctx, final int conversationId) {
+            this.ctx = ctx;
+            this.conversationId = conversationId;
+        }
+
+        private void schedule(final long delay) {
+            if(delay >= timerTickSize) {
+                timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+            } else {
+                ctx.executor().execute(this);
             }
-        });
-        ctx.write(message,promise);
-    }
-    public void fireNext(final Channel channel, final long delay) {
-        final Event readyForNext = new Event(currentConversationId, streamId);
-//        if(delay > timerTickSize) {
-//            timer.newTimeout(new TimerTask() {
-//                @Override public void run(Timeout timeout) {
-//                    if(log.isDebugEnabled()) {
-//                        log.debug("running after delay: {}", delay);
-//                    }
-//                    if(readyForNext.conversationId != currentConversationId) {
-//                        log.debug("pending 'next' event found obsolete, aborting");
-//                        return;
-//                    }
-//                    channel.pipeline().fireChannelRead(readyForNext);
-//                }
-//            }, delay, TimeUnit.MILLISECONDS);
-//        } else {
-//            channel.pipeline().fireChannelRead(readyForNext);
-//        }
-        channel.pipeline().fireChannelRead(readyForNext);
+        }
+
+        @Override
+        public void run(final Timeout timeout) {
+            ctx.executor().execute(this);
+        }
+
+        @Override
+        public void run() {
+            if(conversationId != currentConversationId) {
+                log.debug("stopping obsolete conversation id: {}, current: {}", conversationId, currentConversationId);
+                return;
+            }
+            write(ctx);
+        }
     }
 
     public void pause() {
@@ -216,13 +295,20 @@ public abstract class RtmpPublisher {
         for(RtmpMessage message : getStopMessages(timePosition)) {
             writeToStream(ctx, message);
         }
+        ctx.flush();
     }
 
     public void close() {
+        // 作废还未执行的tick和预读回调
+        currentConversationId++;
         if(!usingSharedTimer) {
             timer.stop();
         }
-        reader.close();
+        if(readAhead != null) {
+            readAhead.close();
+        } else {
+            reader.close();
+        }
     }
 
     protected abstract RtmpMessage[] getStopMessages(long timePosition);
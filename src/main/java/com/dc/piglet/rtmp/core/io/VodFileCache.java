@@ -0,0 +1,167 @@
+package com.dc.piglet.rtmp.core.io;
+
+import com.dc.piglet.rtmp.core.io.f4v.F4vReader;
+import com.dc.piglet.rtmp.core.io.f4v.MovieInfo;
+import com.dc.piglet.rtmp.core.io.flv.FlvReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程内共享的点播文件缓存，key为路径 + 修改时间
+ *
+ * 同一个文件的所有播放者共享一份只读映射和解析好的MovieInfo(sample表)，每个播放者只有一个MappedFileReader游标。
+ * 按权重(文件大小 + 索引估算内存)做LRU淘汰，被淘汰的映射在最后一个播放者close后释放。
+ */
+public class VodFileCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(VodFileCache.class);
+
+    private final long maxWeight;
+    private final LinkedHashMap<String, VodFile> files = new LinkedHashMap<String, VodFile>(16, 0.75f, true);
+    private long weight;
+
+    private static final class VodFile {
+        private final String path;
+        private final MappedFile file;
+        private MovieInfo movieInfo;
+        private long weight;
+
+        private VodFile(final String path, final MappedFile file) {
+            this.path = path;
+            this.file = file;
+            this.weight = file.size();
+        }
+
+        private BufferReader newReader() {
+            return new MappedFileReader(file.retain());
+        }
+    }
+
+    public VodFileCache(final long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public boolean isEnabled() {
+        return maxWeight > 0;
+    }
+
+    /**
+     * @param indexPath 用于后台扫描关键帧索引的路径，为null时不扫描
+     */
+    public RtmpReader openFlv(final String path, final String indexPath) {
+        return new FlvReader(openReader(path), indexPath);
+    }
+
+    public RtmpReader openF4v(final String path) {
+        final VodFile vod;
+        final BufferReader in;
+        synchronized(this) {
+            vod = get(path);
+            in = vod.newReader();
+        }
+        try {
+            return new F4vReader(in, getMovieInfo(vod, in));
+        } catch(RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public synchronized BufferReader openReader(final String path) {
+        return get(path).newReader();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * 移除所有文件，还在播放的reader关闭后释放映射
+     */
+    public synchronized void clear() {
+        final Iterator<VodFile> it = files.values().iterator();
+        while(it.hasNext()) {
+            final VodFile vod = it.next();
+            it.remove();
+            remove(vod);
+        }
+    }
+
+    /**
+     * 第一个播放者解析MovieInfo，之后的播放者直接复用
+     */
+    private MovieInfo getMovieInfo(final VodFile vod, final BufferReader in) {
+        synchronized(vod) {
+            if(vod.movieInfo == null) {
+                vod.movieInfo = new MovieInfo(in);
+                synchronized(this) {
+                    final long indexWeight = vod.movieInfo.getSamples().getWeight();
+                    vod.weight += indexWeight;
+                    if(files.get(vod.path) == vod) {
+                        weight += indexWeight;
+                        evict();
+                    }
+                }
+            }
+            return vod.movieInfo;
+        }
+    }
+
+    private VodFile get(final String path) {
+        final File file = new File(path);
+        final String key = file.getAbsolutePath() + ':' + file.lastModified();
+        VodFile vod = files.get(key);
+        if(vod != null) {
+            return vod;
+        }
+        removeStale(file.getAbsolutePath() + ':');
+        vod = new VodFile(key, new MappedFile(file));
+        files.put(key, vod);
+        weight += vod.weight;
+        logger.info("cached vod file: {}, cache weight: {}, files: {}", new Object[]{key, weight, files.size()});
+        evict();
+        return vod;
+    }
+
+    /**
+     * 文件被替换后，旧版本的缓存不会再命中
+     */
+    private void removeStale(final String pathPrefix) {
+        final Iterator<Map.Entry<String, VodFile>> it = files.entrySet().iterator();
+        while(it.hasNext()) {
+            final Map.Entry<String, VodFile> entry = it.next();
+            if(entry.getKey().startsWith(pathPrefix)) {
+                it.remove();
+                remove(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 至少保留最近使用的一个文件
+     */
+    private void evict() {
+        final Iterator<VodFile> it = files.values().iterator();
+        while(weight > maxWeight && files.size() > 1 && it.hasNext()) {
+            final VodFile eldest = it.next();
+            it.remove();
+            remove(eldest);
+        }
+    }
+
+    private void remove(final VodFile vod) {
+        weight -= vod.weight;
+        vod.file.release();
+        logger.info("evicted vod file: {}, cache weight: {}", vod.path, weight);
+    }
+
+}
@@ -13,7 +13,6 @@ import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
 public class F4vReader implements RtmpReader {
 
     private static final Logger log = LoggerFactory.getLogger(F4vReader.class);
@@ -27,15 +26,25 @@ public class F4vReader implements RtmpReader {
     private byte[] MP4A_BEGIN;
 
     private final BufferReader in;
-    private final List<Sample> samples;
+    private final SampleTable samples;
     private final Metadata metadata;
 
     private int cursor;
     private int aggregateDuration;
 
     public F4vReader(final String path) {
-        in = new FileChannelReader(path);
-        final MovieInfo movie = new MovieInfo(in);
+        this(new FileChannelReader(path));
+    }
+
+    public F4vReader(final BufferReader in) {
+        this(in, new MovieInfo(in));
+    }
+
+    /**
+     * @param movie 已解析的MovieInfo，可在多个reader间共享，只读
+     */
+    public F4vReader(final BufferReader in, final MovieInfo movie) {
+        this.in = in;
         in.position(0);
         AVC1_BEGIN = movie.getVideoDecoderConfig();
         MP4A_BEGIN = movie.getAudioDecoderConfig();
@@ -72,23 +81,15 @@ public class F4vReader implements RtmpReader {
         } else {
             index = cursor;
         }
-        return samples.get(index).getTime();
+        return samples.getTime(index);
     }
 
     @Override
     public long seek(long timePosition) {
-        cursor = 0;
-        while(cursor < samples.size()) {
-            final Sample sample = samples.get(cursor);
-            if(sample.getTime() >= timePosition) {
-                break;
-            }
-            cursor++;
-        }
-        while(!samples.get(cursor).isSyncSample() && cursor > 0) {
-            cursor--;
-        }
-        return samples.get(cursor).getTime();
+        // 第一个不早于目标时间的sample，再退到它之前(含)最近的同步sample
+        final int sync = samples.floorSyncSample(samples.ceilingIndex(timePosition));
+        cursor = sync == -1 ? 0 : sync;
+        return samples.getTime(cursor);
     }
 
     @Override
@@ -101,14 +102,15 @@ public class F4vReader implements RtmpReader {
     @Override
     public RtmpMessage next() {
         if(aggregateDuration <= 0) {
-            return getMessage(samples.get(cursor++));
+            return getMessage(cursor++);
         }
         final ByteBuf out = Unpooled.buffer(256);
         int startSampleTime = -1;
         while(cursor < samples.size()) {
-            final Sample sample = samples.get(cursor++);
+            final int sample = cursor++;
+            final int sampleTime = samples.getTime(sample);
             if(startSampleTime == -1) {
-                startSampleTime = sample.getTime();
+                startSampleTime = sampleTime;
             }
             final RtmpMessage message = getMessage(sample);
             final RtmpHeader header = message.getHeader();
@@ -119,28 +121,28 @@ public class F4vReader implements RtmpReader {
                 break;
             }
             out.writeBytes(temp);
-            if(sample.getTime() - startSampleTime > aggregateDuration) {
+            if(sampleTime - startSampleTime > aggregateDuration) {
                 break;
             }
         }
         return new Aggregate(startSampleTime, out);
     }
 
-    private RtmpMessage getMessage(final Sample sample) {
-        in.position(sample.getFileOffset());
-        final byte[] sampleBytes = in.readBytes(sample.getSize());        
+    private RtmpMessage getMessage(final int sample) {
+        in.position(samples.getFileOffset(sample));
+        final byte[] sampleBytes = in.readBytes(samples.getSize(sample));
         final byte[] prefix;        
-        if(sample.isVideo()) {
-            if(sample.isSyncSample()) {
+        if(samples.isVideo(sample)) {
+            if(samples.isSyncSample(sample)) {
                 prefix = AVC1_PREFIX_KEYFRAME;
             } else {
                 prefix = AVC1_PREFIX;
             }
             // TODO move prefix logic to Audio / Video
-            return new Video(sample.getTime(), prefix, sample.getCompositionTimeOffset(), sampleBytes);
+            return new Video(samples.getTime(sample), prefix, samples.getCompositionTimeOffset(sample), sampleBytes);
         } else {
             prefix = MP4A_PREFIX;
-            return new Audio(sample.getTime(), prefix, sampleBytes);
+            return new Audio(samples.getTime(sample), prefix, sampleBytes);
         }
     }
 
@@ -9,7 +9,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 public class MovieInfo {
     private static final Logger log = LoggerFactory.getLogger(MovieInfo.class);
@@ -17,9 +16,9 @@ public class MovieInfo {
     private FTYP ftyp;
     private MVHD mvhd;
     private List<TrackInfo> tracks = new ArrayList<TrackInfo>();
-    private List<Sample> samples;
+    private SampleTable samples;
 
-    public List<Sample> getSamples() {
+    public SampleTable getSamples() {
         return samples;
     }
 
@@ -32,13 +31,10 @@ public class MovieInfo {
     }
 
     private void initSamples() {
-        samples = new ArrayList<Sample>();
+        samples = new SampleTable(tracks);
         for(TrackInfo track : tracks) {
-            for(Chunk chunk : track.getChunks()) {
-                samples.addAll(chunk.getSamples());
-            }
+            track.releaseSamples();
         }
-        Collections.sort(samples); // sort by time, implements comparable
     }
 
     public MovieInfo(final BufferReader in) {
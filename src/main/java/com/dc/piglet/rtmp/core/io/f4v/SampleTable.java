@@ -0,0 +1,151 @@
+package com.dc.piglet.rtmp.core.io.f4v;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 所有track的sample按时间合并后的列式表，每一列是一个基本类型数组，下标即播放顺序
+ *
+ * 每个track内部已按解码时间有序，用k路归并合并，不需要排序；时间相同时track顺序在前的先出。
+ * 合并后的时间列整体有序，另外按STSS标记的同步sample建一个有序下标数组，seek只需两次二分查找。
+ */
+public class SampleTable {
+
+    /** 每个sample占用的估算字节数：offset 8 + size 4 + time 4 + cts 4，flag位和同步sample下标忽略不计 */
+    private static final int BYTES_PER_SAMPLE = 20;
+
+    private final int size;
+    private final long[] offsets;
+    private final int[] sizes;
+    private final int[] times;
+    private final int[] compositionTimeOffsets;
+    private final BitSet syncFlags;
+    private final BitSet videoFlags;
+    /** 同步sample在本表中的下标，升序 */
+    private final int[] syncSamples;
+
+    public SampleTable(final List<TrackInfo> tracks) {
+        int total = 0;
+        for(final TrackInfo track : tracks) {
+            total += track.getSampleCount();
+        }
+        size = total;
+        offsets = new long[total];
+        sizes = new int[total];
+        times = new int[total];
+        compositionTimeOffsets = new int[total];
+        syncFlags = new BitSet(total);
+        videoFlags = new BitSet(total);
+        final int trackCount = tracks.size();
+        final int[] cursors = new int[trackCount];
+        for(int i = 0; i < total; i++) {
+            // track数量很少，直接线性比较各track的队头
+            int next = -1;
+            int nextTime = 0;
+            for(int t = 0; t < trackCount; t++) {
+                final TrackInfo track = tracks.get(t);
+                if(cursors[t] < track.getSampleCount()) {
+                    final int time = track.getSampleTime(cursors[t]);
+                    if(next == -1 || time < nextTime) {
+                        next = t;
+                        nextTime = time;
+                    }
+                }
+            }
+            final TrackInfo track = tracks.get(next);
+            final int index = cursors[next]++;
+            offsets[i] = track.getSampleOffset(index);
+            sizes[i] = track.getSampleSize(index);
+            times[i] = nextTime;
+            compositionTimeOffsets[i] = track.getCompositionTimeOffset(index);
+            if(track.isSyncSample(index)) {
+                syncFlags.set(i);
+            }
+            if(track.isVideoSample(index)) {
+                videoFlags.set(i);
+            }
+        }
+        syncSamples = new int[syncFlags.cardinality()];
+        for(int i = syncFlags.nextSetBit(0), j = 0; i >= 0; i = syncFlags.nextSetBit(i + 1)) {
+            syncSamples[j++] = i;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getFileOffset(final int index) {
+        return offsets[index];
+    }
+
+    public int getSize(final int index) {
+        return sizes[index];
+    }
+
+    /**
+     * @return 毫秒
+     */
+    public int getTime(final int index) {
+        return times[index];
+    }
+
+    public int getCompositionTimeOffset(final int index) {
+        return compositionTimeOffsets[index];
+    }
+
+    public boolean isSyncSample(final int index) {
+        return syncFlags.get(index);
+    }
+
+    public boolean isVideo(final int index) {
+        return videoFlags.get(index);
+    }
+
+    /**
+     * @return 第一个时间不早于time的sample下标，都早于time时返回size()
+     */
+    public int ceilingIndex(final long time) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            final int mid = (low + high) >>> 1;
+            if(times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return 不晚于index的最后一个同步sample的下标，没有时返回-1
+     */
+    public int floorSyncSample(final int index) {
+        final int found = Arrays.binarySearch(syncSamples, index);
+        if(found >= 0) {
+            return index;
+        }
+        final int insertion = -found - 1;
+        return insertion == 0 ? -1 : syncSamples[insertion - 1];
+    }
+
+    public int getSyncSampleCount() {
+        return syncSamples.length;
+    }
+
+    /**
+     * 估算占用的堆内存
+     */
+    public long getWeight() {
+        return (long) size * BYTES_PER_SAMPLE;
+    }
+
+    @Override
+    public String toString() {
+        return "[samples: " + size + " sync: " + syncSamples.length + " video: " + videoFlags.cardinality() + ']';
+    }
+
+}
@@ -6,9 +6,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Set;
 
 public class TrackInfo {
     private static final Logger log = LoggerFactory.getLogger(TrackInfo.class);
@@ -24,7 +23,14 @@ public class TrackInfo {
     private STCO stco;
     private STSS stss;
 
-    private List<Chunk> chunks;
+    /** 按解码顺序排列的sample列 */
+    private int sampleCount;
+    private long[] sampleOffsets;
+    private int[] sampleSizes;
+    private int[] sampleTimes;
+    private int[] compositionTimeOffsets;
+    private BitSet syncSamples;
+    private BitSet videoSamples;
 
     public TrackInfo(Box trak) {
         ArrayList<Box> collect = new ArrayList<Box>();
@@ -40,11 +46,12 @@ public class TrackInfo {
                 case CTTS: ctts = (CTTS) pay; break;
                 case STSC: stsc = (STSC) pay; break;
                 case STSZ: stsz = (STSZ) pay; break;
-                case STCO: stco = (STCO) pay; break;
+                case STCO:
+                case CO64: stco = (STCO) pay; break;
                 case STSS: stss = (STSS) pay; break;
             }
         }
-        initChunks();
+        initSamples();
         log.debug("initialized track info table");
     }
 
@@ -64,94 +71,130 @@ public class TrackInfo {
         this.movie = movie;
     }
 
-    public List<Chunk> getChunks() {
-        return chunks;
+    public int getSampleCount() {
+        return sampleCount;
     }
 
-    private void initChunks() {
-        int stcoIndex = 0;
-        int stszIndex = 0;
-        chunks = new ArrayList<Chunk>();
-        int stscCount = stsc.getRecords().size();
-        Set<Integer> syncSampleNumbers = null;
-        if (stss != null) {
-            syncSampleNumbers = new HashSet<Integer>(stss.getSampleNumbers());
+    public long getSampleOffset(final int index) {
+        return sampleOffsets[index];
+    }
+
+    public int getSampleSize(final int index) {
+        return sampleSizes[index];
+    }
+
+    /**
+     * @return 毫秒
+     */
+    public int getSampleTime(final int index) {
+        return sampleTimes[index];
+    }
+
+    public int getCompositionTimeOffset(final int index) {
+        return compositionTimeOffsets[index];
+    }
+
+    public boolean isSyncSample(final int index) {
+        return syncSamples.get(index);
+    }
+
+    public boolean isVideoSample(final int index) {
+        return videoSamples.get(index);
+    }
+
+    /**
+     * 合并进SampleTable后释放本track的sample列，之后只有getSampleCount可用
+     */
+    void releaseSamples() {
+        sampleOffsets = null;
+        sampleSizes = null;
+        sampleTimes = null;
+        compositionTimeOffsets = null;
+        syncSamples = null;
+        videoSamples = null;
+    }
+
+    /**
+     * timescale单位换算成毫秒，HALF_EVEN舍入
+     */
+    public static int toMillis(final long value, final long timeScale) {
+        if(value < 0) {
+            return -toMillis(-value, timeScale);
+        }
+        final long scaled = value * 1000;
+        long quotient = scaled / timeScale;
+        final long twiceRemainder = (scaled % timeScale) * 2;
+        if(twiceRemainder > timeScale || twiceRemainder == timeScale && (quotient & 1) == 1) {
+            quotient++;
         }
-        for (int i = 0; i < stscCount; i++) {
-            STSC.STSCRecord stscRecord = stsc.getRecords().get(i);
-            int lastChunkWithSameSize;
-            if (i + 1 == stscCount) {
-                if (i == 0) {
-                    lastChunkWithSameSize = stco.getOffsets().size();
-                } else {
-                    lastChunkWithSameSize = stscRecord.getFirstChunk();
+        return (int) quotient;
+    }
+
+    private void initSamples() {
+        final long[] chunkOffsets = stco.getOffsets();
+        sampleCount = stsz.getSampleCount();
+        sampleOffsets = new long[sampleCount];
+        sampleSizes = new int[sampleCount];
+        sampleTimes = new int[sampleCount];
+        compositionTimeOffsets = new int[sampleCount];
+        syncSamples = new BitSet(sampleCount);
+        videoSamples = new BitSet(sampleCount);
+        // sample -> chunk -> 文件偏移
+        final List<STSC.STSCRecord> stscRecords = stsc.getRecords();
+        int sampleIndex = 0;
+        for (int i = 0; i < stscRecords.size(); i++) {
+            final STSC.STSCRecord stscRecord = stscRecords.get(i);
+            final int lastChunk = i + 1 < stscRecords.size()
+                    ? stscRecords.get(i + 1).getFirstChunk() - 1 : chunkOffsets.length;
+            final boolean video = stsd.getSampleType(stscRecord.getSampleDescIndex()).isVideo();
+            for (int chunk = stscRecord.getFirstChunk() - 1; chunk < lastChunk; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int k = 0; k < stscRecord.getSamplesPerChunk() && sampleIndex < sampleCount; k++) {
+                    final int size = stsz.getSampleSize(sampleIndex);
+                    sampleOffsets[sampleIndex] = offset;
+                    sampleSizes[sampleIndex] = size;
+                    videoSamples.set(sampleIndex, video);
+                    offset += size;
+                    sampleIndex++;
                 }
-            } else {
-                lastChunkWithSameSize = stsc.getRecords().get(i + 1).getFirstChunk() - 1;
             }
-            for (int j = stcoIndex; j < lastChunkWithSameSize; j++) {
-                Chunk chunk = new Chunk();
-                int sampleFileOffset = 0;
-                chunk.setSampleDescIndex(stscRecord.getSampleDescIndex());
-                chunk.setFileOffset(stco.getOffsets().get(stcoIndex++));
-                for (int k = 0; k < stscRecord.getSamplesPerChunk(); k++) {
-                    Sample sample = new Sample();
-                    sample.setSize(stsz.getSampleSizes().get(stszIndex++));
-                    sample.setFileOffset(chunk.getFileOffset() + sampleFileOffset);
-                    sampleFileOffset += sample.getSize();
-                    if (syncSampleNumbers != null && syncSampleNumbers.contains(stszIndex)) {
-                        sample.setSyncSample(true);
-                    }
-                    chunk.add(sample);
+        }
+        if (sampleIndex < sampleCount) {
+            log.warn("sample to chunk table covers {} of {} samples", sampleIndex, sampleCount);
+            sampleCount = sampleIndex;
+        }
+        if (stss != null) {
+            for (final int sampleNumber : stss.getSampleNumbers()) {
+                if (sampleNumber > 0 && sampleNumber <= sampleCount) {
+                    syncSamples.set(sampleNumber - 1);
                 }
-                chunk.setTrack(this);
-                chunks.add(chunk);
             }
-        }        
-        int chunkIndex = 0;
-        int sampleIndex = 0;
+        }
+        final long timeScale = mdhd.getTimeScale();
+        sampleIndex = 0;
         long rawTime = 0;
-        Chunk chunk = chunks.get(chunkIndex);
         scan:
-        for (STTS.STTSRecord sttsRecord : stts.getRecords()) {
+        for (final STTS.STTSRecord sttsRecord : stts.getRecords()) {
             for (int i = 0; i < sttsRecord.getSampleCount(); i++) {
-                if (sampleIndex == chunk.getSampleCount()) {
-                    chunkIndex++;
-                    if (chunkIndex == chunks.size()) {
-                        break scan;
-                    }
-                    chunk = chunks.get(chunkIndex);
-                    sampleIndex = 0;
+                if (sampleIndex == sampleCount) {
+                    break scan;
                 }
-                Sample sample = chunk.getSamples().get(sampleIndex++);
-                final int rawDuration = sttsRecord.getSampleDuration();
-                final int duration = sample.convertFromTimeScale(rawDuration);
-                sample.setDuration(duration);
-                final int time = sample.convertFromTimeScale(rawTime);
-                sample.setTime(time);
-                rawTime += rawDuration;
+                sampleTimes[sampleIndex++] = toMillis(rawTime, timeScale);
+                rawTime += sttsRecord.getSampleDuration();
             }
         }
         if(ctts == null) {
             return;
         }
-        chunkIndex = 0;
         sampleIndex = 0;
-        chunk = chunks.get(chunkIndex);
         scan:
-        for (CTTS.CTTSRecord cttsRecord : ctts.getRecords()) {
+        for (final CTTS.CTTSRecord cttsRecord : ctts.getRecords()) {
+            final int compositionTimeOffset = toMillis(cttsRecord.getSampleOffset(), timeScale);
             for (int i = 0; i < cttsRecord.getSampleCount(); i++) {
-                if (sampleIndex == chunk.getSampleCount()) {
-                    chunkIndex++;
-                    if (chunkIndex == chunks.size()) {
-                        break scan;
-                    }
-                    chunk = chunks.get(chunkIndex);
-                    sampleIndex = 0;
+                if (sampleIndex == sampleCount) {
+                    break scan;
                 }
-                Sample sample = chunk.getSamples().get(sampleIndex++);
-                final int compositionTimeOffset = sample.convertFromTimeScale(cttsRecord.getSampleOffset());
-                sample.setCompositionTimeOffset(compositionTimeOffset);
+                compositionTimeOffsets[sampleIndex++] = compositionTimeOffset;
             }
         }
     }
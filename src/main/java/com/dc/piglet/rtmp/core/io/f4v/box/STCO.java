@@ -8,12 +8,10 @@ import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
 public class STCO implements Payload {
     private static final Logger log = LoggerFactory.getLogger(STCO.class);
     private final boolean co64;
-    private List<Long> offsets;
+    private long[] offsets;
 
     public STCO(ByteBuf in) {
         this(in, false);
@@ -24,11 +22,11 @@ public class STCO implements Payload {
         read(in);
     }
 
-    public void setOffsets(List<Long> offsets) {
+    public void setOffsets(long[] offsets) {
         this.offsets = offsets;
     }
 
-    public List<Long> getOffsets() {
+    public long[] getOffsets() {
         return offsets;
     }
 
@@ -37,11 +35,10 @@ public class STCO implements Payload {
         in.readInt(); // UI8 version + UI24 flags
         final int count = in.readInt();
         log.debug("no of chunk offsets: {}", count);
-        offsets = new ArrayList<Long>(count);
+        offsets = new long[count];
         for (int i = 0; i < count; i++) {
-            final Long offset = co64 ? in.readLong() : in.readInt();
-            // logger.debug("#{} offset: {}", new Object[]{i, offset});
-            offsets.add(offset);
+            offsets[i] = co64 ? in.readLong() : in.readUnsignedInt();
+            // logger.debug("#{} offset: {}", new Object[]{i, offsets[i]});
         }
     }
 
@@ -49,12 +46,12 @@ public class STCO implements Payload {
     public ByteBuf write() {
         ByteBuf out = Unpooled.buffer(256);
         out.writeInt(0); // UI8 version + UI24 flags        
-        out.writeInt(offsets.size());
-        for (Long offset : offsets) {
+        out.writeInt(offsets.length);
+        for (long offset : offsets) {
             if(co64) {
                 out.writeLong(offset);
             } else {
-                out.writeInt(offset.intValue());
+                out.writeInt((int) offset);
             }
         }
         return out;
@@ -8,23 +8,24 @@ import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
 public class STSS implements Payload {
 
     private static final Logger log = LoggerFactory.getLogger(STSS.class);
 
-    private List<Integer> sampleNumbers;
+    private int[] sampleNumbers;
     
     public STSS(ByteBuf in) {
         read(in);
     }
 
-    public List<Integer> getSampleNumbers() {
+    /**
+     * 从1开始的sync sample序号，升序
+     */
+    public int[] getSampleNumbers() {
         return sampleNumbers;
     }
 
-    public void setSampleNumbers(List<Integer> sampleNumbers) {
+    public void setSampleNumbers(int[] sampleNumbers) {
         this.sampleNumbers = sampleNumbers;
     }
 
@@ -33,10 +34,9 @@ public class STSS implements Payload {
         in.readInt(); // UI8 version + UI24 flags
         final int count = in.readInt();
         log.debug("no of sample sync records: {}", count);
-        sampleNumbers = new ArrayList<Integer>(count);
+        sampleNumbers = new int[count];
         for (int i = 0; i < count; i++) {
-            final Integer sampleNumber = in.readInt();
-            sampleNumbers.add(sampleNumber);
+            sampleNumbers[i] = in.readInt();
         }
     }
 
@@ -44,8 +44,8 @@ public class STSS implements Payload {
     public ByteBuf write() {
         ByteBuf out = Unpooled.buffer(256);
         out.writeInt(0); // UI8 version + UI24 flags
-        out.writeInt(sampleNumbers.size());
-        for (Integer sampleNumber : sampleNumbers) {
+        out.writeInt(sampleNumbers.length);
+        for (int sampleNumber : sampleNumbers) {
             out.writeInt(sampleNumber);
         }
         return out;
@@ -8,30 +8,40 @@ import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class STSZ implements Payload {
 
     private static final Logger log = LoggerFactory.getLogger(STSZ.class);
 
-    private List<Integer> sampleSizes;
+    private int[] sampleSizes;
     private int constantSize;
+    private int sampleCount;
 
     public STSZ(ByteBuf in) {
         read(in);
     }
 
-    public List<Integer> getSampleSizes() {
+    /**
+     * constantSize不为0时所有sample大小相同，没有逐个sample的表
+     */
+    public int[] getSampleSizes() {
         return sampleSizes;
     }
 
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getSampleSize(final int index) {
+        return constantSize != 0 ? constantSize : sampleSizes[index];
+    }
+
     public void setConstantSize(int constantSize) {
         this.constantSize = constantSize;
     }
 
-    public void setSampleSizes(List<Integer> sampleSizes) {
+    public void setSampleSizes(int[] sampleSizes) {
         this.sampleSizes = sampleSizes;
+        this.sampleCount = sampleSizes.length;
     }
 
     @Override
@@ -39,13 +49,16 @@ public class STSZ implements Payload {
         in.readInt(); // UI8 version + UI24 flags
         constantSize = in.readInt();
         log.debug("sample size constant size: {}", constantSize);
-        final int count = in.readInt();
-        log.debug("no of sample size records: {}", count);
-        sampleSizes = new ArrayList<Integer>(count);
-        for (int i = 0; i < count; i++) {
-            final Integer sampleSize = in.readInt();
-            // logger.debug("#{} sampleSize: {}", new Object[]{i, sampleSize});
-            sampleSizes.add(sampleSize);
+        sampleCount = in.readInt();
+        log.debug("no of sample size records: {}", sampleCount);
+        if (constantSize != 0) {
+            sampleSizes = new int[0];
+            return;
+        }
+        sampleSizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sampleSizes[i] = in.readInt();
+            // logger.debug("#{} sampleSize: {}", new Object[]{i, sampleSizes[i]});
         }
     }
 
@@ -54,9 +67,11 @@ public class STSZ implements Payload {
         ByteBuf out = Unpooled.buffer(256);
         out.writeInt(0); // UI8 version + UI24 flags
         out.writeInt(constantSize);
-        out.writeInt(sampleSizes.size());
-        for (Integer sampleSize : sampleSizes) {
-            out.writeInt(sampleSize);
+        out.writeInt(sampleCount);
+        if (constantSize == 0) {
+            for (int sampleSize : sampleSizes) {
+                out.writeInt(sampleSize);
+            }
         }
         return out;
     }
@@ -0,0 +1,253 @@
+package com.dc.piglet.rtmp.core.io.flv;
+
+import com.dc.piglet.rtmp.entity.MessageType;
+import com.dc.piglet.rtmp.util.SpscArrayQueue;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 直播录制：publisher的event loop只把tag放进有界的SPSC队列，由本文件专用的写线程批量写盘
+ *
+ * 写线程每攒够batchBytes或每隔flushInterval毫秒醒来一次，把队列中的tag合并成一次gathering write。
+ * fsyncInterval为0时每批写完都fsync，小于0时只在close时fsync，否则最多每fsyncInterval毫秒fsync一次。
+ * 队列满(条数或字节数)时不阻塞ingest：丢弃视频直到下一个关键帧，并记录丢弃的数量；
+ * 音频和metadata不等关键帧，队列有空间就继续写，纯音频流不会因为一次溢出停止录制。
+ * 分段的滚动和finalize(重写onMetaData)也都在写线程上进行。
+ * close只通知写线程，剩下的tag由写线程写完后finalize并关闭文件。
+ */
+public class AsyncFlvWriter extends FlvWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncFlvWriter.class);
+
+    /** 一次gathering write最多的tag数，每个tag至少3个buffer，不超过IOV_MAX */
+    private static final int MAX_TAGS_PER_WRITE = 256;
+
+    private static final AtomicLong TOTAL_DROPPED = new AtomicLong();
+
+    private static final class Tag {
+        private final MessageType type;
+        private final int time;
+        private final ByteBuf data;
+
+        private Tag(final MessageType type, final int time, final ByteBuf data) {
+            this.type = type;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    private final SpscArrayQueue<Tag> queue;
+    private final long maxQueueBytes;
+    private final long batchBytes;
+    private final long flushIntervalNanos;
+    private final long fsyncInterval;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closing;
+    /** 写线程退出前在offerLock下置位，之后入队的tag由生产者自己release */
+    private final Object offerLock = new Object();
+    private boolean closed;
+
+    // 以下字段只在生产者(publisher的event loop)上访问
+    private boolean dropping;
+    private long droppedInEpisode;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param segmentDuration 按时长(毫秒)滚动分段，0为不分段
+     * @param segmentBytes 按大小滚动分段，0为不分段
+     * @param queueSize 队列最多的tag数
+     * @param maxQueueBytes 队列中tag body的总字节数上限
+     * @param batchBytes 攒够多少字节立即写一批
+     * @param flushInterval 不够一批时最多等待的毫秒数
+     * @param fsyncInterval fsync间隔毫秒，0为每批，小于0为只在close时
+     */
+    public AsyncFlvWriter(final String fileName, final long segmentDuration, final long segmentBytes,
+                          final int queueSize, final long maxQueueBytes,
+                          final long batchBytes, final long flushInterval, final long fsyncInterval) {
+        super(0, fileName, segmentDuration, segmentBytes);
+        this.queue = new SpscArrayQueue<Tag>(queueSize);
+        this.maxQueueBytes = maxQueueBytes;
+        this.batchBytes = batchBytes;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        this.fsyncInterval = fsyncInterval;
+        if(getSegments() == null) {
+            thread = null;
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "flv-writer-" + fileName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 所有录制累计丢弃的tag数
+     */
+    public static long getTotalDropped() {
+        return TOTAL_DROPPED.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    @Override
+    protected void writeTag(final MessageType type, final int time, final ByteBuf data) {
+        if(closing || getSegments() == null) {
+            return;
+        }
+        final int size = data.readableBytes();
+        if(dropping && type == MessageType.VIDEO && !isKeyframe(data)) {
+            drop();
+            return;
+        }
+        if(queuedBytes.addAndGet(size) > maxQueueBytes) {
+            queuedBytes.addAndGet(-size);
+            overflow();
+            return;
+        }
+        final Tag tag = new Tag(type, time, data.retain());
+        final boolean rejected;
+        boolean offered = false;
+        synchronized(offerLock) {
+            // 写线程已经退出时不能再入队，否则没有人release
+            rejected = closed;
+            if(!rejected) {
+                offered = queue.offer(tag);
+            }
+        }
+        if(!offered) {
+            data.release();
+            queuedBytes.addAndGet(-size);
+            if(!rejected) {
+                overflow();
+            }
+            return;
+        }
+        if(dropping && type == MessageType.VIDEO) {
+            log.warn("recording resumed at keyframe: {}, dropped: {}", getFileName(), droppedInEpisode);
+            dropping = false;
+            droppedInEpisode = 0;
+        }
+        if(queuedBytes.get() >= batchBytes) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void overflow() {
+        if(!dropping) {
+            log.warn("recording queue full, dropping video until next keyframe: {}, queued bytes: {}", getFileName(), queuedBytes.get());
+            dropping = true;
+        }
+        drop();
+    }
+
+    private void drop() {
+        droppedInEpisode++;
+        dropped.incrementAndGet();
+        TOTAL_DROPPED.incrementAndGet();
+    }
+
+    private static boolean isKeyframe(final ByteBuf data) {
+        return data.isReadable() && (data.getByte(data.readerIndex()) & 0xF0) == 0x10;
+    }
+
+    @Override
+    public void close() {
+        if(closing) {
+            return;
+        }
+        closing = true;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+        logFinished();
+    }
+
+    /**
+     * 写线程：攒批、gathering write、按策略fsync，close之后写完剩下的tag，finalize最后一个分段
+     */
+    private void drain() {
+        final FlvSegmentWriter out = getSegments();
+        final List<Tag> batch = new ArrayList<Tag>();
+        long lastSync = System.currentTimeMillis();
+        try {
+            while(true) {
+                final boolean last = closing;
+                if(!last && queuedBytes.get() < batchBytes) {
+                    LockSupport.parkNanos(this, flushIntervalNanos);
+                }
+                Tag tag;
+                while((tag = queue.poll()) != null) {
+                    batch.add(tag);
+                    out.add(tag.type, tag.time, tag.data);
+                    if(batch.size() >= MAX_TAGS_PER_WRITE) {
+                        write(out, batch);
+                    }
+                }
+                if(!batch.isEmpty()) {
+                    write(out, batch);
+                    final long now = System.currentTimeMillis();
+                    if(fsyncInterval == 0 || (fsyncInterval > 0 && now - lastSync >= fsyncInterval)) {
+                        out.sync();
+                        lastSync = now;
+                    }
+                }
+                if(last) {
+                    break;
+                }
+            }
+            out.close();
+        } catch(Exception e) {
+            log.error("recording write failed: " + getFileName() + ", written: " + out.getWritten(), e);
+            closing = true;
+        } finally {
+            // 出错时没有finalize，只关闭文件
+            out.abort();
+            synchronized(offerLock) {
+                closed = true;
+            }
+            releaseAll(batch);
+            Tag tag;
+            while((tag = queue.poll()) != null) {
+                tag.data.release();
+            }
+            log.info("closed recording: {}, segments: {}, written bytes: {}, dropped tags: {}",
+                    new Object[]{getFileName(), out.getSegmentIndex() + 1, out.getWritten(), dropped.get()});
+        }
+    }
+
+    private void write(final FlvSegmentWriter out, final List<Tag> batch) throws Exception {
+        out.flush();
+        long bodyBytes = 0;
+        for(final Tag tag : batch) {
+            bodyBytes += tag.data.readableBytes();
+        }
+        queuedBytes.addAndGet(-bodyBytes);
+        releaseAll(batch);
+    }
+
+    private static void releaseAll(final List<Tag> batch) {
+        for(final Tag tag : batch) {
+            tag.data.release();
+        }
+        batch.clear();
+    }
+
+}
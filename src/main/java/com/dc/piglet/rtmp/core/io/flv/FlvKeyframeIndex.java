@@ -0,0 +1,323 @@
+package com.dc.piglet.rtmp.core.io.flv;
+
+import com.dc.piglet.rtmp.core.protocol.Metadata;
+import com.dc.piglet.rtmp.util.Util;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * FLV关键帧索引：关键帧时间(毫秒，升序) -> tag在文件中的起始位置，seek时二分查找
+ *
+ * 优先使用onMetaData中的keyframes对象；没有时在后台线程扫描一次tag header，
+ * 结果写入同目录下的sidecar文件(文件名 + SIDECAR_SUFFIX)，并按路径缓存在内存中(LRU，最多MAX_CACHED个)，
+ * 文件修改时间变化时替换，扫描失败的结果不缓存。
+ * 正在录制(或录制异常中断)的文件使用FlvSegmentWriter追加写入的sidecar。
+ */
+public class FlvKeyframeIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlvKeyframeIndex.class);
+
+    public static final String SIDECAR_SUFFIX = ".kfi";
+    private static final int SIDECAR_MAGIC = 0x4b464931; // "KFI1"
+    /** 录制过程中追加写的sidecar：magic之后直接是(时间, 位置)，不校验文件大小和修改时间 */
+    public static final int LIVE_MAGIC = 0x4b464c31; // "KFL1"
+    private static final int FLV_HEADER_SIZE = 13;
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int TAG_VIDEO = 9;
+
+    private static final ExecutorService SCANNER = Executors.newSingleThreadExecutor(new DefaultThreadFactory("flv-index", true));
+    private static final int MAX_CACHED = 1024;
+    /** 路径 -> 扫描结果，按访问顺序淘汰，访问时需要synchronized */
+    private static final Map<String, Scan> SCANS = new LinkedHashMap<String, Scan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Scan> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    /**
+     * 某个修改时间的文件的扫描任务，失败时把自己从缓存中移除，下次load重新扫描
+     */
+    private static final class Scan extends FutureTask<FlvKeyframeIndex> {
+        private final String path;
+        private final long lastModified;
+
+        private Scan(final String path, final long lastModified, final Callable<FlvKeyframeIndex> callable) {
+            super(callable);
+            this.path = path;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        protected void done() {
+            if(isCancelled()) {
+                evict(this);
+                return;
+            }
+            try {
+                get();
+            } catch(Exception e) {
+                evict(this);
+            }
+        }
+    }
+
+    private final int[] times;
+    private final long[] positions;
+
+    public FlvKeyframeIndex(final int[] times, final long[] positions) {
+        this.times = times;
+        this.positions = positions;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public int getTime(final int index) {
+        return times[index];
+    }
+
+    public long getPosition(final int index) {
+        return positions[index];
+    }
+
+    /**
+     * @return 时间不晚于time的最后一个关键帧的下标，没有时返回-1
+     */
+    public int floor(final long time) {
+        int low = 0;
+        int high = times.length - 1;
+        int found = -1;
+        while(low <= high) {
+            final int mid = (low + high) >>> 1;
+            if(times[mid] <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 从onMetaData的keyframes: {times: [秒], filepositions: [字节]}构建，不存在或不合法时返回null
+     */
+    public static FlvKeyframeIndex fromMetadata(final Metadata metadata, final long fileSize) {
+        final Map<String, Object> map = metadata.getMap(0);
+        if(map == null || !(map.get("keyframes") instanceof Map)) {
+            return null;
+        }
+        final Map<?, ?> keyframes = (Map<?, ?>) map.get("keyframes");
+        if(!(keyframes.get("times") instanceof Object[]) || !(keyframes.get("filepositions") instanceof Object[])) {
+            return null;
+        }
+        final Object[] rawTimes = (Object[]) keyframes.get("times");
+        final Object[] rawPositions = (Object[]) keyframes.get("filepositions");
+        if(rawTimes.length != rawPositions.length || rawTimes.length == 0) {
+            return null;
+        }
+        final int[] times = new int[rawTimes.length];
+        final long[] positions = new long[rawTimes.length];
+        for(int i = 0; i < rawTimes.length; i++) {
+            if(!(rawTimes[i] instanceof Number) || !(rawPositions[i] instanceof Number)) {
+                return null;
+            }
+            times[i] = (int) Math.round(((Number) rawTimes[i]).doubleValue() * 1000);
+            positions[i] = ((Number) rawPositions[i]).longValue();
+            if(positions[i] < FLV_HEADER_SIZE || positions[i] >= fileSize || i > 0 && times[i] < times[i - 1]) {
+                logger.warn("ignoring invalid onMetaData keyframes at #{}: time {}, position {}", new Object[]{i, times[i], positions[i]});
+                return null;
+            }
+        }
+        return new FlvKeyframeIndex(times, positions);
+    }
+
+    /**
+     * 取内存中或sidecar中的索引，都没有时提交后台扫描
+     * @return 扫描结果，已完成时可立即get
+     */
+    public static Future<FlvKeyframeIndex> load(final String path) {
+        final File file = new File(path);
+        final String key = file.getAbsolutePath();
+        final long lastModified = file.lastModified();
+        final Scan task = new Scan(key, lastModified, new Callable<FlvKeyframeIndex>() {
+            @Override
+            public FlvKeyframeIndex call() throws Exception {
+                final FlvKeyframeIndex sidecar = readSidecar(file);
+                if(sidecar != null) {
+                    return sidecar;
+                }
+                final FlvKeyframeIndex index = scan(file);
+                writeSidecar(file, index);
+                return index;
+            }
+        });
+        synchronized(SCANS) {
+            final Scan cached = SCANS.get(key);
+            // 正在录制的文件每次修改时间都不同，替换旧的结果而不是另加一项
+            if(cached != null && cached.lastModified == lastModified) {
+                return cached;
+            }
+            SCANS.put(key, task);
+        }
+        SCANNER.execute(task);
+        return task;
+    }
+
+    private static void evict(final Scan scan) {
+        synchronized(SCANS) {
+            if(SCANS.get(scan.path) == scan) {
+                SCANS.remove(scan.path);
+            }
+        }
+    }
+
+    /**
+     * 内存中缓存的文件数
+     */
+    public static int cachedCount() {
+        synchronized(SCANS) {
+            return SCANS.size();
+        }
+    }
+
+    /**
+     * 只读tag header和视频tag的第一个字节
+     */
+    public static FlvKeyframeIndex scan(final File file) throws IOException {
+        final long start = System.currentTimeMillis();
+        try(FileInputStream fis = new FileInputStream(file)) {
+            final FileChannel in = fis.getChannel();
+            final long size = in.size();
+            final ByteBuffer header = ByteBuffer.allocate(TAG_HEADER_SIZE + 1);
+            int[] times = new int[256];
+            long[] positions = new long[256];
+            int count = 0;
+            long position = FLV_HEADER_SIZE;
+            while(position + TAG_HEADER_SIZE + 1 <= size) {
+                ((Buffer) header).clear();
+                while(header.hasRemaining()) {
+                    if(in.read(header, position + header.position()) < 0) {
+                        break;
+                    }
+                }
+                if(header.hasRemaining()) {
+                    break;
+                }
+                final int type = header.get(0) & 0x1f;
+                final int dataSize = ((header.get(1) & 0xff) << 16) | ((header.get(2) & 0xff) << 8) | (header.get(3) & 0xff);
+                final int time = ((header.get(7) & 0xff) << 24) | ((header.get(4) & 0xff) << 16)
+                        | ((header.get(5) & 0xff) << 8) | (header.get(6) & 0xff);
+                if(type == TAG_VIDEO && dataSize > 0 && (header.get(TAG_HEADER_SIZE) & 0xf0) == 0x10) {
+                    if(count == times.length) {
+                        times = Arrays.copyOf(times, count * 2);
+                        positions = Arrays.copyOf(positions, count * 2);
+                    }
+                    times[count] = time;
+                    positions[count] = position;
+                    count++;
+                }
+                position += TAG_HEADER_SIZE + dataSize + 4;
+            }
+            logger.info("scanned flv keyframes: {}, count: {}, took: {}ms",
+                    new Object[]{file.getAbsolutePath(), count, System.currentTimeMillis() - start});
+            return new FlvKeyframeIndex(Arrays.copyOf(times, count), Arrays.copyOf(positions, count));
+        }
+    }
+
+    private static File sidecar(final File file) {
+        return new File(file.getPath() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * sidecar记录了原文件的大小和修改时间，不一致时视为过期
+     */
+    private static FlvKeyframeIndex readSidecar(final File file) {
+        final File sidecar = sidecar(file);
+        if(!sidecar.isFile()) {
+            return null;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            final int magic = in.readInt();
+            if(magic == LIVE_MAGIC) {
+                return readLiveSidecar(in, sidecar.length(), file.length());
+            }
+            if(magic != SIDECAR_MAGIC || in.readLong() != file.length() || in.readLong() != file.lastModified()) {
+                logger.info("stale keyframe sidecar: {}", sidecar.getAbsolutePath());
+                return null;
+            }
+            final int count = in.readInt();
+            final int[] times = new int[count];
+            final long[] positions = new long[count];
+            for(int i = 0; i < count; i++) {
+                times[i] = in.readInt();
+                positions[i] = in.readLong();
+            }
+            logger.debug("loaded keyframe sidecar: {}, count: {}", sidecar.getAbsolutePath(), count);
+            return new FlvKeyframeIndex(times, positions);
+        } catch(IOException e) {
+            logger.warn("error reading keyframe sidecar {}: {}", sidecar.getAbsolutePath(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 只取已完整写入、且位置在当前文件长度之内的条目
+     */
+    private static FlvKeyframeIndex readLiveSidecar(final DataInputStream in, final long sidecarLength, final long fileLength) throws IOException {
+        final int max = (int) ((sidecarLength - 4) / 12);
+        final int[] times = new int[max];
+        final long[] positions = new long[max];
+        int count = 0;
+        for(int i = 0; i < max; i++) {
+            final int time = in.readInt();
+            final long position = in.readLong();
+            if(position + TAG_HEADER_SIZE > fileLength) {
+                break;
+            }
+            times[count] = time;
+            positions[count] = position;
+            count++;
+        }
+        logger.debug("loaded live keyframe sidecar, count: {}", count);
+        return new FlvKeyframeIndex(Arrays.copyOf(times, count), Arrays.copyOf(positions, count));
+    }
+
+    private static void writeSidecar(final File file, final FlvKeyframeIndex index) {
+        final File sidecar = sidecar(file);
+        final File temp = new File(sidecar.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(SIDECAR_MAGIC);
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeInt(index.size());
+            for(int i = 0; i < index.size(); i++) {
+                out.writeInt(index.times[i]);
+                out.writeLong(index.positions[i]);
+            }
+        } catch(IOException e) {
+            logger.warn("error writing keyframe sidecar {}: {}", sidecar.getAbsolutePath(), e.getMessage());
+            temp.delete();
+            return;
+        }
+        try {
+            Util.replaceFile(temp, sidecar);
+        } catch(IOException e) {
+            logger.warn("error renaming keyframe sidecar {}: {}", sidecar.getAbsolutePath(), e.toString());
+            temp.delete();
+        }
+    }
+
+}
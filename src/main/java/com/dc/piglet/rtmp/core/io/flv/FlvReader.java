@@ -7,10 +7,12 @@ import com.dc.piglet.rtmp.core.io.RtmpReader;
 import com.dc.piglet.rtmp.core.protocol.*;
 import com.dc.piglet.rtmp.entity.MessageType;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
+import java.util.concurrent.Future;
+
 public class FlvReader implements RtmpReader {
 
     private static final Logger logger = LoggerFactory.getLogger(FlvReader.class);
@@ -19,12 +21,28 @@ public class FlvReader implements RtmpReader {
     private final long mediaStartPosition;
     private final Metadata metadata;
     private int aggregateDuration;
+    /** 为false时(如加密连接)aggregate在调用next的I/O线程上读入内存，不使用FileSlice */
+    private boolean zeroCopy = true;
+    /** 关键帧索引，来自onMetaData或后台扫描，未就绪时seek退回逐tag查找 */
+    private FlvKeyframeIndex keyframes;
+    private Future<FlvKeyframeIndex> keyframeScan;
 
 	private int width;
 	private int height;    
 
     public FlvReader(final String path) {
-        in = new FileChannelReader(path);
+        this(new FileChannelReader(path), path);
+    }
+
+    public FlvReader(final BufferReader in) {
+        this(in, null);
+    }
+
+    /**
+     * @param path onMetaData中没有keyframes时，用于后台扫描关键帧索引，为null时不扫描
+     */
+    public FlvReader(final BufferReader in, final String path) {
+        this.in = in;
         in.position(13); // skip flv header
         
         final RtmpMessage metadataAtom = next();
@@ -49,7 +67,15 @@ public class FlvReader implements RtmpReader {
             in.position(13);
             mediaStartPosition = 13;
         }
+        if(metadata.getData(0) instanceof Map) {
+            // 录制时预留空间的填充，不发给播放端
+            metadata.getMap(0).remove(FlvSegmentWriter.METADATA_PADDING);
+        }
         logger.debug("flv file metadata: {}", metadata);
+        keyframes = FlvKeyframeIndex.fromMetadata(metadata, in.size());
+        if(keyframes == null && path != null) {
+            keyframeScan = FlvKeyframeIndex.load(path);
+        }
         
         RtmpMessage firstFrame;
         do {
@@ -57,16 +83,22 @@ public class FlvReader implements RtmpReader {
         } while (!firstFrame.getHeader().isVideo() && hasNext());
         
         if (firstFrame != null) {
-	        Video video = new Video(firstFrame.getHeader(), firstFrame.encode());
-	        width = video.getWidth();
-	        height = video.getHeight();
-	        metadata.setValue("width", width);
-	        metadata.setValue("height", height);
+            if (firstFrame.getHeader().isVideo()) { // 纯音频文件没有宽高
+	            Video video = new Video(firstFrame.getHeader(), firstFrame.encode());
+	            width = video.getWidth();
+	            height = video.getHeight();
+	            metadata.setValue("width", width);
+	            metadata.setValue("height", height);
+            }
 	        // rewind
 	        seek(0);
         }
     }
 
+    public void setZeroCopy(final boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
     @Override
     public Metadata getMetadata() {
         return metadata;
@@ -116,6 +148,24 @@ public class FlvReader implements RtmpReader {
                 throw new RuntimeException(e);
             }
         }
+        final FlvKeyframeIndex index = getKeyframes();
+        // 纯音频文件没有视频关键帧，索引为空，逐tag查找
+        if(index != null && index.size() > 0) {
+            final int found = index.floor(time);
+            if(found == -1) {
+                in.position(mediaStartPosition);
+                return 0;
+            }
+            final long position = index.getPosition(found);
+            if(isVideoTag(position)) {
+                in.position(position);
+                logger.debug("returned seek keyframe: {}, position: {}", index.getTime(found), position);
+                return index.getTime(found);
+            }
+            logger.warn("keyframe index does not match file at position {}, falling back to scan", position);
+            keyframes = null;
+            keyframeScan = null;
+        }
         final long start = getTimePosition();        
         if(time > start) {
             while(hasNext()) {
@@ -152,6 +202,35 @@ public class FlvReader implements RtmpReader {
         }
     }
 
+    /**
+     * 后台扫描尚未完成时返回null，不阻塞
+     */
+    private FlvKeyframeIndex getKeyframes() {
+        if(keyframes == null && keyframeScan != null && keyframeScan.isDone()) {
+            try {
+                keyframes = keyframeScan.get();
+            } catch(Exception e) {
+                logger.warn("flv keyframe scan failed: {}", e.getMessage());
+            }
+            keyframeScan = null;
+        }
+        return keyframes;
+    }
+
+    /**
+     * 校验索引中的位置确实是一个视频tag的开头
+     */
+    private boolean isVideoTag(final long position) {
+        if(position < mediaStartPosition || position + 11 > in.size()) {
+            return false;
+        }
+        final long oldPos = in.position();
+        in.position(position);
+        final byte type = in.readBytes(1)[0];
+        in.position(oldPos);
+        return (type & 0x1f) == 9;
+    }
+
     @Override
     public boolean hasNext() {        
         return in.position() < in.size();
@@ -173,31 +252,47 @@ public class FlvReader implements RtmpReader {
     }
 
     private static final int AGGREGATE_SIZE_LIMIT = 65536;
+    private static final int TAG_HEADER_SIZE = 11;
 
+    /**
+     * 聚合模式下只读取tag头确定范围，再把[tag头 + body + prevTagSize]的原始字节一次读出，
+     * 不再逐个解析FlvAtom再重新编码；MappedFileReader时整个aggregate就是文件映射的一个切片，
+     * FileChannelReader时只记录文件中的范围，由编码器用sendfile发送。
+     * next在ReadAhead的I/O线程上调用，tag头的读取不在event loop上
+     */
     @Override
     public RtmpMessage next() {
         if(aggregateDuration <= 0) {
             return new FlvAtom(in);
         }
-        final ByteBuf out = Unpooled.buffer(256);
+        final long start = in.position();
+        long end = start;
         int firstAtomTime = -1;
-        while(hasNext()) {
-            final FlvAtom flvAtom = new FlvAtom(in);
-            final int currentAtomTime = flvAtom.getHeader().getTimestamp();
+        int lastAtomTime = -1;
+        while(end < in.size()) {
+            in.position(end);
+            final ByteBuf tagHeader = in.read(TAG_HEADER_SIZE);
+            final int tagSize = TAG_HEADER_SIZE + tagHeader.getUnsignedMedium(1) + 4;
+            // 第8个字节是时间戳的高8位(extended)，超过约4.66小时的文件需要
+            final int currentAtomTime = tagHeader.getUnsignedMedium(4) | tagHeader.getUnsignedByte(7) << 24;
             if(firstAtomTime == -1) {
                 firstAtomTime = currentAtomTime;
-            }
-            final ByteBuf temp = flvAtom.write();
-            if(out.readableBytes() + temp.readableBytes() > AGGREGATE_SIZE_LIMIT) {
-                prev();
+            } else if(end - start + tagSize > AGGREGATE_SIZE_LIMIT) {
+                // 至少包含一个tag，超长的单个tag也能发出去
                 break;
             }
-            out.writeBytes(temp);
+            end += tagSize;
+            lastAtomTime = currentAtomTime;
             if(currentAtomTime - firstAtomTime > aggregateDuration) {
                 break;
             }
         }
-        return new Aggregate(firstAtomTime, out);
+        if(zeroCopy && in instanceof FileChannelReader) {
+            in.position(end);
+            return new Aggregate(firstAtomTime, ((FileChannelReader) in).slice(start, (int) (end - start)), lastAtomTime);
+        }
+        in.position(start);
+        return new Aggregate(firstAtomTime, in.read((int) (end - start)));
     }
 
     @Override
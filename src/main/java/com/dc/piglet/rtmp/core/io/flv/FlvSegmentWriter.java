@@ -0,0 +1,453 @@
+package com.dc.piglet.rtmp.core.io.flv;
+
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Object;
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Value;
+import com.dc.piglet.rtmp.entity.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 录制文件的落盘：按时长或大小滚动分段，结束时重写onMetaData，一次性写入duration、filesize和keyframes
+ *
+ * add只记录要写的buffer，flush时一次gathering write；所有方法只能在同一个线程上调用。
+ * 写入过程中每个关键帧的(时间, 位置)随数据之后追加到sidecar(FlvKeyframeIndex.LIVE_MAGIC格式)，
+ * 正在录制或异常退出、没有finalize的文件也能二分seek。
+ * 每个分段的第一个tag之前预留一个用padding属性填充到固定大小的onMetaData，finalize时原地覆盖为
+ * 带duration、filesize和keyframes的版本，不拷贝文件也不rename，之后删除sidecar；
+ * 关键帧多到预留的空间放不下时按间隔抽稀，seek的粒度变粗但索引仍然有效。
+ * 分段时文件名为name-序号.flv，每段从视频关键帧开始，开头重复onMetaData和音视频sequence header，时间戳从0开始。
+ */
+public class FlvSegmentWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(FlvSegmentWriter.class);
+
+    private static final int FLV_HEADER_SIZE = 13;
+    private static final int TAG_HEADER_SIZE = 11;
+    /** 一次gathering write最多的buffer数(IOV_MAX) */
+    private static final int MAX_BUFFERS_PER_WRITE = 1024;
+    /** 预留的onMetaData能放下的关键帧数，每个关键帧18字节 */
+    private static final int RESERVED_KEYFRAMES = 1024;
+    /** 录制中途onMetaData变大时的余量 */
+    private static final int METADATA_SLACK = 512;
+    /** 填充预留空间的属性，FlvReader读取时去掉 */
+    static final String METADATA_PADDING = "padding";
+
+    private final String baseName;
+    private final boolean segmented;
+    private final long segmentDuration;
+    private final long segmentBytes;
+
+    /** 最近的onMetaData和sequence header，每个新分段开头重新写入 */
+    private Map<String, Object> metadata;
+    private byte[] videoConfig;
+    private byte[] audioConfig;
+    private boolean hasVideo;
+
+    // 当前分段
+    private int segmentIndex;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel out;
+    private FileChannel indexOut;
+    private long position;
+    /** 预留的onMetaData的body大小，0为还没有写任何tag */
+    private long metadataSize;
+    private boolean mediaWritten;
+    private int baseTime;
+    private int lastTime;
+    private int[] keyframeTimes = new int[64];
+    private long[] keyframePositions = new long[64];
+    private int keyframeCount;
+    private int keyframesIndexed;
+    private final List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private long written;
+
+    /**
+     * @param segmentDuration 分段时长(毫秒)，0为不按时长分段
+     * @param segmentBytes 分段大小，0为不按大小分段；两者都为0时只写fileName一个文件
+     */
+    public FlvSegmentWriter(final String fileName, final long segmentDuration, final long segmentBytes) {
+        this.segmentDuration = segmentDuration;
+        this.segmentBytes = segmentBytes;
+        this.segmented = segmentDuration > 0 || segmentBytes > 0;
+        this.baseName = fileName.toLowerCase().endsWith(".flv") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        open(segmented ? segmentName(0) : new File(fileName));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    /**
+     * 所有分段累计写出的字节数
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * 记录一个tag，data在下一次flush之前必须有效；需要滚动时先flush并finalize当前分段
+     */
+    public void add(final MessageType type, final int time, final ByteBuf data) throws IOException {
+        if(type == MessageType.METADATA_AMF0 && addMetadata(data)) {
+            return;
+        }
+        final boolean video = type == MessageType.VIDEO;
+        final boolean keyframe = video && isKeyframe(data);
+        if(video && isVideoConfig(data)) {
+            videoConfig = copy(data);
+        } else if(type == MessageType.AUDIO && isAudioConfig(data)) {
+            audioConfig = copy(data);
+        }
+        hasVideo |= video;
+        if(segmented && mediaWritten && (keyframe && !isVideoConfig(data) || !hasVideo && type == MessageType.AUDIO)
+                && (segmentDuration > 0 && time - baseTime >= segmentDuration
+                    || segmentBytes > 0 && position >= segmentBytes)) {
+            roll(time);
+        }
+        if(metadataSize == 0) {
+            reserveMetadata();
+        }
+        final int tagTime = Math.max(time - baseTime, 0);
+        if(keyframe) {
+            addKeyframe(tagTime, position);
+        }
+        addTag(type, tagTime, data);
+        mediaWritten = true;
+    }
+
+    /**
+     * onMetaData(或@setDataFrame)只保存，分段开头还没有tag时按它预留位置，返回false表示不是onMetaData
+     */
+    private boolean addMetadata(final ByteBuf data) throws IOException {
+        final ByteBuf in = data.duplicate();
+        final Object name = Amf0Value.decode(in);
+        if(!"onMetaData".equals(name) && !"@setDataFrame".equals(name)) {
+            return false;
+        }
+        Object value = in.isReadable() ? Amf0Value.decode(in) : null;
+        if("onMetaData".equals(value)) {
+            value = in.isReadable() ? Amf0Value.decode(in) : null;
+        }
+        if(!(value instanceof Map)) {
+            return false;
+        }
+        metadata = new LinkedHashMap<String, Object>();
+        for(final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            metadata.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        metadata.remove("keyframes");
+        metadata.remove(METADATA_PADDING);
+        if(metadataSize == 0) {
+            reserveMetadata();
+        }
+        return true;
+    }
+
+    /**
+     * 按当前metadata加RESERVED_KEYFRAMES个关键帧的大小写入填充过的onMetaData，finish时原地覆盖
+     */
+    private void reserveMetadata() throws IOException {
+        final Object[] reserved = new Object[RESERVED_KEYFRAMES];
+        Arrays.fill(reserved, 0.0);
+        metadataSize = encodeMetadata(finalMetadata(reserved, reserved)).readableBytes() + METADATA_SLACK;
+        addTag(MessageType.METADATA_AMF0, 0, padMetadata(finalMetadata(new Object[0], new Object[0]), metadataSize));
+    }
+
+    private void addTag(final MessageType type, final int time, final ByteBuf data) throws IOException {
+        final ByteBuffer[] buffers = FlvWriter.tagBuffers(type, time, data);
+        for(final ByteBuffer buffer : buffers) {
+            position += buffer.remaining();
+            pending.add(buffer);
+        }
+        lastTime = Math.max(lastTime, time);
+        if(pending.size() >= MAX_BUFFERS_PER_WRITE) {
+            flush();
+        }
+    }
+
+    private void addKeyframe(final int time, final long tagPosition) {
+        if(keyframeCount == keyframeTimes.length) {
+            keyframeTimes = Arrays.copyOf(keyframeTimes, keyframeCount * 2);
+            keyframePositions = Arrays.copyOf(keyframePositions, keyframeCount * 2);
+        }
+        keyframeTimes[keyframeCount] = time;
+        keyframePositions[keyframeCount] = tagPosition;
+        keyframeCount++;
+    }
+
+    /**
+     * 写出add记录的所有tag，之后再把新的关键帧追加到sidecar，sidecar中的位置总是已经写出的数据
+     */
+    public void flush() throws IOException {
+        if(pending.isEmpty()) {
+            return;
+        }
+        final ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+        pending.clear();
+        long remaining = 0;
+        for(final ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        written += remaining;
+        int offset = 0;
+        while(remaining > 0) {
+            while(!buffers[offset].hasRemaining()) {
+                offset++;
+            }
+            remaining -= out.write(buffers, offset, buffers.length - offset);
+        }
+        if(keyframesIndexed < keyframeCount && indexOut != null) {
+            final ByteBuffer index = ByteBuffer.allocate((keyframeCount - keyframesIndexed) * 12);
+            for(int i = keyframesIndexed; i < keyframeCount; i++) {
+                index.putInt(keyframeTimes[i]);
+                index.putLong(keyframePositions[i]);
+            }
+            ((Buffer) index).flip();
+            while(index.hasRemaining()) {
+                indexOut.write(index);
+            }
+            keyframesIndexed = keyframeCount;
+        }
+    }
+
+    /**
+     * 数据和sidecar都落盘
+     */
+    public void sync() throws IOException {
+        out.force(false);
+        if(indexOut != null) {
+            indexOut.force(false);
+        }
+    }
+
+    /**
+     * 写完并finalize当前分段
+     */
+    public void close() throws IOException {
+        flush();
+        finish();
+    }
+
+    /**
+     * 写入失败后调用：丢弃未写出的buffer并关闭文件，不finalize，sidecar保留，已写入的部分仍可seek。
+     * close之后调用没有影响
+     */
+    public void abort() {
+        pending.clear();
+        closeQuietly();
+    }
+
+    private void roll(final int time) throws IOException {
+        flush();
+        finish();
+        segmentIndex++;
+        baseTime = time;
+        open(segmentName(segmentIndex));
+        reserveMetadata();
+        if(videoConfig != null) {
+            addTag(MessageType.VIDEO, 0, Unpooled.wrappedBuffer(videoConfig));
+        }
+        if(audioConfig != null) {
+            addTag(MessageType.AUDIO, 0, Unpooled.wrappedBuffer(audioConfig));
+        }
+        mediaWritten = true;
+    }
+
+    private File segmentName(final int index) {
+        return new File(baseName + '-' + index + ".flv");
+    }
+
+    private void open(final File newFile) {
+        file = newFile;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            out = raf.getChannel();
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        metadataSize = 0;
+        mediaWritten = false;
+        lastTime = 0;
+        keyframeCount = 0;
+        keyframesIndexed = 0;
+        pending.add(ByteBuffer.wrap(FlvAtom.flvHeader().array(), 0, FLV_HEADER_SIZE));
+        position = FLV_HEADER_SIZE;
+        final File sidecar = sidecar(file);
+        try {
+            indexOut = new RandomAccessFile(sidecar, "rw").getChannel();
+            indexOut.truncate(0);
+            final ByteBuffer magic = ByteBuffer.allocate(4);
+            magic.putInt(FlvKeyframeIndex.LIVE_MAGIC);
+            ((Buffer) magic).flip();
+            indexOut.write(magic);
+        } catch(IOException e) {
+            log.warn("cannot write keyframe sidecar {}: {}", sidecar.getAbsolutePath(), e.getMessage());
+            indexOut = null;
+        }
+        log.info("opened file for writing: {}", file.getAbsolutePath());
+    }
+
+    /**
+     * 用带keyframes的onMetaData原地覆盖开头预留的位置，只写一个tag，不拷贝媒体数据
+     */
+    private void finish() throws IOException {
+        if(metadataSize == 0) {
+            // 没有写过任何tag，保留原文件
+            closeQuietly();
+            sidecar(file).delete();
+            return;
+        }
+        try {
+            final ByteBuf finalMetadata = fitMetadata();
+            if(finalMetadata == null) {
+                // 原文件和sidecar保持不变，仍然可以seek
+                log.warn("onMetaData does not fit the reserved {} bytes, keeping sidecar: {}", metadataSize, file.getAbsolutePath());
+                // 不改写onMetaData也要和正常路径一样把数据和sidecar落盘
+                sync();
+                return;
+            }
+            long at = FLV_HEADER_SIZE;
+            for(final ByteBuffer buffer : FlvWriter.tagBuffers(MessageType.METADATA_AMF0, 0, finalMetadata)) {
+                while(buffer.hasRemaining()) {
+                    at += out.write(buffer, at);
+                }
+            }
+            out.force(false);
+            closeQuietly();
+            sidecar(file).delete();
+            log.info("finalized recording: {}, duration: {}ms, keyframes: {}, size: {}",
+                    new Object[]{file.getAbsolutePath(), lastTime, keyframeCount, position});
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * 填充到预留大小的最终onMetaData，放不下时每次把关键帧的间隔加倍，连一个关键帧都放不下时返回null
+     */
+    private ByteBuf fitMetadata() {
+        int step = 1;
+        while(true) {
+            final int count = step > keyframeCount ? 0 : (keyframeCount + step - 1) / step;
+            final Object[] times = new Object[count];
+            final Object[] positions = new Object[count];
+            for(int i = 0; i < count; i++) {
+                times[i] = keyframeTimes[i * step] / 1000.0;
+                positions[i] = (double) keyframePositions[i * step];
+            }
+            final ByteBuf padded = padMetadata(finalMetadata(times, positions), metadataSize);
+            if(padded != null) {
+                if(step > 1) {
+                    log.info("keyframe index thinned to every {} keyframes: {}", step, file.getAbsolutePath());
+                }
+                return padded;
+            }
+            if(count == 0) {
+                return null;
+            }
+            step *= 2;
+        }
+    }
+
+    private Map<String, Object> finalMetadata(final Object[] times, final Object[] positions) {
+        final Map<String, Object> map = metadata == null ? new LinkedHashMap<String, Object>() : new LinkedHashMap<String, Object>(metadata);
+        final Amf0Object keyframes = new Amf0Object();
+        keyframes.put("times", times);
+        keyframes.put("filepositions", positions);
+        map.put("duration", lastTime / 1000.0);
+        map.put("filesize", (double) position);
+        map.put("lasttimestamp", lastTime / 1000.0);
+        map.put("lastkeyframetimestamp", keyframeCount == 0 ? 0.0 : keyframeTimes[keyframeCount - 1] / 1000.0);
+        map.put("keyframes", keyframes);
+        map.put(METADATA_PADDING, "");
+        return map;
+    }
+
+    /**
+     * 用METADATA_PADDING的空格把onMetaData的body补到正好size字节，超过size时返回null
+     */
+    private static ByteBuf padMetadata(final Map<String, Object> map, final long size) {
+        final long gap = size - encodeMetadata(map).readableBytes();
+        if(gap < 0) {
+            return null;
+        }
+        final char[] spaces = new char[(int) gap];
+        Arrays.fill(spaces, ' ');
+        map.put(METADATA_PADDING, new String(spaces));
+        final ByteBuf out = encodeMetadata(map);
+        return out.readableBytes() == size ? out : null;
+    }
+
+    private static ByteBuf encodeMetadata(final Map<String, Object> map) {
+        final ByteBuf out = Unpooled.buffer(256);
+        Amf0Value.encode(out, "onMetaData");
+        Amf0Value.encode(out, map);
+        return out;
+    }
+
+    private void closeQuietly() {
+        try {
+            if(raf != null) {
+                raf.close();
+            }
+            if(indexOut != null) {
+                indexOut.close();
+            }
+        } catch(IOException e) {
+            log.warn("error closing file {}: {}", file.getAbsolutePath(), e.getMessage());
+        }
+        raf = null;
+        indexOut = null;
+    }
+
+    private static File sidecar(final File file) {
+        return new File(file.getPath() + FlvKeyframeIndex.SIDECAR_SUFFIX);
+    }
+
+    private static byte[] copy(final ByteBuf data) {
+        final byte[] bytes = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static boolean isKeyframe(final ByteBuf data) {
+        return data.isReadable() && (data.getByte(data.readerIndex()) & 0xF0) == 0x10;
+    }
+
+    /**
+     * AVC sequence header：关键帧，codec 7，AVCPacketType 0
+     */
+    private static boolean isVideoConfig(final ByteBuf data) {
+        return data.readableBytes() > 1 && data.getByte(data.readerIndex()) == 0x17
+                && data.getByte(data.readerIndex() + 1) == 0;
+    }
+
+    /**
+     * AAC sequence header：sound format 10，AACPacketType 0
+     */
+    private static boolean isAudioConfig(final ByteBuf data) {
+        return data.readableBytes() > 1 && (data.getByte(data.readerIndex()) & 0xF0) == 0xA0
+                && data.getByte(data.readerIndex() + 1) == 0;
+    }
+
+}
@@ -2,56 +2,67 @@
 package com.dc.piglet.rtmp.core.io.flv;
 
 import com.dc.piglet.rtmp.core.io.RtmpWriter;
+import com.dc.piglet.rtmp.core.protocol.MetadataAmf3;
 import com.dc.piglet.rtmp.core.protocol.RtmpHeader;
 import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.entity.MessageType;
 import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.channels.FileChannel;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * 同步写flv文件，每个tag一次gathering write，结束时写入带keyframes的onMetaData；直播录制使用AsyncFlvWriter
+ */
 public class FlvWriter implements RtmpWriter {
     private static final Logger log = LoggerFactory.getLogger(FlvWriter.class);
-    private FileChannel out;
+    private final FlvSegmentWriter segments;
     private final int[] channelTimes = new int[RtmpHeader.MAX_CHANNEL_ID];
     private int primaryChannel = -1;
     private int lastLoggedSeconds;
     private final int seekTime;
-    private final long startTime;  
+    private final long startTime;
+    private final String fileName;
 
     public FlvWriter(final String fileName) {
         this(0, fileName);
     }
 
     public FlvWriter(final int seekTime, final String fileName) {
+        this(seekTime, fileName, 0, 0);
+    }
+
+    /**
+     * @param segmentDuration 按时长(毫秒)滚动分段，0为不分段
+     * @param segmentBytes 按大小滚动分段，0为不分段
+     */
+    public FlvWriter(final int seekTime, final String fileName, final long segmentDuration, final long segmentBytes) {
         this.seekTime = seekTime < 0 ? 0 : seekTime;
         this.startTime = System.currentTimeMillis();
+        this.fileName = fileName;
         if(fileName == null) {
             log.info("save file notspecified, will only consume stream");
-            out = null;
+            segments = null;
             return;
         }
-        try {
-            File file = new File(fileName);
-            FileOutputStream fos = new FileOutputStream(file);
-            out = fos.getChannel();
-            out.write(FlvAtom.flvHeader().nioBuffer());
-            log.info("opened file for writing: {}", file.getAbsolutePath());
-        } catch (Exception e) {
-            log.error("write error",e);
-        }        
+        segments = new FlvSegmentWriter(fileName, segmentDuration, segmentBytes);
     }
 
     @Override
     public void close() {
-        if(out != null) {
+        if(segments != null) {
             try {
-                out.close();
+                segments.close();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
+        logFinished();
+    }
+
+    protected void logFinished() {
         if(primaryChannel == -1) {
             log.warn("no media was written, closed file");
             return;
@@ -73,13 +84,19 @@ public class FlvWriter implements RtmpWriter {
     public void write(final RtmpMessage message) {
         final RtmpHeader header = message.getHeader();
         if(header.isAggregate()) {
+            if(primaryChannel == -1) {
+                log.info("first media packet for channel: {}", header);
+                primaryChannel = header.getCsId();
+            }
             final ByteBuf in = message.encode();
             while (in.isReadable()) {
-                final FlvAtom flvAtom = new FlvAtom(in);
-                final int absoluteTime = flvAtom.getHeader().getTimestamp();
+                // 直接引用aggregate中tag的body，不拷贝
+                final RtmpHeader tagHeader = FlvAtom.readHeader(in);
+                final ByteBuf data = in.readSlice(tagHeader.getMsgLength());
+                in.skipBytes(4); // prev offset
+                final int absoluteTime = tagHeader.getTimestamp();
                 channelTimes[primaryChannel] = absoluteTime;
-                write(flvAtom);
-                // log.debug("aggregate atom: {}", flvAtom);
+                writeTag(tagHeader.getMsgType(), absoluteTime, data);
                 logWriteProgress();
             }
         } else { // METADATA / AUDIO / VIDEO
@@ -92,25 +109,77 @@ public class FlvWriter implements RtmpWriter {
             if(header.getMsgLength() <= 2) {
                 return;
             }
-            write(new FlvAtom(header.getMsgType(), channelTimes[channelId], message.encode()));
+            if(message instanceof MetadataAmf3) {
+                // FLV的script tag只有AMF0格式，去掉AMF3消息的格式字节
+                writeTag(MessageType.METADATA_AMF0, channelTimes[channelId], ((MetadataAmf3) message).encodeAmf0());
+            } else {
+                writeTag(header.getMsgType(), channelTimes[channelId], message.encode());
+            }
             if (channelId == primaryChannel) {
                 logWriteProgress();
             }
         }
     }
 
-    private void write(final FlvAtom flvAtom) {
+    /**
+     * 写出一个tag，data只在调用期间有效，需要异步写出时由实现自己retain
+     */
+    protected void writeTag(final MessageType type, final int time, final ByteBuf data) {
         if(log.isDebugEnabled()) {
-            log.debug("writing: {}", flvAtom);
+            log.debug("writing: {} time: {} size: {}", new Object[]{type, time, data.readableBytes()});
         }
-        if(out == null) {
+        if(segments == null) {
             return;
         }
         try {
-            out.write(flvAtom.write().nioBuffer());
+            segments.add(type, time, data);
+            segments.flush();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
-    
+
+    /**
+     * tag header、body和previous tag size，body不拷贝
+     */
+    protected static ByteBuffer[] tagBuffers(final MessageType type, final int time, final ByteBuf data) {
+        final int size = data.readableBytes();
+        final ByteBuffer[] body = data.nioBuffers();
+        final ByteBuffer[] buffers = new ByteBuffer[body.length + 2];
+        buffers[0] = tagHeader(type, time, size);
+        System.arraycopy(body, 0, buffers, 1, body.length);
+        final ByteBuffer prevTagSize = ByteBuffer.allocate(4).putInt(size + 11);
+        ((Buffer) prevTagSize).flip();
+        buffers[buffers.length - 1] = prevTagSize;
+        return buffers;
+    }
+
+    private static ByteBuffer tagHeader(final MessageType type, final int time, final int size) {
+        final ByteBuffer header = ByteBuffer.allocate(11);
+        header.put((byte) type.getId());
+        putMedium(header, size);
+        putMedium(header, time);
+        header.put((byte) (time >>> 24)); // timestamp extended
+        putMedium(header, 0); // stream id
+        ((Buffer) header).flip();
+        return header;
+    }
+
+    private static void putMedium(final ByteBuffer buffer, final int value) {
+        buffer.put((byte) (value >>> 16));
+        buffer.put((byte) (value >>> 8));
+        buffer.put((byte) value);
+    }
+
+    /**
+     * 不写文件时为null
+     */
+    protected FlvSegmentWriter getSegments() {
+        return segments;
+    }
+
+    protected String getFileName() {
+        return fileName;
+    }
+
 }
@@ -2,11 +2,17 @@
 package com.dc.piglet.rtmp.core.protocol;
 
 
+import com.dc.piglet.rtmp.core.io.FileSlice;
 import com.dc.piglet.rtmp.entity.MessageType;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 public class Aggregate extends DataMessage {
 
+    /** 不为null时内容还在文件里，data为空buffer */
+    private FileSlice fileSlice;
+    private int lastTimestamp;
+
     public Aggregate(RtmpHeader header, ByteBuf in) {
         super(header, in);
     }
@@ -18,6 +24,52 @@ public class Aggregate extends DataMessage {
         header.setMsgLength(data.readableBytes());
     }
 
+    /**
+     * 内容留在文件里的aggregate，由编码器用FileRegion发送
+     * @param lastTimestamp 最后一个tag的时间戳
+     */
+    public Aggregate(int time, FileSlice fileSlice, int lastTimestamp) {
+        super();
+        header.setTimestamp(time);
+        header.setMsgLength(fileSlice.size());
+        data = Unpooled.EMPTY_BUFFER;
+        this.fileSlice = fileSlice;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    public FileSlice getFileSlice() {
+        return fileSlice;
+    }
+
+    /**
+     * 内容在文件里时每次调用都从文件读取一次
+     */
+    @Override
+    public ByteBuf encode() {
+        if(fileSlice != null) {
+            return fileSlice.read();
+        }
+        return super.encode();
+    }
+
+    /**
+     * @return 最后一个tag的时间戳，没有tag时返回header的时间戳
+     */
+    public int getLastTimestamp() {
+        if(fileSlice != null) {
+            return lastTimestamp;
+        }
+        int time = header.getTimestamp();
+        int index = data.readerIndex();
+        final int end = data.writerIndex();
+        while(index + 11 <= end) {
+            final int size = data.getUnsignedMedium(index + 1);
+            time = data.getUnsignedMedium(index + 4) | (data.getByte(index + 7) & 0xff) << 24;
+            index += 11 + size + 4;
+        }
+        return time;
+    }
+
     @Override
     public MessageType getMessageType() {
         return MessageType.AGGREGATE;
@@ -0,0 +1,35 @@
+package com.dc.piglet.rtmp.core.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 内容固定的命令body缓存：每个key第一次用到时编码一次，之后返回共享buffer的duplicate，不再分配
+ *
+ * key由调用方按变化的参数(例如transactionId)算出，超出范围时返回null，由调用方照常编码。
+ * 共享的buffer不可release，使用方只能读。
+ */
+final class CannedBodies {
+
+    private final AtomicReferenceArray<ByteBuf> bodies;
+
+    CannedBodies(final int size) {
+        bodies = new AtomicReferenceArray<ByteBuf>(size);
+    }
+
+    ByteBuf get(final int key, final CommandAmf0 command) {
+        if(key < 0 || key >= bodies.length()) {
+            return null;
+        }
+        ByteBuf body = bodies.get(key);
+        if(body == null) {
+            // 并发时可能编码多次，结果相同，谁先写入都一样
+            body = Unpooled.unreleasableBuffer(command.encodeBody());
+            bodies.lazySet(key, body);
+        }
+        return body.duplicate();
+    }
+
+}
@@ -8,7 +8,6 @@ import io.netty.buffer.ByteBuf;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * 命令消息
@@ -107,26 +106,51 @@ public abstract class Command extends AbstractMessage {
         return new CommandAmf0("connect", object, options.getArgs());
     }
 
-    public static Command connectSuccess(int transactionId) {
-        Map<String, Object> object = onStatus(OnStatus.STATUS,
-            "NetConnection.Connect.Success", "Connection succeeded.",            
+    /*
+     * 下面这些回复的内容固定或只随transactionId / streamId变化，body编码一次后共享(CannedBodies)，
+     * 其中的Amf0Object也是共享的，不能修改
+     */
+    private static final Amf0Object CONNECT_SUCCESS = onStatus(OnStatus.STATUS,
+            "NetConnection.Connect.Success", "Connection succeeded.",
             pair("fmsVer", "FMS/3,5,1,516"),
             pair("capabilities", 31.0),
             pair("mode", 1.0),
             pair("objectEncoding", 0.0));
-        return new CommandAmf0(transactionId, "_result", null, object);
+    private static final Amf0Object PUBLISH_BAD_NAME =
+            onStatus(OnStatus.ERROR, "NetStream.Publish.BadName", "Stream already exists.");
+    private static final Amf0Object PUBLISH_NOTIFY = onStatus(OnStatus.STATUS, "NetStream.Play.PublishNotify");
+    private static final Amf0Object UNPUBLISH_NOTIFY = onStatus(OnStatus.STATUS, "NetStream.Play.UnpublishNotify");
+
+    /** transactionId < 16 */
+    private static final CannedBodies CONNECT_SUCCESS_BODIES = new CannedBodies(16);
+    /** transactionId < 16且streamId < 16 */
+    private static final CannedBodies CREATE_STREAM_SUCCESS_BODIES = new CannedBodies(256);
+    private static final CannedBodies CREATE_STREAM_BODY = new CannedBodies(1);
+    private static final CannedBodies ON_BW_DONE_BODY = new CannedBodies(1);
+    private static final CannedBodies PUBLISH_BAD_NAME_BODY = new CannedBodies(1);
+    private static final CannedBodies PUBLISH_NOTIFY_BODY = new CannedBodies(1);
+    private static final CannedBodies UNPUBLISH_NOTIFY_BODY = new CannedBodies(1);
+    private static final CannedBodies UNPUBLISH_BODY = new CannedBodies(1);
+    private static final CannedBodies CLOSE_STREAM_BODY = new CannedBodies(1);
+
+    public static Command connectSuccess(int transactionId) {
+        return new CommandAmf0(transactionId, "_result", null, CONNECT_SUCCESS)
+                .canned(CONNECT_SUCCESS_BODIES, transactionId);
     }
 
     public static Command createStream() {
-        return new CommandAmf0("createStream", null);
+        return new CommandAmf0("createStream", null).canned(CREATE_STREAM_BODY, 0);
     }
 
     public static Command onBWDone() {
-        return new CommandAmf0("onBWDone", null);
+        return new CommandAmf0("onBWDone", null).canned(ON_BW_DONE_BODY, 0);
     }
 
     public static Command createStreamSuccess(int transactionId, int streamId) {
-        return new CommandAmf0(transactionId, "_result", null, streamId);
+        final int key = transactionId >= 0 && transactionId < 16 && streamId >= 0 && streamId < 16
+                ? transactionId * 16 + streamId : -1;
+        return new CommandAmf0(transactionId, "_result", null, streamId)
+                .canned(CREATE_STREAM_SUCCESS_BODIES, key);
     }
 
     public static Command play(int streamId, ClientOptions options) {
@@ -241,38 +265,35 @@ public abstract class Command extends AbstractMessage {
     }
 
     public static Command unpublish(int streamId) {
-        Command command = new CommandAmf0("publish", null, false);
+        Command command = new CommandAmf0("publish", null, false).canned(UNPUBLISH_BODY, 0);
         command.header.setCsId(8);
         command.header.setStreamId(streamId);
         return command;
     }
 
     public static Command publishBadName(int streamId) {
-        Command command = new CommandAmf0("onStatus", null, 
-                onStatus(OnStatus.ERROR, "NetStream.Publish.BadName", "Stream already exists."));
+        Command command = new CommandAmf0("onStatus", null, PUBLISH_BAD_NAME).canned(PUBLISH_BAD_NAME_BODY, 0);
         command.header.setCsId(8);
         command.header.setStreamId(streamId);
         return command;
     }
 
     public static Command publishNotify(int streamId) {
-        Command command = new CommandAmf0("onStatus", null,
-                onStatus(OnStatus.STATUS, "NetStream.Play.PublishNotify"));
+        Command command = new CommandAmf0("onStatus", null, PUBLISH_NOTIFY).canned(PUBLISH_NOTIFY_BODY, 0);
         command.header.setCsId(8);
         command.header.setStreamId(streamId);
         return command;
     }
 
     public static Command unpublishNotify(int streamId) {
-        Command command = new CommandAmf0("onStatus", null,
-                onStatus(OnStatus.STATUS, "NetStream.Play.UnpublishNotify"));
+        Command command = new CommandAmf0("onStatus", null, UNPUBLISH_NOTIFY).canned(UNPUBLISH_NOTIFY_BODY, 0);
         command.header.setCsId(8);
         command.header.setStreamId(streamId);
         return command;
     }
 
     public static Command closeStream(int streamId) {
-        Command command = new CommandAmf0("closeStream", null);
+        Command command = new CommandAmf0("closeStream", null).canned(CLOSE_STREAM_BODY, 0);
         command.header.setCsId(8);
         command.header.setStreamId(streamId);
         return command;
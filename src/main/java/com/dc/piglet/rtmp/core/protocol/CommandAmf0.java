@@ -16,6 +16,9 @@ import java.util.List;
  */
 public class CommandAmf0 extends Command {
 
+    private CannedBodies canned;
+    private int cannedKey;
+
     public CommandAmf0(RtmpHeader header, ByteBuf in) {
         super(header, in);        
     }
@@ -33,8 +36,33 @@ public class CommandAmf0 extends Command {
         return MessageType.COMMAND_AMF0;
     }
 
+    /**
+     * 内容固定的命令：body从bodies中按key取共享的编码结果，修改transactionId后失效
+     */
+    CommandAmf0 canned(final CannedBodies bodies, final int key) {
+        this.canned = bodies;
+        this.cannedKey = key;
+        return this;
+    }
+
+    @Override
+    public void setTransactionId(int transactionId) {
+        super.setTransactionId(transactionId);
+        canned = null;
+    }
+
     @Override
     public ByteBuf encode() {
+        if(canned != null) {
+            final ByteBuf body = canned.get(cannedKey, this);
+            if(body != null) {
+                return body;
+            }
+        }
+        return encodeBody();
+    }
+
+    ByteBuf encodeBody() {
         ByteBuf out = Unpooled.buffer(256);
         Amf0Value.encode(out, name, transactionId, object);
         if(args != null) {
@@ -48,7 +76,7 @@ public class CommandAmf0 extends Command {
     @Override
     public void decode(ByteBuf in) {                
         name = (String) Amf0Value.decode(in);
-        transactionId = ((Double) Amf0Value.decode(in)).intValue();
+        transactionId = ((Number) Amf0Value.decode(in)).intValue();
         object = (Amf0Object) Amf0Value.decode(in);
         List<Object> list = new ArrayList<Object>();
         while(in.isReadable()) {
@@ -0,0 +1,52 @@
+package com.dc.piglet.rtmp.core.protocol;
+
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Object;
+import com.dc.piglet.rtmp.entity.MessageType;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * amf3格式指令(objectEncoding=3的客户端)
+ *
+ * body以一个0x00格式字节开头，之后仍是AMF0的值，其中的对象可以用avmplus标记切换为AMF3，
+ * 由Amf0Value解码，所以命令的结构与CommandAmf0相同。
+ */
+public class CommandAmf3 extends CommandAmf0 {
+
+    public CommandAmf3(RtmpHeader header, ByteBuf in) {
+        super(header, in);
+    }
+
+    public CommandAmf3(int transactionId, String name, Amf0Object object, Object ... args) {
+        super(transactionId, name, object, args);
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.COMMAND_AMF3;
+    }
+
+    @Override
+    ByteBuf encodeBody() {
+        final ByteBuf body = super.encodeBody();
+        final ByteBuf out = body.alloc().heapBuffer(body.readableBytes() + 1);
+        out.writeByte(0);
+        out.writeBytes(body);
+        return out;
+    }
+
+    @Override
+    public void decode(ByteBuf in) {
+        skipFormat(in);
+        super.decode(in);
+    }
+
+    /**
+     * 跳过开头的0x00格式字节；AMF0的值不会以NUMBER开头(命令名和数据名都是字符串)
+     */
+    static void skipFormat(final ByteBuf in) {
+        if(in.isReadable() && in.getByte(in.readerIndex()) == 0) {
+            in.skipBytes(1);
+        }
+    }
+
+}
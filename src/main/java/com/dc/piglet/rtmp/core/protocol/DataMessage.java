@@ -4,14 +4,15 @@ package com.dc.piglet.rtmp.core.protocol;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
 
 /**
  * 数据消息 Message Type ID＝15或18
  * 传递一些元数据或用户自定义消息
+ * 引用计数委托给data，data可能是解码器中池化buffer的切片，写出或不再使用后需release
  */
-public abstract class DataMessage extends AbstractMessage {
+public abstract class DataMessage extends AbstractMessage implements ReferenceCounted {
 
-    private boolean encoded;
     protected ByteBuf data;
 
     public DataMessage() {
@@ -35,13 +36,8 @@ public abstract class DataMessage extends AbstractMessage {
 
     @Override
     public ByteBuf encode() {
-        if(encoded) {
-            // in case used multiple times e.g. broadcast
-            data.resetReaderIndex();            
-        } else {
-            encoded = true;
-        }
-        return data;
+        // in case used multiple times e.g. broadcast, each caller gets its own reader index
+        return data.duplicate();
     }
 
     @Override
@@ -56,4 +52,43 @@ public abstract class DataMessage extends AbstractMessage {
 
     public abstract boolean isConfig();
 
+    @Override
+    public int refCnt() {
+        return data.refCnt();
+    }
+
+    @Override
+    public DataMessage retain() {
+        data.retain();
+        return this;
+    }
+
+    @Override
+    public DataMessage retain(int increment) {
+        data.retain(increment);
+        return this;
+    }
+
+    @Override
+    public DataMessage touch() {
+        data.touch();
+        return this;
+    }
+
+    @Override
+    public DataMessage touch(Object hint) {
+        data.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return data.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return data.release(decrement);
+    }
+
 }
@@ -0,0 +1,112 @@
+package com.dc.piglet.rtmp.core.protocol;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.spec.DHParameterSpec;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RTMPE握手用的DH密钥对池：后台线程预先生成，握手时直接取用，每个密钥对只用一次
+ *
+ * 剩余数量低于一半时唤醒后台线程补满；池空时(例如断线后大量客户端同时重连)在调用线程生成，不等待。
+ */
+public class DhKeyPairPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(DhKeyPairPool.class);
+
+    private final BlockingQueue<KeyPair> pool;
+    private final int lowWaterMark;
+    private final ExecutorService refiller;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final AtomicLong misses = new AtomicLong();
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                final KeyPairGenerator generator = generator();
+                while(pool.remainingCapacity() > 0) {
+                    pool.offer(generator.generateKeyPair());
+                }
+            } catch(Exception e) {
+                logger.warn("failed to refill dh key pairs: {}", e.toString());
+            } finally {
+                refilling.set(false);
+            }
+        }
+    };
+
+    /**
+     * 创建后立即在后台填满
+     */
+    public DhKeyPairPool(final int capacity) {
+        this.pool = new ArrayBlockingQueue<KeyPair>(capacity);
+        this.lowWaterMark = capacity / 2;
+        this.refiller = Executors.newSingleThreadExecutor(new DefaultThreadFactory("handshake-dh", true));
+        refill();
+    }
+
+    public KeyPair take() {
+        final KeyPair keyPair = pool.poll();
+        if(pool.size() <= lowWaterMark) {
+            refill();
+        }
+        if(keyPair != null) {
+            return keyPair;
+        }
+        misses.incrementAndGet();
+        return generate();
+    }
+
+    private void refill() {
+        if(refilling.compareAndSet(false, true)) {
+            refiller.execute(refill);
+        }
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * 池空时在调用线程生成的次数
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void shutdown() {
+        refiller.shutdownNow();
+    }
+
+    /**
+     * 不使用池，直接生成一个密钥对
+     */
+    public static KeyPair generate() {
+        try {
+            return generator().generateKeyPair();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static KeyPairGenerator generator() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+        generator.initialize(new DHParameterSpec(RtmpHandshake.DH_MODULUS, RtmpHandshake.DH_BASE));
+        return generator;
+    }
+
+    @Override
+    public String toString() {
+        return "[size: " + pool.size() + " misses: " + misses.get() + "]";
+    }
+
+}
@@ -64,7 +64,11 @@ public abstract class Metadata extends AbstractMessage {
     }
 
     public Double getDouble(String key) {
-        return (Double) getValue(key);
+        final Object value = getValue(key);
+        if(value == null || value instanceof Double) {
+            return (Double) value;
+        }
+        return ((Number) value).doubleValue(); // AMF3的integer
     }
 
     public double getDuration() {
@@ -79,7 +83,7 @@ public abstract class Metadata extends AbstractMessage {
         if(o == null) {
             return -1;
         }
-        return ((Double) o).longValue();
+        return ((Number) o).longValue();
     }
 
     public void setDuration(final double duration) {
@@ -0,0 +1,46 @@
+package com.dc.piglet.rtmp.core.protocol;
+
+import com.dc.piglet.rtmp.entity.MessageType;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * amf3格式的数据消息(onMetaData等)，格式同CommandAmf3：0x00格式字节之后是AMF0的值
+ */
+public class MetadataAmf3 extends MetadataAmf0 {
+
+    public MetadataAmf3(String name, Object... data) {
+        super(name, data);
+    }
+
+    public MetadataAmf3(RtmpHeader header, ByteBuf in) {
+        super(header, in);
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.METADATA_AMF3;
+    }
+
+    @Override
+    public ByteBuf encode() {
+        final ByteBuf body = super.encode();
+        final ByteBuf out = body.alloc().heapBuffer(body.readableBytes() + 1);
+        out.writeByte(0);
+        out.writeBytes(body);
+        return out;
+    }
+
+    /**
+     * 不带格式字节的AMF0 body，写FLV的script tag时使用
+     */
+    public ByteBuf encodeAmf0() {
+        return super.encode();
+    }
+
+    @Override
+    public void decode(ByteBuf in) {
+        CommandAmf3.skipFormat(in);
+        super.decode(in);
+    }
+
+}
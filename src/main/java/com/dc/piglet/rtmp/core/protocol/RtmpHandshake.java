@@ -10,21 +10,24 @@ import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPublicKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.math.BigInteger;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.PublicKey;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Random;
 
+/**
+ * 握手：简单握手(客户端版本不在digest列表中)和Flash Player 9+的digest握手，RTMPE时协商RC4密钥
+ *
+ * 服务端不加密时S1与客户端无关，按校验类型预先生成并共享，S2直接回送客户端的C1(引用输入buffer，不拷贝)；
+ * 只有RTMPE需要DH密钥对，从DhKeyPairPool中取。
+ */
 public class RtmpHandshake {
 
     private static final Logger logger = LoggerFactory.getLogger(RtmpHandshake.class);
@@ -55,9 +58,46 @@ public class RtmpHandshake {
     	+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE65381FFFFFFFFFFFFFFFF"
     );
 
-    private static final BigInteger DH_MODULUS = new BigInteger(1, DH_MODULUS_BYTES);
+    static final BigInteger DH_MODULUS = new BigInteger(1, DH_MODULUS_BYTES);
 
-    private static final BigInteger DH_BASE = BigInteger.valueOf(2);
+    static final BigInteger DH_BASE = BigInteger.valueOf(2);
+
+    private static final byte[] SERVER_VERSION = new byte[]{0x03, 0x05, 0x01, 0x01};
+
+    private static final ByteBuf SERVER_0 = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[]{0x03}));
+
+    private static final ByteBuf SERVER_0_RTMPE = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[]{0x06}));
+
+    /** 简单握手的S1：time和zero之后是随机数据，所有连接共享 */
+    private static final ByteBuf SERVER_1_SIMPLE = Unpooled.unreleasableBuffer(serverPartOne());
+
+    /** 不加密的digest握手的S1，按校验类型(1 / 2)预先生成，下标为校验类型 */
+    private static final ByteBuf[] SERVER_1_DIGEST = new ByteBuf[3];
+
+    private static final byte[][] SERVER_1_DIGEST_BYTES = new byte[3][];
+
+    /** digest握手的S2 / C2中digest之前的随机部分 */
+    private static final ByteBuf PART_TWO_RANDOM = Unpooled.unreleasableBuffer(
+            generateRandomHandshake().writerIndex(HANDSHAKE_SIZE - DIGEST_SIZE));
+
+    private static volatile DhKeyPairPool keyPairPool;
+
+    static {
+        for(int type = 1; type <= 2; type++) {
+            final ByteBuf out = serverPartOne();
+            final int digestOffset = digestOffset(out, type);
+            SERVER_1_DIGEST_BYTES[type] = digestHandshake(out, digestOffset, SERVER_CONST);
+            out.setBytes(digestOffset, SERVER_1_DIGEST_BYTES[type]);
+            SERVER_1_DIGEST[type] = Unpooled.unreleasableBuffer(out);
+        }
+    }
+
+    /**
+     * RTMPE握手从pool中取DH密钥对，为null时在调用线程生成
+     */
+    public static void setKeyPairPool(final DhKeyPairPool pool) {
+        keyPairPool = pool;
+    }
 
     private static byte[] concat(byte[] a, byte[] b) {
         byte[] c = new byte[a.length + b.length];
@@ -67,24 +107,36 @@ public class RtmpHandshake {
     }
 
     private static int calculateOffset(ByteBuf in, int pointerIndex, int modulus, int increment) {
-        byte[] pointer = new byte[4];
-        in.getBytes(pointerIndex, pointer);
         int offset = 0;
         // sum the 4 bytes of the pointer
-        for (int i = 0; i < pointer.length; i++) {
-            offset += pointer[i] & 0xff;
+        for (int i = 0; i < 4; i++) {
+            offset += in.getUnsignedByte(pointerIndex + i);
         }
         offset %= modulus;
         offset += increment;
         return offset;
     }
 
+    /**
+     * 除digest本身以外的1504字节的HMAC，直接从buffer中update，不拷贝
+     */
     private static byte[] digestHandshake(ByteBuf in, int digestOffset, byte[] key) {
-        final byte[] message = new byte[HANDSHAKE_SIZE - DIGEST_SIZE];
-        in.getBytes(0, message, 0, digestOffset);
+        final Mac mac = Util.HmacSHA256(key);
+        update(mac, in, 0, digestOffset);
         final int afterDigestOffset = digestOffset + DIGEST_SIZE;
-        in.getBytes(afterDigestOffset, message, digestOffset, HANDSHAKE_SIZE - afterDigestOffset);
-        return Util.HmacSHA256(message, key);
+        update(mac, in, afterDigestOffset, HANDSHAKE_SIZE - afterDigestOffset);
+        return mac.doFinal();
+    }
+
+    private static void update(final Mac mac, final ByteBuf in, final int index, final int length) {
+        if(length == 0) {
+            return;
+        }
+        if(in.hasArray()) {
+            mac.update(in.array(), in.arrayOffset() + index, length);
+        } else {
+            mac.update(in.nioBuffer(index, length));
+        }
     }
 
     private static ByteBuf generateRandomHandshake() {
@@ -94,34 +146,40 @@ public class RtmpHandshake {
         return Unpooled.wrappedBuffer(randomBytes);
     }
 
-    private static final Map<Integer, Integer> clientVersionToValidationTypeMap;
-
-    static {
-        Map<Integer, Integer> map = new HashMap<Integer, Integer>();
-        map.put(0x09007c02, 1);
-        map.put(0x09009702, 1);
-        map.put(0x09009f02, 1);
-        map.put(0x0900f602, 1);
-        map.put(0x0a000202, 1);
-        map.put(0x0a000c02, 1);
-        map.put(0x80000102, 1);
-        map.put(0x80000302, 2);
-        map.put(0x0a002002, 2);
-        clientVersionToValidationTypeMap = map;
+    /**
+     * 随机数据，time和zero为0
+     */
+    private static ByteBuf serverPartOne() {
+        final ByteBuf out = generateRandomHandshake();
+        out.setInt(0, 0); // zeros
+        out.setBytes(4, SERVER_VERSION);
+        return out;
     }
 
     protected static int getValidationTypeForClientVersion(byte[] version) {
-        final int intValue = Unpooled.wrappedBuffer(version).getInt(0);
-        Integer type = clientVersionToValidationTypeMap.get(intValue);
-        if(type == null) {
-            return 0;
+        return getValidationTypeForClientVersion(Unpooled.wrappedBuffer(version).getInt(0));
+    }
+
+    private static int getValidationTypeForClientVersion(final int version) {
+        switch(version) {
+            case 0x09007c02:
+            case 0x09009702:
+            case 0x09009f02:
+            case 0x0900f602:
+            case 0x0a000202:
+            case 0x0a000c02:
+            case 0x80000102:
+                return 1;
+            case 0x80000302:
+            case 0x0a002002:
+                return 2;
+            default:
+                return 0;
         }
-        return type;
     }
 
     private byte[] clientVersionToUse = new byte[]{0x09, 0x00, 0x7c, 0x02};
 
-    private byte[] serverVersionToUse = new byte[]{0x03, 0x05, 0x01, 0x01};
 
     private static int digestOffset(ByteBuf in, int validationType) {
         switch(validationType) {
@@ -142,14 +200,13 @@ public class RtmpHandshake {
     //==========================================================================
 
     private KeyAgreement keyAgreement;
-    private byte[] peerVersion;
+    private int peerVersion;
     private byte[] ownPublicKey;
     private byte[] peerPublicKey;
     private byte[] ownPartOneDigest;
     private byte[] peerPartOneDigest;
     private Cipher cipherOut;
     private Cipher cipherIn;
-    private byte[] peerTime;
 
     private boolean rtmpe;
     private int validationType;
@@ -158,8 +215,8 @@ public class RtmpHandshake {
     private int swfSize;
     private byte[] swfvBytes;
 
+    /** 简单握手时对端的part 1，作为part 2原样回送 */
     private ByteBuf peerPartOne;
-    private ByteBuf ownPartOne;
 
     public RtmpHandshake() {}
 
@@ -189,6 +246,10 @@ public class RtmpHandshake {
     }
 
     public byte[] getPeerVersion() {
+        return Unpooled.copyInt(peerVersion).array();
+    }
+
+    public int getPeerVersionValue() {
         return peerVersion;
     }
 
@@ -216,12 +277,9 @@ public class RtmpHandshake {
     //============================== PKI =======================================
 
     private void initKeyPair() {
-        final DHParameterSpec keySpec = new DHParameterSpec(DH_MODULUS, DH_BASE);
-        final KeyPair keyPair;
+        final DhKeyPairPool pool = keyPairPool;
+        final KeyPair keyPair = pool != null ? pool.take() : DhKeyPairPool.generate();
         try {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-            keyGen.initialize(keySpec);
-            keyPair = keyGen.generateKeyPair();
             keyAgreement = KeyAgreement.getInstance("DH");
             keyAgreement.init(keyPair.getPrivate());
         } catch (Exception e) {
@@ -295,28 +353,31 @@ public class RtmpHandshake {
         validationType = getValidationTypeForClientVersion(clientVersionToUse);
         logger.info("using client version {}", Util.toHex(clientVersionToUse));
         if (validationType == 0) {
-            ownPartOne = out.copy(); // save for later
             return out;
         }
         logger.debug("creating client part 1, validation type: {}", validationType);
-        initKeyPair();
-        int publicKeyOffset = publicKeyOffset(out, validationType);
-        out.setBytes(publicKeyOffset, ownPublicKey);
+        if(rtmpe) {
+            initKeyPair();
+            int publicKeyOffset = publicKeyOffset(out, validationType);
+            out.setBytes(publicKeyOffset, ownPublicKey);
+        }
         int digestOffset = digestOffset(out, validationType);
         ownPartOneDigest = digestHandshake(out, digestOffset, CLIENT_CONST);
         out.setBytes(digestOffset, ownPartOneDigest);
         return out;
     }
 
+    /**
+     * 从in中读出S0+S1+S2，简单握手时保留S1的引用用于encodeClient2
+     */
     public boolean decodeServerAll(ByteBuf in) {
-        decodeServer0(in.readBytes(1));
-        decodeServer1(in.readBytes(HANDSHAKE_SIZE));
-        decodeServer2(in.readBytes(HANDSHAKE_SIZE));
+        decodeServer0(in.readByte());
+        decodeServer1(validationType == 0 ? in.readRetainedSlice(HANDSHAKE_SIZE) : in.readSlice(HANDSHAKE_SIZE));
+        decodeServer2(in.readSlice(HANDSHAKE_SIZE));
         return true;
     }
 
-    private void decodeServer0(ByteBuf in) {
-        byte flag = in.getByte(0);
+    private void decodeServer0(byte flag) {
         if(rtmpe &&  flag != 0x06) {
             logger.warn("server does not support rtmpe! falling back to rtmp");
             rtmpe = false;
@@ -324,11 +385,9 @@ public class RtmpHandshake {
     }
 
     private void decodeServer1(ByteBuf in) {
-        peerTime = new byte[4];
-        in.getBytes(0, peerTime);
-        byte[] serverVersion = new byte[4];
-        in.getBytes(4, serverVersion);
-        logger.debug("server time: {}, version: {}", Util.toHex(peerTime), Util.toHex(serverVersion));
+        if(logger.isDebugEnabled()) {
+            logger.debug("server time: {}, version: {}", Integer.toHexString(in.getInt(0)), Integer.toHexString(in.getInt(4)));
+        }
         if(swfHash != null) {
             // swf verification
             byte[] key = new byte[DIGEST_SIZE];
@@ -368,10 +427,12 @@ public class RtmpHandshake {
             validationType = altValidationType;
         }
         logger.info("server part 1 validation success");
-        peerPublicKey = new byte[PUBLIC_KEY_SIZE];
-        int publicKeyOffset = publicKeyOffset(in, validationType);
-        in.getBytes(publicKeyOffset, peerPublicKey);
-        initCiphers();
+        if(rtmpe) {
+            peerPublicKey = new byte[PUBLIC_KEY_SIZE];
+            int publicKeyOffset = publicKeyOffset(in, validationType);
+            in.getBytes(publicKeyOffset, peerPublicKey);
+            initCiphers();
+        }
     }
 
     private void decodeServer2(ByteBuf in) {
@@ -392,45 +453,53 @@ public class RtmpHandshake {
 
     public ByteBuf encodeClient2() {
         if(validationType == 0) {
-            peerPartOne.setBytes(0, peerTime);
+            // time原样回送
             peerPartOne.setInt(4, 0); // more zeros
-            return peerPartOne;
+            final ByteBuf out = peerPartOne;
+            peerPartOne = null;
+            return out;
         }
         logger.debug("creating client part 2 for validation");
-        ByteBuf out = generateRandomHandshake();
-        byte[] key = Util.HmacSHA256(peerPartOneDigest, CLIENT_CONST_CRUD);
-        int digestOffset = HANDSHAKE_SIZE - DIGEST_SIZE;
-        byte[] digest = digestHandshake(out, digestOffset, key);
-        out.setBytes(digestOffset, digest);
-        return out;
+        return encodePartTwo(Util.HmacSHA256(peerPartOneDigest, CLIENT_CONST_CRUD));
+    }
+
+    /**
+     * 共享的随机部分加上用key计算的digest，随机部分不拷贝
+     */
+    private static ByteBuf encodePartTwo(final byte[] key) {
+        final Mac mac = Util.HmacSHA256(key);
+        update(mac, PART_TWO_RANDOM, 0, HANDSHAKE_SIZE - DIGEST_SIZE);
+        return Unpooled.wrappedBuffer(PART_TWO_RANDOM.duplicate(), Unpooled.wrappedBuffer(mac.doFinal()));
     }
 
     //============================ SERVER ======================================
 
+    /**
+     * 从in中读出C0+C1；简单握手时保留C1的引用(retain)，由encodeServer2作为S2写出后释放
+     */
     public void decodeClient0And1(ByteBuf in) {
-        decodeClient0(in.readBytes(1));
-        decodeClient1(in.readBytes(HANDSHAKE_SIZE));
+        decodeClient0(in.readByte());
+        peerVersion = in.getInt(in.readerIndex() + 4);
+        validationType = getValidationTypeForClientVersion(peerVersion);
+        decodeClient1(validationType == 0 ? in.readRetainedSlice(HANDSHAKE_SIZE) : in.readSlice(HANDSHAKE_SIZE));
     }
 
-    private void decodeClient0(ByteBuf in) {
-        final byte firstByte = in.readByte();
+    private void decodeClient0(final byte firstByte) {
         rtmpe = firstByte == 0x06;
-        logger.debug("client first byte {}, rtmpe: {}", Util.toHex(firstByte), rtmpe);
+        if(logger.isDebugEnabled()) {
+            logger.debug("client first byte {}, rtmpe: {}", Util.toHex(firstByte), rtmpe);
+        }
     }
 
     private boolean decodeClient1(ByteBuf in) {
-        peerTime = new byte[4];
-        in.getBytes(0, peerTime);
-        peerVersion = new byte[4];
-        in.getBytes(4, peerVersion);
-        logger.debug("client time: {}, version: {}", Util.toHex(peerTime), Util.toHex(peerVersion));
-        validationType = getValidationTypeForClientVersion(peerVersion);
+        if(logger.isDebugEnabled()) {
+            logger.debug("client time: {}, version: {}", Integer.toHexString(in.getInt(0)), Integer.toHexString(peerVersion));
+        }
         if(validationType == 0) {
             peerPartOne = in; // save for later
             return true;
         }
         logger.debug("processing client part 1 for validation type: {}", validationType);
-        initKeyPair();
         int digestOffset = digestOffset(in, validationType);
         peerPartOneDigest = new byte[DIGEST_SIZE];
         in.getBytes(digestOffset, peerPartOneDigest);
@@ -439,28 +508,34 @@ public class RtmpHandshake {
             throw new RuntimeException("client part 1 validation failed");
         }
         logger.info("client part 1 validation success");
-        int publicKeyOffset = publicKeyOffset(in, validationType);
-        peerPublicKey = new byte[PUBLIC_KEY_SIZE];
-        in.getBytes(publicKeyOffset, peerPublicKey);
-        initCiphers();
+        if(rtmpe) {
+            // 只有加密连接需要DH，明文的digest握手中公钥位置是随机数据
+            initKeyPair();
+            int publicKeyOffset = publicKeyOffset(in, validationType);
+            peerPublicKey = new byte[PUBLIC_KEY_SIZE];
+            in.getBytes(publicKeyOffset, peerPublicKey);
+            initCiphers();
+        }
         return true;
     }
 
+    /**
+     * 返回共享buffer的duplicate，不分配
+     */
     public ByteBuf encodeServer0() {
-        ByteBuf out = Unpooled.buffer(1);
-        out.writeByte((byte) (rtmpe ? 0x06 : 0x03));
-        return out;
+        return (rtmpe ? SERVER_0_RTMPE : SERVER_0).duplicate();
     }
 
     public ByteBuf encodeServer1() {
-        ByteBuf out = generateRandomHandshake();
-        out.setInt(0, 0); // zeros
-        out.setBytes(4, serverVersionToUse);
         if(validationType == 0) {
-            ownPartOne = out.copy();
-            return out;
+            return SERVER_1_SIMPLE.duplicate();
+        }
+        if(!rtmpe) {
+            ownPartOneDigest = SERVER_1_DIGEST_BYTES[validationType];
+            return SERVER_1_DIGEST[validationType].duplicate();
         }
         logger.debug("creating server part 1 for validation type: {}", validationType);
+        ByteBuf out = serverPartOne();
         int publicKeyOffset = publicKeyOffset(out, validationType);
         out.setBytes(publicKeyOffset, ownPublicKey);
         int digestOffset = digestOffset(out, validationType);
@@ -469,36 +544,23 @@ public class RtmpHandshake {
         return out;
     }
 
-    public void decodeClient2(ByteBuf raw) {
-        ByteBuf in = raw.readBytes(HANDSHAKE_SIZE);
-        if(validationType == 0) {
-            return;
-        }
-        logger.debug("processing client part 2 for validation");
-        byte[] key = Util.HmacSHA256(ownPartOneDigest, CLIENT_CONST_CRUD);
-        int digestOffset = HANDSHAKE_SIZE - DIGEST_SIZE;
-        byte[] expected = digestHandshake(in, digestOffset, key);
-        byte[] actual = new byte[DIGEST_SIZE];
-        in.getBytes(digestOffset, actual);
-        if (!Arrays.equals(actual, expected)) {
-            //throw new RuntimeException("client part 2 validation failed");
-        }
-        logger.info("client part 2 validation success");
+    /**
+     * C2的digest从来没有强制校验(不少客户端算得不对)，不再计算，直接跳过
+     */
+    public void decodeClient2(ByteBuf in) {
+        in.skipBytes(HANDSHAKE_SIZE);
     }
 
     public ByteBuf encodeServer2() {
         if(validationType == 0) {
-            peerPartOne.setBytes(0, peerTime); // zeros
+            // time原样回送
             peerPartOne.setInt(4, 0); // more zeros
-            return peerPartOne;
+            final ByteBuf out = peerPartOne;
+            peerPartOne = null;
+            return out;
         }
         logger.debug("creating server part 2 for validation");
-        ByteBuf out = generateRandomHandshake();
-        byte[] key = Util.HmacSHA256(peerPartOneDigest, SERVER_CONST_CRUD);
-        int digestOffset = HANDSHAKE_SIZE - DIGEST_SIZE;
-        byte[] digest = digestHandshake(out, digestOffset, key);
-        out.setBytes(digestOffset, digest);
-        return out;
+        return encodePartTwo(Util.HmacSHA256(peerPartOneDigest, SERVER_CONST_CRUD));
     }
 
 }
@@ -42,11 +42,11 @@ public class RtmpHeader {
     }
 
     /**
-     *
+     * 解析basic header前需先通过{@link #peekCsId(ByteBuf)}确定csId，以便取得该chunk stream上一个header
      * @param in
-     * @param incomeHeaders 已经处理的header数组
+     * @param preHeader 同一csId上一个已处理的header，仅type 0 chunk时可为null
      */
-    public RtmpHeader(ByteBuf in, RtmpHeader[] incomeHeaders){
+    public RtmpHeader(ByteBuf in, RtmpHeader preHeader){
         //根据第一个字节来获取chunkType
         final int fb = in.readByte();
         final int basicHeader;
@@ -66,11 +66,10 @@ public class RtmpHeader {
             chunkTypeInt = basicHeader >> 6;
         }
         chunkType = Type.convert(chunkTypeInt);
-        final RtmpHeader preHeader = incomeHeaders[csId];
         switch (Objects.requireNonNull(chunkType)){
             case ALL:
-                timestamp = in.readMedium();
-                msgLength = in.readMedium();
+                timestamp = in.readUnsignedMedium();
+                msgLength = in.readUnsignedMedium();
                 msgType = MessageType.convert(in.readByte());
                 streamId = Util.readInt32Reverse(in);
                 if(timestamp == MAX_NORMAL_HEADER_TIME){
@@ -78,8 +77,8 @@ public class RtmpHeader {
                 }
                 break;
             case MID:
-                deltaTime = in.readMedium();
-                msgLength = in.readMedium();
+                deltaTime = in.readUnsignedMedium();
+                msgLength = in.readUnsignedMedium();
                 msgType = MessageType.convert(in.readByte());
                 streamId = preHeader.streamId;
                 if(deltaTime == MAX_NORMAL_HEADER_TIME) {
@@ -87,7 +86,7 @@ public class RtmpHeader {
                 }
                 break;
             case SMALL:
-                deltaTime = in.readMedium();
+                deltaTime = in.readUnsignedMedium();
                 msgLength = preHeader.msgLength;
                 msgType = preHeader.msgType;
                 streamId = preHeader.streamId;
@@ -108,6 +107,52 @@ public class RtmpHeader {
         }
     }
 
+    /**
+     * 不移动读指针，读取basic header中的csId，调用前需保证basic header已可读
+     */
+    public static int peekCsId(final ByteBuf in) {
+        final int index = in.readerIndex();
+        final int fb = in.getByte(index) & 0x3f;
+        if(fb == 0) {
+            return 64 + (in.getByte(index + 1) & 0xff);
+        } else if(fb == 1) {
+            return 64 + (in.getByte(index + 1) & 0xff) + ((in.getByte(index + 2) & 0xff) << 8);
+        }
+        return fb;
+    }
+
+    /**
+     * 不移动读指针，计算当前chunk header的完整字节数(含extended timestamp)
+     * @return 可读字节不足以判断时返回-1
+     */
+    public static int peekEncodedSize(final ByteBuf in) {
+        final int readable = in.readableBytes();
+        if(readable < 1) {
+            return -1;
+        }
+        final int index = in.readerIndex();
+        final int fb = in.getByte(index) & 0xff;
+        final int basicSize;
+        switch(fb & 0x3f) {
+            case 0: basicSize = 2; break;
+            case 1: basicSize = 3; break;
+            default: basicSize = 1;
+        }
+        final int messageSize;
+        switch(fb >> 6) {
+            case 0: messageSize = 11; break;
+            case 1: messageSize = 7; break;
+            case 2: messageSize = 3; break;
+            default: return basicSize;
+        }
+        // 时间字段为0xFFFFFF时后面跟4字节extended timestamp
+        if(readable < basicSize + 3) {
+            return -1;
+        }
+        final boolean extendedTime = in.getUnsignedMedium(index + basicSize) == MAX_NORMAL_HEADER_TIME;
+        return basicSize + messageSize + (extendedTime ? 4 : 0);
+    }
+
     public boolean isMedia() {
         switch(msgType) {
             case AUDIO:
@@ -126,7 +171,14 @@ public class RtmpHeader {
 
 
     public void encode(ByteBuf out) {
-        out.writeBytes(encodeHeaderTypeAndChannel(chunkType.getId(), csId));
+        encode(out, chunkType, msgLength, deltaTime);
+    }
+
+    /**
+     * 按指定的chunkType / deltaTime编码，不修改header本身，同一个header可被多个连接并发编码
+     */
+    public void encode(ByteBuf out, Type chunkType, int msgLength, int deltaTime) {
+        writeHeaderTypeAndChannel(out, chunkType.getId(), csId);
         if(chunkType == Type.TINY) {
             return;
         }
@@ -157,10 +209,14 @@ public class RtmpHeader {
         return encodeHeaderTypeAndChannel(Type.TINY.getId(), csId);
     }
 
+    public void encodeTinyHeader(ByteBuf out) {
+        writeHeaderTypeAndChannel(out, Type.TINY.getId(), csId);
+    }
+
     private static byte[] encodeHeaderTypeAndChannel(final int headerType, final int channelId) {
         if (channelId <= 63) {
             return new byte[] {(byte) ((headerType << 6) + channelId)};
-        } else if (channelId <= 320) {
+        } else if (channelId <= 319) {
             return new byte[] {(byte) (headerType << 6), (byte) (channelId - 64)};
         } else {
             return new byte[] {(byte) ((headerType << 6) | 1),
@@ -168,6 +224,19 @@ public class RtmpHeader {
         }
     }
 
+    private static void writeHeaderTypeAndChannel(final ByteBuf out, final int headerType, final int channelId) {
+        if (channelId <= 63) {
+            out.writeByte((headerType << 6) + channelId);
+        } else if (channelId <= 319) {
+            out.writeByte(headerType << 6);
+            out.writeByte(channelId - 64);
+        } else {
+            out.writeByte((headerType << 6) | 1);
+            out.writeByte((channelId - 64) & 0xff);
+            out.writeByte((channelId - 64) >> 8);
+        }
+    }
+
     public boolean isAggregate() {
         return msgType == MessageType.AGGREGATE;
     }
@@ -5,6 +5,7 @@ package com.dc.piglet.rtmp.core.protocol;
 import com.dc.piglet.rtmp.entity.MessageType;
 import com.dc.piglet.rtmp.util.Util;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 
 import java.math.BigInteger;
@@ -68,6 +69,13 @@ public class Video extends DataMessage {
 	public int getFrameType() {
 		return (data.getByte(0) & 0xf0) >> 4;
 	}
+
+	/**
+	 * 直接读data第一个字节，不encode、不复制
+	 */
+	public boolean isKeyframe() {
+		return data != null && data.isReadable() && getFrameType() == KEYFRAME;
+	}
 	
 	// read binary string from existing byte[]
     public String readBinaryString(byte[] mpb, int start, int len){
@@ -190,7 +198,8 @@ public class Video extends DataMessage {
     }
     
     private void solveWidthAndHeight() {
-		String bits = padBitSequence(readBinaryString(data.array(), 1, 9));
+		// data可能是direct / 只读 / composite buffer，不能直接取array()
+		String bits = padBitSequence(readBinaryString(ByteBufUtil.getBytes(data, data.readerIndex(), 10), 1, 9));
 		
 		if (getCodec() == H263VIDEOPACKET) {
 			int hwCheck = bit2uint(bits.substring(30,33).toCharArray());
@@ -219,7 +228,7 @@ public class Video extends DataMessage {
 	}
 
 	public byte[] getBody() {
-		return data.array();
+		return ByteBufUtil.getBytes(data);
 	}
 
 }
@@ -0,0 +1,126 @@
+package com.dc.piglet.rtmp.core.protocol.amf;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 常见命令名、connect参数、onStatus和onMetaData的key
+ *
+ * 解码时直接按ByteBuf中的字节查表，命中时返回同一个String实例，不分配byte[]和String；
+ * 编码时返回预先编码好的UTF-8字节。表在类加载时建好，之后只读，线程安全。
+ */
+final class Amf0Strings {
+
+    private static final String[] KNOWN = {
+        // 命令
+        "connect", "_result", "_error", "onStatus", "createStream", "deleteStream", "closeStream",
+        "releaseStream", "play", "play2", "publish", "seek", "pause", "receiveAudio", "receiveVideo",
+        "FCPublish", "FCUnpublish", "onFCPublish", "onFCUnpublish", "FCSubscribe", "onFCSubscribe",
+        "getStreamLength", "onBWDone", "_checkbw", "onPlayStatus", "|RtmpSampleAccess",
+        "onMetaData", "@setDataFrame", "onTextData", "onCuePoint", "live", "record", "append",
+        // connect
+        "app", "flashVer", "swfUrl", "tcUrl", "fpad", "capabilities", "audioCodecs", "videoCodecs",
+        "videoFunction", "pageUrl", "objectEncoding", "type", "nonprivate",
+        // onStatus / _result
+        "level", "code", "description", "details", "clientid", "status", "error", "warning",
+        "fmsVer", "mode", "data", "version", "classname",
+        // onMetaData
+        "duration", "width", "height", "videodatarate", "framerate", "videocodecid", "audiodatarate",
+        "audiosamplerate", "audiosamplesize", "stereo", "audiocodecid", "audiochannels", "encoder",
+        "filesize", "datasize", "videosize", "audiosize", "lasttimestamp", "lastkeyframetimestamp",
+        "lastkeyframelocation", "hasVideo", "hasAudio", "hasMetadata", "hasKeyframes", "hasCuePoints",
+        "canSeekToEnd", "metadatacreator", "creationdate", "keyframes", "times", "filepositions",
+        "trackinfo", "sampledescription", "sampletype", "language", "timescale", "length",
+        "avcprofile", "avclevel", "aacaot", "moovposition", "videoframerate", "major_brand",
+        "minor_version", "compatible_brands", "displayWidth", "displayHeight", "bytelength"
+    };
+
+    /** 超过这个长度的字符串不查表 */
+    static final int MAX_LENGTH = 32;
+
+    private static final int TABLE_SIZE = 512;
+    private static final String[] TABLE = new String[TABLE_SIZE];
+    private static final byte[][] TABLE_BYTES = new byte[TABLE_SIZE][];
+    private static final Map<String, byte[]> ENCODED = new HashMap<String, byte[]>();
+
+    static {
+        for(final String s : KNOWN) {
+            final byte[] bytes = s.getBytes(CharsetUtil.UTF_8);
+            if(ENCODED.put(s, bytes) != null) {
+                continue;
+            }
+            int slot = hash(bytes) & (TABLE_SIZE - 1);
+            while(TABLE[slot] != null) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            TABLE[slot] = s;
+            TABLE_BYTES[slot] = bytes;
+        }
+    }
+
+    private Amf0Strings() {}
+
+    /**
+     * in中[index, index + length)的字节是已知字符串时返回表中的实例，否则返回null，不移动readerIndex
+     */
+    static String lookup(final ByteBuf in, final int index, final int length) {
+        if(length == 0 || length > MAX_LENGTH) {
+            return null;
+        }
+        final byte[] array;
+        final int offset;
+        if(in.hasArray()) {
+            array = in.array();
+            offset = in.arrayOffset() + index;
+        } else {
+            array = null;
+            offset = index;
+        }
+        int h = 0;
+        for(int i = 0; i < length; i++) {
+            h = 31 * h + (array != null ? array[offset + i] : in.getByte(offset + i));
+        }
+        int slot = h & (TABLE_SIZE - 1);
+        while(true) {
+            final byte[] bytes = TABLE_BYTES[slot];
+            if(bytes == null) {
+                return null;
+            }
+            if(bytes.length == length && equals(bytes, array, in, offset)) {
+                return TABLE[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+    }
+
+    /**
+     * @return 已知字符串预先编码的UTF-8字节，不可修改；未知时返回null
+     */
+    static byte[] encoded(final String s) {
+        return ENCODED.get(s);
+    }
+
+    /**
+     * array不为null时比较array[offset...]，否则比较in中从offset开始的字节
+     */
+    private static boolean equals(final byte[] bytes, final byte[] array, final ByteBuf in, final int offset) {
+        for(int i = 0; i < bytes.length; i++) {
+            if(bytes[i] != (array != null ? array[offset + i] : in.getByte(offset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(final byte[] bytes) {
+        int h = 0;
+        for(final byte b : bytes) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+}
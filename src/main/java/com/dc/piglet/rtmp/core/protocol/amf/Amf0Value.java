@@ -2,6 +2,8 @@
 package com.dc.piglet.rtmp.core.protocol.amf;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,6 +12,12 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * AMF0编解码，直接读写ByteBuf
+ *
+ * 字符串按UTF-8处理，常见的命令名和key经Amf0Strings查表返回同一个实例；
+ * 每个值的日志只在TRACE级别输出，DEBUG下不再逐值拼字符串。
+ */
 public class Amf0Value {
 
     private static final Logger logger = LoggerFactory.getLogger(Amf0Value.class);
@@ -33,7 +41,16 @@ public class Amf0Value {
         UNSUPPORTED(0x0D),
         RECORDSET(0x0E),
         XML_DOCUMENT(0x0F),
-        TYPED_OBJECT(0x10);
+        TYPED_OBJECT(0x10),
+        AVMPLUS(0x11); // 之后的一个值按AMF3编码
+
+        private static final Type[] BY_VALUE = new Type[0x12];
+
+        static {
+            for(final Type type : values()) {
+                BY_VALUE[type.value] = type;
+            }
+        }
 
         private final int value;
 
@@ -45,21 +62,21 @@ public class Amf0Value {
             return value;
         }
 
+        /**
+         * 按类型标记查表，未知的标记返回null
+         */
         public static Type valueToEnum(final int value) {
-            Type[] values = Type.values();
-            for (Type type : values) {
-                if (type.value == value){
-                    return type;
-                }
+            if(value < 0 || value >= BY_VALUE.length) {
+                return null;
             }
-            return null;
+            return BY_VALUE[value];
         }
 
         private static Type getType(final Object value) {
             if (value == null) {
                 return NULL;
             } else if (value instanceof String) {
-                return STRING;
+                return isLong((String) value) ? LONG_STRING : STRING;
             } else if (value instanceof Number) {
                 return NUMBER;
             } else if (value instanceof Boolean) {
@@ -78,6 +95,8 @@ public class Amf0Value {
                 return ARRAY;
             } else if(value instanceof Date) {
                 return DATE;
+            } else if(value instanceof byte[] || value instanceof int[] || value instanceof long[] || value instanceof double[]) {
+                return AVMPLUS; // AMF0没有对应类型，用AMF3的byte-array / vector
             } else {
                 throw new RuntimeException("unexpected type: " + value.getClass());
             }
@@ -87,21 +106,20 @@ public class Amf0Value {
     
     private static final byte BOOLEAN_TRUE = 0x01;
     private static final byte BOOLEAN_FALSE = 0x00;
-    private static final byte[] OBJECT_END_MARKER = new byte[]{0x00, 0x00, 0x09};    
+    private static final byte[] OBJECT_END_MARKER = new byte[]{0x00, 0x00, 0x09};
+    /** 按medium读出的OBJECT_END_MARKER */
+    private static final int OBJECT_END = 0x000009;
+    private static final int MAX_SHORT_STRING = 0xFFFF;
 
     public static void encode(final ByteBuf out, final Object value) {
         final Type type = Type.getType(value);
-        if(logger.isDebugEnabled()) {
-            logger.debug(">> " + toString(type, value));
+        if(logger.isTraceEnabled()) {
+            logger.trace(">> " + toString(type, value));
         }
         out.writeByte((byte) type.value);
         switch (type) {
             case NUMBER:
-                if(value instanceof Double) {
-                    out.writeLong(Double.doubleToLongBits((Double) value));
-                } else {
-                    out.writeLong(Double.doubleToLongBits(Double.valueOf(value.toString())));
-                }
+                out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
                 return;
             case BOOLEAN:                
                 out.writeByte((Boolean) value ? BOOLEAN_TRUE : BOOLEAN_FALSE);
@@ -109,6 +127,11 @@ public class Amf0Value {
             case STRING:
                 encodeString(out, (String) value);
                 return;
+            case LONG_STRING:
+                final int lengthIndex = out.writerIndex();
+                out.writeInt(0);
+                out.setInt(lengthIndex, ByteBufUtil.writeUtf8(out, (String) value));
+                return;
             case NULL:
                 return;
             case MAP:
@@ -131,9 +154,12 @@ public class Amf0Value {
                 return;
             case TYPED_OBJECT:
                 final Map<String, Object> map = (Map) value;
-                encodeString(out, (String) map.remove("classname"));
+                encodeString(out, (String) map.get("classname"));
                 encodeObject(out, value);
                 return;
+            case AVMPLUS:
+                Amf3Value.encode(out, value);
+                return;
             default:
                 // ignoring other types client doesn't require for now
                 throw new RuntimeException("unexpected type: " + type);
@@ -141,21 +167,79 @@ public class Amf0Value {
     }
 
     private static String decodeString(final ByteBuf in) {
-        final int size = in.readUnsignedShort();
-        final byte[] bytes = new byte[size];
-        in.readBytes(bytes);
-        return new String(bytes); // TODO UTF-8 ?
+        return readUtf8(in, in.readUnsignedShort());
+    }
+
+    private static String readUtf8(final ByteBuf in, final int size) {
+        final int index = in.readerIndex();
+        if(size < 0 || size > in.readableBytes()) {
+            throw new IndexOutOfBoundsException("string length " + size + " exceeds readable bytes " + in.readableBytes());
+        }
+        String value = Amf0Strings.lookup(in, index, size);
+        if(value == null) {
+            if(in.hasArray()) {
+                value = new String(in.array(), in.arrayOffset() + index, size, CharsetUtil.UTF_8);
+            } else {
+                final byte[] bytes = new byte[size];
+                in.getBytes(index, bytes);
+                value = new String(bytes, CharsetUtil.UTF_8);
+            }
+        }
+        in.skipBytes(size);
+        return value;
     }
 
+    /**
+     * 2字节长度 + UTF-8，常见字符串直接写预先编码好的字节
+     */
     private static void encodeString(final ByteBuf out, final String value) {
-        final byte[] bytes = value.getBytes(); // TODO UTF-8 ?
-        out.writeShort((short) bytes.length);
-        out.writeBytes(bytes);
+        final byte[] known = Amf0Strings.encoded(value);
+        if(known != null) {
+            out.writeShort(known.length);
+            out.writeBytes(known);
+            return;
+        }
+        final int lengthIndex = out.writerIndex();
+        out.writeShort(0);
+        final int length = ByteBufUtil.writeUtf8(out, value);
+        if(length > MAX_SHORT_STRING) {
+            throw new RuntimeException("string too long for AMF0 key: " + length + " bytes");
+        }
+        out.setShort(lengthIndex, length);
+    }
+
+    /**
+     * UTF-8编码后超过65535字节的字符串要按LONG_STRING编码
+     */
+    private static boolean isLong(final String value) {
+        final int length = value.length();
+        if(length * 3 <= MAX_SHORT_STRING) {
+            return false;
+        }
+        int bytes = 0;
+        for(int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if(c < 0x80) {
+                bytes++;
+            } else if(c < 0x800) {
+                bytes += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes > MAX_SHORT_STRING;
     }
 
     private static void encodeObject(final ByteBuf out, final Object value) {
         final Map<String, Object> map = (Map) value;
+        final boolean typed = value instanceof Amf0Object;
         for (final Map.Entry<String, Object> entry : map.entrySet()) {
+            if(typed && "classname".equals(entry.getKey())) {
+                continue; // TYPED_OBJECT的类名已写在前面
+            }
             encodeString(out, entry.getKey());
             encode(out, entry.getValue());
         }
@@ -169,10 +253,14 @@ public class Amf0Value {
     }
 
     public static Object decode(final ByteBuf in) {
-        final Type type = Type.valueToEnum(in.readByte());
+        final int marker = in.readUnsignedByte();
+        final Type type = Type.valueToEnum(marker);
+        if(type == null) {
+            throw new RuntimeException("unexpected type marker: " + marker);
+        }
         final Object value = decode(in, type);
-        if(logger.isDebugEnabled()) {
-            logger.debug("<< " + toString(type, value));
+        if(logger.isTraceEnabled()) {
+            logger.trace("<< " + toString(type, value));
         }
         return value;
     }
@@ -205,27 +293,22 @@ public class Amf0Value {
                 if(type == Type.MAP) {
                     count = in.readInt(); // should always be 0
                     map = new LinkedHashMap<String, Object>();
-                    if(count > 0 && logger.isDebugEnabled()) {
-                        logger.debug("non-zero size for MAP type: {}", count);
+                    if(count > 0 && logger.isTraceEnabled()) {
+                        logger.trace("non-zero size for MAP type: {}", count);
                     }
                 } else {
                     count = 0;
                     map = new Amf0Object();
                 }
                 int i = 0;
-                final byte[] endMarker = new byte[3];
                 while (in.isReadable()) {
-                    in.getBytes(in.readerIndex(), endMarker);
-                    if (Arrays.equals(endMarker, OBJECT_END_MARKER)) {
+                    if (in.readableBytes() >= 3 && in.getUnsignedMedium(in.readerIndex()) == OBJECT_END) {
                         in.skipBytes(3);
-                        if(logger.isDebugEnabled()) {
-                            logger.debug("end MAP / OBJECT, found object end marker [000009]");
-                        }
                         break;
                     }
                     if(count > 0 && i++ == count) {
-                        if(logger.isDebugEnabled()) {
-                            logger.debug("stopping map decode after reaching count: {}", count);
+                        if(logger.isTraceEnabled()) {
+                            logger.trace("stopping map decode after reaching count: {}", count);
                         }
                         break;
                     }
@@ -243,14 +326,13 @@ public class Amf0Value {
                 in.readShort(); // consume the timezone
                 return new Date((long) Double.longBitsToDouble(dateValue));
             case LONG_STRING:
-                final int stringSize = in.readInt();
-                final byte[] bytes = new byte[stringSize];
-                in.readBytes(bytes);
-                return new String(bytes); // TODO UTF-8 ?
+                return readUtf8(in, in.readInt());
             case NULL:
             case UNDEFINED:
             case UNSUPPORTED:
                 return null;
+            case AVMPLUS:
+                return Amf3Value.decode(in);
             case TYPED_OBJECT:
             	try {
             		decodedString = decodeString(in);
@@ -0,0 +1,627 @@
+package com.dc.piglet.rtmp.core.protocol.amf;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AMF3编解码，用于AMF0中avmplus-object标记(0x11)之后的一个值
+ *
+ * 按规范每次从AMF0切换到AMF3都使用新的字符串、对象和trait引用表；引用表按线程复用(每个连接的解码都在
+ * 自己的event loop中同步完成)，每次使用前清空，不为每个值分配。不使用反射：
+ * object解码为Amf0Object(带类名时放在"classname")，externalizable只支持ArrayCollection / ObjectProxy。
+ *
+ * 类型对应：integer -> Integer，double -> Double，array -> Object[](只有密集部分)或Map，
+ * byte-array -> byte[]，vector -> int[] / long[] / double[] / Object[]，dictionary -> Map
+ */
+public class Amf3Value {
+
+    private static final Logger logger = LoggerFactory.getLogger(Amf3Value.class);
+
+    private Amf3Value() {}
+
+    public static enum Type {
+
+        UNDEFINED(0x00),
+        NULL(0x01),
+        FALSE(0x02),
+        TRUE(0x03),
+        INTEGER(0x04),
+        DOUBLE(0x05),
+        STRING(0x06),
+        XML_DOCUMENT(0x07),
+        DATE(0x08),
+        ARRAY(0x09),
+        OBJECT(0x0A),
+        XML(0x0B),
+        BYTE_ARRAY(0x0C),
+        VECTOR_INT(0x0D),
+        VECTOR_UINT(0x0E),
+        VECTOR_DOUBLE(0x0F),
+        VECTOR_OBJECT(0x10),
+        DICTIONARY(0x11);
+
+        private static final Type[] BY_VALUE = new Type[0x12];
+
+        static {
+            for(final Type type : values()) {
+                BY_VALUE[type.value] = type;
+            }
+        }
+
+        private final int value;
+
+        private Type(int value) {
+            this.value = value;
+        }
+
+        public int intValue() {
+            return value;
+        }
+
+        public static Type valueToEnum(final int value) {
+            if(value < 0 || value >= BY_VALUE.length) {
+                return null;
+            }
+            return BY_VALUE[value];
+        }
+
+    }
+
+    /** U29能表示的有符号整数范围，超出时按double编码 */
+    private static final int INTEGER_MIN = -(1 << 28);
+    private static final int INTEGER_MAX = (1 << 28) - 1;
+
+    private static final String ARRAY_COLLECTION = "flex.messaging.io.ArrayCollection";
+    private static final String OBJECT_PROXY = "flex.messaging.io.ObjectProxy";
+
+    private static final String[] NO_MEMBERS = new String[0];
+
+    /**
+     * 一个object的trait：类名、sealed成员名，是否dynamic / externalizable
+     */
+    private static final class Traits {
+
+        final String className;
+        final String[] members;
+        final boolean dynamic;
+        final boolean externalizable;
+
+        Traits(final String className, final String[] members, final boolean dynamic, final boolean externalizable) {
+            this.className = className;
+            this.members = members;
+            this.dynamic = dynamic;
+            this.externalizable = externalizable;
+        }
+
+    }
+
+    /**
+     * 引用表，每个线程一份，reset后复用
+     */
+    private static final class Context {
+
+        final List<String> strings = new ArrayList<String>();
+        final List<Object> objects = new ArrayList<Object>();
+        final List<Traits> traits = new ArrayList<Traits>();
+        final Map<String, Integer> stringRefs = new HashMap<String, Integer>();
+        final Map<Object, Integer> objectRefs = new IdentityHashMap<Object, Integer>();
+        final Map<String, Integer> traitRefs = new HashMap<String, Integer>();
+        boolean inUse;
+
+        Context reset() {
+            strings.clear();
+            objects.clear();
+            traits.clear();
+            stringRefs.clear();
+            objectRefs.clear();
+            traitRefs.clear();
+            return this;
+        }
+
+    }
+
+    private static final FastThreadLocal<Context> CONTEXT = new FastThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    /**
+     * 取本线程的引用表；AMF3中不会再嵌套切换，正常不会重入，重入时临时新建一份
+     */
+    private static Context acquire() {
+        final Context context = CONTEXT.get();
+        if(context.inUse) {
+            return new Context();
+        }
+        context.inUse = true;
+        return context.reset();
+    }
+
+    private static void release(final Context context) {
+        context.inUse = false;
+    }
+
+    // ------------------------------------------------------------------ decode
+
+    public static Object decode(final ByteBuf in) {
+        final Context context = acquire();
+        try {
+            final Object value = decode(in, context);
+            if(logger.isTraceEnabled()) {
+                logger.trace("<< [AMF3 " + (value instanceof Object[] ? Arrays.toString((Object[]) value) : value) + "]");
+            }
+            return value;
+        } finally {
+            release(context);
+        }
+    }
+
+    private static Object decode(final ByteBuf in, final Context context) {
+        final int marker = in.readUnsignedByte();
+        final Type type = Type.valueToEnum(marker);
+        if(type == null) {
+            throw new RuntimeException("unexpected AMF3 type marker: " + marker);
+        }
+        switch(type) {
+            case UNDEFINED:
+            case NULL:
+                return null;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case INTEGER:
+                return (readU29(in) << 3) >> 3; // 29位有符号
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return readString(in, context);
+            case XML_DOCUMENT:
+            case XML:
+                return readXml(in, context);
+            case DATE:
+                return readDate(in, context);
+            case ARRAY:
+                return readArray(in, context);
+            case OBJECT:
+                return readObject(in, context);
+            case BYTE_ARRAY:
+                return readByteArray(in, context);
+            case VECTOR_INT:
+            case VECTOR_UINT:
+            case VECTOR_DOUBLE:
+            case VECTOR_OBJECT:
+                return readVector(in, context, type);
+            case DICTIONARY:
+                return readDictionary(in, context);
+            default:
+                throw new RuntimeException("unexpected AMF3 type: " + type);
+        }
+    }
+
+    static int readU29(final ByteBuf in) {
+        int value = 0;
+        for(int i = 0; i < 3; i++) {
+            final int b = in.readUnsignedByte();
+            if((b & 0x80) == 0) {
+                return (value << 7) | b;
+            }
+            value = (value << 7) | (b & 0x7F);
+        }
+        return (value << 8) | in.readUnsignedByte();
+    }
+
+    private static String readString(final ByteBuf in, final Context context) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.strings.get(ref >> 1);
+        }
+        final int length = ref >> 1;
+        if(length == 0) {
+            return ""; // 空字符串不进引用表
+        }
+        if(length > in.readableBytes()) {
+            throw new IndexOutOfBoundsException("string length " + length + " exceeds readable bytes " + in.readableBytes());
+        }
+        final int index = in.readerIndex();
+        String value = Amf0Strings.lookup(in, index, length);
+        if(value == null) {
+            value = in.hasArray()
+                    ? new String(in.array(), in.arrayOffset() + index, length, CharsetUtil.UTF_8)
+                    : in.toString(index, length, CharsetUtil.UTF_8);
+        }
+        in.skipBytes(length);
+        context.strings.add(value);
+        return value;
+    }
+
+    private static Object readXml(final ByteBuf in, final Context context) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.objects.get(ref >> 1);
+        }
+        final int length = ref >> 1;
+        if(length > in.readableBytes()) {
+            throw new IndexOutOfBoundsException("xml length " + length + " exceeds readable bytes " + in.readableBytes());
+        }
+        final String value = in.toString(in.readerIndex(), length, CharsetUtil.UTF_8);
+        in.skipBytes(length);
+        context.objects.add(value);
+        return value;
+    }
+
+    private static Object readDate(final ByteBuf in, final Context context) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.objects.get(ref >> 1);
+        }
+        final Date value = new Date((long) in.readDouble());
+        context.objects.add(value);
+        return value;
+    }
+
+    private static Object readArray(final ByteBuf in, final Context context) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.objects.get(ref >> 1);
+        }
+        final int denseCount = ref >> 1;
+        String key = readString(in, context);
+        if(key.isEmpty()) {
+            final Object[] array = new Object[denseCount];
+            context.objects.add(array);
+            for(int i = 0; i < denseCount; i++) {
+                array[i] = decode(in, context);
+            }
+            return array;
+        }
+        // 带关联部分的数组按ECMA array处理，密集部分的下标作为key
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        context.objects.add(map);
+        while(!key.isEmpty()) {
+            map.put(key, decode(in, context));
+            key = readString(in, context);
+        }
+        for(int i = 0; i < denseCount; i++) {
+            map.put(Integer.toString(i), decode(in, context));
+        }
+        return map;
+    }
+
+    private static Object readObject(final ByteBuf in, final Context context) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.objects.get(ref >> 1);
+        }
+        final Traits traits;
+        if((ref & 2) == 0) {
+            traits = context.traits.get(ref >> 2);
+        } else {
+            final boolean externalizable = (ref & 4) != 0;
+            final boolean dynamic = (ref & 8) != 0;
+            final int count = ref >> 4;
+            final String className = readString(in, context);
+            final String[] members = count == 0 ? NO_MEMBERS : new String[count];
+            for(int i = 0; i < count; i++) {
+                members[i] = readString(in, context);
+            }
+            traits = new Traits(className, members, dynamic, externalizable);
+            context.traits.add(traits);
+        }
+        if(traits.externalizable) {
+            if(ARRAY_COLLECTION.equals(traits.className) || OBJECT_PROXY.equals(traits.className)) {
+                // 只包含一个值(数组 / object)，用占位保证引用序号正确
+                final int slot = context.objects.size();
+                context.objects.add(null);
+                final Object value = decode(in, context);
+                context.objects.set(slot, value);
+                return value;
+            }
+            throw new RuntimeException("unsupported externalizable AMF3 class: " + traits.className);
+        }
+        final Amf0Object object = new Amf0Object();
+        context.objects.add(object);
+        for(final String member : traits.members) {
+            object.put(member, decode(in, context));
+        }
+        if(traits.dynamic) {
+            String key = readString(in, context);
+            while(!key.isEmpty()) {
+                object.put(key, decode(in, context));
+                key = readString(in, context);
+            }
+        }
+        if(!traits.className.isEmpty()) {
+            object.put("classname", traits.className);
+        }
+        return object;
+    }
+
+    private static Object readByteArray(final ByteBuf in, final Context context) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.objects.get(ref >> 1);
+        }
+        final byte[] bytes = new byte[ref >> 1];
+        in.readBytes(bytes);
+        context.objects.add(bytes);
+        return bytes;
+    }
+
+    private static Object readVector(final ByteBuf in, final Context context, final Type type) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.objects.get(ref >> 1);
+        }
+        final int count = ref >> 1;
+        in.skipBytes(1); // fixed-vector
+        switch(type) {
+            case VECTOR_INT: {
+                final int[] vector = new int[count];
+                context.objects.add(vector);
+                for(int i = 0; i < count; i++) {
+                    vector[i] = in.readInt();
+                }
+                return vector;
+            }
+            case VECTOR_UINT: {
+                final long[] vector = new long[count];
+                context.objects.add(vector);
+                for(int i = 0; i < count; i++) {
+                    vector[i] = in.readUnsignedInt();
+                }
+                return vector;
+            }
+            case VECTOR_DOUBLE: {
+                final double[] vector = new double[count];
+                context.objects.add(vector);
+                for(int i = 0; i < count; i++) {
+                    vector[i] = in.readDouble();
+                }
+                return vector;
+            }
+            default: {
+                readString(in, context); // 元素类型名，不需要
+                final Object[] vector = new Object[count];
+                context.objects.add(vector);
+                for(int i = 0; i < count; i++) {
+                    vector[i] = decode(in, context);
+                }
+                return vector;
+            }
+        }
+    }
+
+    private static Object readDictionary(final ByteBuf in, final Context context) {
+        final int ref = readU29(in);
+        if((ref & 1) == 0) {
+            return context.objects.get(ref >> 1);
+        }
+        final int count = ref >> 1;
+        in.skipBytes(1); // weak-keys
+        final Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+        context.objects.add(map);
+        for(int i = 0; i < count; i++) {
+            final Object key = decode(in, context);
+            map.put(key, decode(in, context));
+        }
+        return map;
+    }
+
+    // ------------------------------------------------------------------ encode
+
+    public static void encode(final ByteBuf out, final Object value) {
+        final Context context = acquire();
+        try {
+            if(logger.isTraceEnabled()) {
+                logger.trace(">> [AMF3 " + (value instanceof Object[] ? Arrays.toString((Object[]) value) : value) + "]");
+            }
+            encode(out, value, context);
+        } finally {
+            release(context);
+        }
+    }
+
+    private static void encode(final ByteBuf out, final Object value, final Context context) {
+        if(value == null) {
+            out.writeByte(Type.NULL.value);
+        } else if(value instanceof String) {
+            out.writeByte(Type.STRING.value);
+            writeString(out, (String) value, context);
+        } else if(value instanceof Boolean) {
+            out.writeByte((Boolean) value ? Type.TRUE.value : Type.FALSE.value);
+        } else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            final int i = ((Number) value).intValue();
+            if(i >= INTEGER_MIN && i <= INTEGER_MAX) {
+                out.writeByte(Type.INTEGER.value);
+                writeU29(out, i & 0x1FFFFFFF);
+            } else {
+                out.writeByte(Type.DOUBLE.value);
+                out.writeDouble(i);
+            }
+        } else if(value instanceof Number) {
+            out.writeByte(Type.DOUBLE.value);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if(value instanceof Date) {
+            out.writeByte(Type.DATE.value);
+            if(!writeReference(out, value, context)) {
+                writeU29(out, 1);
+                out.writeDouble(((Date) value).getTime());
+            }
+        } else if(value instanceof Amf0Object) {
+            out.writeByte(Type.OBJECT.value);
+            writeObject(out, (Amf0Object) value, context);
+        } else if(value instanceof Map) {
+            out.writeByte(Type.ARRAY.value);
+            writeMap(out, (Map<?, ?>) value, context);
+        } else if(value instanceof Object[]) {
+            out.writeByte(Type.ARRAY.value);
+            if(!writeReference(out, value, context)) {
+                final Object[] array = (Object[]) value;
+                writeU29(out, (array.length << 1) | 1);
+                writeU29(out, 1); // 没有关联部分
+                for(final Object o : array) {
+                    encode(out, o, context);
+                }
+            }
+        } else if(value instanceof byte[]) {
+            out.writeByte(Type.BYTE_ARRAY.value);
+            if(!writeReference(out, value, context)) {
+                final byte[] bytes = (byte[]) value;
+                writeU29(out, (bytes.length << 1) | 1);
+                out.writeBytes(bytes);
+            }
+        } else if(value instanceof int[]) {
+            out.writeByte(Type.VECTOR_INT.value);
+            if(!writeReference(out, value, context)) {
+                final int[] vector = (int[]) value;
+                writeU29(out, (vector.length << 1) | 1);
+                out.writeByte(0);
+                for(final int i : vector) {
+                    out.writeInt(i);
+                }
+            }
+        } else if(value instanceof long[]) {
+            out.writeByte(Type.VECTOR_UINT.value);
+            if(!writeReference(out, value, context)) {
+                final long[] vector = (long[]) value;
+                writeU29(out, (vector.length << 1) | 1);
+                out.writeByte(0);
+                for(final long l : vector) {
+                    out.writeInt((int) l);
+                }
+            }
+        } else if(value instanceof double[]) {
+            out.writeByte(Type.VECTOR_DOUBLE.value);
+            if(!writeReference(out, value, context)) {
+                final double[] vector = (double[]) value;
+                writeU29(out, (vector.length << 1) | 1);
+                out.writeByte(0);
+                for(final double d : vector) {
+                    out.writeDouble(d);
+                }
+            }
+        } else {
+            throw new RuntimeException("unexpected type: " + value.getClass());
+        }
+    }
+
+    static void writeU29(final ByteBuf out, final int value) {
+        if(value < 0x80) {
+            out.writeByte(value);
+        } else if(value < 0x4000) {
+            out.writeByte((value >> 7) | 0x80);
+            out.writeByte(value & 0x7F);
+        } else if(value < 0x200000) {
+            out.writeByte((value >> 14) | 0x80);
+            out.writeByte(((value >> 7) & 0x7F) | 0x80);
+            out.writeByte(value & 0x7F);
+        } else if(value < 0x20000000) {
+            out.writeByte((value >> 22) | 0x80);
+            out.writeByte(((value >> 15) & 0x7F) | 0x80);
+            out.writeByte(((value >> 8) & 0x7F) | 0x80);
+            out.writeByte(value & 0xFF);
+        } else {
+            throw new RuntimeException("value out of U29 range: " + value);
+        }
+    }
+
+    /**
+     * 已写过的字符串写引用，否则写长度和UTF-8并加入引用表；空字符串不进引用表
+     */
+    private static void writeString(final ByteBuf out, final String value, final Context context) {
+        if(value.isEmpty()) {
+            writeU29(out, 1);
+            return;
+        }
+        final Integer ref = context.stringRefs.get(value);
+        if(ref != null) {
+            writeU29(out, ref << 1);
+            return;
+        }
+        context.stringRefs.put(value, context.stringRefs.size());
+        final byte[] known = Amf0Strings.encoded(value);
+        if(known != null) {
+            writeU29(out, (known.length << 1) | 1);
+            out.writeBytes(known);
+            return;
+        }
+        final byte[] bytes = value.getBytes(CharsetUtil.UTF_8);
+        writeU29(out, (bytes.length << 1) | 1);
+        out.writeBytes(bytes);
+    }
+
+    /**
+     * 同一个对象第二次出现时只写引用，返回true
+     */
+    private static boolean writeReference(final ByteBuf out, final Object value, final Context context) {
+        final Integer ref = context.objectRefs.get(value);
+        if(ref != null) {
+            writeU29(out, ref << 1);
+            return true;
+        }
+        context.objectRefs.put(value, context.objectRefs.size());
+        return false;
+    }
+
+    /**
+     * Amf0Object编码为dynamic object，类名相同的trait只写一次
+     */
+    private static void writeObject(final ByteBuf out, final Amf0Object object, final Context context) {
+        if(writeReference(out, object, context)) {
+            return;
+        }
+        final Object classname = object.get("classname");
+        final String className = classname instanceof String ? (String) classname : "";
+        final Integer traitRef = context.traitRefs.get(className);
+        if(traitRef != null) {
+            writeU29(out, (traitRef << 2) | 1);
+        } else {
+            context.traitRefs.put(className, context.traitRefs.size());
+            writeU29(out, 0x0B); // inline trait，dynamic，没有sealed成员
+            writeString(out, className, context);
+        }
+        for(final Map.Entry<String, Object> entry : object.entrySet()) {
+            if(entry.getKey().isEmpty() || "classname".equals(entry.getKey())) {
+                continue;
+            }
+            writeString(out, entry.getKey(), context);
+            encode(out, entry.getValue(), context);
+        }
+        writeU29(out, 1);
+    }
+
+    /**
+     * 普通Map编码为只有关联部分的array，对应AMF0的ECMA array
+     */
+    private static void writeMap(final ByteBuf out, final Map<?, ?> map, final Context context) {
+        if(writeReference(out, map, context)) {
+            return;
+        }
+        writeU29(out, 1);
+        for(final Map.Entry<?, ?> entry : map.entrySet()) {
+            final String key = String.valueOf(entry.getKey());
+            if(key.isEmpty()) {
+                continue;
+            }
+            writeString(out, key, context);
+            encode(out, entry.getValue(), context);
+        }
+        writeU29(out, 1);
+    }
+
+}
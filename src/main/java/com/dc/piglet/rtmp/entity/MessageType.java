@@ -76,6 +76,8 @@ public enum MessageType {
 
     /**
      * 根据msgType解码
+     *
+     * @return 不支持的shared object消息返回null，由调用方丢弃
      */
     public static RtmpMessage decode(final RtmpHeader header, final ByteBuf in) {
         switch(header.getMsgType()) {
@@ -84,6 +86,8 @@ public enum MessageType {
             case CHUNK_SIZE: return new ChunkSize(header, in);
             case COMMAND_AMF0: return new CommandAmf0(header, in);
             case METADATA_AMF0: return new MetadataAmf0(header, in);
+            case COMMAND_AMF3: return new CommandAmf3(header, in);
+            case METADATA_AMF3: return new MetadataAmf3(header, in);
             case CONTROL: return new Control(header, in);
             case WINDOW_ACK_SIZE: return new WindowAckSize(header, in);
             case SET_PEER_BW: return new SetPeerBw(header, in);
@@ -93,6 +97,7 @@ public enum MessageType {
             case SHARED_OBJECT_AMF0:
             case SHARED_OBJECT_AMF3:
                 //return new SharedObjectMessage(header, in);
+                return null;
             default: throw new RuntimeException("unable to create message for: " + header);
         }
     }
@@ -0,0 +1,268 @@
+package com.dc.piglet.rtmp.handler;
+
+import com.dc.piglet.rtmp.core.protocol.DataMessage;
+import com.dc.piglet.rtmp.core.protocol.RtmpHeader;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 直播订阅者的有界发送队列，位于RtmpEncoder和ServerHandler之间，只丢弃ChunkedBroadcast
+ *
+ * channel可写且队列为空时直接下发；不可写时进入队列，channelWritabilityChanged后按序补发。
+ * 队列不为空时其他message(onStatus、控制消息)也进入队列，保证不会越过排在前面的媒体数据。
+ * 订阅者跟不上时：
+ * 1. 不可写期间到达的非关键帧视频直接丢弃，之后等待下一个关键帧
+ * 2. 队列超过maxQueueBytes时从最旧的开始按GOP(关键帧到下一个关键帧之前)丢弃视频，
+ *    队列中没有下一个关键帧时丢弃全部视频并等待新的关键帧
+ * 3. 只剩音频仍超限时才丢弃最旧的音频
+ * 音频和config message优先保留，从下一个关键帧(Video.isKeyframe())恢复视频。
+ */
+public class BackpressureHandler extends ChannelDuplexHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(BackpressureHandler.class);
+
+    private final long maxQueueBytes;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+    private long queueBytes;
+    private boolean waitingKeyframe;
+
+    private long droppedVideo;
+    private long droppedAudio;
+    private long droppedBytes;
+    private int lastReceivedTime;
+    private int lastDeliveredTime;
+    private int maxLag;
+
+    private static final class Pending {
+        private final Object msg;
+        /** msg是ChunkedBroadcast时不为null，只有这些可以丢弃 */
+        private final ChunkedBroadcast broadcast;
+        private final ChannelPromise promise;
+
+        private Pending(final Object msg, final ChannelPromise promise) {
+            this.msg = msg;
+            this.broadcast = msg instanceof ChunkedBroadcast ? (ChunkedBroadcast) msg : null;
+            this.promise = promise;
+        }
+
+        private int size() {
+            return broadcast == null ? 0 : broadcast.getMsgLength();
+        }
+
+        private boolean isVideo() {
+            return broadcast != null && broadcast.getMessage().getHeader().isVideo() && !isConfig(broadcast.getMessage());
+        }
+
+        private boolean isAudio() {
+            return broadcast != null && broadcast.getMessage().getHeader().isAudio() && !isConfig(broadcast.getMessage());
+        }
+    }
+
+    public BackpressureHandler(final long maxQueueBytes) {
+        this.maxQueueBytes = maxQueueBytes;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if(!(msg instanceof ChunkedBroadcast)) {
+            if(queue.isEmpty()) {
+                ctx.write(msg, promise);
+            } else {
+                queue.add(new Pending(msg, promise));
+            }
+            return;
+        }
+        final ChunkedBroadcast broadcast = (ChunkedBroadcast) msg;
+        final RtmpMessage message = broadcast.getMessage();
+        final RtmpHeader header = message.getHeader();
+        lastReceivedTime = header.getTimestamp();
+        if(header.isVideo() && !isConfig(message)) {
+            if(waitingKeyframe) {
+                if(!isKeyframe(message) || !ctx.channel().isWritable()) {
+                    drop(broadcast, promise);
+                    return;
+                }
+                waitingKeyframe = false;
+                log.info("subscriber {} resumed at keyframe, lag: {}ms", ctx.channel(), getLag());
+            } else if(!ctx.channel().isWritable() && !isKeyframe(message)) {
+                startDropping(ctx);
+                drop(broadcast, promise);
+                return;
+            }
+        }
+        if(queue.isEmpty() && ctx.channel().isWritable()) {
+            deliver(ctx, broadcast, promise);
+            return;
+        }
+        queue.add(new Pending(msg, promise));
+        queueBytes += broadcast.getMsgLength();
+        if(queueBytes > maxQueueBytes) {
+            trimQueue(ctx);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if(ctx.channel().isWritable()) {
+            drain(ctx);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if(droppedVideo > 0 || droppedAudio > 0) {
+            log.info("subscriber {} closed, dropped video: {}, dropped audio: {}, dropped bytes: {}, max lag: {}ms",
+                    new Object[]{ctx.channel(), droppedVideo, droppedAudio, droppedBytes, maxLag});
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        Pending pending;
+        while((pending = queue.poll()) != null) {
+            ReferenceCountUtil.release(pending.msg);
+            pending.promise.tryFailure(new IllegalStateException("subscriber removed"));
+        }
+        queueBytes = 0;
+    }
+
+    private void drain(final ChannelHandlerContext ctx) {
+        boolean written = false;
+        while(ctx.channel().isWritable()) {
+            final Pending pending = queue.poll();
+            if(pending == null) {
+                break;
+            }
+            queueBytes -= pending.size();
+            if(pending.broadcast != null) {
+                deliver(ctx, pending.broadcast, pending.promise);
+            } else {
+                ctx.write(pending.msg, pending.promise);
+            }
+            written = true;
+        }
+        if(written) {
+            ctx.flush();
+        }
+    }
+
+    private void deliver(final ChannelHandlerContext ctx, final ChunkedBroadcast broadcast, final ChannelPromise promise) {
+        lastDeliveredTime = broadcast.getMessage().getHeader().getTimestamp();
+        ctx.write(broadcast, promise);
+    }
+
+    /**
+     * 先按GOP丢队列里最旧的视频，只剩音频 / config时再丢最旧的音频，config和其他message始终保留
+     */
+    private void trimQueue(final ChannelHandlerContext ctx) {
+        while(queueBytes > maxQueueBytes && dropOldestGop(ctx)) {
+            // 继续丢下一个GOP
+        }
+        final Iterator<Pending> audio = queue.iterator();
+        while(audio.hasNext() && queueBytes > maxQueueBytes) {
+            final Pending pending = audio.next();
+            if(pending.isAudio()) {
+                audio.remove();
+                queueBytes -= pending.size();
+                drop(pending.broadcast, pending.promise);
+            }
+        }
+    }
+
+    /**
+     * 丢弃队列中最旧的一段视频：从第一帧视频到下一个关键帧之前，保证剩下的视频从关键帧开始。
+     * 后面没有关键帧时丢弃的是最后一个GOP，之后到达的非关键帧依赖它，只能等待新的关键帧
+     * @return 队列中没有视频可丢时返回false
+     */
+    private boolean dropOldestGop(final ChannelHandlerContext ctx) {
+        boolean first = true;
+        boolean dropped = false;
+        final Iterator<Pending> it = queue.iterator();
+        while(it.hasNext()) {
+            final Pending pending = it.next();
+            if(!pending.isVideo()) {
+                continue;
+            }
+            if(!first && isKeyframe(pending.broadcast.getMessage())) {
+                return true;
+            }
+            first = false;
+            it.remove();
+            queueBytes -= pending.size();
+            drop(pending.broadcast, pending.promise);
+            dropped = true;
+        }
+        if(dropped) {
+            startDropping(ctx);
+        }
+        return dropped;
+    }
+
+    private void startDropping(final ChannelHandlerContext ctx) {
+        if(!waitingKeyframe) {
+            waitingKeyframe = true;
+            log.warn("subscriber {} lagging {}ms, queued bytes: {}, dropping video until next keyframe",
+                    new Object[]{ctx.channel(), getLag(), queueBytes});
+        }
+    }
+
+    private void drop(final ChunkedBroadcast broadcast, final ChannelPromise promise) {
+        if(broadcast.getMessage().getHeader().isVideo()) {
+            droppedVideo++;
+        } else {
+            droppedAudio++;
+        }
+        droppedBytes += broadcast.getMsgLength();
+        maxLag = Math.max(maxLag, getLag());
+        broadcast.release();
+        // 丢帧不是错误，不让调用方看到失败
+        promise.trySuccess();
+    }
+
+    private static boolean isConfig(final RtmpMessage message) {
+        return message instanceof DataMessage && ((DataMessage) message).isConfig();
+    }
+
+    private static boolean isKeyframe(final RtmpMessage message) {
+        return message instanceof Video && ((Video) message).isKeyframe();
+    }
+
+    /**
+     * 最新收到的message与最后下发的message之间的时间差(毫秒)
+     */
+    public int getLag() {
+        return Math.max(0, lastReceivedTime - lastDeliveredTime);
+    }
+
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    public long getDroppedVideo() {
+        return droppedVideo;
+    }
+
+    public long getDroppedAudio() {
+        return droppedAudio;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public long getQueueBytes() {
+        return queueBytes;
+    }
+
+}
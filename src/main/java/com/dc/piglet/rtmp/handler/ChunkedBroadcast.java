@@ -0,0 +1,118 @@
+package com.dc.piglet.rtmp.handler;
+
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.entity.Type;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 发给多个订阅者的同一个message
+ *
+ * payload只encode一次，chunk切分结果按(chunkSize, chunkType, deltaTime)缓存，
+ * 状态相同的订阅者共享同一份chunk buffer，各自拿到retainedDuplicate。
+ * 缓存是CAS发布的不可变数组，多个EventLoop并发取chunk时不加锁，命中只读一次volatile。
+ * ChannelGroup为每个channel retain一次，最后一个RtmpEncoder release后释放缓存的chunk和message。
+ */
+public class ChunkedBroadcast extends AbstractReferenceCounted {
+
+    private final RtmpMessage message;
+    private final ByteBuf payload;
+    private static final Chunked[] EMPTY = new Chunked[0];
+    private final AtomicReference<Chunked[]> chunked = new AtomicReference<Chunked[]>(EMPTY);
+
+    private static final class Chunked {
+        private final int chunkSize;
+        private final Type chunkType;
+        private final int deltaTime;
+        private final ByteBuf out;
+
+        private Chunked(final int chunkSize, final Type chunkType, final int deltaTime, final ByteBuf out) {
+            this.chunkSize = chunkSize;
+            this.chunkType = chunkType;
+            this.deltaTime = deltaTime;
+            this.out = out;
+        }
+
+        private boolean matches(final int chunkSize, final Type chunkType, final int deltaTime) {
+            return this.chunkSize == chunkSize && this.chunkType == chunkType && this.deltaTime == deltaTime;
+        }
+    }
+
+    /**
+     * @param message 接管调用方对message持有的一个引用
+     */
+    public ChunkedBroadcast(final RtmpMessage message) {
+        this.message = message;
+        this.payload = message.encode();
+    }
+
+    public RtmpMessage getMessage() {
+        return message;
+    }
+
+    public int getMsgLength() {
+        return payload.readableBytes();
+    }
+
+    /**
+     * 调用方必须持有本对象的引用，因此不会与deallocate并发
+     *
+     * @return 调用方负责release
+     */
+    public ByteBuf chunks(final ByteBufAllocator alloc, final int chunkSize, final Type chunkType, final int deltaTime) {
+        Chunked[] current = chunked.get();
+        Chunked found = find(current, chunkSize, chunkType, deltaTime);
+        if(found != null) {
+            return found.out.retainedDuplicate();
+        }
+        final Chunked created = new Chunked(chunkSize, chunkType, deltaTime,
+                RtmpEncoder.chunk(alloc, message.getHeader(), payload.duplicate(), chunkType, deltaTime, chunkSize));
+        for(;;) {
+            final Chunked[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = created;
+            if(chunked.compareAndSet(current, next)) {
+                return created.out.retainedDuplicate();
+            }
+            // 其他线程同时发布了新的变体，可能正好是同一个，用先发布的那份
+            current = chunked.get();
+            found = find(current, chunkSize, chunkType, deltaTime);
+            if(found != null) {
+                created.out.release();
+                return found.out.retainedDuplicate();
+            }
+        }
+    }
+
+    private static Chunked find(final Chunked[] chunked, final int chunkSize, final Type chunkType, final int deltaTime) {
+        for(final Chunked c : chunked) {
+            if(c.matches(chunkSize, chunkType, deltaTime)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void deallocate() {
+        for(final Chunked c : chunked.getAndSet(EMPTY)) {
+            c.out.release();
+        }
+        ReferenceCountUtil.release(message);
+    }
+
+    @Override
+    public ChunkedBroadcast touch(final Object hint) {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "broadcast " + message;
+    }
+
+}
@@ -1,14 +1,12 @@
 package com.dc.piglet.rtmp.handler;
 
 import com.dc.piglet.rtmp.core.protocol.RtmpHandshake;
-import com.dc.piglet.rtmp.util.Util;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
 import java.util.List;
 
 public class HandShakeHandler extends ByteToMessageDecoder {
@@ -42,6 +40,10 @@ public class HandShakeHandler extends ByteToMessageDecoder {
                 return;
             }
             handshake.decodeClient0And1(in);
+            if(handshake.isRtmpe()) {
+                // 加密连接不能用sendfile和引用切片发送
+                ctx.channel().pipeline().get(RtmpEncoder.class).setZeroCopy(false);
+            }
             ctx.write(handshake.encodeServer0());
             ctx.write(handshake.encodeServer1());
             ctx.write(handshake.encodeServer2());
@@ -54,7 +56,7 @@ public class HandShakeHandler extends ByteToMessageDecoder {
             }
             handshake.decodeClient2(in);
             handshakeDone = true;
-            if(Arrays.equals(handshake.getPeerVersion(), Util.fromHex("00000000"))) {
+            if(handshake.getPeerVersionValue() == 0) {
                 final ServerHandler serverHandler = ctx.channel().pipeline().get(ServerHandler.class);
                 serverHandler.setAggregateModeEnabled(false);
                 logger.info("old client version, disabled 'aggregate' mode");
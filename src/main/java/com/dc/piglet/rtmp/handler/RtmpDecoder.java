@@ -1,15 +1,19 @@
 package com.dc.piglet.rtmp.handler;
 
+import com.dc.piglet.rtmp.core.protocol.Abort;
 import com.dc.piglet.rtmp.core.protocol.ChunkSize;
 import com.dc.piglet.rtmp.core.protocol.Control;
 import com.dc.piglet.rtmp.core.protocol.RtmpHeader;
 import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
 import com.dc.piglet.rtmp.entity.DecodeState;
 import com.dc.piglet.rtmp.entity.MessageType;
+import com.dc.piglet.rtmp.util.ChunkStreamTable;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ReferenceCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,67 +24,172 @@ import static com.dc.piglet.rtmp.entity.DecodeState.GET_PAYLOAD;
 
 /**
  * 以chunk为单位，粘包成一个message
+ *
+ * header只在完整可读时解析一次，chunk数据按到达的字节增量读取，不会因半包而重复解析。
+ * zeroCopy模式下音视频message由入站池化buffer的retained slice拼成CompositeByteBuf，
+ * 其余message拷贝到池化buffer，解码成对象后立即release。
+ * 音视频message的引用计数随消息交给下游，由最终消费者(编码器 / ServerHandler)负责release。
  */
-public class RtmpDecoder extends ReplayingDecoder<DecodeState> {
+public class RtmpDecoder extends ByteToMessageDecoder {
     private static final Logger log = LoggerFactory.getLogger(RtmpDecoder.class);
-    public static final int MAX_CHANNEL_ID = 65600;
 
+    private final boolean zeroCopy;
     private int chunkSize = 128;
-    private final RtmpHeader[] incompleteHeaders = new RtmpHeader[MAX_CHANNEL_ID];
-    private final ByteBuf[] incompletePayloads = new ByteBuf[MAX_CHANNEL_ID];
-    private final RtmpHeader[] completedHeaders = new RtmpHeader[MAX_CHANNEL_ID];
+    private final ChunkStreamTable<ChunkStream> chunkStreams = new ChunkStreamTable<ChunkStream>();
 
-    private ByteBuf payLoad;
-    private int csId;
-    private RtmpHeader header;
+    private DecodeState state = GET_HEADER;
+    private ChunkStream current;
+    private int chunkRemaining;
+
+    /**
+     * 单个chunk stream的解码状态：上一个header用于header压缩，payload为尚未收齐的message
+     */
+    private static final class ChunkStream {
+        private RtmpHeader prevHeader;
+        private RtmpHeader header;
+        private ByteBuf payload;
+
+        private int remaining() {
+            return header.getMsgLength() - payload.writerIndex();
+        }
+
+        private void begin(final ByteBufAllocator alloc, final RtmpHeader header, final boolean zeroCopy) {
+            if(prevHeader != null && !header.isLarge()) {
+                header.setTimestamp(prevHeader.getTimestamp() + header.getDeltaTime());
+            }
+            this.header = header;
+            final int msgLength = header.getMsgLength();
+            if(zeroCopy && header.isMedia()) {
+                payload = alloc.compositeBuffer(Integer.MAX_VALUE);
+            } else {
+                payload = alloc.buffer(msgLength, msgLength);
+            }
+        }
+
+        private void append(final ByteBuf in, final int length) {
+            if(payload instanceof CompositeByteBuf) {
+                ((CompositeByteBuf) payload).addComponent(true, in.readRetainedSlice(length));
+            } else {
+                payload.writeBytes(in, length);
+            }
+        }
+
+        private void discard() {
+            if(payload != null) {
+                payload.release();
+                payload = null;
+            }
+        }
+    }
 
     public RtmpDecoder() {
-        super(GET_HEADER);
+        this(true);
+    }
+
+    public RtmpDecoder(final boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-
-        switch (state()){
-            case GET_HEADER:
-                header = new RtmpHeader(in, incompleteHeaders);
-                csId = header.getCsId();
-                if(incompletePayloads[csId] == null){
-                    incompleteHeaders[csId] = header;
-                    incompletePayloads[csId] = Unpooled.buffer(header.getMsgLength(),header.getMsgLength());
-                }
-                payLoad = incompletePayloads[csId];
-                checkpoint(GET_PAYLOAD);
-            case GET_PAYLOAD:
-                final byte[] bytes = new byte[Math.min(payLoad.writableBytes(),chunkSize)];
-                in.readBytes(bytes);
-                payLoad.writeBytes(bytes);
-                checkpoint(GET_HEADER);
-                //粘包
-                if(payLoad.isWritable()) {
-                    return;
-                }
-                incompletePayloads[csId] = null;
-                final RtmpHeader prevHeader = completedHeaders[csId];
-                if (!header.isLarge()) {
-                    header.setTimestamp(prevHeader.getTimestamp() + header.getDeltaTime());
-                }
-                //解码
-                final RtmpMessage message = MessageType.decode(header, payLoad);
-                if(log.isDebugEnabled()) {
-                    if(message.getHeader().getMsgType() != MessageType.CONTROL || ((Control) message).getType() != Control.Type.PING_REQUEST)
-                    {
-                        log.debug("<< {}", message);
+        while(true) {
+            switch (state) {
+                case GET_HEADER:
+                    final int headerSize = RtmpHeader.peekEncodedSize(in);
+                    if(headerSize < 0 || in.readableBytes() < headerSize) {
+                        return;
+                    }
+                    final int csId = RtmpHeader.peekCsId(in);
+                    ChunkStream stream = chunkStreams.get(csId);
+                    if(stream == null) {
+                        stream = new ChunkStream();
+                        chunkStreams.put(csId, stream);
+                    }
+                    // 后续chunk参照本message的header，新message参照上一个message的header
+                    final RtmpHeader header = new RtmpHeader(in, stream.payload != null ? stream.header : stream.prevHeader);
+                    if(stream.payload == null) {
+                        stream.begin(ctx.alloc(), header, zeroCopy);
                     }
-                }
-                payLoad = null;
-                if(header.isChunkSize()) {
-                    final ChunkSize csMessage = (ChunkSize) message;
-                    log.debug("decoder new chunk size: {}", csMessage);
-                    chunkSize = csMessage.getChunkSize();
-                }
-                completedHeaders[csId] = header;
-                ctx.fireChannelRead(message);
+                    current = stream;
+                    chunkRemaining = Math.min(chunkSize, stream.remaining());
+                    state = GET_PAYLOAD;
+                case GET_PAYLOAD:
+                    final int length = Math.min(chunkRemaining, in.readableBytes());
+                    if(length > 0) {
+                        current.append(in, length);
+                        chunkRemaining -= length;
+                    }
+                    if(chunkRemaining > 0) {
+                        return;
+                    }
+                    state = GET_HEADER;
+                    //粘包
+                    if(current.remaining() > 0) {
+                        break;
+                    }
+                    final RtmpMessage message = complete(current);
+                    if(message != null) {
+                        out.add(message);
+                    }
+                    current = null;
+            }
+        }
+    }
+
+    /**
+     * @return 不支持的message(shared object)已丢弃，返回null
+     */
+    private RtmpMessage complete(final ChunkStream stream) {
+        final RtmpHeader header = stream.header;
+        final ByteBuf payLoad = stream.payload;
+        stream.prevHeader = header;
+        stream.header = null;
+        stream.payload = null;
+        //解码
+        final RtmpMessage message;
+        try {
+            message = MessageType.decode(header, payLoad);
+        } catch(RuntimeException e) {
+            payLoad.release();
+            throw e;
+        }
+        if(message == null) {
+            // 不支持shared object，丢弃这个message，连接继续
+            log.warn("dropping unsupported message: {}", header);
+            payLoad.release();
+            return null;
+        }
+        // 非数据消息已解码为对象，payload不再需要
+        if(!(message instanceof ReferenceCounted)) {
+            payLoad.release();
+        }
+        if(log.isDebugEnabled()) {
+            if(message.getHeader().getMsgType() != MessageType.CONTROL || ((Control) message).getType() != Control.Type.PING_REQUEST)
+            {
+                log.debug("<< {}", message);
+            }
+        }
+        if(header.isChunkSize()) {
+            final ChunkSize csMessage = (ChunkSize) message;
+            log.debug("decoder new chunk size: {}", csMessage);
+            chunkSize = csMessage.getChunkSize();
+        } else if(header.getMsgType() == MessageType.ABORT) {
+            final int abortCsId = ((Abort) message).getStreamId();
+            log.debug("aborting incomplete message on chunk stream: {}", abortCsId);
+            final ChunkStream aborted = chunkStreams.get(abortCsId);
+            if(aborted != null) {
+                aborted.discard();
+            }
+        }
+        return message;
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        for(final ChunkStream stream : chunkStreams.values()) {
+            stream.discard();
         }
+        chunkStreams.clear();
+        current = null;
     }
 }
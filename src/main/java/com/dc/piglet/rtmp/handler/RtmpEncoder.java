@@ -1,38 +1,215 @@
 package com.dc.piglet.rtmp.handler;
 
+import com.dc.piglet.rtmp.core.io.FileSlice;
+import com.dc.piglet.rtmp.core.protocol.Aggregate;
 import com.dc.piglet.rtmp.core.protocol.ChunkSize;
 import com.dc.piglet.rtmp.core.protocol.Control;
 import com.dc.piglet.rtmp.core.protocol.RtmpHeader;
 import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
 import com.dc.piglet.rtmp.entity.MessageType;
 import com.dc.piglet.rtmp.entity.Type;
+import com.dc.piglet.rtmp.util.ChunkStreamTable;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 将message切分成chunk
+ * 只在本连接的状态里记录header压缩信息，不修改message的header，广播时多个连接可并发编码同一个message
+ *
+ * write不再逐条flush：在读突发结束 / publisher tick时由上游显式flush，
+ * 未flush的message达到maxBatchSize条或超过maxLatency毫秒时由编码器自己flush。
+ * maxBatchSize <= 1 或 maxLatency <= 0 时退化为逐条flush。
+ *
+ * 开启zeroCopy时点播的aggregate不拷贝payload：chunk header写在小buffer里，
+ * payload在文件里时每个chunk的payload是一个DefaultFileRegion(sendfile)，在映射内存里时直接引用切片，
+ * 由内核完成唯一一次拷贝。
+ * 加密(RTMPE)连接需要在用户态处理每个字节，必须关闭。
+ */
 public class RtmpEncoder extends ChannelOutboundHandlerAdapter {
 
     private static final Logger logger = LoggerFactory.getLogger(RtmpEncoder.class);
 
+    /** 所有连接累计的flush次数 / 合并掉的flush次数 */
+    private static final AtomicLong TOTAL_FLUSHES = new AtomicLong();
+    private static final AtomicLong TOTAL_FLUSHES_SAVED = new AtomicLong();
+
+    private final int maxBatchSize;
+    private final long maxLatency;
+    private ChannelHandlerContext ctx;
+    private int pending;
+    private ScheduledFuture<?> scheduledFlush;
+    private long flushes;
+    private long flushesSaved;
+    private boolean zeroCopy;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            scheduledFlush = null;
+            flushPending(ctx);
+        }
+    };
+
     private int chunkSize = 128;
-    private RtmpHeader[] channelPrevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
+    private final ChunkStreamTable<PrevHeader> channelPrevHeaders = new ChunkStreamTable<PrevHeader>();
+
+    /** 最近一次compress的结果 */
+    private Type chunkType;
+    private int deltaTime;
+
+    /**
+     * 每个chunk stream上一个message中参与header压缩的字段
+     */
+    private static final class PrevHeader {
+        private int timestamp;
+        private int msgLength;
+        private MessageType msgType;
+        private int streamId;
+    }
+
+    public RtmpEncoder() {
+        this(1, 0);
+    }
+
+    /**
+     * @param maxBatchSize 最多合并多少条message再flush
+     * @param maxLatency message在编码器里最多停留的毫秒数
+     */
+    public RtmpEncoder(final int maxBatchSize, final long maxLatency) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatency = maxLatency;
+    }
+
+    public static long getTotalFlushes() {
+        return TOTAL_FLUSHES.get();
+    }
+
+    /**
+     * 合并掉的flush次数，即省下的write系统调用次数
+     */
+    public static long getTotalFlushesSaved() {
+        return TOTAL_FLUSHES_SAVED.get();
+    }
+
+    public void setZeroCopy(final boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public long getFlushesSaved() {
+        return flushesSaved;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        cancelScheduledFlush();
+    }
 
     private void clearPrevHeaders() {
         logger.debug("clearing prev stream headers");
-        channelPrevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
+        channelPrevHeaders.clear();
     }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise){
-        if(msg instanceof RtmpMessage){
-            ctx.write(encode((RtmpMessage) msg),promise);
-            ctx.flush();
+        if(zeroCopy && msg instanceof Aggregate) {
+            try {
+                writeZeroCopy(ctx, (Aggregate) msg, promise);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+            written(ctx);
+            return;
+        }
+        if(!(msg instanceof ChunkedBroadcast) && !(msg instanceof RtmpMessage)) {
+            // 不是RTMP消息(例如握手的ByteBuf)，原样交给下一个handler，引用由它释放
+            ctx.write(msg, promise);
+            return;
+        }
+        final ByteBuf out;
+        try {
+            if(msg instanceof ChunkedBroadcast) {
+                out = encode(ctx.alloc(), (ChunkedBroadcast) msg);
+            } else {
+                out = encode(ctx.alloc(), (RtmpMessage) msg);
+            }
+        } finally {
+            // payload已拷贝进chunk buffer，释放消息持有的引用
+            ReferenceCountUtil.release(msg);
+        }
+        ctx.write(out,promise);
+        written(ctx);
+    }
+
+    private void written(final ChannelHandlerContext ctx) {
+        pending++;
+        if(pending >= maxBatchSize || maxLatency <= 0) {
+            flushPending(ctx);
+        } else if(scheduledFlush == null) {
+            scheduledFlush = ctx.executor().schedule(flushTask, maxLatency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        flushPending(ctx);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        // 关闭前把已写入的message发出去，例如publishBadName之后的close
+        flushPending(ctx);
+        ctx.close(promise);
+    }
+
+    private void flushPending(final ChannelHandlerContext ctx) {
+        cancelScheduledFlush();
+        if(pending > 1) {
+            flushesSaved += pending - 1;
+            TOTAL_FLUSHES_SAVED.addAndGet(pending - 1);
+        }
+        if(pending > 0) {
+            flushes++;
+            TOTAL_FLUSHES.incrementAndGet();
+        }
+        pending = 0;
+        ctx.flush();
+    }
+
+    private void cancelScheduledFlush() {
+        if(scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
         }
     }
 
     public ByteBuf encode(final RtmpMessage message) {
+        return encode(UnpooledByteBufAllocator.DEFAULT, message);
+    }
+
+    public ByteBuf encode(final ByteBufAllocator alloc, final RtmpMessage message) {
         final ByteBuf in = message.encode();
         final RtmpHeader header = message.getHeader();
         if(header.isChunkSize()) {
@@ -45,49 +222,132 @@ public class RtmpEncoder extends ChannelOutboundHandlerAdapter {
                 clearPrevHeaders();
             }
         }
+        compress(header, in.readableBytes());
+        if(logger.isDebugEnabled()) {
+            if (message.getHeader().getMsgType() != MessageType.CONTROL || ((Control) message).getType() != Control.Type.PING_RESPONSE) {
+                //logger.debug(">> {}", message);
+            }
+        }
+        return chunk(alloc, header, in, chunkType, deltaTime, chunkSize);
+    }
+
+    /**
+     * 广播消息：按本连接的chunkSize和header压缩状态取共享的chunk结果，相同状态的连接只切分一次
+     */
+    public ByteBuf encode(final ByteBufAllocator alloc, final ChunkedBroadcast broadcast) {
+        compress(broadcast.getMessage().getHeader(), broadcast.getMsgLength());
+        return broadcast.chunks(alloc, chunkSize, chunkType, deltaTime);
+    }
+
+    /**
+     * 根据同一csId上一个message决定chunkType和deltaTime，并记录当前message
+     *
+     * type 1不带streamId、type 2还沿用上一个message的类型和长度：点播时音视频共用一个csId，
+     * 只有类型和长度都相同时才能用type 2；streamId变化或时间回退时用type 0。
+     */
+    private void compress(final RtmpHeader header, final int msgLength) {
         final int csId = header.getCsId();
-        header.setMsgLength(in.readableBytes());
-        final RtmpHeader prevHeader = channelPrevHeaders[csId];
+        PrevHeader prevHeader = channelPrevHeaders.get(csId);
+        final int delta = prevHeader == null ? -1 : header.getTimestamp() - prevHeader.timestamp;
         if(prevHeader != null // first stream message is always large
                 && header.getStreamId() > 0 // all control messages always large
-                && header.getTimestamp() > 0) { // if time is zero, always large
-            if(header.getMsgLength() == prevHeader.getMsgLength()) {
-                header.setChunkType(Type.SMALL);
+                && header.getTimestamp() > 0 // if time is zero, always large
+                && header.getStreamId() == prevHeader.streamId
+                && delta >= 0) {
+            if(msgLength == prevHeader.msgLength && header.getMsgType() == prevHeader.msgType) {
+                chunkType = Type.SMALL;
             } else {
-                header.setChunkType(Type.MID);
-            }
-            final int deltaTime = header.getTimestamp() - prevHeader.getTimestamp();
-            if(deltaTime < 0) {
-                logger.warn("negative time: {}", header);
-                header.setDeltaTime(0);
-            } else {
-                header.setDeltaTime(deltaTime);
+                chunkType = Type.MID;
             }
+            deltaTime = delta;
         } else {
             // otherwise force to LARGE
-            header.setChunkType(Type.ALL);
+            if(delta < 0 && prevHeader != null && header.getTimestamp() > 0) {
+                logger.debug("negative time: {}", header);
+            }
+            chunkType = Type.ALL;
+            deltaTime = 0;
         }
-        channelPrevHeaders[csId] = header;
-        if(logger.isDebugEnabled()) {
-            if (message.getHeader().getMsgType() != MessageType.CONTROL || ((Control) message).getType() != Control.Type.PING_RESPONSE) {
-                //logger.debug(">> {}", message);
+        if(prevHeader == null) {
+            prevHeader = new PrevHeader();
+            channelPrevHeaders.put(csId, prevHeader);
+        }
+        prevHeader.timestamp = header.getTimestamp();
+        prevHeader.msgLength = msgLength;
+        prevHeader.msgType = header.getMsgType();
+        prevHeader.streamId = header.getStreamId();
+    }
+
+    /**
+     * 分块时只生成chunk header，payload在文件里时每个chunk一个FileRegion，否则是payload的切片
+     */
+    private void writeZeroCopy(final ChannelHandlerContext ctx, final Aggregate message, final ChannelPromise promise) {
+        final RtmpHeader header = message.getHeader();
+        final FileSlice slice = message.getFileSlice();
+        final ByteBuf in = slice == null ? message.encode() : null;
+        final int msgLength = slice == null ? in.readableBytes() : slice.size();
+        compress(header, msgLength);
+        ByteBuf head = ctx.alloc().buffer(RtmpHeader.MAX_ENCODED_SIZE);
+        header.encode(head, chunkType, msgLength, deltaTime);
+        if(slice == null) {
+            final int chunks = Math.max((msgLength + chunkSize - 1) / chunkSize, 1);
+            final CompositeByteBuf out = ctx.alloc().compositeBuffer(chunks * 2);
+            while(true) {
+                final int size = Math.min(chunkSize, in.readableBytes());
+                out.addComponent(true, head);
+                out.addComponent(true, in.readRetainedSlice(size));
+                if(!in.isReadable()) {
+                    break;
+                }
+                head = ctx.alloc().buffer(3);
+                header.encodeTinyHeader(head);
+            }
+            ctx.write(out, promise);
+            return;
+        }
+        if(msgLength == 0) {
+            ctx.write(head, promise);
+            return;
+        }
+        // chunk header和每个chunk的payload(DefaultFileRegion)交替写出，只有最后一个写操作带promise
+        final ByteBuf tiny = ctx.alloc().buffer(3);
+        header.encodeTinyHeader(tiny);
+        ByteBuf chunkHeader = head;
+        int offset = 0;
+        try {
+            while(true) {
+                final int size = Math.min(chunkSize, msgLength - offset);
+                ctx.write(chunkHeader, ctx.voidPromise());
+                final boolean last = offset + size == msgLength;
+                ctx.write(slice.region(offset, size), last ? promise : ctx.voidPromise());
+                if(last) {
+                    break;
+                }
+                offset += size;
+                chunkHeader = tiny.retainedDuplicate();
             }
+        } finally {
+            tiny.release();
         }
-        final ByteBuf out = Unpooled.buffer(
-                RtmpHeader.MAX_ENCODED_SIZE + header.getMsgLength() + header.getMsgLength() / chunkSize);
-        boolean first = true;
-        while(in.isReadable()) {
+    }
+
+    /**
+     * 第一个chunk带完整的header，之后的chunk只带type 3的basic header
+     */
+    static ByteBuf chunk(final ByteBufAllocator alloc, final RtmpHeader header, final ByteBuf in,
+                         final Type chunkType, final int deltaTime, final int chunkSize) {
+        final int msgLength = in.readableBytes();
+        final ByteBuf out = alloc.buffer(RtmpHeader.MAX_ENCODED_SIZE + msgLength + msgLength / chunkSize);
+        header.encode(out, chunkType, msgLength, deltaTime);
+        while(true) {
             final int size = Math.min(chunkSize, in.readableBytes());
-            if(first) {
-                header.encode(out);
-                first = false;
-            } else {
-                out.writeBytes(header.getTinyHeader());
+            out.writeBytes(in, size);
+            if(!in.isReadable()) {
+                break;
             }
-            in.readBytes(out, size);
+            header.encodeTinyHeader(out);
         }
         return out;
     }
 
-
 }
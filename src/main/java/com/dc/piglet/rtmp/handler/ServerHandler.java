@@ -3,12 +3,15 @@ package com.dc.piglet.rtmp.handler;
 import com.dc.piglet.rtmp.core.io.RtmpPublisher;
 import com.dc.piglet.rtmp.core.io.RtmpReader;
 import com.dc.piglet.rtmp.core.io.RtmpWriter;
+import com.dc.piglet.rtmp.core.io.flv.FlvReader;
 import com.dc.piglet.rtmp.core.protocol.*;
+import com.dc.piglet.rtmp.server.Server;
 import com.dc.piglet.rtmp.server.ServerApplication;
 import com.dc.piglet.rtmp.server.ServerStream;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.group.ChannelGroup;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +36,10 @@ public class ServerHandler extends ChannelDuplexHandler{
     private RtmpPublisher publisher;
     private ServerApplication application;
     private String playName;
+    /** 本连接发布的直播流 */
     private ServerStream subscriberStream;
+    /** 本连接订阅的直播流 */
+    private ServerStream playStream;
     private RtmpWriter recorder;
 
     private boolean aggregateModeEnabled = true;
@@ -44,10 +50,52 @@ public class ServerHandler extends ChannelDuplexHandler{
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if(publisher != null && publisher.handle(msg,ctx)) {
-            return;
-        }
         final RtmpMessage message = (RtmpMessage) msg;
+        try {
+            handleMessage(ctx, message);
+        } finally {
+            // 音视频消息持有解码器的池化buffer，广播 / 录制完成后释放
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    /**
+     * 一次读突发结束：flush本连接的响应，发布者还要flush所有订阅者，让编码器批量发送
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        if(subscriberStream != null && subscriberStream.getPublisher() == ctx) {
+            subscriberStream.getSubscribers().flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    /**
+     * 点播发送在channel不可写时暂停，可写后继续
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if(publisher != null && ctx.channel().isWritable()) {
+            publisher.channelWritable();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /**
+     * 连接断开后停止预读并关闭点播文件，结束发布并释放发布 / 订阅的直播流
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if(publisher != null) {
+            publisher.close();
+        }
+        unpublishIfLive();
+        unsubscribe(ctx);
+        super.channelInactive(ctx);
+    }
+
+    private void handleMessage(final ChannelHandlerContext ctx, final RtmpMessage message) {
         bytesRead += message.getHeader().getMsgLength();
         if((bytesRead - bytesReadLastSent) > bytesReadWindow) {
             log.info("sending bytes read ack after: {}", bytesRead);
@@ -86,7 +134,7 @@ public class ServerHandler extends ChannelDuplexHandler{
                         playResponse(ctx, command);
                         break;
                     case "deleteStream":
-                        int deleteStreamId = ((Double) command.getArg(0)).intValue();
+                        int deleteStreamId = ((Number) command.getArg(0)).intValue();
                         log.info("deleting stream id: {}", deleteStreamId);
                         break;
                     case "FCUnpublish":
@@ -112,6 +160,9 @@ public class ServerHandler extends ChannelDuplexHandler{
             case METADATA_AMF0:
             case METADATA_AMF3:
                 final Metadata meta = (Metadata) message;
+                if(subscriberStream == null) {
+                    break;
+                }
                 if(meta.getName().equals("onMetaData")) {
                     log.info("adding onMetaData message: {}", meta);
                     meta.setDuration(-1);
@@ -121,12 +172,17 @@ public class ServerHandler extends ChannelDuplexHandler{
                 break;
             case AUDIO:
             case VIDEO:
+                if(subscriberStream == null) {
+                    break;
+                }
                 if(((DataMessage) message).isConfig()) {
                     log.info("adding config message: {}", message);
                     subscriberStream.addConfigMessage(message);
                 }
             case AGGREGATE:
-                broadcast(message);
+                if(subscriberStream != null) {
+                    broadcast(message);
+                }
                 break;
             case BYTES_READ:
                 final BytesRead bytesReadByClient = (BytesRead) message;
@@ -160,8 +216,7 @@ public class ServerHandler extends ChannelDuplexHandler{
     }
 
     private void broadcast(final RtmpMessage message) {
-        ChannelGroup subscribers = subscriberStream.getSubscribers();
-        subscribers.write(message);
+        subscriberStream.broadcast(message);
         if(recorder != null) {
             recorder.write(message);
         }
@@ -172,14 +227,16 @@ public class ServerHandler extends ChannelDuplexHandler{
             final String streamName = (String) command.getArg(0);
             final String publishTypeString = (String) command.getArg(1);
             log.info("publish, stream name: {}, type: {}", streamName, publishTypeString);
-            subscriberStream = application.getStream(streamName, publishTypeString); // TODO append, record
-            if(subscriberStream.getPublisher() != null) {
+            unpublishIfLive();
+            final ServerStream stream = application.acquireStream(streamName, publishTypeString); // TODO append, record
+            if(!stream.claimPublisher(ctx)) {
                 log.info("disconnecting publisher client, stream already in use");
+                application.releaseStream(stream);
                 ChannelFuture future = ctx.write(Command.publishBadName(streamId));
                 future.addListener(ChannelFutureListener.CLOSE);
                 return;
             }
-            subscriberStream.setPublisher(ctx);
+            subscriberStream = stream;
             ctx.write(Command.publishStart(streamName, clientId, streamId));
             ctx.write(new ChunkSize(4096));
             ctx.write(Control.streamBegin(streamId));
@@ -228,10 +285,10 @@ public class ServerHandler extends ChannelDuplexHandler{
         int playStart = -2;
         int playLength = -1;
         if(play.getArgCount() > 1) {
-            playStart = ((Double) play.getArg(1)).intValue();
+            playStart = ((Number) play.getArg(1)).intValue();
         }
         if(play.getArgCount() > 2) {
-            playLength = ((Double) play.getArg(2)).intValue();
+            playLength = ((Number) play.getArg(2)).intValue();
         }
         final boolean playReset;
         if(play.getArgCount() > 3) {
@@ -241,9 +298,13 @@ public class ServerHandler extends ChannelDuplexHandler{
         }
         final Command playResetCommand = playReset ? Command.playReset(playName, clientId) : null;
         final String clientPlayName = (String) play.getArg(0);
-        final ServerStream stream = application.getStream(clientPlayName);
         log.debug("play name {}, start {}, length {}, reset {}",new Object[]{clientPlayName, playStart, playLength, playReset});
-        if(stream.isLive()) {
+        final ServerStream stream = application.findStream(clientPlayName);
+        if(stream != null && !stream.isLive()) {
+            application.releaseStream(stream);
+        } else if(stream != null) {
+            unsubscribe(ctx);
+            playStream = stream;
             for(final RtmpMessage message : getStartMessages(playResetCommand)) {
                 writeToStream(ctx, message);
             }
@@ -253,9 +314,9 @@ public class ServerHandler extends ChannelDuplexHandler{
                 if(message.getHeader().isVideo()) {
                     videoConfigPresent = true;
                 }
-                writeToStream(ctx, message);
+                writeToStream(ctx, ReferenceCountUtil.retain(message));
             }
-            stream.getSubscribers().add(ctx.channel());
+            stream.subscribe(ctx);
             log.info("client requested live stream: {}, added to stream: {}", clientPlayName, stream);
             return;
         }
@@ -266,7 +327,15 @@ public class ServerHandler extends ChannelDuplexHandler{
                 ctx.write(Command.playFailed(playName, clientId));
                 return;
             }
-            publisher = new RtmpPublisher(reader, streamId, bufferDuration, true, aggregateModeEnabled) {
+            if(reader instanceof FlvReader) {
+                // 加密连接或关闭了零拷贝时，aggregate在I/O线程上读入内存，不在event loop上读文件
+                ((FlvReader) reader).setZeroCopy(ctx.pipeline().get(RtmpEncoder.class).isZeroCopy());
+            }
+            if(publisher != null) {
+                publisher.close();
+            }
+            publisher = new RtmpPublisher(reader, streamId, bufferDuration, Server.TIMER, aggregateModeEnabled,
+                    Server.VOD_IO, Server.vodReadAheadMillis) {
                 @Override protected RtmpMessage[] getStopMessages(long timePosition) {
                     return new RtmpMessage[] {
                             Metadata.onPlayStatus(timePosition / (double) 1000, 10000),
@@ -275,6 +344,8 @@ public class ServerHandler extends ChannelDuplexHandler{
                     };
                 }
             };
+            publisher.setMaxLead(Server.vodPacingMaxLead);
+            publisher.setMaxBurst(Server.vodPacingMaxBurst);
         }
         publisher.start(ctx, playStart, playLength, getStartMessages(playResetCommand));
     }
@@ -309,14 +380,17 @@ public class ServerHandler extends ChannelDuplexHandler{
     }
 
     private void unpublishIfLive() {
-        if(subscriberStream != null && subscriberStream.getPublisher() != null) {
+        if(subscriberStream != null) {
             final ChannelHandlerContext ctx = subscriberStream.getPublisher();
             if(ctx.channel().isWritable()) {
                 ctx.write(Command.unpublishSuccess(subscriberStream.getName(), clientId, streamId));
             }
             ChannelGroup subscribers = subscriberStream.getSubscribers();
             subscribers.write(Command.unpublishNotify(streamId));
-            subscriberStream.setPublisher(null);
+            subscribers.flush();
+            subscriberStream.releasePublisher(ctx);
+            application.releaseStream(subscriberStream);
+            subscriberStream = null;
             log.debug("publisher disconnected, stream un-published");
         }
         if(recorder != null) {
@@ -324,4 +398,15 @@ public class ServerHandler extends ChannelDuplexHandler{
             recorder = null;
         }
     }
+
+    /**
+     * 退出订阅的直播流，连接关闭时ChannelGroup已经自动移除了channel
+     */
+    private void unsubscribe(final ChannelHandlerContext ctx) {
+        if(playStream != null) {
+            playStream.getSubscribers().remove(ctx.channel());
+            application.releaseStream(playStream);
+            playStream = null;
+        }
+    }
 }
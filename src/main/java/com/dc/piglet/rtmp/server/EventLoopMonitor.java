@@ -0,0 +1,91 @@
+package com.dc.piglet.rtmp.server;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * event loop阻塞时间统计：在每个event loop上周期性地调度一个探测任务，实际执行时间晚于预期的部分计为阻塞时间
+ *
+ * 探测本身只在event loop上运行，不额外占用线程；超过warnMillis的单次阻塞打印warn日志。
+ */
+public class EventLoopMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(EventLoopMonitor.class);
+
+    private static final AtomicLong BLOCKED_NANOS = new AtomicLong();
+    private static final AtomicLong MAX_BLOCKED_NANOS = new AtomicLong();
+    private static final AtomicLong PROBES = new AtomicLong();
+
+    private final long intervalNanos;
+    private final long warnNanos;
+
+    public EventLoopMonitor(final long intervalMillis, final long warnMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.warnNanos = TimeUnit.MILLISECONDS.toNanos(warnMillis);
+    }
+
+    /**
+     * 所有event loop累计的阻塞时间(毫秒)
+     */
+    public static long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(BLOCKED_NANOS.get());
+    }
+
+    /**
+     * 单次探测到的最长阻塞时间(毫秒)
+     */
+    public static long getMaxBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(MAX_BLOCKED_NANOS.get());
+    }
+
+    public static long getProbes() {
+        return PROBES.get();
+    }
+
+    public void monitor(final EventExecutorGroup group) {
+        for(final EventExecutor executor : group) {
+            new Probe(executor).schedule();
+        }
+    }
+
+    private final class Probe implements Runnable {
+
+        private final EventExecutor executor;
+        private long expected;
+
+        private Probe(final EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        private void schedule() {
+            if(executor.isShuttingDown()) {
+                return;
+            }
+            expected = System.nanoTime() + intervalNanos;
+            executor.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            final long blocked = System.nanoTime() - expected;
+            PROBES.incrementAndGet();
+            if(blocked > 0) {
+                BLOCKED_NANOS.addAndGet(blocked);
+                long max;
+                while(blocked > (max = MAX_BLOCKED_NANOS.get()) && !MAX_BLOCKED_NANOS.compareAndSet(max, blocked)) {
+                    // retry
+                }
+                if(blocked > warnNanos) {
+                    log.warn("event loop {} blocked for {}ms", Thread.currentThread().getName(), TimeUnit.NANOSECONDS.toMillis(blocked));
+                }
+            }
+            schedule();
+        }
+    }
+
+}
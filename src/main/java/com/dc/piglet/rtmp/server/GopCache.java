@@ -0,0 +1,131 @@
+package com.dc.piglet.rtmp.server;
+
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.DataMessage;
+import com.dc.piglet.rtmp.core.protocol.RtmpHeader;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 直播流最近maxGops个GOP的缓存，新订阅者先收到缓存的GOP，不必等下一个关键帧
+ *
+ * 缓存总是从关键帧开始，payload拷贝到大小正好的堆内存，不引用解码器的入站buffer，
+ * bytes就是缓存实际占用的内存；超过maxBytes时从最旧的GOP开始整体淘汰，
+ * 只剩一个GOP仍超限时清空，等下一个关键帧重新开始。config message不进入缓存。
+ * 非线程安全，由ServerStream加锁访问。
+ */
+public class GopCache {
+
+    private final long maxBytes;
+    private final int maxGops;
+    private final ArrayDeque<RtmpMessage> messages = new ArrayDeque<RtmpMessage>();
+    private long bytes;
+    private int gops;
+
+    public GopCache(final long maxBytes, final int maxGops) {
+        this.maxBytes = maxBytes;
+        this.maxGops = maxGops;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0 && maxGops > 0;
+    }
+
+    public void add(final RtmpMessage message) {
+        if(!isEnabled()) {
+            return;
+        }
+        final RtmpHeader header = message.getHeader();
+        if(!header.isAudio() && !header.isVideo() || ((DataMessage) message).isConfig()) {
+            return;
+        }
+        if(isKeyframe(message)) {
+            gops++;
+            if(gops > maxGops) {
+                evictOldestGop();
+            }
+        } else if(gops == 0) {
+            return;
+        }
+        messages.add(copyOf(message));
+        bytes += header.getMsgLength();
+        while(bytes > maxBytes) {
+            if(gops > 1) {
+                evictOldestGop();
+            } else {
+                clear();
+            }
+        }
+    }
+
+    /**
+     * @return 每个message已retain一次，调用方负责写出或release
+     */
+    public List<RtmpMessage> retainedMessages() {
+        final List<RtmpMessage> list = new ArrayList<RtmpMessage>(messages.size());
+        for(final RtmpMessage message : messages) {
+            list.add(ReferenceCountUtil.retain(message));
+        }
+        return list;
+    }
+
+    public void clear() {
+        RtmpMessage message;
+        while((message = messages.poll()) != null) {
+            ReferenceCountUtil.release(message);
+        }
+        bytes = 0;
+        gops = 0;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getGops() {
+        return gops;
+    }
+
+    /**
+     * 移除开头的关键帧及之后直到下一个关键帧之前的message
+     */
+    private void evictOldestGop() {
+        RtmpMessage message = messages.poll();
+        while(message != null) {
+            bytes -= message.getHeader().getMsgLength();
+            ReferenceCountUtil.release(message);
+            message = messages.peek();
+            if(message == null || isKeyframe(message)) {
+                break;
+            }
+            messages.poll();
+        }
+        gops--;
+    }
+
+    /**
+     * 解码得到的payload是入站buffer的切片，缓存切片会让整个入站buffer随GOP一起存活
+     */
+    private static RtmpMessage copyOf(final RtmpMessage message) {
+        if(message instanceof Video) {
+            return new Video(message.getHeader(), Unpooled.copiedBuffer(message.encode()));
+        }
+        return new Audio(message.getHeader(), Unpooled.copiedBuffer(message.encode()));
+    }
+
+    private static boolean isKeyframe(final RtmpMessage message) {
+        return message instanceof Video && ((Video) message).isKeyframe();
+    }
+
+    @Override
+    public String toString() {
+        return "[gops: " + gops + " bytes: " + bytes + ']';
+    }
+
+}
@@ -1,21 +1,43 @@
 package com.dc.piglet.rtmp.server;
 
 import com.dc.piglet.rtmp.conf.ServerConfig;
+import com.dc.piglet.rtmp.core.protocol.DhKeyPairPool;
+import com.dc.piglet.rtmp.core.protocol.RtmpHandshake;
+import com.dc.piglet.rtmp.handler.BackpressureHandler;
 import com.dc.piglet.rtmp.handler.HandShakeHandler;
 import com.dc.piglet.rtmp.handler.RtmpDecoder;
 import com.dc.piglet.rtmp.handler.RtmpEncoder;
 import com.dc.piglet.rtmp.handler.ServerHandler;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultMessageSizeEstimator;
+import io.netty.channel.FileRegion;
+import io.netty.channel.MessageSizeEstimator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -23,35 +45,137 @@ import java.util.concurrent.TimeUnit;
  */
 public class Server {
 
+    private static final Logger log = LoggerFactory.getLogger(Server.class);
+
     static {
         APPLICATIONS = new ConcurrentHashMap<String, ServerApplication>();
         TIMER = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
     }
 
-    protected static final Map<String,ServerApplication> APPLICATIONS;
+    protected static final ConcurrentMap<String,ServerApplication> APPLICATIONS;
     public static final Timer TIMER;
     public static String serverPort = ServerConfig.config.getProperty("server.port");
+    public static boolean decoderZeroCopy = ServerConfig.getBoolean("server.decoder.zerocopy", true);
+    public static int encoderFlushMaxBatch = ServerConfig.getInt("server.encoder.flush.maxbatch", 16);
+    public static long encoderFlushMaxLatency = ServerConfig.getLong("server.encoder.flush.maxlatency", 10);
+    /** 直播订阅者发送队列上限，超过后按GOP丢帧 */
+    public static long subscriberQueueMaxBytes = ServerConfig.getLong("server.subscriber.queue.maxbytes", 4 * 1024 * 1024);
+
+    /** 0表示使用netty默认值(cpu核数 * 2) */
+    public static int bossThreads = ServerConfig.getInt("server.boss.threads", 1);
+    public static int workerThreads = ServerConfig.getInt("server.worker.threads", 0);
+    /** linux上且native库可用时使用epoll，否则使用nio */
+    public static boolean epollEnabled = ServerConfig.getBoolean("server.epoll", true);
+    public static boolean allocatorPooled = ServerConfig.getBoolean("server.allocator.pooled", true);
+    public static boolean allocatorDirect = ServerConfig.getBoolean("server.allocator.direct", true);
+    public static int backlog = ServerConfig.getInt("server.backlog", 1024);
+    public static boolean tcpNoDelay = ServerConfig.getBoolean("server.tcp.nodelay", true);
+    /** 0表示使用系统默认值 */
+    public static int sendBufferSize = ServerConfig.getInt("server.so.sndbuf", 0);
+    public static int receiveBufferSize = ServerConfig.getInt("server.so.rcvbuf", 0);
+    public static int writeBufferLowWaterMark = ServerConfig.getInt("server.write.watermark.low", 32 * 1024);
+    public static int writeBufferHighWaterMark = ServerConfig.getInt("server.write.watermark.high", 64 * 1024);
+    /** 点播预读的时长，event loop只从预读队列中取消息 */
+    public static int vodReadAheadMillis = ServerConfig.getInt("server.vod.readahead.millis", 2000);
+    /** 点播领先实时发送的上限和单次连续发送的媒体时长上限(毫秒) */
+    public static int vodPacingMaxLead = ServerConfig.getInt("server.vod.pacing.maxlead", 5000);
+    public static int vodPacingMaxBurst = ServerConfig.getInt("server.vod.pacing.maxburst", 1000);
+    public static int vodIoThreads = ServerConfig.getInt("server.vod.io.threads", 4);
+    public static int vodIoQueueSize = ServerConfig.getInt("server.vod.io.queue", 1024);
+    /** 点播aggregate不拷贝payload：FileChannelReader时用sendfile，映射文件时直接引用映射内存 */
+    public static boolean vodZeroCopy = ServerConfig.getBoolean("server.vod.zerocopy", true);
+    /** event loop阻塞探测间隔，0表示不探测 */
+    public static long eventLoopMonitorInterval = ServerConfig.getLong("server.eventloop.monitor.interval", 100);
+    public static long eventLoopMonitorWarn = ServerConfig.getLong("server.eventloop.monitor.warn", 50);
+    /** RTMPE握手预先生成的DH密钥对数量，0表示不使用池 */
+    public static int handshakeDhPool = ServerConfig.getInt("server.handshake.dh.pool", 32);
+
+    /** 点播读文件的有界线程池，所有播放者共享 */
+    public static final ExecutorService VOD_IO = new ThreadPoolExecutor(vodIoThreads, vodIoThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(vodIoQueueSize), new DefaultThreadFactory("vod-io", true));
 
     /**
-     *  header -- handshake(in) -- rtmpDecoder(in) -- rtmpEncoder(out) -- serverHandler(all) -- tail
+     * 默认的估算器把FileRegion算作0字节，sendfile发送的数据不会让channel变为不可写
+     */
+    private static final MessageSizeEstimator SIZE_ESTIMATOR = new MessageSizeEstimator() {
+        private final Handle defaultHandle = DefaultMessageSizeEstimator.DEFAULT.newHandle();
+        private final Handle handle = new Handle() {
+            @Override
+            public int size(final Object msg) {
+                if(msg instanceof FileRegion) {
+                    return (int) ((FileRegion) msg).count();
+                }
+                return defaultHandle.size(msg);
+            }
+        };
+
+        @Override
+        public Handle newHandle() {
+            return handle;
+        }
+    };
+
+    /**
+     *  header -- handshake(in) -- rtmpDecoder(in) -- rtmpEncoder(out) -- backpressure(all) -- serverHandler(all) -- tail
      *
      */
     public static void start(int port){
-        NioEventLoopGroup boosGroup = new NioEventLoopGroup();
-        NioEventLoopGroup workGroup = new NioEventLoopGroup();
+        final boolean epoll = epollEnabled && Epoll.isAvailable();
+        final EventLoopGroup boosGroup;
+        final EventLoopGroup workGroup;
+        final Class<? extends ServerChannel> channelClass;
+        if(epoll) {
+            boosGroup = new EpollEventLoopGroup(bossThreads);
+            workGroup = new EpollEventLoopGroup(workerThreads);
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            if(epollEnabled) {
+                log.info("epoll not available, using nio: {}", Epoll.unavailabilityCause().toString());
+            }
+            boosGroup = new NioEventLoopGroup(bossThreads);
+            workGroup = new NioEventLoopGroup(workerThreads);
+            channelClass = NioServerSocketChannel.class;
+        }
+        final ByteBufAllocator allocator = allocatorPooled
+                ? new PooledByteBufAllocator(allocatorDirect)
+                : new UnpooledByteBufAllocator(allocatorDirect);
+        log.info("transport: {}, allocator: {}, direct: {}", new Object[]{epoll ? "epoll" : "nio", allocatorPooled ? "pooled" : "unpooled", allocatorDirect});
+        if(handshakeDhPool > 0) {
+            RtmpHandshake.setKeyPairPool(new DhKeyPairPool(handshakeDhPool));
+        }
+        if(eventLoopMonitorInterval > 0) {
+            new EventLoopMonitor(eventLoopMonitorInterval, eventLoopMonitorWarn).monitor(workGroup);
+        }
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap();
             serverBootstrap.group(boosGroup,workGroup).
-                    channel(NioServerSocketChannel.class).
+                    channel(channelClass).
+                    option(ChannelOption.SO_BACKLOG, backlog).
+                    option(ChannelOption.ALLOCATOR, allocator).
+                    childOption(ChannelOption.ALLOCATOR, allocator).
+                    childOption(ChannelOption.TCP_NODELAY, tcpNoDelay).
+                    childOption(ChannelOption.MESSAGE_SIZE_ESTIMATOR, SIZE_ESTIMATOR).
+                    childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark)).
                     childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
                             socketChannel.pipeline().addLast(new HandShakeHandler());
-                            socketChannel.pipeline().addLast(new RtmpDecoder());
-                            socketChannel.pipeline().addLast(new RtmpEncoder());
+                            socketChannel.pipeline().addLast(new RtmpDecoder(decoderZeroCopy));
+                            final RtmpEncoder encoder = new RtmpEncoder(encoderFlushMaxBatch, encoderFlushMaxLatency);
+                            encoder.setZeroCopy(vodZeroCopy);
+                            socketChannel.pipeline().addLast(encoder);
+                            socketChannel.pipeline().addLast(new BackpressureHandler(subscriberQueueMaxBytes));
                             socketChannel.pipeline().addLast(new ServerHandler());
                         }
                     });
+            if(sendBufferSize > 0) {
+                serverBootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+            }
+            if(receiveBufferSize > 0) {
+                // 在listen socket上设置，accept出的连接继承，窗口扩大因子才能生效
+                serverBootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+            }
 
             Channel ch = serverBootstrap.bind(port).sync().channel();
             ch.closeFuture().sync();
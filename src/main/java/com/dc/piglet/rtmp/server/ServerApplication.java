@@ -2,24 +2,47 @@
 package com.dc.piglet.rtmp.server;
 
 import com.dc.piglet.rtmp.conf.ServerConfig;
+import com.dc.piglet.rtmp.core.io.BufferReader;
+import com.dc.piglet.rtmp.core.io.FileChannelReader;
+import com.dc.piglet.rtmp.core.io.MappedFileReader;
 import com.dc.piglet.rtmp.core.io.RtmpReader;
 import com.dc.piglet.rtmp.core.io.RtmpWriter;
+import com.dc.piglet.rtmp.core.io.VodFileCache;
 import com.dc.piglet.rtmp.core.io.f4v.F4vReader;
 import com.dc.piglet.rtmp.core.io.flv.FlvReader;
+import com.dc.piglet.rtmp.core.io.flv.AsyncFlvWriter;
 import com.dc.piglet.rtmp.core.io.flv.FlvWriter;
 import com.dc.piglet.rtmp.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class ServerApplication {
     private static final Logger log = LoggerFactory.getLogger(ServerApplication.class);
     private final String name;
-    private final Map<String, ServerStream> streams;
+    private final ConcurrentMap<String, ServerStream> streams;
 
     public static String homePath = ServerConfig.config.getProperty("server.home");
+    /** 点播文件的读取方式：mapped(内存映射) 或 channel(FileChannel) */
+    public static String vodReader = ServerConfig.getString("server.vod.reader", "channel");
+    /** onMetaData中没有keyframes的flv，是否在后台扫描一次并写入sidecar索引文件 */
+    public static boolean flvIndexScan = ServerConfig.getBoolean("server.vod.flv.index.scan", true);
+    /** 直播录制是否由独立的写线程批量写盘，false时在publisher的event loop上同步写 */
+    public static boolean recordAsync = ServerConfig.getBoolean("server.record.async", true);
+    /** 录制按时长(毫秒)或大小滚动分段，都为0时录成一个文件 */
+    public static long recordSegmentDuration = ServerConfig.getLong("server.record.segment.duration", 0);
+    public static long recordSegmentBytes = ServerConfig.getLong("server.record.segment.bytes", 0);
+    public static int recordQueueSize = ServerConfig.getInt("server.record.queue.size", 8192);
+    /** 录制队列的字节数上限，超过后丢弃到下一个关键帧 */
+    public static long recordQueueMaxBytes = ServerConfig.getLong("server.record.queue.maxbytes", 32 * 1024 * 1024);
+    public static long recordBatchBytes = ServerConfig.getLong("server.record.batch.bytes", 256 * 1024);
+    public static long recordFlushInterval = ServerConfig.getLong("server.record.flush.interval", 200);
+    /** fsync间隔毫秒，0为每批写完都fsync，小于0为只在结束录制时fsync */
+    public static long recordFsyncInterval = ServerConfig.getLong("server.record.fsync.interval", 1000);
+    /** 所有application共享的点播文件缓存，maxweight为0时不启用 */
+    private static final VodFileCache VOD_CACHE = new VodFileCache(ServerConfig.getLong("server.vod.cache.maxweight", 0));
 
     public ServerApplication(final String rawName) {
         this.name = cleanName(rawName);
@@ -37,14 +60,21 @@ public class ServerApplication {
         try {
             if(streamName.startsWith("mp4:")) {
                 readerPlayName = streamName.substring(4);
-                return new F4vReader(path + readerPlayName);
+                if(VOD_CACHE.isEnabled()) {
+                    return VOD_CACHE.openF4v(path + readerPlayName);
+                }
+                return new F4vReader(openFile(path + readerPlayName));
             } else {                
                 if(streamName.lastIndexOf('.') < streamName.length() - 4) {
                     readerPlayName = streamName + ".flv";
                 } else {
                     readerPlayName = streamName;
                 }
-                return new FlvReader(path + readerPlayName);
+                final String indexPath = flvIndexScan ? path + readerPlayName : null;
+                if(VOD_CACHE.isEnabled()) {
+                    return VOD_CACHE.openFlv(path + readerPlayName, indexPath);
+                }
+                return new FlvReader(openFile(path + readerPlayName), indexPath);
             }
         } catch(Exception e) {
             log.error("reader creation failed: {}", e.getMessage());
@@ -52,36 +82,84 @@ public class ServerApplication {
         }
     }
 
+    private static BufferReader openFile(final String path) {
+        if("mapped".equalsIgnoreCase(vodReader)) {
+            return new MappedFileReader(path);
+        }
+        return new FileChannelReader(path);
+    }
+
     public RtmpWriter getWriter(final String rawName) {
         final String streamName = Util.trimSlashes(rawName);
         final String path =  homePath + name + "/";
-        return new FlvWriter(path + streamName + ".flv");
+        if(recordAsync) {
+            return new AsyncFlvWriter(path + streamName + ".flv", recordSegmentDuration, recordSegmentBytes, recordQueueSize, recordQueueMaxBytes,
+                    recordBatchBytes, recordFlushInterval, recordFsyncInterval);
+        }
+        return new FlvWriter(0, path + streamName + ".flv", recordSegmentDuration, recordSegmentBytes);
     }
 
     public static ServerApplication get(final String rawName) {
         final String appName = cleanName(rawName);
         ServerApplication app = Server.APPLICATIONS.get(appName);
         if(app == null) {
-            app = new ServerApplication(appName);
-            Server.APPLICATIONS.put(appName, app);
+            final ServerApplication created = new ServerApplication(appName);
+            app = Server.APPLICATIONS.putIfAbsent(appName, created);
+            if(app == null) {
+                app = created;
+            }
         }
         return app;
     }
 
-    public ServerStream getStream(final String rawName) {
-        return getStream(rawName, null);
+    /**
+     * 发布时获取或创建直播流，返回的流已经为调用方retain一次，用完后调用releaseStream
+     *
+     * 并发创建时只有putIfAbsent成功的一个生效；取到的流恰好释放到0正在移除时，帮忙移除后重试。
+     */
+    public ServerStream acquireStream(final String rawName, final String type) {
+        final String streamName = cleanName(rawName);
+        while(true) {
+            final ServerStream stream = streams.get(streamName);
+            if(stream == null) {
+                final ServerStream created = new ServerStream(streamName, type);
+                if(streams.putIfAbsent(streamName, created) == null) {
+                    return created;
+                }
+                continue;
+            }
+            if(stream.retain()) {
+                return stream;
+            }
+            streams.remove(streamName, stream);
+        }
     }
 
-    public ServerStream getStream(final String rawName, final String type) {
-        final String streamName = cleanName(rawName);
-        ServerStream stream = streams.get(streamName);
-        if(stream == null) {
-            stream = new ServerStream(streamName, type);
-            streams.put(streamName, stream);
+    /**
+     * 播放时查找已有的直播流，找到时为调用方retain一次，没有时返回null(按点播处理)，不会创建流
+     */
+    public ServerStream findStream(final String rawName) {
+        final ServerStream stream = streams.get(cleanName(rawName));
+        if(stream == null || !stream.retain()) {
+            return null;
         }
         return stream;
     }
 
+    /**
+     * 释放acquireStream / findStream得到的引用，最后一个引用释放时从注册表移除并清理
+     */
+    public void releaseStream(final ServerStream stream) {
+        if(stream.release()) {
+            streams.remove(stream.getName(), stream);
+            stream.destroy();
+        }
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
     private static String cleanName(final String raw) {
         return Util.trimSlashes(raw).toLowerCase();
     }
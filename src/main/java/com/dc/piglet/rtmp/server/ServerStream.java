@@ -1,18 +1,30 @@
 package com.dc.piglet.rtmp.server;
 
 
+import com.dc.piglet.rtmp.conf.ServerConfig;
+import com.dc.piglet.rtmp.core.protocol.Audio;
 import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import com.dc.piglet.rtmp.handler.ChunkedBroadcast;
 import com.dc.piglet.rtmp.util.Util;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * 一路直播流，发布者和每个订阅者各持有一个引用，最后一个引用释放后由ServerApplication从注册表移除并清理
+ */
 public class ServerStream {
 
     public enum PublishType {
@@ -34,27 +46,74 @@ public class ServerStream {
     private final String name;
     private final PublishType publishType;
     private final ChannelGroup subscribers;
-    private final List<RtmpMessage> configMessages;
-    private ChannelHandlerContext publisher;
+    /** 不可变快照，发布者写时复制，订阅者无锁读取 */
+    private volatile List<RtmpMessage> configMessages = Collections.emptyList();
+    private final GopCache gopCache;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    /** 同时publish的两个连接只有一个能通过CAS占用 */
+    private final AtomicReference<ChannelHandlerContext> publisher = new AtomicReference<ChannelHandlerContext>();
+
+    private static final long GOP_CACHE_MAX_BYTES = ServerConfig.getLong("server.gop.cache.maxbytes", 8 * 1024 * 1024);
+    private static final int GOP_CACHE_MAX_GOPS = ServerConfig.getInt("server.gop.cache.maxgops", 1);
 
     private static final Logger logger = LoggerFactory.getLogger(ServerStream.class);
 
-    public ServerStream(final String rawName, final String typeString) {        
+    /**
+     * 创建者持有第一个引用
+     */
+    public ServerStream(final String rawName, final String typeString) {
         this.name = Util.trimSlashes(rawName).toLowerCase();
-        if(typeString != null) {
-            this.publishType = PublishType.parse(typeString); // TODO record, append
-            subscribers = new DefaultChannelGroup(name,new DefaultEventExecutor());
-            configMessages = new ArrayList<>();
-        } else {
-            this.publishType = null;
-            subscribers = null;
-            configMessages = null;
-        }
+        this.publishType = PublishType.parse(typeString); // TODO record, append
+        // ChannelGroup只用executor通知group future，所有流共用一个，不再每个流起一个线程
+        subscribers = new DefaultChannelGroup(name, GlobalEventExecutor.INSTANCE);
+        gopCache = new GopCache(GOP_CACHE_MAX_BYTES, GOP_CACHE_MAX_GOPS);
         logger.info("Created ServerStream {}", this);
     }
 
+    /**
+     * 已经释放到0(正在或已经被移除)时返回false，调用方需要重新创建
+     */
+    boolean retain() {
+        while(true) {
+            final int count = refCnt.get();
+            if(count == 0) {
+                return false;
+            }
+            if(refCnt.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 是否释放了最后一个引用
+     */
+    boolean release() {
+        final int count = refCnt.decrementAndGet();
+        if(count < 0) {
+            refCnt.incrementAndGet();
+            throw new IllegalStateException("stream already released: " + name);
+        }
+        return count == 0;
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    /**
+     * 最后一个引用释放后调用，释放GOP缓存
+     */
+    void destroy() {
+        configMessages = Collections.emptyList();
+        synchronized(gopCache) {
+            gopCache.clear();
+        }
+        logger.info("Destroyed ServerStream {}", this);
+    }
+
     public boolean isLive() {
-        return publishType != null && publishType == PublishType.LIVE;
+        return publishType == PublishType.LIVE;
     }
 
     public PublishType getPublishType() {
@@ -70,30 +129,114 @@ public class ServerStream {
     }
 
 
+    /**
+     * 返回不可变快照，元素不会被release，订阅者写出前各自retain
+     */
     public List<RtmpMessage> getConfigMessages() {
         return configMessages;
     }
 
+    /**
+     * 由发布者的event loop调用，同类型(onMetaData / 音频 / 视频)的旧配置被替换，不会无限增长
+     */
     public void addConfigMessage(final RtmpMessage message) {
-        configMessages.add(message);
+        final RtmpMessage copy = copyOf(message);
+        final List<RtmpMessage> current = configMessages;
+        final List<RtmpMessage> next = new ArrayList<RtmpMessage>(current.size() + 1);
+        for(final RtmpMessage old : current) {
+            if(old.getHeader().getMsgType() != copy.getHeader().getMsgType()) {
+                next.add(old);
+            }
+        }
+        next.add(copy);
+        configMessages = Collections.unmodifiableList(next);
+    }
+
+    /**
+     * 拷贝到非池化的堆内存，旧快照中的message不需要release，订阅者随时retain都是安全的
+     */
+    private static RtmpMessage copyOf(final RtmpMessage message) {
+        if(message instanceof Video) {
+            return new Video(message.getHeader(), Unpooled.copiedBuffer(message.encode()));
+        }
+        if(message instanceof Audio) {
+            return new Audio(message.getHeader(), Unpooled.copiedBuffer(message.encode()));
+        }
+        return message; // Metadata不持有buffer
+    }
+
+    /**
+     * 写入GOP缓存并发给所有订阅者，与subscribe互斥，新订阅者不会漏掉或重复收到message
+     */
+    public void broadcast(final RtmpMessage message) {
+        synchronized(gopCache) {
+            gopCache.add(message);
+            // 只切分一次chunk，ChannelGroup为每个订阅者retain一次并在最后release一次，这里保留调用方的引用
+            subscribers.write(new ChunkedBroadcast(ReferenceCountUtil.retain(message)));
+        }
+    }
+
+    /**
+     * 先把缓存的GOP写给新订阅者，再接收广播，由订阅者自己的event loop调用
+     *
+     * 锁内只取缓存的快照(retain)并加入ChannelGroup，编码和flush在锁外进行，不阻塞发布者的broadcast。
+     * 其他event loop的广播写入会作为任务排在本次调用之后执行，所以快照中的message仍然先于广播到达。
+     */
+    public void subscribe(final ChannelHandlerContext ctx) {
+        final List<RtmpMessage> burst;
+        synchronized(gopCache) {
+            burst = gopCache.retainedMessages();
+            subscribers.add(ctx.channel());
+        }
+        for(final RtmpMessage message : burst) {
+            ctx.write(message);
+        }
+        ctx.flush();
+        logger.info("subscriber {} added to stream: {}, gop cache burst: {} messages", new Object[]{ctx.channel(), name, burst.size()});
+    }
+
+    /**
+     * 占用发布者，已经有发布者时返回false；成功时清掉上一次发布留下的config和gop cache
+     */
+    public boolean claimPublisher(final ChannelHandlerContext ctx) {
+        if(!publisher.compareAndSet(null, ctx)) {
+            return false;
+        }
+        clearCache();
+        return true;
     }
 
-    public void setPublisher(ChannelHandlerContext publisher) {
-        this.publisher = publisher;
-        configMessages.clear();
+    /**
+     * 只有当前发布者自己能释放，unpublish或断开时调用
+     */
+    public boolean releasePublisher(final ChannelHandlerContext ctx) {
+        if(!publisher.compareAndSet(ctx, null)) {
+            return false;
+        }
+        clearCache();
+        return true;
+    }
+
+    private void clearCache() {
+        configMessages = Collections.emptyList();
+        synchronized(gopCache) {
+            gopCache.clear();
+        }
     }
 
     public ChannelHandlerContext getPublisher() {
-        return publisher;
+        return publisher.get();
     }
 
     @Override
     public String toString() {
         return "[name: '" + name +
                 "' type: " + publishType +
-                " publisher: " + publisher +
+                " publisher: " + publisher.get() +
+                " refs: " + refCnt.get() +
                 " subscribers: " + subscribers +
                 " config: " + configMessages +
+                " gop cache: " + gopCache +
                 ']';
     }
 
@@ -0,0 +1,131 @@
+package com.dc.piglet.rtmp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 以csId为key的稀疏表，编解码器保存每个chunk stream的状态
+ *
+ * csId < 64 (单字节basic header，绝大多数连接只会用到这些) 直接用数组下标访问，
+ * 更大的csId放进开放寻址(线性探测)的int key哈希表。
+ * clear只在原数组上清空，不重新分配。
+ */
+public class ChunkStreamTable<V> {
+
+    private static final int DIRECT_SIZE = 64;
+    private static final int INITIAL_CAPACITY = 8;
+    /** 哈希表部分的key都 >= 64，0可以作为空槽标记 */
+    private static final int EMPTY = 0;
+
+    private final Object[] direct = new Object[DIRECT_SIZE];
+    private int[] keys;
+    private Object[] values;
+    private int hashedSize;
+
+    @SuppressWarnings("unchecked")
+    public V get(final int csId) {
+        if(csId < DIRECT_SIZE) {
+            return (V) direct[csId];
+        }
+        if(keys == null) {
+            return null;
+        }
+        final int mask = keys.length - 1;
+        for(int i = hash(csId) & mask; ; i = (i + 1) & mask) {
+            final int key = keys[i];
+            if(key == csId) {
+                return (V) values[i];
+            }
+            if(key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    public void put(final int csId, final V value) {
+        if(csId < DIRECT_SIZE) {
+            direct[csId] = value;
+            return;
+        }
+        if(keys == null) {
+            keys = new int[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+        } else if((hashedSize + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        if(insert(keys, values, csId, value)) {
+            hashedSize++;
+        }
+    }
+
+    /**
+     * 清空所有状态，保留已分配的数组
+     */
+    public void clear() {
+        Arrays.fill(direct, null);
+        if(keys != null) {
+            Arrays.fill(keys, EMPTY);
+            Arrays.fill(values, null);
+            hashedSize = 0;
+        }
+    }
+
+    /**
+     * 当前保存的所有value，仅用于释放资源等低频场景
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        final List<V> list = new ArrayList<V>();
+        for(final Object value : direct) {
+            if(value != null) {
+                list.add((V) value);
+            }
+        }
+        if(values != null) {
+            for(final Object value : values) {
+                if(value != null) {
+                    list.add((V) value);
+                }
+            }
+        }
+        return list;
+    }
+
+    private void rehash(final int capacity) {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != EMPTY) {
+                insert(keys, values, oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * @return 新增key时返回true，覆盖已有key时返回false
+     */
+    private static boolean insert(final int[] keys, final Object[] values, final int csId, final Object value) {
+        final int mask = keys.length - 1;
+        for(int i = hash(csId) & mask; ; i = (i + 1) & mask) {
+            final int key = keys[i];
+            if(key == csId) {
+                values[i] = value;
+                return false;
+            }
+            if(key == EMPTY) {
+                keys[i] = csId;
+                values[i] = value;
+                return true;
+            }
+        }
+    }
+
+    private static int hash(final int csId) {
+        // csId通常是连续的小整数，打散一下避免线性探测聚集
+        return csId * 0x9E3779B9 >>> 16;
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.dc.piglet.rtmp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有界的单生产者单消费者队列，offer和poll都不加锁
+ *
+ * 只允许一个线程offer、一个线程poll；容量取不小于capacity的2的幂，满了offer返回false，不阻塞。
+ * 生产者写入槽位后lazySet tail发布，消费者清空槽位后lazySet head归还。
+ */
+public class SpscArrayQueue<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+    /** 下一个poll的位置，只由消费者修改 */
+    private final AtomicLong head = new AtomicLong();
+    /** 下一个offer的位置，只由生产者修改 */
+    private final AtomicLong tail = new AtomicLong();
+
+    public SpscArrayQueue(final int capacity) {
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * 只在生产者线程上调用
+     */
+    public boolean offer(final E e) {
+        final long t = tail.get();
+        if(t - head.get() >= buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 只在消费者线程上调用，队列为空时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final long h = head.get();
+        if(h >= tail.get()) {
+            return null;
+        }
+        final int index = (int) h & mask;
+        final E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+}
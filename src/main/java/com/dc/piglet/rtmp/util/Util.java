@@ -2,6 +2,7 @@ package com.dc.piglet.rtmp.util;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,6 +10,10 @@ import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 public class Util {
     private static final Logger log = LoggerFactory.getLogger(Util.class);
@@ -50,15 +55,29 @@ public class Util {
         return dest;
     }
 
+    /** Mac.getInstance要查找provider，代价比一次HMAC还高，每个线程复用一个实例 */
+    private static final FastThreadLocal<Mac> HMAC_SHA256 = new FastThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() throws Exception {
+            return Mac.getInstance("HmacSHA256");
+        }
+    };
+
     public static byte[] HmacSHA256(byte[] data, byte[] key) {
-        final Mac mac;
+        return HmacSHA256(key).doFinal(data);
+    }
+
+    /**
+     * 本线程复用的Mac，已用key初始化，调用方在同一线程内update / doFinal，不能保存
+     */
+    public static Mac HmacSHA256(byte[] key) {
+        final Mac mac = HMAC_SHA256.get();
         try {
-            mac = Mac.getInstance("HmacSHA256");
             mac.init(new SecretKeySpec(key, "HmacSHA256"));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        return mac.doFinal(data);
+        return mac;
     }
 
     public static void main(String[] args) {
@@ -199,6 +218,18 @@ public class Util {
         }
     }
 
+    /**
+     * 用source替换target，target已存在时覆盖(File.renameTo在Windows上此时会失败)。
+     * 优先原子替换，文件系统不支持时退回普通的覆盖移动
+     */
+    public static void replaceFile(final File source, final File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     public static void writeInt32Reverse(final ByteBuf out, final int value) {
         out.writeByte((byte) (0xFF & value));
         out.writeByte((byte) (0xFF & (value >> 8)));
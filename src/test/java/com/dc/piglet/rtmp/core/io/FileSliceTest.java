@@ -0,0 +1,113 @@
+package com.dc.piglet.rtmp.core.io;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileSliceTest {
+
+    private static final int OFFSET = 100;
+
+    private File file;
+    private byte[] content;
+    private FileChannel channel;
+    private ReferenceCounted handle;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("slice", ".bin");
+        content = new byte[20000];
+        new Random(7).nextBytes(content);
+        Files.write(file.toPath(), content);
+        channel = new FileInputStream(file).getChannel();
+        handle = new AbstractReferenceCounted() {
+            @Override
+            protected void deallocate() {
+                try {
+                    channel.close();
+                } catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public ReferenceCounted touch(final Object hint) {
+                return this;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channel.close();
+        file.delete();
+    }
+
+    @Test
+    public void regionsAreDefaultFileRegionsOverTheSlice() throws IOException {
+        final FileSlice slice = new FileSlice(channel, handle, OFFSET, 10000);
+        final FileRegion region = slice.region(4096, 4096);
+        // epoll只对DefaultFileRegion使用原生sendfile
+        assertTrue(region instanceof DefaultFileRegion);
+        assertArrayEquals(Arrays.copyOfRange(content, OFFSET + 4096, OFFSET + 8192), transfer(region));
+        region.release();
+    }
+
+    @Test
+    public void regionsKeepTheFileOpenUntilReleased() throws IOException {
+        final FileSlice slice = new FileSlice(channel, handle, OFFSET, 10000);
+        final FileRegion first = slice.region(0, 128);
+        final FileRegion second = slice.region(9872, 128);
+        // reader close之后已写出的region仍可发送
+        handle.release();
+        first.release();
+        assertTrue(channel.isOpen());
+        assertArrayEquals(Arrays.copyOfRange(content, OFFSET + 9872, OFFSET + 10000), transfer(second));
+        second.release();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void regionMustStayInsideTheSlice() {
+        new FileSlice(channel, handle, OFFSET, 100).region(50, 51);
+    }
+
+    @Test
+    public void readFallsBackToMemoryWithoutMovingPosition() throws IOException {
+        channel.position(7);
+        final FileSlice slice = new FileSlice(channel, handle, OFFSET, 500);
+        assertArrayEquals(Arrays.copyOfRange(content, OFFSET, OFFSET + 500), ByteBufUtil.getBytes(slice.read()));
+        assertEquals(7, channel.position());
+    }
+
+    private static byte[] transfer(final FileRegion region) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WritableByteChannel target = Channels.newChannel(out);
+        while(region.transferred() < region.count()) {
+            region.transferTo(target, region.transferred());
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.dc.piglet.rtmp.core.io;
+
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.Metadata;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpPublisherTest {
+
+    private static final int MESSAGES = 10;
+
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private RtmpPublisher publisher;
+
+    @Before
+    public void setUp() {
+        final ChannelInboundHandlerAdapter handler = new ChannelInboundHandlerAdapter();
+        channel = new EmbeddedChannel(handler);
+        ctx = channel.pipeline().context(handler);
+    }
+
+    @After
+    public void tearDown() {
+        if(publisher != null) {
+            publisher.close();
+        }
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void legacyConstructorPlaysAllMessages() {
+        publisher = newPublisher(true);
+        publisher.start(ctx, 0, -1);
+        final List<Integer> times = drain();
+        assertEquals(MESSAGES, times.size());
+        for(int i = 0; i < MESSAGES; i++) {
+            assertEquals(i * 5, (int) times.get(i));
+        }
+    }
+
+    @Test
+    public void legacyConstructorWithOwnTimer() {
+        publisher = newPublisher(false);
+        publisher.start(ctx, 0, -1);
+        assertEquals(MESSAGES, drain().size());
+    }
+
+    @Test
+    public void readAheadZeroKeepsOneMessageQueued() throws Exception {
+        final MemoryReader reader = new MemoryReader(MESSAGES);
+        final ReadAhead readAhead = new ReadAhead(reader, new DirectExecutor(), channel.eventLoop(), 0);
+        readAhead.seek(0, new ReadAhead.SeekListener() {
+            @Override
+            public void seekComplete(final long actualTime) {
+            }
+        });
+        channel.runPendingTasks();
+        assertEquals(1, reader.read);
+        int polled = 0;
+        RtmpMessage message;
+        while((message = readAhead.poll()) != null) {
+            polled++;
+            assertTrue("read ahead of the consumer by more than one message", reader.read <= polled + 1);
+            ReferenceCountUtil.release(message);
+        }
+        assertEquals(MESSAGES, polled);
+        assertTrue(readAhead.isEnd());
+        readAhead.close();
+    }
+
+    private RtmpPublisher newPublisher(final boolean useSharedTimer) {
+        // 客户端buffer足够大，所有tick都直接提交到event loop，不经过timer
+        final RtmpPublisher publisher = new RtmpPublisher(new MemoryReader(MESSAGES), 1, 60000, useSharedTimer, false) {
+            @Override
+            protected RtmpMessage[] getStopMessages(final long timePosition) {
+                return new RtmpMessage[0];
+            }
+        };
+        publisher.setMaxLead(60000);
+        publisher.setMaxBurst(60000);
+        return publisher;
+    }
+
+    private List<Integer> drain() {
+        channel.runPendingTasks();
+        final List<Integer> times = new ArrayList<Integer>();
+        Object msg;
+        while((msg = channel.readOutbound()) != null) {
+            times.add(((RtmpMessage) msg).getHeader().getTimestamp());
+            ReferenceCountUtil.release(msg);
+        }
+        return times;
+    }
+
+    private static final class DirectExecutor implements Executor {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    }
+
+    /**
+     * count条音频，时间戳间隔5毫秒
+     */
+    private static final class MemoryReader implements RtmpReader {
+
+        private final int count;
+        private int position;
+        private int read;
+
+        private MemoryReader(final int count) {
+            this.count = count;
+        }
+
+        @Override
+        public Metadata getMetadata() {
+            return null;
+        }
+
+        @Override
+        public RtmpMessage[] getStartMessages() {
+            return new RtmpMessage[0];
+        }
+
+        @Override
+        public void setAggregateDuration(final int targetDuration) {
+        }
+
+        @Override
+        public long getTimePosition() {
+            return position * 5;
+        }
+
+        @Override
+        public long seek(final long timePosition) {
+            position = (int) (timePosition / 5);
+            return position * 5;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < count;
+        }
+
+        @Override
+        public RtmpMessage next() {
+            read++;
+            return new Audio(position++ * 5, new byte[]{(byte) 0xaf, 0x01}, new byte[16]);
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+    }
+
+}
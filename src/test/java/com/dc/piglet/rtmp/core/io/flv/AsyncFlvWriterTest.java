@@ -0,0 +1,159 @@
+package com.dc.piglet.rtmp.core.io.flv;
+
+import com.dc.piglet.rtmp.entity.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncFlvWriterTest {
+
+    private static final byte KEYFRAME = 0x17;
+    private static final byte INTERFRAME = 0x27;
+    private static final byte AAC = (byte) 0xaf;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void overflowDropsVideoUntilKeyframeButKeepsAudio() throws Exception {
+        final File file = folder.newFile("av.flv");
+        final AsyncFlvWriter writer = newWriter(file);
+        writer.writeTag(MessageType.VIDEO, 0, tag(KEYFRAME, 10));
+        // 超过队列字节上限，一定溢出
+        writer.writeTag(MessageType.VIDEO, 40, tag(INTERFRAME, 200));
+        writer.writeTag(MessageType.AUDIO, 40, tag(AAC, 10));
+        writer.writeTag(MessageType.VIDEO, 80, tag(INTERFRAME, 10));
+        writer.writeTag(MessageType.AUDIO, 80, tag(AAC, 10));
+        writer.writeTag(MessageType.VIDEO, 120, tag(KEYFRAME, 10));
+        writer.writeTag(MessageType.VIDEO, 160, tag(INTERFRAME, 10));
+        assertEquals(2, writer.getDropped());
+        close(writer, file);
+        assertEquals(Arrays.asList(MessageType.VIDEO, MessageType.AUDIO, MessageType.AUDIO, MessageType.VIDEO, MessageType.VIDEO),
+                mediaTags(file));
+    }
+
+    @Test
+    public void audioOnlyStreamKeepsRecordingAfterOverflow() throws Exception {
+        final File file = folder.newFile("audio.flv");
+        final AsyncFlvWriter writer = newWriter(file);
+        writer.writeTag(MessageType.AUDIO, 0, tag(AAC, 10));
+        writer.writeTag(MessageType.AUDIO, 20, tag(AAC, 200));
+        for(int i = 2; i < 10; i++) {
+            writer.writeTag(MessageType.AUDIO, i * 20, tag(AAC, 10));
+        }
+        assertEquals(1, writer.getDropped());
+        close(writer, file);
+        assertEquals(9, mediaTags(file).size());
+    }
+
+    @Test
+    public void writeFailureClosesTheFileAndReleasesLaterTags() throws Exception {
+        final File dir = folder.newFolder("rec");
+        final File file = new File(dir, "fail.flv");
+        final AsyncFlvWriter writer = new AsyncFlvWriter(file.getPath(), 1000, 0, 64, 1 << 20, 1 << 20, 10, -1);
+        writer.writeTag(MessageType.VIDEO, 0, tag(KEYFRAME, 10));
+        writer.writeTag(MessageType.VIDEO, 40, tag(INTERFRAME, 10));
+        awaitDrained(writer);
+        // 分段录制的第一个文件
+        final File segment = new File(dir, "fail-0.flv");
+        assertTrue(isOpen(segment));
+        // 目录被删除后滚动到下一个分段时打开文件失败，写线程退出
+        for(final File f : dir.listFiles()) {
+            assertTrue(f.delete());
+        }
+        assertTrue(dir.delete());
+        writer.writeTag(MessageType.VIDEO, 2000, tag(KEYFRAME, 10));
+        for(int i = 0; i < 500 && isOpen(segment); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(isOpen(segment));
+        final ByteBuf late = tag(INTERFRAME, 10);
+        writer.writeTag(MessageType.VIDEO, 2040, late);
+        assertEquals(1, late.refCnt());
+        writer.close();
+    }
+
+    private static void awaitDrained(final AsyncFlvWriter writer) throws InterruptedException {
+        for(int i = 0; i < 500 && writer.getQueuedBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, writer.getQueuedBytes());
+    }
+
+    /**
+     * 本进程是否还打开着这个文件(包括已删除的)
+     */
+    private static boolean isOpen(final File file) throws IOException {
+        final File[] fds = new File("/proc/self/fd").listFiles();
+        Assume.assumeNotNull((Object) fds);
+        for(final File fd : fds) {
+            try {
+                if(Files.readSymbolicLink(fd.toPath()).toString().startsWith(file.getPath())) {
+                    return true;
+                }
+            } catch(IOException e) {
+                // fd已经关闭
+            }
+        }
+        return false;
+    }
+
+    private static AsyncFlvWriter newWriter(final File file) {
+        return new AsyncFlvWriter(file.getPath(), 0, 0, 64, 100, 1 << 20, 10, -1);
+    }
+
+    private static ByteBuf tag(final byte first, final int size) {
+        final byte[] bytes = new byte[size];
+        bytes[0] = first;
+        bytes[1] = 1;
+        return Unpooled.wrappedBuffer(bytes);
+    }
+
+    /**
+     * close之后由写线程写完剩下的tag并finalize，finalize的最后一步删除sidecar
+     */
+    private static void close(final AsyncFlvWriter writer, final File file) throws InterruptedException {
+        writer.close();
+        final File sidecar = new File(file.getPath() + FlvKeyframeIndex.SIDECAR_SUFFIX);
+        for(int i = 0; i < 500 && sidecar.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(sidecar.exists());
+    }
+
+    /**
+     * 文件中除onMetaData外的tag类型
+     */
+    private static List<MessageType> mediaTags(final File file) throws IOException {
+        final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        in.position(13);
+        final List<MessageType> types = new ArrayList<MessageType>();
+        while(in.remaining() >= 11) {
+            final int type = in.get() & 0x1f;
+            final int size = (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | in.get() & 0xff;
+            in.position(in.position() + 7 + size + 4);
+            if(type == 8) {
+                types.add(MessageType.AUDIO);
+            } else if(type == 9) {
+                types.add(MessageType.VIDEO);
+            }
+        }
+        return types;
+    }
+
+}
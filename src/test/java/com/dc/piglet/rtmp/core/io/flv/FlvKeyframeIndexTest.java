@@ -0,0 +1,299 @@
+package com.dc.piglet.rtmp.core.io.flv;
+
+import com.dc.piglet.rtmp.core.protocol.MetadataAmf0;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Object;
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Value;
+import com.dc.piglet.rtmp.entity.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FlvKeyframeIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void floorFindsLastKeyframeNotAfterTime() {
+        final FlvKeyframeIndex index = new FlvKeyframeIndex(new int[]{0, 1000, 2000}, new long[]{13, 500, 900});
+        assertEquals(-1, index.floor(-1));
+        assertEquals(0, index.floor(0));
+        assertEquals(0, index.floor(999));
+        assertEquals(1, index.floor(1000));
+        assertEquals(2, index.floor(60000));
+        assertEquals(-1, new FlvKeyframeIndex(new int[0], new long[0]).floor(100));
+    }
+
+    @Test
+    public void scanRecordsVideoKeyframeOffsets() throws Exception {
+        final FlvBuilder flv = new FlvBuilder();
+        flv.metadata(null);
+        final List<Long> keyframes = media(flv, 5);
+        // 超过24位的时间戳要用扩展字节
+        keyframes.add(flv.video(0x01000010, true));
+        final File file = flv.write(folder.newFile("scan.flv"));
+
+        final FlvKeyframeIndex index = FlvKeyframeIndex.scan(file);
+        assertEquals(keyframes.size(), index.size());
+        for(int i = 0; i < 5; i++) {
+            assertEquals(i * 1000, index.getTime(i));
+            assertEquals((long) keyframes.get(i), index.getPosition(i));
+        }
+        assertEquals(0x01000010, index.getTime(5));
+        assertEquals((long) keyframes.get(5), index.getPosition(5));
+    }
+
+    @Test
+    public void metadataIndexIsValidatedAgainstFileSize() {
+        final MetadataAmf0 metadata = new MetadataAmf0("onMetaData", onMetaData(new double[]{0, 1}, new double[]{13, 400}));
+        final FlvKeyframeIndex index = FlvKeyframeIndex.fromMetadata(metadata, 1000);
+        assertEquals(2, index.size());
+        assertEquals(1000, index.getTime(1));
+        assertEquals(400, index.getPosition(1));
+        // 超出文件、时间倒退、没有keyframes时都不使用
+        assertNull(FlvKeyframeIndex.fromMetadata(metadata, 400));
+        assertNull(FlvKeyframeIndex.fromMetadata(new MetadataAmf0("onMetaData",
+                onMetaData(new double[]{1, 0}, new double[]{13, 400})), 1000));
+        assertNull(FlvKeyframeIndex.fromMetadata(new MetadataAmf0("onMetaData", new LinkedHashMap<String, Object>()), 1000));
+    }
+
+    @Test
+    public void loadWritesSidecarAndCachesByModificationTime() throws Exception {
+        final FlvBuilder flv = new FlvBuilder();
+        flv.metadata(null);
+        final List<Long> keyframes = media(flv, 3);
+        final File file = flv.write(folder.newFile("load.flv"));
+        final File sidecar = new File(file.getPath() + FlvKeyframeIndex.SIDECAR_SUFFIX);
+
+        final Future<FlvKeyframeIndex> first = FlvKeyframeIndex.load(file.getPath());
+        final FlvKeyframeIndex index = first.get(5, TimeUnit.SECONDS);
+        assertEquals(3, index.size());
+        assertEquals((long) keyframes.get(2), index.getPosition(2));
+        assertTrue(sidecar.isFile());
+        assertSame(first, FlvKeyframeIndex.load(file.getPath()));
+
+        // 文件变化后重新读取；sidecar记录的大小和修改时间不一致，重新扫描
+        media(flv, 4);
+        flv.write(file);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        final Future<FlvKeyframeIndex> second = FlvKeyframeIndex.load(file.getPath());
+        assertNotSame(first, second);
+        assertEquals(7, second.get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void liveSidecarOnlyIndexesWrittenData() throws Exception {
+        final File file = new File(folder.getRoot(), "live.flv");
+        final FlvSegmentWriter writer = new FlvSegmentWriter(file.getPath(), 0, 0);
+        for(int time = 0; time < 3000; time += 500) {
+            writer.add(MessageType.VIDEO, time, frame(time % 1000 == 0));
+        }
+        writer.flush();
+        // 没有finalize：只有追加写的sidecar，截掉最后一个关键帧模拟写到一半
+        final FlvKeyframeIndex all = FlvKeyframeIndex.load(file.getPath()).get(5, TimeUnit.SECONDS);
+        assertEquals(3, all.size());
+        assertArrayEquals(new int[]{0, 1000, 2000}, new int[]{all.getTime(0), all.getTime(1), all.getTime(2)});
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(all.getPosition(2) + 5);
+        }
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        assertEquals(2, FlvKeyframeIndex.load(file.getPath()).get(5, TimeUnit.SECONDS).size());
+        writer.close();
+    }
+
+    @Test
+    public void readerSeeksToIndexedKeyframe() throws Exception {
+        // 先写一遍得到各个tag的位置，再把位置写进onMetaData；onMetaData的长度不变
+        final FlvBuilder probe = new FlvBuilder();
+        probe.metadata(onMetaData(new double[]{0, 0, 0, 0}, new double[]{0, 0, 0, 0}));
+        final List<Long> positions = media(probe, 4);
+        final FlvBuilder flv = new FlvBuilder();
+        flv.metadata(onMetaData(new double[]{0, 1, 2, 3}, toDoubles(positions)));
+        assertEquals(positions, media(flv, 4));
+        final File file = flv.write(folder.newFile("seek.flv"));
+
+        final FlvReader reader = new FlvReader(file.getPath());
+        try {
+            assertEquals(2000, reader.seek(2500));
+            assertKeyframeAt(reader.next(), 2000);
+            assertEquals(1000, reader.seek(1000));
+            assertKeyframeAt(reader.next(), 1000);
+            assertEquals(0, reader.seek(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readerFallsBackWhenIndexDoesNotMatchFile() throws Exception {
+        final FlvBuilder probe = new FlvBuilder();
+        probe.metadata(onMetaData(new double[]{0, 0, 0, 0}, new double[]{0, 0, 0, 0}));
+        final List<Long> positions = media(probe, 4);
+        final double[] wrong = toDoubles(positions);
+        for(int i = 0; i < wrong.length; i++) {
+            wrong[i] += 3; // tag中间
+        }
+        final FlvBuilder flv = new FlvBuilder();
+        flv.metadata(onMetaData(new double[]{0, 1, 2, 3}, wrong));
+        media(flv, 4);
+        final File file = flv.write(folder.newFile("mismatch.flv"));
+
+        final FlvReader reader = new FlvReader(file.getPath());
+        try {
+            assertEquals(2000, reader.seek(2500));
+            assertKeyframeAt(reader.next(), 2000);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void audioOnlyFileSeeksByWalkingTags() throws Exception {
+        final FlvBuilder flv = new FlvBuilder();
+        flv.metadata(null);
+        for(int time = 0; time < 5000; time += 100) {
+            flv.audio(time);
+        }
+        final File file = flv.write(folder.newFile("audio.flv"));
+        // 等后台扫描完成，seek时拿到的是空索引
+        assertEquals(0, FlvKeyframeIndex.load(file.getPath()).get(5, TimeUnit.SECONDS).size());
+
+        final FlvReader reader = new FlvReader(file.getPath());
+        try {
+            final long found = reader.seek(2500);
+            assertTrue("seek returned " + found, found >= 2500 && found <= 2600);
+            assertEquals(found, reader.next().getHeader().getTimestamp());
+            final long back = reader.seek(1000);
+            assertTrue("seek returned " + back, back >= 1000 && back <= 1100);
+            assertEquals(back, reader.next().getHeader().getTimestamp());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertKeyframeAt(final RtmpMessage message, final int time) {
+        assertTrue(message.getHeader().isVideo());
+        assertEquals(time, message.getHeader().getTimestamp());
+        assertEquals(0x17, message.encode().getByte(0));
+    }
+
+    /**
+     * 每秒一个关键帧，中间是一个音频和一个非关键帧，返回关键帧的位置
+     */
+    private static List<Long> media(final FlvBuilder flv, final int seconds) {
+        final List<Long> keyframes = new ArrayList<Long>();
+        final int start = flv.nextTime;
+        for(int i = 0; i < seconds; i++) {
+            final int time = start + i * 1000;
+            keyframes.add(flv.video(time, true));
+            flv.audio(time + 20);
+            flv.video(time + 500, false);
+        }
+        flv.nextTime = start + seconds * 1000;
+        return keyframes;
+    }
+
+    private static Map<String, Object> onMetaData(final double[] seconds, final double[] positions) {
+        final Object[] times = new Object[seconds.length];
+        final Object[] filepositions = new Object[positions.length];
+        for(int i = 0; i < seconds.length; i++) {
+            times[i] = seconds[i];
+            filepositions[i] = positions[i];
+        }
+        final Amf0Object keyframes = new Amf0Object();
+        keyframes.put("times", times);
+        keyframes.put("filepositions", filepositions);
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("duration", 4.0);
+        map.put("keyframes", keyframes);
+        return map;
+    }
+
+    private static double[] toDoubles(final List<Long> values) {
+        final double[] doubles = new double[values.size()];
+        for(int i = 0; i < doubles.length; i++) {
+            doubles[i] = values.get(i);
+        }
+        return doubles;
+    }
+
+    private static ByteBuf frame(final boolean keyframe) {
+        final byte[] bytes = new byte[16];
+        bytes[0] = (byte) (keyframe ? 0x17 : 0x27);
+        bytes[1] = 1;
+        return Unpooled.wrappedBuffer(bytes);
+    }
+
+    /**
+     * 在内存中拼一个FLV文件，记录每个tag的位置
+     */
+    private static final class FlvBuilder {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int nextTime;
+
+        private FlvBuilder() {
+            out.write(new byte[]{'F', 'L', 'V', 1, 5, 0, 0, 0, 9, 0, 0, 0, 0}, 0, 13);
+        }
+
+        private void metadata(final Map<String, Object> map) {
+            final ByteBuf data = Unpooled.buffer();
+            Amf0Value.encode(data, "onMetaData", map == null ? new LinkedHashMap<String, Object>() : map);
+            tag(18, 0, ByteBufUtil.getBytes(data));
+        }
+
+        private long video(final int time, final boolean keyframe) {
+            return tag(9, time, ByteBufUtil.getBytes(frame(keyframe)));
+        }
+
+        private long audio(final int time) {
+            return tag(8, time, new byte[]{(byte) 0xaf, 1, 0, 0});
+        }
+
+        private long tag(final int type, final int time, final byte[] data) {
+            final long offset = out.size();
+            final ByteBuf tag = Unpooled.buffer();
+            tag.writeByte(type);
+            tag.writeMedium(data.length);
+            tag.writeMedium(time & 0xffffff);
+            tag.writeByte(time >>> 24);
+            tag.writeMedium(0);
+            tag.writeBytes(data);
+            tag.writeInt(11 + data.length);
+            out.write(tag.array(), tag.arrayOffset(), tag.readableBytes());
+            return offset;
+        }
+
+        private File write(final File file) throws IOException {
+            try(FileOutputStream fos = new FileOutputStream(file)) {
+                out.writeTo(fos);
+            }
+            return file;
+        }
+
+    }
+
+}
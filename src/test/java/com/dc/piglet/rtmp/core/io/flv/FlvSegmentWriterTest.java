@@ -0,0 +1,184 @@
+package com.dc.piglet.rtmp.core.io.flv;
+
+import com.dc.piglet.rtmp.core.protocol.amf.Amf0Value;
+import com.dc.piglet.rtmp.entity.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlvSegmentWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void finalizeRewritesMetadataInPlace() throws Exception {
+        final File file = new File(folder.getRoot(), "live.flv");
+        final FlvSegmentWriter writer = new FlvSegmentWriter(file.getPath(), 0, 0);
+        writer.add(MessageType.METADATA_AMF0, 0, metadata());
+        writer.add(MessageType.VIDEO, 0, frame(0x17, 0, 40));
+        for(int time = 40; time < 3000; time += 40) {
+            writer.add(MessageType.AUDIO, time, frame(0xaf, 1, 20));
+            writer.add(MessageType.VIDEO, time, frame(time % 1000 == 0 ? 0x17 : 0x27, 1, 100));
+        }
+        writer.flush();
+        final long length = file.length();
+        writer.close();
+
+        assertEquals("media must not move", length, file.length());
+        assertFalse(new File(file.getPath() + FlvKeyframeIndex.SIDECAR_SUFFIX).exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        final List<Tag> tags = readTags(file);
+        final Map<?, ?> meta = onMetaData(tags.get(0));
+        assertEquals(640.0, meta.get("width"));
+        assertEquals((double) file.length(), meta.get("filesize"));
+        assertEquals(2.96, (Double) meta.get("duration"), 0.0001);
+        final Object[] times = keyframes(meta, "times");
+        final Object[] positions = keyframes(meta, "filepositions");
+        // sequence header + 1s、2s的关键帧
+        assertEquals(3, positions.length);
+        assertKeyframes(tags, times, positions);
+    }
+
+    @Test
+    public void thinsKeyframeIndexThatOutgrowsReservation() throws Exception {
+        final File file = new File(folder.getRoot(), "long.flv");
+        final FlvSegmentWriter writer = new FlvSegmentWriter(file.getPath(), 0, 0);
+        writer.add(MessageType.METADATA_AMF0, 0, metadata());
+        for(int i = 0; i < 3000; i++) {
+            writer.add(MessageType.VIDEO, i * 40, frame(0x17, 1, 8));
+        }
+        writer.close();
+
+        final List<Tag> tags = readTags(file);
+        final Map<?, ?> meta = onMetaData(tags.get(0));
+        final Object[] times = keyframes(meta, "times");
+        final Object[] positions = keyframes(meta, "filepositions");
+        assertTrue(positions.length > 0 && positions.length < 3000);
+        assertEquals(0.0, times[0]);
+        assertKeyframes(tags, times, positions);
+        assertEquals((double) file.length(), meta.get("filesize"));
+    }
+
+    @Test
+    public void segmentsStartAtKeyframesWithOwnIndex() throws Exception {
+        final File base = new File(folder.getRoot(), "seg.flv");
+        final FlvSegmentWriter writer = new FlvSegmentWriter(base.getPath(), 1000, 0);
+        writer.add(MessageType.METADATA_AMF0, 0, metadata());
+        writer.add(MessageType.VIDEO, 0, frame(0x17, 0, 40));
+        for(int time = 0; time <= 2500; time += 100) {
+            writer.add(MessageType.VIDEO, time, frame(time % 500 == 0 ? 0x17 : 0x27, 1, 50));
+        }
+        writer.close();
+
+        assertEquals(2, writer.getSegmentIndex());
+        for(int i = 0; i <= 2; i++) {
+            final File file = new File(folder.getRoot(), "seg-" + i + ".flv");
+            final List<Tag> tags = readTags(file);
+            final Map<?, ?> meta = onMetaData(tags.get(0));
+            assertEquals((double) file.length(), meta.get("filesize"));
+            // 每段开头重复sequence header，时间戳从0开始
+            assertEquals(0x17, tags.get(1).first);
+            assertEquals(0, tags.get(1).second);
+            assertEquals(0, tags.get(2).time);
+            assertKeyframes(tags, keyframes(meta, "times"), keyframes(meta, "filepositions"));
+            assertFalse(new File(file.getPath() + FlvKeyframeIndex.SIDECAR_SUFFIX).exists());
+        }
+    }
+
+    /**
+     * 每个索引项都指向一个时间相同的视频关键帧
+     */
+    private static void assertKeyframes(final List<Tag> tags, final Object[] times, final Object[] positions) {
+        assertEquals(times.length, positions.length);
+        for(int i = 0; i < positions.length; i++) {
+            final Tag tag = find(tags, ((Double) positions[i]).longValue());
+            assertNotNull("no tag at " + positions[i], tag);
+            assertEquals(9, tag.type);
+            assertEquals(0x17, tag.first);
+            assertEquals(tag.time / 1000.0, (Double) times[i], 0.0001);
+        }
+    }
+
+    private static Tag find(final List<Tag> tags, final long offset) {
+        for(final Tag tag : tags) {
+            if(tag.offset == offset) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    private static Map<?, ?> onMetaData(final Tag tag) {
+        assertEquals(18, tag.type);
+        final ByteBuf in = Unpooled.wrappedBuffer(tag.data);
+        assertEquals("onMetaData", Amf0Value.decode(in));
+        return (Map<?, ?>) Amf0Value.decode(in);
+    }
+
+    private static Object[] keyframes(final Map<?, ?> meta, final String key) {
+        return (Object[]) ((Map<?, ?>) meta.get("keyframes")).get(key);
+    }
+
+    private static ByteBuf metadata() {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("width", 640.0);
+        map.put("height", 360.0);
+        final ByteBuf out = Unpooled.buffer();
+        Amf0Value.encode(out, "onMetaData", map);
+        return out;
+    }
+
+    private static ByteBuf frame(final int first, final int second, final int size) {
+        final byte[] bytes = new byte[size];
+        bytes[0] = (byte) first;
+        bytes[1] = (byte) second;
+        return Unpooled.wrappedBuffer(bytes);
+    }
+
+    private static final class Tag {
+        private long offset;
+        private int type;
+        private int time;
+        private int first;
+        private int second;
+        private byte[] data;
+    }
+
+    private static List<Tag> readTags(final File file) throws IOException {
+        final ByteBuf in = Unpooled.wrappedBuffer(Files.readAllBytes(file.toPath()));
+        in.skipBytes(13);
+        final List<Tag> tags = new ArrayList<Tag>();
+        while(in.isReadable()) {
+            final Tag tag = new Tag();
+            tag.offset = in.readerIndex();
+            tag.type = in.readByte() & 0x1f;
+            final int size = in.readUnsignedMedium();
+            tag.time = in.readUnsignedMedium() | in.readUnsignedByte() << 24;
+            in.skipBytes(3);
+            tag.data = new byte[size];
+            in.readBytes(tag.data);
+            tag.first = tag.data[0] & 0xff;
+            tag.second = tag.data.length > 1 ? tag.data[1] : -1;
+            assertEquals(11 + size, in.readInt());
+            tags.add(tag);
+        }
+        return tags;
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.dc.piglet.rtmp.core.protocol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.interfaces.DHPublicKey;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DhKeyPairPoolTest {
+
+    private DhKeyPairPool pool;
+
+    @After
+    public void tearDown() {
+        if(pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void fillsInTheBackgroundAndRefillsAfterTakes() throws Exception {
+        pool = new DhKeyPairPool(4);
+        awaitSize(4);
+        final Set<BigInteger> keys = new HashSet<BigInteger>();
+        for(int i = 0; i < 3; i++) {
+            keys.add(publicKey(pool.take()));
+        }
+        assertEquals("key pairs must not be reused", 3, keys.size());
+        assertEquals(0, pool.getMisses());
+        // 低于一半时补满
+        awaitSize(4);
+        for(int i = 0; i < 4; i++) {
+            assertTrue(keys.add(publicKey(pool.take())));
+        }
+    }
+
+    @Test
+    public void emptyPoolGeneratesOnTheCallingThread() throws Exception {
+        pool = new DhKeyPairPool(1);
+        awaitSize(1);
+        final Set<BigInteger> keys = new HashSet<BigInteger>();
+        // 连续取比后台生成快，第二次起池是空的，在调用线程生成而不是等待
+        for(int i = 0; i < 5; i++) {
+            keys.add(publicKey(pool.take()));
+        }
+        assertEquals(5, keys.size());
+        assertTrue(pool.getMisses() > 0);
+    }
+
+    @Test
+    public void keyPairsUseTheRtmpeGroup() {
+        final DHPublicKey key = (DHPublicKey) DhKeyPairPool.generate().getPublic();
+        assertEquals(RtmpHandshake.DH_MODULUS, key.getParams().getP());
+        assertEquals(RtmpHandshake.DH_BASE, key.getParams().getG());
+    }
+
+    private void awaitSize(final int size) throws InterruptedException {
+        for(int i = 0; i < 500 && pool.size() < size; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, pool.size());
+    }
+
+    private static BigInteger publicKey(final KeyPair keyPair) {
+        return ((DHPublicKey) keyPair.getPublic()).getY();
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.dc.piglet.rtmp.core.protocol;
+
+import com.dc.piglet.rtmp.client.ClientOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RtmpHandshakeTest {
+
+    private static final int SIZE = RtmpHandshake.HANDSHAKE_SIZE;
+    private static final byte[] SIMPLE = {0, 0, 0, 0};
+    private static final byte[] TYPE_1 = {0x09, 0x00, 0x7c, 0x02};
+    private static final byte[] TYPE_2 = {(byte) 0x80, 0x00, 0x03, 0x02};
+
+    private DhKeyPairPool pool;
+
+    @After
+    public void tearDown() {
+        RtmpHandshake.setKeyPairPool(null);
+        if(pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void simpleHandshakeEchoesPartOne() {
+        final RtmpHandshake client = client("rtmp", SIMPLE);
+        final RtmpHandshake server = new RtmpHandshake();
+        final ByteBuf c0c1 = copy(client.encodeClient0(), client.encodeClient1());
+        final byte[] c1 = ByteBufUtil.getBytes(c0c1, 1, SIZE);
+        server.decodeClient0And1(c0c1);
+        final ByteBuf s0s1s2 = copy(server.encodeServer0(), server.encodeServer1(), server.encodeServer2());
+        assertEquals(0x03, s0s1s2.getByte(0));
+        final byte[] s1 = ByteBufUtil.getBytes(s0s1s2, 1, SIZE);
+        final byte[] s2 = ByteBufUtil.getBytes(s0s1s2, 1 + SIZE, SIZE);
+        // S2回送C1，只有4-7字节清零
+        assertArrayEquals(Arrays.copyOf(c1, 4), Arrays.copyOf(s2, 4));
+        assertArrayEquals(Arrays.copyOfRange(c1, 8, SIZE), Arrays.copyOfRange(s2, 8, SIZE));
+        assertTrue(client.decodeServerAll(s0s1s2));
+        final byte[] c2 = ByteBufUtil.getBytes(client.encodeClient2());
+        assertArrayEquals(Arrays.copyOfRange(s1, 8, SIZE), Arrays.copyOfRange(c2, 8, SIZE));
+    }
+
+    @Test
+    public void digestHandshakeInteropsForBothValidationTypes() {
+        for(final byte[] version : new byte[][]{TYPE_1, TYPE_2}) {
+            final RtmpHandshake client = client("rtmp", version);
+            final RtmpHandshake server = new RtmpHandshake();
+            handshake(client, server);
+            assertFalse(server.isRtmpe());
+            assertArrayEquals(version, server.getPeerVersion());
+        }
+    }
+
+    @Test
+    public void plainServerPartOneIsPrecomputedPerValidationType() {
+        final RtmpHandshake first = new RtmpHandshake();
+        first.decodeClient0And1(copy(client("rtmp", TYPE_1).encodeClient0(), client("rtmp", TYPE_1).encodeClient1()));
+        final RtmpHandshake second = new RtmpHandshake();
+        second.decodeClient0And1(copy(client("rtmp", TYPE_1).encodeClient0(), client("rtmp", TYPE_1).encodeClient1()));
+        final RtmpHandshake other = new RtmpHandshake();
+        other.decodeClient0And1(copy(client("rtmp", TYPE_2).encodeClient0(), client("rtmp", TYPE_2).encodeClient1()));
+        final byte[] s1 = ByteBufUtil.getBytes(first.encodeServer1());
+        assertArrayEquals(s1, ByteBufUtil.getBytes(second.encodeServer1()));
+        assertFalse(Arrays.equals(s1, ByteBufUtil.getBytes(other.encodeServer1())));
+    }
+
+    @Test
+    public void tamperedClientPartOneIsRejected() {
+        final RtmpHandshake client = client("rtmp", TYPE_1);
+        final ByteBuf c0c1 = copy(client.encodeClient0(), client.encodeClient1());
+        // digest在12到772之间，1000处只影响digest的计算
+        c0c1.setByte(1 + 1000, ~c0c1.getByte(1 + 1000));
+        try {
+            new RtmpHandshake().decodeClient0And1(c0c1);
+            fail("tampered C1 accepted");
+        } catch(RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("client part 1 validation failed"));
+        }
+    }
+
+    @Test
+    public void tamperedServerPartTwoIsRejected() {
+        final RtmpHandshake client = client("rtmp", TYPE_1);
+        final RtmpHandshake server = new RtmpHandshake();
+        server.decodeClient0And1(copy(client.encodeClient0(), client.encodeClient1()));
+        final ByteBuf s0s1s2 = copy(server.encodeServer0(), server.encodeServer1(), server.encodeServer2());
+        final int index = 1 + SIZE + 100;
+        s0s1s2.setByte(index, ~s0s1s2.getByte(index));
+        try {
+            client.decodeServerAll(s0s1s2);
+            fail("tampered S2 accepted");
+        } catch(RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("server part 2 validation failed"));
+        }
+    }
+
+    @Test
+    public void rtmpeCiphersMatchInBothDirections() {
+        for(final byte[] version : new byte[][]{TYPE_1, TYPE_2}) {
+            final RtmpHandshake client = client("rtmpe", version);
+            final RtmpHandshake server = new RtmpHandshake();
+            handshake(client, server);
+            assertTrue(server.isRtmpe());
+            assertTrue(client.isRtmpe());
+            assertCiphersMatch(client, server);
+        }
+    }
+
+    @Test
+    public void rtmpeUsesPooledKeyPairs() throws Exception {
+        pool = new DhKeyPairPool(4);
+        for(int i = 0; i < 200 && pool.size() < 4; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, pool.size());
+        RtmpHandshake.setKeyPairPool(pool);
+        final RtmpHandshake client = client("rtmpe", TYPE_1);
+        final RtmpHandshake server = new RtmpHandshake();
+        handshake(client, server);
+        assertEquals(0, pool.getMisses());
+        assertCiphersMatch(client, server);
+    }
+
+    @Test
+    public void plainDigestHandshakeHasNoCiphers() {
+        final RtmpHandshake client = client("rtmp", TYPE_2);
+        final RtmpHandshake server = new RtmpHandshake();
+        handshake(client, server);
+        assertNull(server.getCipherIn());
+        assertNull(server.getCipherOut());
+    }
+
+    private static void assertCiphersMatch(final RtmpHandshake client, final RtmpHandshake server) {
+        final byte[] plain = "NetConnection.Connect.Success".getBytes();
+        final ByteBuf up = Unpooled.copiedBuffer(plain);
+        client.cipherUpdateOut(up);
+        assertFalse(Arrays.equals(plain, ByteBufUtil.getBytes(up)));
+        server.cipherUpdateIn(up);
+        assertArrayEquals(plain, ByteBufUtil.getBytes(up));
+
+        final ByteBuf down = Unpooled.copiedBuffer(plain);
+        server.cipherUpdateOut(down);
+        assertFalse(Arrays.equals(plain, ByteBufUtil.getBytes(down)));
+        client.cipherUpdateIn(down);
+        assertArrayEquals(plain, ByteBufUtil.getBytes(down));
+    }
+
+    /**
+     * 完整的C0C1 -> S0S1S2 -> C2，双方各自校验对端的digest
+     */
+    private static void handshake(final RtmpHandshake client, final RtmpHandshake server) {
+        server.decodeClient0And1(copy(client.encodeClient0(), client.encodeClient1()));
+        assertTrue(client.decodeServerAll(copy(server.encodeServer0(), server.encodeServer1(), server.encodeServer2())));
+        final ByteBuf c2 = copy(client.encodeClient2());
+        assertEquals(SIZE, c2.readableBytes());
+        server.decodeClient2(c2);
+        assertFalse(c2.isReadable());
+    }
+
+    private static RtmpHandshake client(final String protocol, final byte[] version) {
+        final ClientOptions options = new ClientOptions(protocol + "://localhost/app/stream", null);
+        options.setClientVersionToUse(version);
+        return new RtmpHandshake(options);
+    }
+
+    /**
+     * 服务端的S1 / S2引用共享的预计算buffer，拷贝后才能修改
+     */
+    private static ByteBuf copy(final ByteBuf... parts) {
+        final ByteBuf out = Unpooled.buffer();
+        for(final ByteBuf part : parts) {
+            out.writeBytes(part, part.readerIndex(), part.readableBytes());
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.dc.piglet.rtmp.core.protocol;
+
+import com.dc.piglet.rtmp.entity.MessageType;
+import com.dc.piglet.rtmp.entity.Type;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpHeaderTest {
+
+    /** 覆盖1 / 2 / 3字节的basic header */
+    private static final int[] CS_IDS = {3, 64, 319, 320, 65599};
+
+    @Test
+    public void peekEncodedSizeMatchesEncodedHeader() {
+        for(final int csId : CS_IDS) {
+            for(final Type type : Type.values()) {
+                for(final int time : new int[]{40, RtmpHeader.MAX_NORMAL_HEADER_TIME + 1}) {
+                    final ByteBuf encoded = encode(csId, type, time);
+                    final int size = encoded.readableBytes();
+                    assertEquals(csId + " " + type + " " + time, size, RtmpHeader.peekEncodedSize(encoded));
+                    assertEquals(csId, RtmpHeader.peekCsId(encoded));
+                    assertEquals(0, encoded.readerIndex());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void partialHeaderNeverReportsReadableSize() {
+        // 半包时要么无法判断(-1)，要么给出的大小超过已收到的字节，解码器都会等待
+        for(final int csId : CS_IDS) {
+            for(final Type type : Type.values()) {
+                for(final int time : new int[]{40, RtmpHeader.MAX_NORMAL_HEADER_TIME + 1}) {
+                    final ByteBuf encoded = encode(csId, type, time);
+                    final int size = encoded.readableBytes();
+                    for(int length = 0; length < size; length++) {
+                        final int peeked = RtmpHeader.peekEncodedSize(encoded.slice(0, length));
+                        assertTrue(csId + " " + type + " " + time + " " + length + ": " + peeked, peeked < 0 || peeked == size);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void headersRoundTripAgainstPreviousHeader() {
+        for(final int csId : CS_IDS) {
+            for(final Type type : Type.values()) {
+                for(final int time : new int[]{40, RtmpHeader.MAX_NORMAL_HEADER_TIME + 1}) {
+                    final RtmpHeader prev = header(csId, 1000);
+                    final ByteBuf encoded = encode(csId, type, time);
+                    final RtmpHeader decoded = new RtmpHeader(encoded, prev);
+                    assertEquals(csId + " " + type + " " + time, 0, encoded.readableBytes());
+                    assertEquals(csId, decoded.getCsId());
+                    assertEquals(MessageType.VIDEO, decoded.getMsgType());
+                    assertEquals(type == Type.MID ? 200 : 100, decoded.getMsgLength());
+                    assertEquals(1, decoded.getStreamId());
+                    if(type == Type.ALL) {
+                        assertEquals(time, decoded.getTimestamp());
+                    } else if(type != Type.TINY) {
+                        assertEquals(time, decoded.getDeltaTime());
+                    }
+                }
+            }
+        }
+    }
+
+    private static RtmpHeader header(final int csId, final int timestamp) {
+        final RtmpHeader header = new RtmpHeader(MessageType.VIDEO, timestamp, 100);
+        header.setCsId(csId);
+        header.setStreamId(1);
+        return header;
+    }
+
+    private static ByteBuf encode(final int csId, final Type type, final int time) {
+        final ByteBuf out = Unpooled.buffer();
+        header(csId, time).encode(out, type, type == Type.MID ? 200 : 100, time);
+        return out;
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.dc.piglet.rtmp.core.protocol.amf;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class Amf0ValueTest {
+
+    @Test
+    public void scalarsRoundTrip() {
+        assertEquals(42.5, roundTrip(42.5));
+        assertEquals(7.0, roundTrip(7));
+        assertEquals(Boolean.TRUE, roundTrip(true));
+        assertEquals(Boolean.FALSE, roundTrip(false));
+        assertNull(roundTrip(null));
+        assertEquals("", roundTrip(""));
+        assertEquals("直播 stream", roundTrip("直播 stream"));
+        assertEquals(new Date(1234567890000L), roundTrip(new Date(1234567890000L)));
+    }
+
+    @Test
+    public void longStringSwitchesMarker() {
+        final char[] chars = new char[70000];
+        Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+        final ByteBuf out = Unpooled.buffer();
+        Amf0Value.encode(out, value);
+        assertEquals(Amf0Value.Type.LONG_STRING.intValue(), out.getByte(0));
+        assertEquals(value, Amf0Value.decode(out));
+        assertFalse(out.isReadable());
+    }
+
+    @Test
+    public void knownStringsDecodeToTheSameInstance() {
+        final ByteBuf out = Unpooled.buffer();
+        Amf0Value.encode(out, new String("onMetaData"));
+        Amf0Value.encode(out, new String("onMetaData"));
+        assertSame(Amf0Value.decode(out), Amf0Value.decode(out));
+    }
+
+    @Test
+    public void containersRoundTrip() {
+        final Amf0Object object = new Amf0Object();
+        object.put("level", "status");
+        object.put("code", "NetStream.Play.Start");
+        object.put("nested", new Object[]{1.0, "two", null, true});
+        final Object decodedObject = roundTrip(object);
+        assertTrue(decodedObject instanceof Amf0Object);
+        assertEquals("status", ((Map<?, ?>) decodedObject).get("level"));
+        assertArrayEquals(new Object[]{1.0, "two", null, true}, (Object[]) ((Map<?, ?>) decodedObject).get("nested"));
+
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("duration", 12.5);
+        map.put("width", 640.0);
+        final Object decodedMap = roundTrip(map);
+        assertFalse(decodedMap instanceof Amf0Object);
+        assertEquals(map, decodedMap);
+        assertEquals(Arrays.asList("duration", "width"), Arrays.asList(((Map<?, ?>) decodedMap).keySet().toArray()));
+    }
+
+    @Test
+    public void typedObjectKeepsClassName() {
+        final Amf0Object object = new Amf0Object();
+        object.put("classname", "com.example.Point");
+        object.put("x", 1.0);
+        final Map<?, ?> decoded = (Map<?, ?>) roundTrip(object);
+        assertEquals("com.example.Point", decoded.get("classname"));
+        assertEquals(1.0, decoded.get("x"));
+    }
+
+    @Test
+    public void typedArraysGoThroughAvmplus() {
+        final ByteBuf out = Unpooled.buffer();
+        Amf0Value.encode(out, new byte[]{1, 2, 3});
+        assertEquals(Amf0Value.Type.AVMPLUS.intValue(), out.getByte(0));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) Amf0Value.decode(out));
+        assertArrayEquals(new double[]{0.5, -1}, (double[]) roundTrip(new double[]{0.5, -1}), 0);
+    }
+
+    @Test
+    public void valuesAreDecodedInSequence() {
+        final ByteBuf out = Unpooled.buffer();
+        Amf0Value.encode(out, "_result", 1.0, null, "done");
+        assertEquals("_result", Amf0Value.decode(out));
+        assertEquals(1.0, Amf0Value.decode(out));
+        assertNull(Amf0Value.decode(out));
+        assertEquals("done", Amf0Value.decode(out));
+        assertFalse(out.isReadable());
+    }
+
+    private static Object roundTrip(final Object value) {
+        final ByteBuf out = Unpooled.buffer();
+        Amf0Value.encode(out, value);
+        final Object decoded = Amf0Value.decode(out);
+        assertFalse("trailing bytes after " + value, out.isReadable());
+        return decoded;
+    }
+
+}
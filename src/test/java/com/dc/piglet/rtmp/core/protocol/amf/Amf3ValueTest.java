@@ -0,0 +1,129 @@
+package com.dc.piglet.rtmp.core.protocol.amf;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class Amf3ValueTest {
+
+    @Test
+    public void u29BoundariesRoundTrip() {
+        final int[] values = {0, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000, 0x1FFFFFFF};
+        final int[] sizes = {1, 1, 2, 2, 3, 3, 4, 4};
+        for(int i = 0; i < values.length; i++) {
+            final ByteBuf out = Unpooled.buffer();
+            Amf3Value.writeU29(out, values[i]);
+            assertEquals("size of " + values[i], sizes[i], out.readableBytes());
+            assertEquals(values[i], Amf3Value.readU29(out));
+        }
+    }
+
+    @Test
+    public void integersKeepSignAndFallBackToDouble() {
+        assertEquals(0, roundTrip(0));
+        assertEquals(-1, roundTrip(-1));
+        assertEquals((1 << 28) - 1, roundTrip((1 << 28) - 1));
+        assertEquals(-(1 << 28), roundTrip(-(1 << 28)));
+        assertEquals((double) (1 << 28), roundTrip(1 << 28));
+        assertEquals(2.5, roundTrip(2.5));
+    }
+
+    @Test
+    public void scalarsRoundTrip() {
+        assertNull(roundTrip(null));
+        assertEquals(Boolean.TRUE, roundTrip(true));
+        assertEquals(Boolean.FALSE, roundTrip(false));
+        assertEquals("", roundTrip(""));
+        assertEquals("onMetaData", roundTrip("onMetaData"));
+        assertEquals("直播", roundTrip("直播"));
+        assertEquals(new Date(1234567890000L), roundTrip(new Date(1234567890000L)));
+    }
+
+    @Test
+    public void arraysAndVectorsRoundTrip() {
+        assertArrayEquals(new Object[]{1, "a", null}, (Object[]) roundTrip(new Object[]{1, "a", null}));
+        assertArrayEquals(new byte[]{9, 8, 7}, (byte[]) roundTrip(new byte[]{9, 8, 7}));
+        assertArrayEquals(new int[]{-1, 0, Integer.MAX_VALUE}, (int[]) roundTrip(new int[]{-1, 0, Integer.MAX_VALUE}));
+        assertArrayEquals(new long[]{0, 0xFFFFFFFFL}, (long[]) roundTrip(new long[]{0, 0xFFFFFFFFL}));
+        assertArrayEquals(new double[]{1.5, -2}, (double[]) roundTrip(new double[]{1.5, -2}), 0);
+    }
+
+    @Test
+    public void objectsAndMapsRoundTrip() {
+        final Amf0Object object = new Amf0Object();
+        object.put("classname", "com.example.Point");
+        object.put("x", 1);
+        object.put("label", "p");
+        final Map<?, ?> decodedObject = (Map<?, ?>) roundTrip(object);
+        assertTrue(decodedObject instanceof Amf0Object);
+        assertEquals(object, decodedObject);
+
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("duration", 12.5);
+        map.put("hasVideo", true);
+        final Object decodedMap = roundTrip(map);
+        assertFalse(decodedMap instanceof Amf0Object);
+        assertEquals(map, decodedMap);
+    }
+
+    @Test
+    public void repeatedValuesAreWrittenAsReferences() {
+        final Amf0Object point = new Amf0Object();
+        point.put("classname", "com.example.Point");
+        point.put("x", 1);
+        final Amf0Object other = new Amf0Object();
+        other.put("classname", "com.example.Point");
+        other.put("x", 2);
+        final Object[] values = {point, point, other, "repeated", "repeated"};
+
+        final ByteBuf out = Unpooled.buffer();
+        Amf3Value.encode(out, values);
+        final ByteBuf unshared = Unpooled.buffer();
+        Amf3Value.encode(unshared, new Object[]{point, copy(point), copy(other), "repeated", new String("repeated")});
+        // 同一个对象第二次出现只写引用
+        assertTrue(out.readableBytes() < unshared.readableBytes());
+
+        final Object[] decoded = (Object[]) Amf3Value.decode(out);
+        assertFalse(out.isReadable());
+        assertSame(decoded[0], decoded[1]);
+        assertEquals(other, decoded[2]);
+        assertEquals("repeated", decoded[4]);
+    }
+
+    @Test
+    public void referenceTablesAreResetBetweenValues() {
+        final ByteBuf out = Unpooled.buffer();
+        Amf3Value.encode(out, "shared");
+        Amf3Value.encode(out, "shared");
+        // 第二个值重新开始引用表，仍然写完整字符串而不是引用：两次都是marker + 长度 + 6字节
+        assertEquals(2 * 8, out.readableBytes());
+        assertEquals("shared", Amf3Value.decode(out));
+        assertEquals("shared", Amf3Value.decode(out));
+    }
+
+    private static Amf0Object copy(final Amf0Object object) {
+        final Amf0Object copy = new Amf0Object();
+        copy.putAll(object);
+        return copy;
+    }
+
+    private static Object roundTrip(final Object value) {
+        final ByteBuf out = Unpooled.buffer();
+        Amf3Value.encode(out, value);
+        final Object decoded = Amf3Value.decode(out);
+        assertFalse("trailing bytes after " + value, out.isReadable());
+        return decoded;
+    }
+
+}
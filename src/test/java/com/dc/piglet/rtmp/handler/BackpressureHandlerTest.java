@@ -0,0 +1,158 @@
+package com.dc.piglet.rtmp.handler;
+
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BackpressureHandlerTest {
+
+    private BackpressureHandler handler;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        handler = new BackpressureHandler(100);
+        channel = new EmbeddedChannel(handler);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void writesThroughWhileWritable() {
+        final ChunkedBroadcast keyframe = write(video(0, true));
+        final ChunkedBroadcast audio = write(audio(20));
+        channel.flush();
+        assertOutbound(keyframe, audio);
+        assertEquals(0, handler.getQueueBytes());
+    }
+
+    @Test
+    public void trimDropsOldestGopFirstAndKeepsOrder() {
+        setWritable(false);
+        final ChunkedBroadcast first = write(video(0, true));
+        final ChunkedBroadcast audio1 = write(audio(20));
+        final ChunkedBroadcast second = write(video(1000, true));
+        final ChunkedBroadcast audio2 = write(audio(1020));
+        assertEquals(100, handler.getQueueBytes());
+        // 超限：丢掉第一个GOP，音频保留
+        final ChunkedBroadcast third = write(video(2000, true));
+        assertEquals(0, first.refCnt());
+        assertEquals(100, handler.getQueueBytes());
+        // 再超限：丢掉第二个GOP，只剩最新的关键帧
+        final ChunkedBroadcast audio3 = write(audio(2020));
+        assertEquals(0, second.refCnt());
+        assertEquals(2, handler.getDroppedVideo());
+        assertEquals(0, handler.getDroppedAudio());
+
+        setWritable(true);
+        // 剩下的视频从关键帧开始，后面的非关键帧照常下发
+        final ChunkedBroadcast inter = write(video(2040, false));
+        channel.flush();
+        assertOutbound(audio1, audio2, third, audio3, inter);
+        assertEquals(0, handler.getQueueBytes());
+    }
+
+    @Test
+    public void audioIsDroppedOnlyWhenNoVideoIsLeft() {
+        setWritable(false);
+        final ChunkedBroadcast a1 = write(audio(0, 40));
+        final ChunkedBroadcast a2 = write(audio(20, 40));
+        final ChunkedBroadcast a3 = write(audio(40, 40));
+        assertEquals(0, a1.refCnt());
+        final ChunkedBroadcast a4 = write(audio(60, 40));
+        assertEquals(0, a2.refCnt());
+        assertEquals(2, handler.getDroppedAudio());
+        assertEquals(80, handler.getQueueBytes());
+        setWritable(true);
+        assertOutbound(a3, a4);
+    }
+
+    @Test
+    public void otherMessagesAreQueuedBehindMediaAndNeverDropped() {
+        setWritable(false);
+        final ChunkedBroadcast keyframe = write(video(0, true));
+        final Object status = "onStatus";
+        final ChannelFuture future = channel.write(status);
+        final ChunkedBroadcast audio = write(audio(20, 80));
+        assertEquals(0, keyframe.refCnt());
+        assertFalse(future.isDone());
+        setWritable(true);
+        assertTrue(future.isSuccess());
+        assertOutbound(status, audio);
+    }
+
+    @Test
+    public void resumesVideoAtNextKeyframe() {
+        setWritable(false);
+        final ChunkedBroadcast inter = write(video(0, false));
+        // 不可写时到达的非关键帧直接丢弃，丢帧对调用方不是失败
+        assertEquals(0, inter.refCnt());
+        assertEquals(1, handler.getDroppedVideo());
+        setWritable(true);
+        final ChunkedBroadcast stale = write(video(40, false));
+        assertEquals(0, stale.refCnt());
+        final ChunkedBroadcast keyframe = write(video(1000, true));
+        final ChunkedBroadcast next = write(video(1040, false));
+        channel.flush();
+        assertOutbound(keyframe, next);
+    }
+
+    private void assertOutbound(final Object... expected) {
+        final List<Object> actual = new ArrayList<Object>();
+        Object msg;
+        while((msg = channel.readOutbound()) != null) {
+            actual.add(msg);
+            ReferenceCountUtil.release(msg);
+        }
+        assertEquals(expected.length, actual.size());
+        for(int i = 0; i < expected.length; i++) {
+            assertSame(expected[i], actual.get(i));
+        }
+        assertNull(channel.readOutbound());
+    }
+
+    private ChunkedBroadcast write(final RtmpMessage message) {
+        final ChunkedBroadcast broadcast = new ChunkedBroadcast(message);
+        final ChannelFuture future = channel.write(broadcast);
+        // 丢帧不是失败，被丢弃的message已经release
+        assertFalse(future.isDone() && !future.isSuccess());
+        return broadcast;
+    }
+
+    private void setWritable(final boolean writable) {
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+        channel.runPendingTasks();
+    }
+
+    private static Video video(final int time, final boolean keyframe) {
+        return new Video(time, Unpooled.wrappedBuffer(new byte[]{(byte) (keyframe ? 0x17 : 0x27), 1, 0, 0}, new byte[21]));
+    }
+
+    private static Audio audio(final int time) {
+        return audio(time, 25);
+    }
+
+    private static Audio audio(final int time, final int size) {
+        return new Audio(time, new byte[]{(byte) 0xaf, 1}, new byte[size - 2]);
+    }
+
+}
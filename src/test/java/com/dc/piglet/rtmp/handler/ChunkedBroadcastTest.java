@@ -0,0 +1,103 @@
+package com.dc.piglet.rtmp.handler;
+
+import com.dc.piglet.rtmp.core.protocol.Video;
+import com.dc.piglet.rtmp.entity.Type;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ChunkedBroadcastTest {
+
+    private static final ByteBufAllocator ALLOC = UnpooledByteBufAllocator.DEFAULT;
+
+    @Test
+    public void sameStateSharesOneChunkedBuffer() {
+        final ChunkedBroadcast broadcast = broadcast();
+        final ByteBuf a = broadcast.chunks(ALLOC, 128, Type.ALL, 0);
+        final ByteBuf b = broadcast.chunks(ALLOC, 128, Type.ALL, 0);
+        final ByteBuf c = broadcast.chunks(ALLOC, 128, Type.SMALL, 40);
+        final ByteBuf d = broadcast.chunks(ALLOC, 4096, Type.ALL, 0);
+        assertSame(a.unwrap(), b.unwrap());
+        assertNotSame(a.unwrap(), c.unwrap());
+        assertNotSame(a.unwrap(), d.unwrap());
+        // 300字节按128切成3个chunk，后两个各带1字节的type 3 header
+        assertEquals(12 + 300 + 2, a.readableBytes());
+        assertEquals(4 + 300 + 2, c.readableBytes());
+        assertEquals(12 + 300, d.readableBytes());
+
+        final ByteBuf shared = a.unwrap();
+        a.release();
+        b.release();
+        c.release();
+        d.release();
+        assertEquals(1, shared.refCnt());
+        broadcast.release();
+        assertEquals(0, shared.refCnt());
+    }
+
+    @Test
+    public void concurrentSubscribersPublishOneVariantPerState() throws Exception {
+        for(int round = 0; round < 50; round++) {
+            final ChunkedBroadcast broadcast = broadcast();
+            final int threads = 8;
+            final CountDownLatch start = new CountDownLatch(1);
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final List<Future<List<ByteBuf>>> futures = new ArrayList<Future<List<ByteBuf>>>();
+            try {
+                for(int i = 0; i < threads; i++) {
+                    futures.add(executor.submit(new Callable<List<ByteBuf>>() {
+                        @Override
+                        public List<ByteBuf> call() throws Exception {
+                            start.await();
+                            final List<ByteBuf> out = new ArrayList<ByteBuf>();
+                            out.add(broadcast.chunks(ALLOC, 128, Type.ALL, 0));
+                            out.add(broadcast.chunks(ALLOC, 128, Type.TINY, 40));
+                            return out;
+                        }
+                    }));
+                }
+                start.countDown();
+                final Map<ByteBuf, Boolean> variants = new IdentityHashMap<ByteBuf, Boolean>();
+                final List<ByteBuf> all = new ArrayList<ByteBuf>();
+                for(final Future<List<ByteBuf>> future : futures) {
+                    all.addAll(future.get());
+                }
+                for(final ByteBuf buf : all) {
+                    variants.put(buf.unwrap(), Boolean.TRUE);
+                }
+                // 并发miss时只保留先发布的那份，后到的release掉
+                assertEquals(2, variants.size());
+                for(final ByteBuf buf : all) {
+                    buf.release();
+                }
+                broadcast.release();
+                for(final ByteBuf variant : variants.keySet()) {
+                    assertEquals(0, variant.refCnt());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static ChunkedBroadcast broadcast() {
+        return new ChunkedBroadcast(new Video(1000, Unpooled.wrappedBuffer(new byte[]{0x17, 1, 0, 0}, new byte[296])));
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.dc.piglet.rtmp.handler;
+
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.ChunkSize;
+import com.dc.piglet.rtmp.core.protocol.DataMessage;
+import com.dc.piglet.rtmp.core.protocol.RtmpHeader;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import com.dc.piglet.rtmp.entity.MessageType;
+import com.dc.piglet.rtmp.entity.Type;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpDecoderTest {
+
+    private EmbeddedChannel channel = new EmbeddedChannel(new RtmpDecoder());
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void decodesByteByByteWithZeroCopy() {
+        assertDecodesByteByByte(true);
+    }
+
+    @Test
+    public void decodesByteByByteWithCopy() {
+        assertDecodesByteByByte(false);
+    }
+
+    @Test
+    public void decodesWholeBufferAtOnce() {
+        final List<RtmpMessage> expected = messages();
+        channel.writeInbound(encode(expected));
+        assertDecoded(expected);
+    }
+
+    @Test
+    public void sharedObjectMessageIsDroppedAndDecodingContinues() {
+        final RtmpHeader header = new RtmpHeader(MessageType.SHARED_OBJECT_AMF0, 0, 10);
+        header.setStreamId(1);
+        final ByteBuf in = Unpooled.buffer();
+        header.encode(in, Type.ALL, 10, 0);
+        in.writeZero(10);
+        final ByteBuf next = new RtmpEncoder().encode(new ChunkSize(4096));
+        in.writeBytes(next);
+        next.release();
+        channel.writeInbound(in);
+
+        assertTrue(channel.isActive());
+        final ChunkSize chunkSize = channel.readInbound();
+        assertEquals(4096, chunkSize.getChunkSize());
+        assertNull(channel.readInbound());
+    }
+
+    /**
+     * 每次只到达一个字节，header和payload在任意位置被拆开，每个message仍只解码一次
+     */
+    private void assertDecodesByteByByte(final boolean zeroCopy) {
+        channel.finishAndReleaseAll();
+        channel = new EmbeddedChannel(new RtmpDecoder(zeroCopy));
+        final List<RtmpMessage> expected = messages();
+        final ByteBuf in = encode(expected);
+        while(in.isReadable()) {
+            channel.writeInbound(in.readRetainedSlice(1));
+        }
+        in.release();
+        assertDecoded(expected);
+    }
+
+    private void assertDecoded(final List<RtmpMessage> expected) {
+        for(final RtmpMessage message : expected) {
+            final RtmpMessage decoded = channel.readInbound();
+            assertEquals(message.getHeader().getMsgType(), decoded.getHeader().getMsgType());
+            assertEquals(message.getHeader().getTimestamp(), decoded.getHeader().getTimestamp());
+            assertEquals(message.getHeader().getStreamId(), decoded.getHeader().getStreamId());
+            assertTrue(ByteBufUtil.equals(message.encode(), decoded.encode()));
+            ReferenceCountUtil.release(decoded);
+            ReferenceCountUtil.release(message);
+        }
+        assertNull(channel.readInbound());
+    }
+
+    /**
+     * 同一csId上的音视频，覆盖type 0(含extended timestamp) / 1 / 2 header和多chunk的payload
+     */
+    private static List<RtmpMessage> messages() {
+        final Random random = new Random(1);
+        final int base = RtmpHeader.MAX_NORMAL_HEADER_TIME + 5;
+        final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+        messages.add(video(random, base, 300));
+        messages.add(video(random, base + 40, 300));
+        messages.add(audio(random, base + 60, 20));
+        messages.add(video(random, base + 80, 1000));
+        messages.add(video(random, base + 120, 1000));
+        return messages;
+    }
+
+    private static Video video(final Random random, final int time, final int size) {
+        final byte[] data = new byte[size];
+        random.nextBytes(data);
+        data[0] = 0x27;
+        return stream(new Video(time, Unpooled.wrappedBuffer(data)));
+    }
+
+    private static Audio audio(final Random random, final int time, final int size) {
+        final byte[] data = new byte[size];
+        random.nextBytes(data);
+        data[0] = (byte) 0xaf;
+        return stream(new Audio(time, Unpooled.wrappedBuffer(data)));
+    }
+
+    private static <T extends DataMessage> T stream(final T message) {
+        message.getHeader().setStreamId(1);
+        return message;
+    }
+
+    private static ByteBuf encode(final List<RtmpMessage> messages) {
+        final RtmpEncoder encoder = new RtmpEncoder();
+        final ByteBuf out = Unpooled.buffer();
+        for(final RtmpMessage message : messages) {
+            final ByteBuf encoded = encoder.encode(message);
+            out.writeBytes(encoded);
+            encoded.release();
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.dc.piglet.rtmp.handler;
+
+import com.dc.piglet.rtmp.core.io.FileChannelReader;
+import com.dc.piglet.rtmp.core.protocol.Aggregate;
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.DataMessage;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import com.dc.piglet.rtmp.entity.Type;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpEncoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void zeroCopyAggregateInterleavesChunkHeadersAndFileRegions() throws IOException {
+        final byte[] content = new byte[1000];
+        new Random(3).nextBytes(content);
+        final File file = folder.newFile("aggregate.bin");
+        Files.write(file.toPath(), content);
+
+        for(final int size : new int[]{1, 128, 129, 900}) {
+            final byte[] payload = Arrays.copyOfRange(content, 50, 50 + size);
+            final byte[] expected = ByteBufUtil.getBytes(new RtmpEncoder().encode(new Aggregate(1000, Unpooled.wrappedBuffer(payload))));
+
+            final FileChannelReader reader = new FileChannelReader(file);
+            final RtmpEncoder encoder = new RtmpEncoder();
+            encoder.setZeroCopy(true);
+            final EmbeddedChannel channel = new EmbeddedChannel(encoder);
+            channel.writeAndFlush(new Aggregate(1000, reader.slice(50, size), 1000));
+            reader.close();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final WritableByteChannel target = Channels.newChannel(out);
+            int regions = 0;
+            Object msg;
+            while((msg = channel.readOutbound()) != null) {
+                if(msg instanceof FileRegion) {
+                    assertTrue(msg instanceof DefaultFileRegion);
+                    final FileRegion region = (FileRegion) msg;
+                    while(region.transferred() < region.count()) {
+                        region.transferTo(target, region.transferred());
+                    }
+                    regions++;
+                } else {
+                    final ByteBuf buf = (ByteBuf) msg;
+                    buf.readBytes(out, buf.readableBytes());
+                }
+                ReferenceCountUtil.release(msg);
+            }
+            // 每个chunk的payload一个region
+            assertEquals((size + 127) / 128, regions);
+            assertArrayEquals("size " + size, expected, out.toByteArray());
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void compressesHeadersAndRoundTripsThroughDecoder() {
+        // 同一csId：首个message type 0，类型长度都相同type 2，否则type 1，时间回退或streamId变化回到type 0
+        final List<RtmpMessage> messages = messages();
+        final Type[] expected = {Type.ALL, Type.SMALL, Type.MID, Type.MID, Type.SMALL, Type.ALL, Type.ALL};
+        final RtmpEncoder encoder = new RtmpEncoder();
+        final ByteBuf stream = Unpooled.buffer();
+        for(int i = 0; i < messages.size(); i++) {
+            final ByteBuf encoded = encoder.encode(messages.get(i));
+            assertEquals("message " + i, expected[i].getId(), (encoded.getByte(0) & 0xff) >> 6);
+            stream.writeBytes(encoded);
+            encoded.release();
+        }
+        // 多chunk的message后续chunk都是type 3
+        assertDecoded(stream, messages);
+    }
+
+    @Test
+    public void broadcastChunksMatchPerConnectionEncoding() {
+        final List<RtmpMessage> messages = messages();
+        final RtmpEncoder plain = new RtmpEncoder();
+        final RtmpEncoder shared = new RtmpEncoder();
+        // 从第4个message开始订阅的连接，header压缩状态与其他连接不同
+        final RtmpEncoder late = new RtmpEncoder();
+        final ByteBuf lateStream = Unpooled.buffer();
+        for(int i = 0; i < messages.size(); i++) {
+            final RtmpMessage message = messages.get(i);
+            final ChunkedBroadcast broadcast = new ChunkedBroadcast(ReferenceCountUtil.retain(message));
+            final ByteBuf expected = plain.encode(message);
+            final ByteBuf actual = shared.encode(UnpooledByteBufAllocator.DEFAULT, broadcast);
+            assertTrue("message " + i, ByteBufUtil.equals(expected, actual));
+            if(i >= 3) {
+                final ByteBuf chunks = late.encode(UnpooledByteBufAllocator.DEFAULT, broadcast);
+                if(i == 3) {
+                    assertEquals(Type.ALL.getId(), (chunks.getByte(0) & 0xff) >> 6);
+                }
+                lateStream.writeBytes(chunks);
+                chunks.release();
+            }
+            expected.release();
+            actual.release();
+            broadcast.release();
+        }
+        assertDecoded(lateStream, messages.subList(3, messages.size()));
+        for(final RtmpMessage message : messages) {
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    private static void assertDecoded(final ByteBuf stream, final List<RtmpMessage> expected) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new RtmpDecoder());
+        channel.writeInbound(stream);
+        for(final RtmpMessage message : expected) {
+            final RtmpMessage decoded = channel.readInbound();
+            assertEquals(message.getHeader().getMsgType(), decoded.getHeader().getMsgType());
+            assertEquals(message.getHeader().getTimestamp(), decoded.getHeader().getTimestamp());
+            assertEquals(message.getHeader().getStreamId(), decoded.getHeader().getStreamId());
+            assertTrue(ByteBufUtil.equals(message.encode(), decoded.encode()));
+            ReferenceCountUtil.release(decoded);
+        }
+        assertNull(channel.readInbound());
+        channel.finishAndReleaseAll();
+    }
+
+    private static List<RtmpMessage> messages() {
+        final Random random = new Random(4);
+        final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+        messages.add(stream(new Video(1000, Unpooled.wrappedBuffer(bytes(random, 300))), 1));
+        messages.add(stream(new Video(1040, Unpooled.wrappedBuffer(bytes(random, 300))), 1));
+        messages.add(stream(new Audio(1060, Unpooled.wrappedBuffer(bytes(random, 20))), 1));
+        messages.add(stream(new Video(1080, Unpooled.wrappedBuffer(bytes(random, 1000))), 1));
+        messages.add(stream(new Video(1120, Unpooled.wrappedBuffer(bytes(random, 1000))), 1));
+        messages.add(stream(new Video(1100, Unpooled.wrappedBuffer(bytes(random, 1000))), 1));
+        messages.add(stream(new Video(1140, Unpooled.wrappedBuffer(bytes(random, 1000))), 2));
+        return messages;
+    }
+
+    private static byte[] bytes(final Random random, final int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static RtmpMessage stream(final DataMessage message, final int streamId) {
+        message.getHeader().setStreamId(streamId);
+        return message;
+    }
+
+}
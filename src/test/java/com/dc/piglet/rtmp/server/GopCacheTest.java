@@ -0,0 +1,140 @@
+package com.dc.piglet.rtmp.server;
+
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.DataMessage;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GopCacheTest {
+
+    @Test
+    public void startsAtKeyframeAndSkipsConfig() {
+        final GopCache cache = new GopCache(1024, 2);
+        final Audio early = audio(0);
+        final Video config = new Video(0, new byte[]{0x17, 0, 0, 0, 1}, 5);
+        final Video keyframe = video(10, true);
+        final Audio audio = audio(20);
+        cache.add(early);
+        cache.add(config);
+        cache.add(keyframe);
+        cache.add(audio);
+        assertEquals(1, cache.getGops());
+        assertBurst(cache, keyframe, audio);
+        cache.clear();
+        assertRefCnt(1, early, config, keyframe, audio);
+    }
+
+    @Test
+    public void evictsOldestGopBeyondMaxGops() {
+        final GopCache cache = new GopCache(1024, 2);
+        final Video first = video(0, true);
+        final Video inter = video(40, false);
+        final Video second = video(1000, true);
+        final Audio audio = audio(1020);
+        final Video third = video(2000, true);
+        for(final RtmpMessage message : Arrays.asList(first, inter, second, audio, third)) {
+            cache.add(message);
+        }
+        assertEquals(2, cache.getGops());
+        assertEquals(3 * 8, cache.getBytes());
+        assertBurst(cache, second, audio, third);
+        assertRefCnt(1, first, inter);
+        cache.clear();
+    }
+
+    @Test
+    public void evictsByBytesAndRestartsWhenOneGopIsTooLarge() {
+        // 两个8字节GOP刚好放下，再来一帧时淘汰旧GOP
+        final GopCache cache = new GopCache(16, 3);
+        final Video first = video(0, true);
+        final Video second = video(1000, true);
+        final Video inter = video(1040, false);
+        cache.add(first);
+        cache.add(second);
+        cache.add(inter);
+        assertBurst(cache, second, inter);
+        assertRefCnt(1, first);
+        // 只剩一个GOP仍超限时清空，之后的非关键帧不缓存
+        cache.add(video(1080, false));
+        assertEquals(0, cache.getGops());
+        assertEquals(0, cache.getBytes());
+        cache.add(video(1120, false));
+        assertTrue(cache.retainedMessages().isEmpty());
+        assertRefCnt(1, second, inter);
+    }
+
+    @Test
+    public void disabledCacheKeepsNothing() {
+        final GopCache cache = new GopCache(0, 1);
+        assertFalse(cache.isEnabled());
+        final Video keyframe = video(0, true);
+        cache.add(keyframe);
+        assertTrue(cache.retainedMessages().isEmpty());
+        assertRefCnt(1, keyframe);
+    }
+
+    @Test
+    public void cachedPayloadDoesNotPinInboundBuffer() {
+        final GopCache cache = new GopCache(1024, 1);
+        // 解码器给出的是大块入站buffer中的切片
+        final ByteBuf inbound = Unpooled.buffer(4096).writeBytes(new byte[]{0x17, 1, 0, 0, 5, 6, 7, 8}).writeZero(4088);
+        final Video keyframe = new Video(0, inbound.slice(0, 8));
+        cache.add(keyframe);
+        assertEquals(1, inbound.refCnt());
+        assertEquals(8, cache.getBytes());
+        inbound.release();
+
+        final List<RtmpMessage> burst = cache.retainedMessages();
+        final ByteBuf cached = burst.get(0).encode();
+        assertEquals(8, cached.capacity());
+        assertTrue(ByteBufUtil.equals(Unpooled.wrappedBuffer(new byte[]{0x17, 1, 0, 0, 5, 6, 7, 8}), cached));
+        ReferenceCountUtil.release(burst.get(0));
+        cache.clear();
+        assertEquals(0, ((DataMessage) burst.get(0)).refCnt());
+    }
+
+    private static void assertBurst(final GopCache cache, final RtmpMessage... expected) {
+        final List<RtmpMessage> burst = cache.retainedMessages();
+        assertEquals(expected.length, burst.size());
+        for(int i = 0; i < expected.length; i++) {
+            // 缓存的是拷贝，原message不被引用
+            assertNotSame(expected[i], burst.get(i));
+            assertSame(expected[i].getClass(), burst.get(i).getClass());
+            assertEquals(expected[i].getHeader().getTimestamp(), burst.get(i).getHeader().getTimestamp());
+            assertTrue(ByteBufUtil.equals(expected[i].encode(), burst.get(i).encode()));
+            assertEquals(1, ((DataMessage) expected[i]).refCnt());
+            // 缓存和本次快照各持有一个引用
+            assertEquals(2, ((DataMessage) burst.get(i)).refCnt());
+            ReferenceCountUtil.release(burst.get(i));
+        }
+    }
+
+    private static void assertRefCnt(final int refCnt, final RtmpMessage... messages) {
+        for(final RtmpMessage message : messages) {
+            assertEquals(message.toString(), refCnt, ((DataMessage) message).refCnt());
+        }
+    }
+
+    private static Video video(final int time, final boolean keyframe) {
+        return new Video(time, new byte[]{(byte) (keyframe ? 0x17 : 0x27), 1, 0, 0, 0, 0, 0, 0}, 8);
+    }
+
+    private static Audio audio(final int time) {
+        return new Audio(time, new byte[]{(byte) 0xaf, 1}, new byte[]{0, 0, 0, 0, 0, 0});
+    }
+
+}
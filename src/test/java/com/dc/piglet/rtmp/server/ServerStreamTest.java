@@ -0,0 +1,134 @@
+package com.dc.piglet.rtmp.server;
+
+import com.dc.piglet.rtmp.core.protocol.Audio;
+import com.dc.piglet.rtmp.core.protocol.DataMessage;
+import com.dc.piglet.rtmp.core.protocol.RtmpMessage;
+import com.dc.piglet.rtmp.core.protocol.Video;
+import com.dc.piglet.rtmp.handler.ChunkedBroadcast;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ServerStreamTest {
+
+    private final List<EmbeddedChannel> channels = new ArrayList<EmbeddedChannel>();
+
+    @After
+    public void tearDown() {
+        for(final EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void onlyOnePublisherWinsConcurrentClaims() throws Exception {
+        final ServerStream stream = new ServerStream("live", "live");
+        final int threads = 8;
+        final ChannelHandlerContext[] contexts = new ChannelHandlerContext[threads];
+        for(int i = 0; i < threads; i++) {
+            contexts[i] = newContext();
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger claimed = new AtomicInteger();
+        final List<Thread> started = new ArrayList<Thread>();
+        for(int i = 0; i < threads; i++) {
+            final ChannelHandlerContext ctx = contexts[i];
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    if(stream.claimPublisher(ctx)) {
+                        claimed.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        start.countDown();
+        for(final Thread thread : started) {
+            thread.join();
+        }
+        assertEquals(1, claimed.get());
+    }
+
+    @Test
+    public void onlyTheOwnerReleasesThePublisher() {
+        final ServerStream stream = new ServerStream("live", "live");
+        final ChannelHandlerContext first = newContext();
+        final ChannelHandlerContext second = newContext();
+        assertTrue(stream.claimPublisher(first));
+        assertFalse(stream.claimPublisher(second));
+        assertFalse(stream.releasePublisher(second));
+        assertSame(first, stream.getPublisher());
+        assertTrue(stream.releasePublisher(first));
+        assertNull(stream.getPublisher());
+        assertTrue(stream.claimPublisher(second));
+    }
+
+    @Test
+    public void subscriberReceivesCachedGopBeforeLaterBroadcasts() {
+        final ServerStream stream = new ServerStream("live", "live");
+        final List<RtmpMessage> published = new ArrayList<RtmpMessage>();
+        // 第一个关键帧之前的音频不缓存
+        publish(stream, published, new Audio(0, new byte[]{(byte) 0xaf, 1}, new byte[]{0, 0}));
+        publish(stream, published, new Video(0, new byte[]{0x17, 1, 0, 0}, 4));
+        publish(stream, published, new Audio(20, new byte[]{(byte) 0xaf, 1}, new byte[]{0, 0}));
+        publish(stream, published, new Video(40, new byte[]{0x27, 1, 0, 0}, 4));
+
+        final ChannelHandlerContext ctx = newContext();
+        final EmbeddedChannel channel = channels.get(channels.size() - 1);
+        stream.subscribe(ctx);
+        publish(stream, published, new Video(80, new byte[]{0x27, 1, 0, 0}, 4));
+        channel.flush();
+
+        for(int i = 1; i < 4; i++) {
+            final RtmpMessage message = channel.readOutbound();
+            // GOP缓存发出的是payload的拷贝
+            assertEquals(published.get(i).getHeader().getTimestamp(), message.getHeader().getTimestamp());
+            assertTrue(ByteBufUtil.equals(published.get(i).encode(), message.encode()));
+            ReferenceCountUtil.release(message);
+        }
+        final ChunkedBroadcast broadcast = channel.readOutbound();
+        assertSame(published.get(4), broadcast.getMessage());
+        assertNull(channel.readOutbound());
+        broadcast.release();
+        // 重新发布时清掉缓存，只剩发布者自己的引用
+        assertTrue(stream.claimPublisher(ctx));
+        for(final RtmpMessage message : published) {
+            assertEquals(1, ((DataMessage) message).refCnt());
+        }
+    }
+
+    private static void publish(final ServerStream stream, final List<RtmpMessage> published, final RtmpMessage message) {
+        published.add(message);
+        stream.broadcast(message);
+    }
+
+    private ChannelHandlerContext newContext() {
+        final ChannelInboundHandlerAdapter handler = new ChannelInboundHandlerAdapter();
+        final EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channels.add(channel);
+        return channel.pipeline().context(handler);
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.dc.piglet.rtmp.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkStreamTableTest {
+
+    /** 3字节basic header能表示的最大csId */
+    private static final int MAX_CS_ID = 65599;
+
+    @Test
+    public void directAndHashedIdsAreIndependent() {
+        final ChunkStreamTable<String> table = new ChunkStreamTable<String>();
+        table.put(3, "3");
+        table.put(63, "63");
+        table.put(64, "64");
+        table.put(MAX_CS_ID, "max");
+        assertEquals("3", table.get(3));
+        assertEquals("63", table.get(63));
+        assertEquals("64", table.get(64));
+        assertEquals("max", table.get(MAX_CS_ID));
+        assertNull(table.get(2));
+        assertNull(table.get(65));
+        table.put(64, "64'");
+        assertEquals("64'", table.get(64));
+        assertEquals(4, table.values().size());
+    }
+
+    @Test
+    public void matchesHashMapThroughGrowthAndClear() {
+        final Random random = new Random(2);
+        final ChunkStreamTable<Integer> table = new ChunkStreamTable<Integer>();
+        final Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for(int round = 0; round < 3; round++) {
+            // 连续的小csId和整个范围内的随机csId，表会多次扩容
+            for(int i = 0; i < 2000; i++) {
+                final int csId = i % 2 == 0 ? 2 + i / 2 : 2 + random.nextInt(MAX_CS_ID - 1);
+                table.put(csId, i);
+                expected.put(csId, i);
+            }
+            for(final Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), table.get(entry.getKey()));
+            }
+            for(int i = 0; i < 2000; i++) {
+                final int csId = 2 + random.nextInt(MAX_CS_ID - 1);
+                assertEquals(expected.get(csId), table.get(csId));
+            }
+            assertEquals(sorted(new ArrayList<Integer>(expected.values())), sorted(table.values()));
+
+            table.clear();
+            expected.clear();
+            assertTrue(table.values().isEmpty());
+            assertNull(table.get(2));
+            assertNull(table.get(1000));
+        }
+    }
+
+    private static List<Integer> sorted(final List<Integer> list) {
+        Collections.sort(list);
+        return list;
+    }
+
+}